@@ -0,0 +1,399 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// **********************************************************************
+// Bytecode class
+//
+// A compact format for running Simple programs (P5 -bytecode, P5 -vm and
+// the VM class).  All of a program is one int[]: an opcode followed by its
+// operands, the operands are registers, constants, code addresses and
+// indexes.  Every method has its own registers, the params first, then
+// the locals, then the temps the expressions use; ints, booleans
+// (TRUE/FALSE like the generated code) and Strings (an index into the
+// strings of the program, one per literal - like the addresses the
+// generated code compares) all fit in one.
+//
+// The code is made from the typechecked AST, before cgen rewrites it, by
+// the bcgen methods in ast.java with a Builder.  The serialised form is
+// the arrays written as they are (write/read), loading it is reading
+// them back.
+//
+// Public Methods
+// ==============
+// write(out), read(in), read(bytes) -- the serialised form
+// toBytes(), size()    -- the serialised form in memory, its length
+// Builder              -- used by the AST nodes to make the code
+// **********************************************************************
+public class Bytecode {
+    public static final int MAGIC = 0x53424331;  // "SBC1"
+
+    // opcodes: d is the register written, a, b and s ones read, k a constant,
+    // t a code address
+    public static final int CONST = 0;      // d k
+    public static final int MOVE = 1;       // d s
+    public static final int ADD = 2;        // d a b, up to GE the same
+    public static final int SUB = 3;
+    public static final int MUL = 4;
+    public static final int DIV = 5;
+    public static final int POW = 6;
+    public static final int EQ = 7;         // TRUE or FALSE into d
+    public static final int NE = 8;
+    public static final int LT = 9;
+    public static final int GT = 10;
+    public static final int LE = 11;
+    public static final int GE = 12;
+    public static final int ADDK = 13;      // d a k
+    public static final int NEG = 14;       // d a
+    public static final int NOT = 15;       // d a
+    public static final int LOADG = 16;     // d g
+    public static final int STOREG = 17;    // g s
+    public static final int PRINT = 18;     // s, and a newline
+    public static final int PRINTS = 19;    // s, a String
+    public static final int JUMP = 20;      // t
+    public static final int JUMPT = 21;     // s t, taken if s is TRUE
+    public static final int JUMPF = 22;     // s t, taken if it is not
+    public static final int BEQ = 23;       // a b t, taken if a == b, up to BLE the same
+    public static final int BNE = 24;
+    public static final int BLT = 25;
+    public static final int BGE = 26;
+    public static final int BGT = 27;
+    public static final int BLE = 28;
+    public static final int CALL = 29;      // m n a d: method m with the n args in a, a+1, ..., result into d
+    public static final int RET = 30;       // s
+    public static final int RET0 = 31;     // a void method, or an int one falling off its end
+
+    public int[] code;
+    public int main;          // method index
+    public int globals;       // static fields, each in a word of its own
+    public String[] fields;   // their names, by index
+    public String[] strings;  // by index, 0 is the one a String nobody assigned has
+    public String[] names;    // of the methods, by index
+    public int[] entries;     // where the methods start in code
+    public int[] registers;   // registers of the methods
+    public int[] params;
+
+    // **********************************************************************
+    // the serialised form: ints big endian, a String is its length and then
+    // its UTF-8 bytes.  Reading is going through one ByteBuffer, cold that
+    // takes well under a millisecond for the programs there are
+    // **********************************************************************
+    public void write(OutputStream out) throws IOException {
+        byte[][] encoded = new byte[strings.length + names.length + globals][];
+        int size = 4 * (6 + 4 * names.length + code.length + strings.length + globals);
+        for (int i = 0; i < encoded.length; i++) {
+            String s = i < strings.length ? strings[i]
+                : i < strings.length + names.length ? names[i - strings.length]
+                : fields[i - strings.length - names.length];
+            encoded[i] = s.getBytes(StandardCharsets.UTF_8);
+            size += encoded[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(main).putInt(globals);
+        for (int g = 0; g < globals; g++) {
+            byte[] field = encoded[strings.length + names.length + g];
+            buffer.putInt(field.length).put(field);
+        }
+        buffer.putInt(strings.length);
+        for (int i = 0; i < strings.length; i++) buffer.putInt(encoded[i].length).put(encoded[i]);
+        buffer.putInt(names.length);
+        for (int m = 0; m < names.length; m++) {
+            byte[] name = encoded[strings.length + m];
+            buffer.putInt(name.length).put(name);
+            buffer.putInt(entries[m]).putInt(registers[m]).putInt(params[m]);
+        }
+        buffer.putInt(code.length);
+        buffer.asIntBuffer().put(code);
+        out.write(buffer.array());
+        out.flush();
+    }
+
+    public static Bytecode read(InputStream in) throws IOException {
+        return read(in.readAllBytes());
+    }
+
+    public static Bytecode read(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try {
+            if (buffer.getInt() != MAGIC) throw new IOException("not Simple bytecode");
+            Bytecode program = new Bytecode();
+            program.main = buffer.getInt();
+            program.globals = buffer.getInt();
+            program.fields = new String[program.globals];
+            for (int g = 0; g < program.globals; g++) program.fields[g] = string(buffer);
+            program.strings = new String[buffer.getInt()];
+            for (int i = 0; i < program.strings.length; i++) program.strings[i] = string(buffer);
+            int methods = buffer.getInt();
+            program.names = new String[methods];
+            program.entries = new int[methods];
+            program.registers = new int[methods];
+            program.params = new int[methods];
+            for (int m = 0; m < methods; m++) {
+                program.names[m] = string(buffer);
+                program.entries[m] = buffer.getInt();
+                program.registers[m] = buffer.getInt();
+                program.params[m] = buffer.getInt();
+            }
+            program.code = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(program.code);
+            return program;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException ex) {
+            throw new IOException("bytecode cut short");
+        }
+    }
+
+    private static String string(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(out);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    public int size() {
+        return toBytes().length;
+    }
+
+    // **********************************************************************
+    // Builder
+    //    makes the code.  Registers are handed out while it is made: a
+    //    local gets one by its offset in the frame the first time it is
+    //    used, a temp is only needed until the end of the statement
+    //    (endStatement).  Since locals turn up while temps are in use, the
+    //    temps are numbered after the locals once the method is done
+    // **********************************************************************
+    public static class Builder {
+        public Builder() {
+            myStrings.add("");
+        }
+
+        public class Label {
+            private int myPosition = -1;
+            private ArrayList<Integer> myFixups = new ArrayList<Integer>();
+        }
+
+        public Label newLabel() {
+            return new Label();
+        }
+
+        // the jumps made to it so far get its address too
+        public void mark(Label label) {
+            label.myPosition = myCode.size();
+            for (int position : label.myFixups) myCode.set(position, label.myPosition);
+            label.myFixups.clear();
+            myLastDest = -1;
+        }
+
+        // index of a method, it does not have to have been made yet
+        public int method(String name) {
+            Integer index = myMethods.get(name);
+            if (index == null) {
+                index = myMethods.size();
+                myMethods.put(name, index);
+                myEntries.add(-1);
+                myRegisters.add(0);
+                myParams.add(0);
+            }
+            return index;
+        }
+
+        public int global(String name) {
+            Integer index = myGlobals.get(name);
+            if (index == null) {
+                index = myGlobals.size();
+                myGlobals.put(name, index);
+            }
+            return index;
+        }
+
+        // a new one for every literal, Strings are compared by where they are
+        public int string(String value) {
+            myStrings.add(value);
+            return myStrings.size() - 1;
+        }
+
+        // **********************************************************************
+        // registers
+        // **********************************************************************
+        public void beginMethod(String name) {
+            myMethod = method(name);
+            myEntries.set(myMethod, myCode.size());
+            myLocals = new HashMap<Integer, Integer>();
+            myTemps = 0;
+            myMaxTemps = 0;
+            myRegisterFixups = new ArrayList<Integer>();
+            myLastDest = -1;
+        }
+
+        // the params are the first locals
+        public void params(int count) {
+            myParams.set(myMethod, count);
+        }
+
+        public int local(int offset) {
+            Integer register = myLocals.get(offset);
+            if (register == null) {
+                register = myLocals.size();
+                myLocals.put(offset, register);
+            }
+            return register;
+        }
+
+        // temps are negative until endMethod
+        public int temp() {
+            myTemps++;
+            myMaxTemps = Math.max(myMaxTemps, myTemps);
+            return -myTemps;
+        }
+
+        public void endStatement() {
+            myTemps = 0;
+        }
+
+        public void endMethod() {
+            // an int method that falls off its end returns 0 here
+            emit(RET0);
+            int locals = myLocals.size();
+            for (int position : myRegisterFixups) {
+                int register = myCode.get(position);
+                if (register < 0) myCode.set(position, locals - register - 1);
+            }
+            myRegisters.set(myMethod, locals + myMaxTemps);
+        }
+
+        // **********************************************************************
+        // instructions.  Which operands are registers is up to the opcode
+        // **********************************************************************
+        public void emit(int op, int... operands) {
+            int start = myCode.size();
+            myCode.add(op);
+            for (int operand : operands) myCode.add(operand);
+            int[] kinds = operandKinds(op);
+            myLastDest = -1;
+            for (int i = 0; i < operands.length; i++) {
+                if (kinds[i] == REGISTER || kinds[i] == DEST) myRegisterFixups.add(start + 1 + i);
+                if (kinds[i] == DEST) myLastDest = start + 1 + i;
+            }
+        }
+
+        public void jump(int op, Label target, int... registers) {
+            emit(op, append(registers, 0));
+            int position = myCode.size() - 1;
+            if (target.myPosition >= 0) {
+                myCode.set(position, target.myPosition);
+            } else {
+                target.myFixups.add(position);
+            }
+        }
+
+        // puts the value in register into local, by writing it there in the
+        // first place if it was just computed into a temp
+        public void moveTo(int local, int register) {
+            if (register == local) return;
+            if (register < 0 && myLastDest >= 0 && myCode.get(myLastDest) == register) {
+                myCode.set(myLastDest, local);
+                myLastDest = -1;
+                return;
+            }
+            emit(MOVE, local, register);
+        }
+
+        public Bytecode finish(String main) {
+            Bytecode program = new Bytecode();
+            program.code = new int[myCode.size()];
+            for (int i = 0; i < program.code.length; i++) program.code[i] = myCode.get(i);
+            program.main = method(main);
+            program.globals = myGlobals.size();
+            program.fields = new String[program.globals];
+            for (String name : myGlobals.keySet()) program.fields[myGlobals.get(name)] = name;
+            program.strings = myStrings.toArray(new String[0]);
+            program.names = new String[myMethods.size()];
+            for (String name : myMethods.keySet()) program.names[myMethods.get(name)] = name;
+            program.entries = toArray(myEntries);
+            program.registers = toArray(myRegisters);
+            program.params = toArray(myParams);
+            for (int m = 0; m < program.entries.length; m++) {
+                if (program.entries[m] < 0) throw new IllegalStateException("there is no method " + program.names[m]);
+            }
+            return program;
+        }
+
+        private static int[] append(int[] values, int value) {
+            int[] result = new int[values.length + 1];
+            System.arraycopy(values, 0, result, 0, values.length);
+            result[values.length] = value;
+            return result;
+        }
+
+        private static int[] toArray(ArrayList<Integer> list) {
+            int[] result = new int[list.size()];
+            for (int i = 0; i < result.length; i++) result[i] = list.get(i);
+            return result;
+        }
+
+        private ArrayList<Integer> myCode = new ArrayList<Integer>();
+        private HashMap<String, Integer> myMethods = new HashMap<String, Integer>();
+        private ArrayList<Integer> myEntries = new ArrayList<Integer>();
+        private ArrayList<Integer> myRegisters = new ArrayList<Integer>();
+        private ArrayList<Integer> myParams = new ArrayList<Integer>();
+        private HashMap<String, Integer> myGlobals = new HashMap<String, Integer>();
+        private ArrayList<String> myStrings = new ArrayList<String>();
+        private int myMethod;
+        private HashMap<Integer, Integer> myLocals;   // registers by offset
+        private int myTemps;
+        private int myMaxTemps;
+        private ArrayList<Integer> myRegisterFixups;  // code positions that name a register
+        private int myLastDest;                       // position of the register the last instruction wrote, -1 if none
+    }
+
+    // the branch taken when the comparison op (EQ up to GE) holds, or does not
+    public static int branch(int op, boolean onTrue) {
+        int branch;
+        switch (op) {
+        case EQ: branch = BEQ; break;
+        case NE: branch = BNE; break;
+        case LT: branch = BLT; break;
+        case GT: branch = BGT; break;
+        case LE: branch = BLE; break;
+        case GE: branch = BGE; break;
+        default: throw new IllegalArgumentException("not a comparison: " + op);
+        }
+        // BEQ/BNE, BLT/BGE and BGT/BLE are each other's opposites
+        return onTrue ? branch : BEQ + ((branch - BEQ) ^ 1);
+    }
+
+    // **********************************************************************
+    // what the operands of an instruction are
+    // **********************************************************************
+    static final int REGISTER = 0, DEST = 1, OTHER = 2;
+
+    static int[] operandKinds(int op) {
+        switch (op) {
+        case CONST: case LOADG: return new int[] { DEST, OTHER };
+        case MOVE: case NEG: case NOT: return new int[] { DEST, REGISTER };
+        case ADDK: return new int[] { DEST, REGISTER, OTHER };
+        case STOREG: return new int[] { OTHER, REGISTER };
+        case PRINT: case PRINTS: case RET: return new int[] { REGISTER };
+        case JUMP: return new int[] { OTHER };
+        case JUMPT: case JUMPF: return new int[] { REGISTER, OTHER };
+        case BEQ: case BNE: case BLT: case BGE: case BGT: case BLE: return new int[] { REGISTER, REGISTER, OTHER };
+        case CALL: return new int[] { OTHER, OTHER, REGISTER, DEST };
+        case RET0: return new int[0];
+        default:
+            if (op >= ADD && op <= GE) return new int[] { DEST, REGISTER, REGISTER };
+            throw new IllegalArgumentException("unknown opcode " + op);
+        }
+    }
+}
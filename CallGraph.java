@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+// **********************************************************************
+// CallGraph class
+//
+// Book keeping for dead method and dead field elimination.  Name analysis
+// tells the graph which method it is in (enterMethod), and then every call
+// (CallStmtNode, CallExpNode) and every read of a static field (IdNode
+// lookups that are not the target of an assignment) it finds there.  In
+// x = x + 1 the value read only goes back into x, so that is no read of x.
+//
+// Once the whole program has been seen, computeReachable walks the calls
+// from main.  A method it does not get to can never run and is left out of
+// the generated code; a field that no reachable method reads is left out
+// too, together with the stores to it.  Until then, and with the
+// optimization turned off, everything counts as reachable and read.
+//
+// The graph also knows which methods print and which write static fields.
+// computePurity finds the pure methods: the ones that do neither, and only
+// call methods that do neither (see Evaluator).  Until then no method is.
+// **********************************************************************
+public class CallGraph {
+
+    public void enterMethod(String name) {
+        myCurrent = name;
+        if (!myCalls.containsKey(name)) {
+            myCalls.put(name, new ArrayList<String>());
+            myReads.put(name, new HashSet<String>());
+        }
+    }
+
+    public void addCall(String callee) {
+        if (myCurrent != null) myCalls.get(myCurrent).add(callee);
+    }
+
+    public void addRead(String field) {
+        if (myCurrent != null && !field.equals(myAssigned)) myReads.get(myCurrent).add(field);
+    }
+
+    public void addPrint() {
+        if (myCurrent != null) myImpure.add(myCurrent);
+    }
+
+    public void addWrite(String field) {
+        if (myCurrent != null) myImpure.add(myCurrent);
+    }
+
+    // the reads up to endAssignment compute the new value of the given variable
+    public void beginAssignment(String name) {
+        myAssigned = name;
+    }
+
+    public void endAssignment() {
+        myAssigned = null;
+    }
+
+    public void computeReachable(String root) {
+        myReachable = new HashSet<String>();
+        myRead = new HashSet<String>();
+        ArrayList<String> work = new ArrayList<String>();
+        work.add(root);
+        while (!work.isEmpty()) {
+            String method = work.remove(work.size() - 1);
+            if (!myCalls.containsKey(method) || !myReachable.add(method)) continue;
+            work.addAll(myCalls.get(method));
+            myRead.addAll(myReads.get(method));
+        }
+    }
+
+    // a method is impure if it prints or writes a field itself, or calls one that is impure.
+    // Repeated until nothing changes, so that the impurity gets to every caller
+    public void computePurity() {
+        HashSet<String> impure = new HashSet<String>(myImpure);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (String method : myCalls.keySet()) {
+                if (impure.contains(method)) continue;
+                for (String callee : myCalls.get(method)) {
+                    if (impure.contains(callee) || !myCalls.containsKey(callee)) {
+                        impure.add(method);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        myPure = new HashSet<String>(myCalls.keySet());
+        myPure.removeAll(impure);
+    }
+
+    public boolean isPure(String method) {
+        return myPure != null && myPure.contains(method);
+    }
+
+    public boolean isReachable(String method) {
+        return myReachable == null || myReachable.contains(method);
+    }
+
+    public boolean isRead(String field) {
+        return myRead == null || myRead.contains(field);
+    }
+
+    private String myCurrent = null;
+    private String myAssigned = null;
+    private HashMap<String, ArrayList<String>> myCalls = new HashMap<String, ArrayList<String>>();
+    private HashMap<String, HashSet<String>> myReads = new HashMap<String, HashSet<String>>();
+    private HashSet<String> myReachable = null; // null until computed
+    private HashSet<String> myRead = null;
+    private HashSet<String> myImpure = new HashSet<String>(); // print or write a field themselves
+    private HashSet<String> myPure = null; // null until computed
+}
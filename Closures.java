@@ -0,0 +1,500 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// **********************************************************************
+// Closures class
+//
+// Runs a program as a tree of closures (P5 -closures).  Before code
+// generation rewrites the methods, every AST node is compiled once into a
+// closure that does what the node does (closure in ast.java), with
+// everything that can be worked out then already in it: the slot of a
+// local, the index of a static field, the method a call goes to, which
+// operator it is.  Running the program is calling the closure of main;
+// nothing looks at an AST node, a symbol table or a name again.
+//
+// The closures are anonymous classes, not lambdas: for a lambda the JVM
+// makes a class the first time it gets to it, which for the few dozen
+// here adds tens of milliseconds to the start.  These classes come
+// compiled with the rest, nothing is generated while the program runs.
+//
+// Values are ints like in the generated code (and in Bytecode): booleans
+// are TRUE/FALSE, a String is the index of its literal.  A frame is an
+// int[] with a slot for every local and param, the params first, and one
+// more at the end for what the method returns.  The arguments of a call
+// are evaluated last to first, a division by zero gives 0 like in the
+// Interpreter, switch does nothing.  Calls nest up to Interpreter.MAX_DEPTH
+// deep and the program runs on a thread with the Interpreter's large stack
+// (onLargeStack), deeper is a stack overflow that P5 reports.
+//
+// Public Methods
+// ==============
+// run(out)              -- runs main, its output goes to out
+// beginMethod, slot(offset), global(name), string(value), method(name),
+// endMethod             -- used while the AST nodes are compiled
+// the rest              -- the closures for the nodes
+// **********************************************************************
+public class Closures {
+    public interface Exp {
+        int eval(int[] frame);
+    }
+
+    public interface Cond {
+        boolean test(int[] frame);
+    }
+
+    // true if the statement returned from the method
+    public interface Stmt {
+        boolean exec(int[] frame);
+    }
+
+    // what a call is bound to; the body is filled in when the method is compiled
+    public static final class Method {
+        private Method(String name) {
+            this.name = name;
+        }
+
+        final String name;
+        int slots = -1;
+        Stmt body;
+    }
+
+    public Closures() {
+        // a String nobody assigned is 0
+        myStrings.add("");
+    }
+
+    public void run(PrintStream out) {
+        myGlobals = new int[myGlobalIndexes.size()];
+        myStringValues = myStrings.toArray(new String[0]);
+        myOut = new StringBuilder();
+        myDepth = 0;
+        try {
+            Method main = method("main");
+            for (Method method : myMethods.values()) {
+                if (method.body == null) throw new IllegalStateException("there is no method " + method.name);
+            }
+            Interpreter.onLargeStack("closures", () -> main.body.exec(new int[main.slots + 1]));
+        } finally {
+            out.print(myOut);
+            out.flush();
+        }
+    }
+
+    public int methods() {
+        return myMethods.size();
+    }
+
+    // **********************************************************************
+    // compiling: the locals of a method get a slot each, by their offset in
+    // the frame
+    // **********************************************************************
+    public void beginMethod() {
+        mySlots = new HashMap<Integer, Integer>();
+    }
+
+    public int slot(int offset) {
+        Integer slot = mySlots.get(offset);
+        if (slot == null) {
+            slot = mySlots.size();
+            mySlots.put(offset, slot);
+        }
+        return slot;
+    }
+
+    public int global(String name) {
+        Integer index = myGlobalIndexes.get(name);
+        if (index == null) {
+            index = myGlobalIndexes.size();
+            myGlobalIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    // a new one for every literal, Strings are compared by where they are
+    public int string(String value) {
+        myStrings.add(value);
+        return myStrings.size() - 1;
+    }
+
+    public Method method(String name) {
+        Method method = myMethods.get(name);
+        if (method == null) {
+            method = new Method(name);
+            myMethods.put(name, method);
+        }
+        return method;
+    }
+
+    public void endMethod(String name, Stmt body) {
+        Method method = method(name);
+        method.slots = mySlots.size();
+        method.body = body;
+    }
+
+    // **********************************************************************
+    // expressions.  A local and a constant are classes of their own, so an
+    // operator can see what its operands are and read them itself
+    // **********************************************************************
+    static final class Constant implements Exp {
+        Constant(int value) {
+            this.value = value;
+        }
+
+        public int eval(int[] frame) {
+            return value;
+        }
+
+        final int value;
+    }
+
+    static final class Local implements Exp {
+        Local(int slot) {
+            this.slot = slot;
+        }
+
+        public int eval(int[] frame) {
+            return frame[slot];
+        }
+
+        final int slot;
+    }
+
+    public Exp constant(int value) {
+        return new Constant(value);
+    }
+
+    public Exp local(int slot) {
+        return new Local(slot);
+    }
+
+    public Exp global(int index) {
+        return new Exp() {
+            public int eval(int[] frame) {
+                return myGlobals[index];
+            }
+        };
+    }
+
+    public Exp binary(int op, Exp left, Exp right) {
+        if (left instanceof Local && right instanceof Constant) {
+            int slot = ((Local)left).slot, k = ((Constant)right).value;
+            switch (op) {
+            case Interpreter.PLUS: return new Exp() {
+                public int eval(int[] frame) {
+                    return frame[slot] + k;
+                }
+            };
+            case Interpreter.MINUS: return new Exp() {
+                public int eval(int[] frame) {
+                    return frame[slot] - k;
+                }
+            };
+            case Interpreter.TIMES: return new Exp() {
+                public int eval(int[] frame) {
+                    return frame[slot] * k;
+                }
+            };
+            }
+        }
+        if (left instanceof Local && right instanceof Local) {
+            int a = ((Local)left).slot, b = ((Local)right).slot;
+            switch (op) {
+            case Interpreter.PLUS: return new Exp() {
+                public int eval(int[] frame) {
+                    return frame[a] + frame[b];
+                }
+            };
+            case Interpreter.MINUS: return new Exp() {
+                public int eval(int[] frame) {
+                    return frame[a] - frame[b];
+                }
+            };
+            case Interpreter.TIMES: return new Exp() {
+                public int eval(int[] frame) {
+                    return frame[a] * frame[b];
+                }
+            };
+            }
+        }
+        switch (op) {
+        case Interpreter.PLUS: return new Exp() {
+            public int eval(int[] frame) {
+                return left.eval(frame) + right.eval(frame);
+            }
+        };
+        case Interpreter.MINUS: return new Exp() {
+            public int eval(int[] frame) {
+                return left.eval(frame) - right.eval(frame);
+            }
+        };
+        case Interpreter.TIMES: return new Exp() {
+            public int eval(int[] frame) {
+                return left.eval(frame) * right.eval(frame);
+            }
+        };
+        default:
+            if (Interpreter.isComparison(op)) return value(compare(op, left, right));
+            return new Exp() {
+                public int eval(int[] frame) {
+                    return Interpreter.apply(op, left.eval(frame), right.eval(frame));
+                }
+            };
+        }
+    }
+
+    public Exp negate(Exp operand) {
+        return new Exp() {
+            public int eval(int[] frame) {
+                return -operand.eval(frame);
+            }
+        };
+    }
+
+    // a condition used as a value: And, Or, Not
+    public Exp value(Cond cond) {
+        return new Exp() {
+            public int eval(int[] frame) {
+                return cond.test(frame) ? ConstantTable.TRUE : ConstantTable.FALSE;
+            }
+        };
+    }
+
+    // the arguments go straight into the callee's frame, last to first
+    public Exp call(Method method, Exp[] args) {
+        return new Exp() {
+            public int eval(int[] frame) {
+                int[] callee = new int[method.slots + 1];
+                for (int i = args.length - 1; i >= 0; i--) callee[i] = args[i].eval(frame);
+                if (++myDepth > Interpreter.MAX_DEPTH) throw new IllegalStateException("stack overflow");
+                method.body.exec(callee);
+                myDepth--;
+                return callee[callee.length - 1];
+            }
+        };
+    }
+
+    // **********************************************************************
+    // conditions: a comparison tests without making a boolean first
+    // **********************************************************************
+    public Cond test(Exp exp) {
+        return new Cond() {
+            public boolean test(int[] frame) {
+                return exp.eval(frame) == ConstantTable.TRUE;
+            }
+        };
+    }
+
+    public Cond compare(int op, Exp left, Exp right) {
+        if (left instanceof Local && right instanceof Constant) {
+            int slot = ((Local)left).slot, k = ((Constant)right).value;
+            switch (op) {
+            case Interpreter.EQUALS: return new Cond() {
+                public boolean test(int[] frame) {
+                    return frame[slot] == k;
+                }
+            };
+            case Interpreter.NOT_EQUALS: return new Cond() {
+                public boolean test(int[] frame) {
+                    return frame[slot] != k;
+                }
+            };
+            case Interpreter.LESS: return new Cond() {
+                public boolean test(int[] frame) {
+                    return frame[slot] < k;
+                }
+            };
+            case Interpreter.GREATER: return new Cond() {
+                public boolean test(int[] frame) {
+                    return frame[slot] > k;
+                }
+            };
+            case Interpreter.LESS_EQ: return new Cond() {
+                public boolean test(int[] frame) {
+                    return frame[slot] <= k;
+                }
+            };
+            case Interpreter.GREATER_EQ: return new Cond() {
+                public boolean test(int[] frame) {
+                    return frame[slot] >= k;
+                }
+            };
+            }
+        }
+        switch (op) {
+        case Interpreter.EQUALS: return new Cond() {
+            public boolean test(int[] frame) {
+                return left.eval(frame) == right.eval(frame);
+            }
+        };
+        case Interpreter.NOT_EQUALS: return new Cond() {
+            public boolean test(int[] frame) {
+                return left.eval(frame) != right.eval(frame);
+            }
+        };
+        case Interpreter.LESS: return new Cond() {
+            public boolean test(int[] frame) {
+                return left.eval(frame) < right.eval(frame);
+            }
+        };
+        case Interpreter.GREATER: return new Cond() {
+            public boolean test(int[] frame) {
+                return left.eval(frame) > right.eval(frame);
+            }
+        };
+        case Interpreter.LESS_EQ: return new Cond() {
+            public boolean test(int[] frame) {
+                return left.eval(frame) <= right.eval(frame);
+            }
+        };
+        case Interpreter.GREATER_EQ: return new Cond() {
+            public boolean test(int[] frame) {
+                return left.eval(frame) >= right.eval(frame);
+            }
+        };
+        default: throw new IllegalStateException("not a comparison: " + op);
+        }
+    }
+
+    public Cond not(Cond operand) {
+        return new Cond() {
+            public boolean test(int[] frame) {
+                return !operand.test(frame);
+            }
+        };
+    }
+
+    public Cond and(Cond left, Cond right) {
+        return new Cond() {
+            public boolean test(int[] frame) {
+                return left.test(frame) && right.test(frame);
+            }
+        };
+    }
+
+    public Cond or(Cond left, Cond right) {
+        return new Cond() {
+            public boolean test(int[] frame) {
+                return left.test(frame) || right.test(frame);
+            }
+        };
+    }
+
+    // **********************************************************************
+    // statements
+    // **********************************************************************
+    public Stmt print(Exp exp, boolean string) {
+        if (string) {
+            return new Stmt() {
+                public boolean exec(int[] frame) {
+                    myOut.append(myStringValues[exp.eval(frame)]).append('\n');
+                    return false;
+                }
+            };
+        }
+        return new Stmt() {
+            public boolean exec(int[] frame) {
+                myOut.append(exp.eval(frame)).append('\n');
+                return false;
+            }
+        };
+    }
+
+    public Stmt assignLocal(int slot, Exp exp) {
+        return new Stmt() {
+            public boolean exec(int[] frame) {
+                frame[slot] = exp.eval(frame);
+                return false;
+            }
+        };
+    }
+
+    public Stmt assignGlobal(int index, Exp exp) {
+        return new Stmt() {
+            public boolean exec(int[] frame) {
+                myGlobals[index] = exp.eval(frame);
+                return false;
+            }
+        };
+    }
+
+    public Stmt evaluate(Exp exp) {
+        return new Stmt() {
+            public boolean exec(int[] frame) {
+                exp.eval(frame);
+                return false;
+            }
+        };
+    }
+
+    public Stmt block(Stmt[] stmts) {
+        switch (stmts.length) {
+        case 0: return new Stmt() {
+            public boolean exec(int[] frame) {
+                return false;
+            }
+        };
+        case 1: return stmts[0];
+        case 2: {
+            Stmt first = stmts[0], second = stmts[1];
+            return new Stmt() {
+                public boolean exec(int[] frame) {
+                    return first.exec(frame) || second.exec(frame);
+                }
+            };
+        }
+        default:
+            return new Stmt() {
+                public boolean exec(int[] frame) {
+                    for (Stmt stmt : stmts) {
+                        if (stmt.exec(frame)) return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    public Stmt ifThen(Cond cond, Stmt then, Stmt otherwise) {
+        return new Stmt() {
+            public boolean exec(int[] frame) {
+                return cond.test(frame) ? then.exec(frame) : otherwise.exec(frame);
+            }
+        };
+    }
+
+    public Stmt loop(Cond cond, Stmt body) {
+        return new Stmt() {
+            public boolean exec(int[] frame) {
+                while (cond.test(frame)) {
+                    if (body.exec(frame)) return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // the value goes to the last slot of the frame, a void return leaves it 0
+    public Stmt ret(Exp exp) {
+        if (exp == null) return new Stmt() {
+            public boolean exec(int[] frame) {
+                return true;
+            }
+        };
+        return new Stmt() {
+            public boolean exec(int[] frame) {
+                frame[frame.length - 1] = exp.eval(frame);
+                return true;
+            }
+        };
+    }
+
+    private HashMap<Integer, Integer> mySlots;
+    private HashMap<String, Integer> myGlobalIndexes = new HashMap<String, Integer>();
+    private HashMap<String, Method> myMethods = new HashMap<String, Method>();
+    private ArrayList<String> myStrings = new ArrayList<String>();
+    private int[] myGlobals;
+    private String[] myStringValues;
+    private StringBuilder myOut;
+    private int myDepth; // calls of the program running
+}
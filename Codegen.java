@@ -1,8 +1,15 @@
 import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 public class Codegen {
     // file into which generated code is written
-    public static PrintWriter p = null;
+    public PrintWriter p = null;
+    // optional binary backend, gets every instruction written to p as well
+    public MipsEncoder bin = null;
+    // optional delay slot scheduling (code for .set noreorder), gets every instruction before p does
+    public Scheduler scheduler = null;
 
     // values of true and false
     public static final String TRUE = "-1";
@@ -11,16 +18,99 @@ public class Codegen {
     // registers
     public static final String FP = "$fp";
     public static final String SP = "$sp";
+    // calling convention: the first ARG_REGS arguments are passed in $a0-$a3, the result comes back in $v0
+    public static final int ARG_REGS = 4;
+    public static final String RV = "$v0";
+    // nothing else touches these, loops without calls keep globals in them
+    public static final String[] PROMOTE_REGS = {"$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9"};
     //add other registers needed.
 
+    // runtime routines, written once after the last method if the program uses them
+    public static final String POWER = "_.pow";
+    public boolean usesPower = false;
+    // buffered output - print statements append to a buffer that is written with one syscall when
+    // it is full, and when main returns
+    public boolean bufferOutput = true;
+    public static final String PRINT_INT = "_.println_int";
+    public static final String PRINT_STRING = "_.println_str";
+    public static final String FLUSH = "_.flush";
+    public static final int OUTPUT_BUFFER = 4096;
+    public boolean usesOutputBuffer = false;
+    // profile guided optimization - with instrument the program counts what it does and prints
+    // the counts when main returns, a later compile reads them back into profile (see Profile)
+    public boolean instrument = false;
+    public static final String DUMP_PROFILE = "_.dump_profile";
+    private LinkedHashMap<String, String> counters = new LinkedHashMap<String, String>(); // key -> label
+    public Profile profile = null;
+    public int inlinedCalls = 0;     // what the profile was used for, over all methods
+    public int outlinedBlocks = 0;
+    public int swappedBranches = 0;
+
     // for pretty printing generated code
     private static final int MAXLEN = 4;
 
 
     // for generating labels
-    private static int currLabel = 0;
+    private int currLabel = 0;
+    private String labelPrefix = "._L";
+
+    // frame handling - set to false to keep a frame pointer in every method (easier to debug)
+    public boolean omitFramePointer = true;
+    // loop invariant code motion - set to false to get the loops exactly as written
+    public boolean hoistInvariants = true;
+    // counted loops (known trip count) are unrolled this many times, 1 turns it off
+    public int unrollFactor = 4;
+    // value numbering - reuse values computed earlier instead of computing them again
+    public boolean numberValues = true;
+    // conditional constant propagation - fill in the values of locals known at compile time
+    public boolean propagateConstants = true;
+    // dead code elimination - drop unreachable code and stores nobody reads
+    public boolean eliminateDeadCode = true;
+    public int removedStatements = 0; // by dead code elimination, over all methods
+    // dead method elimination - leave out the methods main cannot reach and the fields nobody reads
+    public boolean eliminateDeadMethods = true;
+    public int removedMethods = 0;
+    public int removedFields = 0;
+    public int removedInstructions = 0; // what the removed methods would have taken
+    public int removedBytes = 0;
+    // pure calls - calls of pure methods with known arguments are evaluated at compile time
+    public boolean foldPureCalls = true;
+    public int foldedCalls = 0;
+    // register promotion - globals used in a loop without calls live in a register during the loop
+    public boolean promoteGlobals = true;
+    private HashMap<String, String> promoted = new HashMap<String, String>(); // label -> register
+    private boolean useFP = false;   // current method maintains $fp
+    private boolean savedRA = false; // current method saved $ra
+    private int saveBytes = 0;       // bytes of saved registers at the top of the frame
+    private int frameBytes = 0;      // total size of the current frame
+    private int stackDepth = 0;      // bytes pushed since the prologue
+    private String storedA0 = null;  // address $a0 was stored to by the last instruction
+    private int inlineArea = 0;      // first slot of the current method's inline area
+    private int inlineLocals = -1;   // locals area of the method being inlined, -1 if none is
+    private ArrayList<Outlined> outlined = new ArrayList<Outlined>();
+    private int writtenInstructions = 0; // machine instructions written while discarding
+    private int writtenBytes = 0;
+    private PrintWriter keptP = null;    // while discarding: where the code really goes
+    private MipsEncoder keptBin = null;
+    private boolean keptUsesPower, keptUsesOutputBuffer;
+
+    // the fields above are one compilation's, the static methods generate with
+    // the ones of the compilation the thread runs (see CompileContext)
+    public static Codegen current() {
+        return CompileContext.current().codegen;
+    }
+
+    // the options above, everything the code depends on besides the program (see CompileCache)
+    public static String configuration() {
+        Codegen c = current();
+        return "pipeline " + (c.scheduler != null) + " buffer " + c.bufferOutput + " instrument " + c.instrument
+            + " profile " + (c.profile != null) + " fp " + !c.omitFramePointer + " hoist " + c.hoistInvariants
+            + " unroll " + c.unrollFactor + " number " + c.numberValues + " propagate " + c.propagateConstants
+            + " dead " + c.eliminateDeadCode + " methods " + c.eliminateDeadMethods + " fold " + c.foldPureCalls
+            + " promote " + c.promoteGlobals;
+    }
+
 
- 
 
     // ********************************************************************** 
     // **********************************************************************
@@ -32,18 +122,33 @@ public class Codegen {
     // generates a header comment
     // **********************************************************************
     public static void generateHeaderComment(String comment){
-        p.print("\t\t# " + comment);
-        p.println();
+        Codegen c = current();
+        if (c.scheduler != null) {
+            c.scheduler.comment("\t\t# " + comment);
+        } else {
+            write("\t\t# " + comment);
+        }
     }
     // **********************************************************************
     // all necessary code to start the generated code
     // **********************************************************************
        //generate header
        public static void generateHeader(){
-        p.println("\t .data");
-        p.println("_true: .asciiz \"true\"");
-        p.println("_false: .asciiz \"false\"");
-        p.println("_.newline: .asciiz \"\\n\"");
+        Codegen c = current();
+        if (c.scheduler != null) generateDirective(".set", "noreorder");
+        c.p.println("\t .data");
+        c.p.println("_true: .asciiz \"true\"");
+        c.p.println("_false: .asciiz \"false\"");
+        c.p.println("_.newline: .asciiz \"\\n\"");
+        if (c.bin != null) {
+            c.bin.directive(".data");
+            c.bin.label("_true");
+            c.bin.directive(".asciiz", "\"true\"");
+            c.bin.label("_false");
+            c.bin.directive(".asciiz", "\"false\"");
+            c.bin.label("_.newline");
+            c.bin.directive(".asciiz", "\"\\n\"");
+        }
     }
 
     // **********************************************************************
@@ -52,18 +157,27 @@ public class Codegen {
     //    do:     write nicely formatted code (ending with new line)
     // **********************************************************************
     public static void generateDirective(String directive) {
-        p.print( directive);
-        p.println();
+        Codegen c = current();
+        if (c.scheduler != null) c.scheduler.flush();
+        c.p.print( directive);
+        c.p.println();
+        if (c.bin != null) c.bin.directive(directive);
     }
 
     public static void generateDirective(String directive, String arg) {
-        p.print( directive + " " + arg);
-        p.println();
+        Codegen c = current();
+        if (c.scheduler != null) c.scheduler.flush();
+        c.p.print( directive + " " + arg);
+        c.p.println();
+        if (c.bin != null) c.bin.directive(directive, arg);
     }
 
     public static void generateDirectiveWithComment(String directive, String comment, String arg) {
-        p.print( directive + " " + arg + "\t\t#" + comment);
-        p.println();
+        Codegen c = current();
+        if (c.scheduler != null) c.scheduler.flush();
+        c.p.print( directive + " " + arg + "\t\t#" + comment);
+        c.p.println();
+        if (c.bin != null) c.bin.directive(directive, arg);
     }
 
     // **********************************************************************
@@ -76,51 +190,51 @@ public class Codegen {
                                            String arg3) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        String line = "\t" + opcode;
         if (arg1 != "") {
-            for (int k = 1; k <= space; k++) p.print(" ");
-            p.print(arg1);
+            for (int k = 1; k <= space; k++) line += " ";
+            line += arg1;
             if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "") p.print(", " + arg3);
+                line += ", " + arg2;
+                if (arg3 != "") line += ", " + arg3;
             }
         }           
-        if (comment != "") p.print("\t\t#" + comment);
-        p.println();
+        if (comment != "") line += "\t\t#" + comment;
+        instruction(line, opcode, arg1, arg2, arg3);
 
     }
 
     public static void generateWithComment(String opcode, String comment,
                                            String arg1, String arg2) {
         int space = MAXLEN - opcode.length() + 2;
-        p.print("\t" + opcode);
+        String line = "\t" + opcode;
         if (arg1 != "") {
-            for (int k = 1; k <= space; k++) p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") p.print(", " + arg2);
+            for (int k = 1; k <= space; k++) line += " ";
+            line += arg1;
+            if (arg2 != "") line += ", " + arg2;
         }
-        if (comment != "") p.print("\t\t#" + comment);
-        p.println();
+        if (comment != "") line += "\t\t#" + comment;
+        instruction(line, opcode, arg1, arg2);
 
     }
 
     public static void generateWithComment(String opcode, String comment,
                                            String arg1) {
         int space = MAXLEN - opcode.length() + 2;
-        p.print("\t" + opcode);
+        String line = "\t" + opcode;
         if (arg1 != "") {
-            for (int k = 1; k <= space; k++) p.print(" ");
-            p.print(arg1);
+            for (int k = 1; k <= space; k++) line += " ";
+            line += arg1;
         }
-        if (comment != "") p.print("\t\t#" + comment);
-        p.println();
+        if (comment != "") line += "\t\t#" + comment;
+        instruction(line, opcode, arg1);
 
     }
 
     public static void generateWithComment(String opcode, String comment) {
-        p.print("\t" + opcode);
-        if (comment != "") p.print("\t\t#" + comment);
-        p.println();
+        String line = "\t" + opcode;
+        if (comment != "") line += "\t\t#" + comment;
+        instruction(line, opcode);
 
     }
 
@@ -133,45 +247,45 @@ public class Codegen {
                                 String arg3) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        String line = "\t" + opcode;
         if (arg1 != "") {
-            for (int k = 1; k <= space; k++) p.print(" ");
-            p.print(arg1);
+            for (int k = 1; k <= space; k++) line += " ";
+            line += arg1;
             if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "") p.print(", " + arg3);
+                line += ", " + arg2;
+                if (arg3 != "") line += ", " + arg3;
             }
         }
-        p.println();
+        instruction(line, opcode, arg1, arg2, arg3);
     }
 
     public static void generate(String opcode, String arg1, String arg2) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        String line = "\t" + opcode;
         if (arg1 != "") {
-            for (int k = 1; k <= space; k++) p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") p.print(", " + arg2);
+            for (int k = 1; k <= space; k++) line += " ";
+            line += arg1;
+            if (arg2 != "") line += ", " + arg2;
         }
-        p.println();
+        instruction(line, opcode, arg1, arg2);
 
     }
 
     public static void generate(String opcode, String arg1) {
         int space = MAXLEN - opcode.length() + 2;
-        p.print("\t" + opcode);
+        String line = "\t" + opcode;
         if (arg1 != "") {
-            for (int k = 1; k <= space; k++) p.print(" ");
-            p.print(arg1);
+            for (int k = 1; k <= space; k++) line += " ";
+            line += arg1;
         }
-        p.println();
+        instruction(line, opcode, arg1);
 
     }
 
     public static void generate(String opcode) {
-        p.print("\t" + opcode);
-        p.println();
+        String line = "\t" + opcode;
+        instruction(line, opcode);
 
     }
 
@@ -184,15 +298,15 @@ public class Codegen {
                                 int arg3) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        String line = "\t" + opcode;
         if (arg1 != "") {
-            for (int k = 1; k <= space; k++) p.print(" ");
-            p.print(arg1);
+            for (int k = 1; k <= space; k++) line += " ";
+            line += arg1;
             if (arg2 != "") {
-                p.print(", " + arg2 + ", " + arg3);
+                line += ", " + arg2 + ", " + arg3;
             }
         }
-        p.println();
+        instruction(line, opcode, arg1, arg2, arg3 + "");
 
     }
 
@@ -205,15 +319,13 @@ public class Codegen {
     public static void generate(String opcode, String arg1, int arg2) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        String line = "\t" + opcode;
         if (arg1 != "") {
-            for (int k = 1; k <= space; k++) p.print(" ");
-            p.print(arg1);
-            if (arg2 != 0) {
-                p.print(", " + arg2);
-            }
+            for (int k = 1; k <= space; k++) line += " ";
+            line += arg1;
+            line += ", " + arg2;
         }
-        p.println();
+        instruction(line, opcode, arg1, arg2 + "");
 
     }
 
@@ -230,16 +342,16 @@ public class Codegen {
     {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        String line = "\t" + opcode;
         if (arg1 != "") {
-            for (int k = 1; k <= space; k++) p.print(" ");
-            p.print(arg1);
+            for (int k = 1; k <= space; k++) line += " ";
+            line += arg1;
             if (arg2 != "") {
-                p.print(", " + arg3 + "(" + arg2 + ")");
+                line += ", " + arg3 + "(" + arg2 + ")";
             }
         }
-        if (comment != "") p.print("\t\t#" + comment);
-        p.println();
+        if (comment != "") line += "\t\t#" + comment;
+        instruction(line, opcode, arg1, arg3 + "(" + arg2 + ")");
 
     }
 
@@ -255,16 +367,100 @@ public class Codegen {
     // **********************************************************************
     public static void generateLabeled(String label, String opcode,
                                        String comment, String arg1) {
-        p.print(label + ":  " + opcode + " " + arg1 + "\t\t#" + comment);
-        p.println();
+        Codegen c = current();
+        if (c.scheduler != null) c.scheduler.flush();
+        c.p.print(label + ":  " + opcode + " " + arg1 + "\t\t#" + comment);
+        c.p.println();
+        if (c.bin != null) {
+            c.bin.label(label);
+            c.bin.directive(opcode, arg1);
+        }
 
     }
 
     public static void generateLabeled(String label, String opcode,
                                        String comment) {
-        p.print(label + " " + opcode + "\t\t#" + comment);
-        p.println();
+        Codegen c = current();
+        c.p.print(label + " " + opcode + "\t\t#" + comment);
+        c.p.println();
+
+    }
+
+    // **********************************************************************
+    // fitsImmediate
+    //    true if the value fits into the 16 bit immediate of addiu, slti, ...
+    // **********************************************************************
+    public static boolean fitsImmediate(int value) {
+        return value >= -32768 && value <= 32767;
+    }
+
+    // **********************************************************************
+    // instruction
+    //    called for every instruction with its formatted line: with delay
+    //    slot scheduling it goes to the scheduler, which writes it later.
+    //    $a0 may change, so forget where it was stored
+    // **********************************************************************
+    private static void instruction(String line, String opcode, String... args) {
+        Codegen c = current();
+        if (c.scheduler != null) {
+            c.scheduler.add(line, opcode, args);
+        } else {
+            write(line, opcode, args);
+        }
+        c.storedA0 = null;
+    }
+
+    // **********************************************************************
+    // write
+    //    write a line to the SPIM file, an instruction goes to the binary
+    //    backend as well, if there is one
+    // **********************************************************************
+    static void write(String line) {
+        Codegen c = current();
+        c.p.println(line);
+    }
+
+    static void write(String line, String opcode, String... args) {
+        Codegen c = current();
+        c.p.println(line);
+        if (c.bin != null) c.bin.instruction(opcode, args);
+        // only the code that is left out is counted (see beginDiscard)
+        if (c.keptP != null) {
+            c.writtenInstructions++;
+            c.writtenBytes += 4 * MipsEncoder.sizeOf(opcode, args);
+        }
+    }
 
+    // **********************************************************************
+    // beginDiscard / endDiscard
+    //    everything generated in between goes nowhere, it is only counted
+    //    (removedInstructions, removedBytes).  Runtime routines it asks for
+    //    are not needed
+    // **********************************************************************
+    public static void beginDiscard() {
+        Codegen c = current();
+        if (c.scheduler != null) c.scheduler.flush();
+        c.keptP = c.p;
+        c.keptBin = c.bin;
+        c.keptUsesPower = c.usesPower;
+        c.keptUsesOutputBuffer = c.usesOutputBuffer;
+        c.p = new PrintWriter(Writer.nullWriter());
+        c.bin = null;
+        c.removedInstructions -= c.writtenInstructions;
+        c.removedBytes -= c.writtenBytes;
+    }
+
+    public static void endDiscard() {
+        Codegen c = current();
+        if (c.scheduler != null) c.scheduler.flush();
+        c.removedInstructions += c.writtenInstructions;
+        c.removedBytes += c.writtenBytes;
+        c.p = c.keptP;
+        c.bin = c.keptBin;
+        c.usesPower = c.keptUsesPower;
+        c.usesOutputBuffer = c.keptUsesOutputBuffer;
+        c.keptP = null;
+        c.removedMethods++;
     }
 
     // **********************************************************************
@@ -272,8 +468,10 @@ public class Codegen {
     //    generate code to push the given value onto the stack
     // **********************************************************************
     public static void genPush(String s) {
+        Codegen c = current();
         generateIndexed("sw", s, SP, 0, "PUSH");
-        generate("subu", SP, SP, 4);                       
+        generate("subu", SP, SP, 4);
+        c.stackDepth += 4;
 
     }
 
@@ -282,9 +480,146 @@ public class Codegen {
     //    generate code to pop into the given register
     // **********************************************************************
     public static void genPop(String s) {
+        Codegen c = current();
         generateIndexed("lw", s, SP, 4, "POP");
-        generate("addu", SP, SP, 4);                       
+        generate("addu", SP, SP, 4);
+        c.stackDepth -= 4;
+
+    }
+
+    // **********************************************************************
+    // genRelease
+    //    pop the given number of bytes off the stack, keeping track of it so
+    //    that locals can still be addressed off $sp
+    // **********************************************************************
+    public static void genRelease(int bytes, String comment) {
+        Codegen c = current();
+        if (bytes == 0) return;
+        generateWithComment("addu", comment, SP, SP, bytes + "");
+        c.stackDepth -= bytes;
+    }
+
+    // **********************************************************************
+    // genPrologue
+    //    given:  whether $ra has to be saved (the method makes calls), the
+    //            size of the locals area and of the outgoing argument area
+    //    do:     allocate the frame in one go and save what needs saving.
+    //            The frame looks like this (offsets relative to the $sp at
+    //            method entry, which is what the symbol table hands out):
+    //                  4, 8, ...   params, in the caller's outgoing area
+    //                  0           saved $ra     (only if the method calls)
+    //                 -4           saved $fp     (only if a frame pointer is kept)
+    //                 -8, ...      locals
+    //                  ...         outgoing argument area for our own calls
+    //            Slots that are not needed are dropped and the locals move up.
+    //            A leaf method without locals gets no prologue at all.
+    // **********************************************************************
+    public static void genPrologue(boolean saveRA, int localBytes, int outgoingBytes) {
+        Codegen c = current();
+        c.savedRA = saveRA;
+        c.useFP = !c.omitFramePointer;
+        c.saveBytes = (c.savedRA ? 4 : 0) + (c.useFP ? 4 : 0);
+        c.frameBytes = c.saveBytes + localBytes + outgoingBytes;
+        c.stackDepth = 0;
+        if (c.frameBytes == 0) {
+            generateHeaderComment("empty prologue");
+            return;
+        }
+        generateWithComment("subu", "allocate frame", SP, SP, c.frameBytes + "");
+        int slot = c.frameBytes;
+        if (c.savedRA) {
+            generateIndexed("sw", "$ra", SP, slot, "save ra");
+            slot -= 4;
+        }
+        if (c.useFP) {
+            generateIndexed("sw", FP, SP, slot, "save FP");
+            generate("addu", FP, SP, c.frameBytes);
+        }
+    }
+
+    // **********************************************************************
+    // genEpilogue
+    //    restore what the prologue saved, pop the frame and return
+    // **********************************************************************
+    public static void genEpilogue() {
+        Codegen c = current();
+        int slot = c.frameBytes;
+        if (c.savedRA) {
+            generateIndexed("lw", "$ra", SP, slot, "restore ra");
+            slot -= 4;
+        }
+        if (c.useFP) {
+            generateIndexed("lw", FP, SP, slot, "restore FP");
+        }
+        if (c.frameBytes > 0) {
+            generateWithComment("addu", "pop frame", SP, SP, c.frameBytes + "");
+        }
+        generateWithComment("jr", "return to caller", "$ra");
+    }
+
+    // **********************************************************************
+    // genLoadLocal / genStoreLocal
+    //    given:  register, offset of a param or local relative to the $sp at
+    //            method entry, and comment
+    //    do:     load/store it off $fp, or off $sp when there is no frame pointer
+    // **********************************************************************
+    public static void genLoadLocal(String reg, int offset, String comment) {
+        offset = inlineOffset(offset);
+        genLoad(reg, frameOffset(offset) + "(" + frameBase() + ")", comment);
+    }
+
+    public static void genStoreLocal(String reg, int offset, String comment) {
+        offset = inlineOffset(offset);
+        genStore(reg, frameOffset(offset) + "(" + frameBase() + ")", comment);
+    }
+
+    // **********************************************************************
+    // genLoad / genStore
+    //    given:  register, address (label or off(reg)) and comment
+    //    do:     load/store it. A load of what the instruction right before
+    //            stored from $a0 is left out, $a0 still holds the value
+    //            (x = ...; followed by a statement that reads x)
+    // **********************************************************************
+    public static void genLoad(String reg, String address, String comment) {
+        Codegen c = current();
+        if (reg.equals("$a0") && address.equals(c.storedA0)) {
+            generateHeaderComment("$a0 still holds " + comment);
+            return;
+        }
+        generateWithComment("lw", comment, reg, address);
+    }
+
+    public static void genStore(String reg, String address, String comment) {
+        Codegen c = current();
+        generateWithComment("sw", comment, reg, address);
+        if (reg.equals("$a0")) c.storedA0 = address;
+    }
+
+    // **********************************************************************
+    // genStoreOutgoing
+    //    store the given register into slot i of the outgoing argument area.
+    //    Only valid while nothing is pushed, the area sits at the bottom of the frame
+    // **********************************************************************
+    public static boolean canUseOutgoingArea() {
+        Codegen c = current();
+        return c.stackDepth == 0;
+    }
+
+    public static void genStoreOutgoing(String reg, int i) {
+        generateIndexed("sw", reg, SP, 4 + 4 * i, "outgoing argument " + i);
+    }
+
+    private static String frameBase() {
+        Codegen c = current();
+        return c.useFP ? FP : SP;
+    }
 
+    private static int frameOffset(int offset) {
+        Codegen c = current();
+        // locals start right below the save area, which may be smaller than the full 8 bytes
+        int entryOffset = offset < 0 ? offset + 8 - c.saveBytes : offset;
+        if (c.useFP) return entryOffset;
+        return entryOffset + c.frameBytes + c.stackDepth;
     }
 
     // **********************************************************************
@@ -306,14 +641,387 @@ public class Codegen {
     //   generate: L:    # comment
     // **********************************************************************
     public static void genLabel(String label, String comment) {
-        p.print(label + ":" + "\t\t# " + comment);
-        p.println();
+        Codegen c = current();
+        if (c.scheduler != null) c.scheduler.flush();
+        c.p.print(label + ":" + "\t\t# " + comment);
+        c.p.println();
+        if (c.bin != null) c.bin.label(label);
+        c.storedA0 = null; // other code jumps here
     }
 
     public static void genLabel(String label) {
-        p.print(label + ":");
-        p.println();
+        Codegen c = current();
+        if (c.scheduler != null) c.scheduler.flush();
+        c.p.print(label + ":");
+        c.p.println();
+        if (c.bin != null) c.bin.label(label);
+        c.storedA0 = null;
+
+    }
+
+    // **********************************************************************
+    // genRuntime
+    //    the runtime routines the program needs, after the last method
+    // **********************************************************************
+    public static void genRuntime() {
+        Codegen c = current();
+        if (c.usesPower) genPowerRoutine();
+        if (c.usesOutputBuffer) genOutputRoutines();
+        if (c.instrument) genProfileRoutine();
+    }
+
+    // **********************************************************************
+    // genPowerRoutine
+    //    _.pow: $a0 = $t1 ** $a0 by exponentiation by squaring, so the
+    //    exponent takes one pass per bit.  A leaf routine that only uses $t0,
+    //    $t1 and $v0 besides $a0.  A negative exponent gives 1 / x ** n
+    //    rounded towards zero: 1 and -1 for x = 1 and x = -1, 0 otherwise
+    // **********************************************************************
+    private static void genPowerRoutine() {
+        String loop = nextLabel();
+        String skip = nextLabel();
+        String done = nextLabel();
+        String negative = nextLabel();
+        String zero = nextLabel();
+        generateDirective(".text");
+        genLabel(POWER, "RUNTIME $t1 ** $a0");
+        generateWithComment("li", "result", "$t0", "1");
+        generateWithComment("bltz", "negative exponent", "$a0", negative);
+        generateWithComment("beqz", "x ** 0", "$a0", done);
+        genLabel(loop);
+        generateWithComment("andi", "lowest bit of the exponent", "$v0", "$a0", "1");
+        generate("beqz", "$v0", skip);
+        generateWithComment("mult", "result * x", "$t0", "$t1");
+        generate("mflo", "$t0");
+        genLabel(skip);
+        generate("srl", "$a0", "$a0", "1");
+        generate("beqz", "$a0", done);
+        generateWithComment("mult", "square x", "$t1", "$t1");
+        generate("mflo", "$t1");
+        generate("j", loop);
+        genLabel(done);
+        generate("move", "$a0", "$t0");
+        generate("jr", "$ra");
+        genLabel(negative, "x ** -n");
+        generate("li", "$v0", "1");
+        generate("beq", "$t1", "$v0", done);
+        generate("li", "$v0", "-1");
+        generate("bne", "$t1", "$v0", zero);
+        generateWithComment("andi", "odd exponent", "$v0", "$a0", "1");
+        generate("beqz", "$v0", done);
+        generate("li", "$t0", "-1");
+        generate("j", done);
+        genLabel(zero);
+        generate("li", "$t0", "0");
+        generate("j", done);
+    }
+
+    // **********************************************************************
+    // genOutputRoutines
+    //    the output buffer and the routines that fill and empty it.  All of
+    //    them only use $a0, $v0, $v1, $t0 and $t1; _.flush keeps $a0.
+    //      _.println_int  $a0 in decimal and a newline
+    //      _.println_str  the string at $a0 and a newline
+    //      _.flush        writes out what is in the buffer
+    //    _.bufpos is the number of bytes in the buffer.  It always leaves
+    //    room for the 0 that ends the string _.flush prints
+    // **********************************************************************
+    private static void genOutputRoutines() {
+        generateDirective(".data");
+        generateLabeled("_.bufpos", ".word", "bytes in the output buffer", "0");
+        generateLabeled("_.buf", ".space", "output buffer", OUTPUT_BUFFER + "");
+        generateDirective(".text");
+
+        String done = nextLabel();
+        genLabel(FLUSH, "RUNTIME write out the output buffer");
+        generate("lw", "$t0", "_.bufpos");
+        generate("beqz", "$t0", done);
+        generate("la", "$v0", "_.buf");
+        generate("addu", "$v0", "$v0", "$t0");
+        generateWithComment("sb", "end of the string", "$zero", "0($v0)");
+        generate("move", "$t0", "$a0");
+        generate("la", "$a0", "_.buf");
+        generate("li", "$v0", "4");
+        generate("syscall");
+        generate("move", "$a0", "$t0");
+        generate("sw", "$zero", "_.bufpos");
+        genLabel(done);
+        generate("jr", "$ra");
+
+        // the number is written as a negative one: -x exists for every int x, not the other way round
+        String room = nextLabel();
+        String negative = nextLabel();
+        String count = nextLabel();
+        String store = nextLabel();
+        genLabel(PRINT_INT, "RUNTIME append $a0 and a newline to the output buffer");
+        generate("lw", "$t0", "_.bufpos");
+        generateWithComment("slti", "room for a sign, 10 digits and the newline", "$v0", "$t0", (OUTPUT_BUFFER - 12) + "");
+        generate("bnez", "$v0", room);
+        genFlushCall();
+        generate("li", "$t0", "0");
+        genLabel(room);
+        generate("la", "$v0", "_.buf");
+        generateWithComment("addu", "where the number goes", "$t0", "$v0", "$t0");
+        generate("bltz", "$a0", negative);
+        generate("subu", "$a0", "$zero", "$a0");
+        generate("j", count);
+        genLabel(negative);
+        generateWithComment("li", "'-'", "$v0", "45");
+        generate("sb", "$v0", "0($t0)");
+        generate("addiu", "$t0", "$t0", "1");
+        genLabel(count, "one byte per digit");
+        generate("move", "$t1", "$a0");
+        String digits = nextLabel();
+        genLabel(digits);
+        generate("addiu", "$t0", "$t0", "1");
+        generate("li", "$v0", "10");
+        generate("div", "$t1", "$v0");
+        generate("mflo", "$t1");
+        generate("bnez", "$t1", digits);
+        generateWithComment("li", "newline", "$v0", "10");
+        generate("sb", "$v0", "0($t0)");
+        generate("la", "$v0", "_.buf");
+        generate("subu", "$v0", "$t0", "$v0");
+        generate("addiu", "$v0", "$v0", "1");
+        generate("sw", "$v0", "_.bufpos");
+        genLabel(store, "digits from the last one back");
+        generate("addiu", "$t0", "$t0", "-1");
+        generate("li", "$v0", "10");
+        generate("div", "$a0", "$v0");
+        generateWithComment("mfhi", "remainder, 0 or negative", "$v0");
+        generate("mflo", "$a0");
+        generate("li", "$v1", "48");
+        generateWithComment("subu", "'0' - remainder", "$v0", "$v1", "$v0");
+        generate("sb", "$v0", "0($t0)");
+        generate("bnez", "$a0", store);
+        generate("jr", "$ra");
 
+        // $t1 is where the next character goes, $t0 where the room for it ends
+        String next = nextLabel();
+        String put = nextLabel();
+        String full = nextLabel();
+        String end = nextLabel();
+        genLabel(PRINT_STRING, "RUNTIME append the string at $a0 and a newline to the output buffer");
+        generate("lw", "$t0", "_.bufpos");
+        generate("la", "$t1", "_.buf");
+        generate("addu", "$t1", "$t1", "$t0");
+        generate("la", "$t0", "_.buf");
+        generateWithComment("addiu", "room for the newline after the last character", "$t0", "$t0", (OUTPUT_BUFFER - 2) + "");
+        genLabel(next);
+        generate("lbu", "$v0", "0($a0)");
+        generate("beqz", "$v0", end);
+        generate("beq", "$t1", "$t0", full);
+        genLabel(put);
+        generate("sb", "$v0", "0($t1)");
+        generate("addiu", "$t1", "$t1", "1");
+        generate("addiu", "$a0", "$a0", "1");
+        generate("j", next);
+        genLabel(full);
+        generate("la", "$t0", "_.buf");
+        generate("subu", "$t0", "$t1", "$t0");
+        generate("sw", "$t0", "_.bufpos");
+        genFlushCall();
+        generate("la", "$t1", "_.buf");
+        generate("addiu", "$t0", "$t1", (OUTPUT_BUFFER - 2) + "");
+        generate("lbu", "$v0", "0($a0)");
+        generate("j", put);
+        genLabel(end);
+        generateWithComment("li", "newline", "$v0", "10");
+        generate("sb", "$v0", "0($t1)");
+        generate("addiu", "$t1", "$t1", "1");
+        generate("la", "$t0", "_.buf");
+        generate("subu", "$t0", "$t1", "$t0");
+        generate("sw", "$t0", "_.bufpos");
+        generate("jr", "$ra");
+    }
+
+    // a routine calling _.flush keeps its own return address in $v1
+    private static void genFlushCall() {
+        generate("move", "$v1", "$ra");
+        generateWithComment("jal", "buffer full", FLUSH);
+        generate("move", "$ra", "$v1");
+    }
+
+    // **********************************************************************
+    // genCount
+    //    count one execution of the place in the source the key names.
+    //    $t0 is free everywhere outside the runtime routines
+    // **********************************************************************
+    public static void genCount(String key) {
+        Codegen c = current();
+        if (c.keptP != null) return; // discarded code never runs
+        String label = c.counters.get(key);
+        if (label == null) {
+            label = "_.count" + c.counters.size();
+            c.counters.put(key, label);
+        }
+        generateWithComment("lw", "PROFILE " + key, "$t0", label);
+        generate("addiu", "$t0", "$t0", "1");
+        generate("sw", "$t0", label);
+    }
+
+    // **********************************************************************
+    // genProfileRoutine
+    //    the counters and _.dump_profile, which main calls when it returns:
+    //    it prints Profile.MARKER and a line per counter, its key and count.
+    //    Runs once, so it is simply one syscall sequence per counter
+    // **********************************************************************
+    private static void genProfileRoutine() {
+        Codegen c = current();
+        generateDirective(".data");
+        for (String key : c.counters.keySet()) {
+            generateLabeled(c.counters.get(key), ".word", key, "0");
+        }
+        generateLabeled("_.profile", ".asciiz", "start of the profile", "\"" + Profile.MARKER + "\\n\"");
+        int i = 0;
+        for (String key : c.counters.keySet()) {
+            generateLabeled("_.key" + i++, ".asciiz", "", "\"" + key + " \"");
+        }
+        generateDirective(".text");
+        genLabel(DUMP_PROFILE, "RUNTIME print the execution counts");
+        generate("la", "$a0", "_.profile");
+        generate("li", "$v0", "4");
+        generate("syscall");
+        i = 0;
+        for (String key : c.counters.keySet()) {
+            generate("la", "$a0", "_.key" + i++);
+            generate("li", "$v0", "4");
+            generate("syscall");
+            generate("lw", "$a0", c.counters.get(key));
+            generate("li", "$v0", "1");
+            generate("syscall");
+            generate("la", "$a0", "_.newline");
+            generate("li", "$v0", "4");
+            generate("syscall");
+        }
+        generate("jr", "$ra");
+    }
+
+    // **********************************************************************
+    // outlining
+    //    code the profile says is cold is generated after the epilogue of
+    //    the method, so the hot path does not have to jump over it.  It
+    //    starts at label and jumps to back when it is done, with the
+    //    promoted globals of the place it was taken from
+    // **********************************************************************
+    private static class Outlined {
+        StmtListNode code;
+        String label;
+        String back;
+        String returnLabel;
+        HashMap<String, String> promoted;
+    }
+
+    // the inlined body of a method has its frame mapped into ours, that only holds in line
+    public static boolean canOutline() {
+        Codegen c = current();
+        return c.inlineLocals < 0;
+    }
+
+    public static void outline(StmtListNode code, String label, String back, String returnLabel) {
+        Codegen c = current();
+        Outlined cold = new Outlined();
+        cold.code = code;
+        cold.label = label;
+        cold.back = back;
+        cold.returnLabel = returnLabel;
+        cold.promoted = new HashMap<String, String>(c.promoted);
+        c.outlined.add(cold);
+        c.outlinedBlocks++;
+    }
+
+    // called after the epilogue, cold code may have cold code of its own
+    public static void genOutlined() {
+        Codegen c = current();
+        while (!c.outlined.isEmpty()) {
+            Outlined cold = c.outlined.remove(0);
+            genLabel(cold.label, "COLD");
+            c.promoted = cold.promoted;
+            cold.code.cgen(cold.returnLabel);
+            generate("j", cold.back);
+        }
+        c.promoted = new HashMap<String, String>();
+    }
+
+    // **********************************************************************
+    // inline expansion
+    //    the body of a leaf method can be generated in place of a call to
+    //    it.  Its params and locals then live in the inline area of our
+    //    frame: the callee's local at -8 goes to the area's first slot,
+    //    the rest of its locals below that, and below them its params
+    // **********************************************************************
+    public static void setInlineArea(int firstSlot) {
+        Codegen c = current();
+        c.inlineArea = firstSlot;
+    }
+
+    public static boolean isInlining() {
+        Codegen c = current();
+        return c.inlineLocals >= 0;
+    }
+
+    public static void beginInline(int localBytes) {
+        Codegen c = current();
+        c.inlineLocals = localBytes;
+    }
+
+    public static void endInline() {
+        Codegen c = current();
+        c.inlineLocals = -1;
+    }
+
+    // store reg into param i (from 0) of the method about to be inlined
+    public static void genStoreInlineArg(String reg, int i, int localBytes) {
+        beginInline(localBytes);
+        genStoreLocal(reg, 4 + 4 * i, "argument " + i);
+        endInline();
+    }
+
+    private static int inlineOffset(int offset) {
+        Codegen c = current();
+        if (c.inlineLocals < 0) return offset;
+        if (offset < 0) return c.inlineArea + offset + 8;
+        return c.inlineArea - c.inlineLocals - (offset - 4);
+    }
+
+    // **********************************************************************
+    // register promotion
+    //    while a global is promoted, IdNode and AssignStmtNode use its
+    //    register instead of the label. WhileStmtNode loads it before the
+    //    loop and stores it back afterwards
+    // **********************************************************************
+    public static void promote(String label, String reg) {
+        Codegen c = current();
+        c.promoted.put(label, reg);
+    }
+
+    public static void clearPromoted() {
+        Codegen c = current();
+        c.promoted.clear();
+    }
+
+    public static boolean hasPromoted() {
+        Codegen c = current();
+        return !c.promoted.isEmpty();
+    }
+
+    // null if the global lives in memory
+    public static String promotedRegister(String label) {
+        Codegen c = current();
+        return c.promoted.get(label);
+    }
+
+    // **********************************************************************
+    // labelsFor
+    //    the labels from here on are the method's own: ._<method>_L0,
+    //    ._<method>_L1, ..., the same whatever is generated before it, so
+    //    its code can be kept (see CompileCache).  null for the labels of
+    //    the runtime routines
+    // **********************************************************************
+    public static void labelsFor(String method) {
+        Codegen c = current();
+        c.labelPrefix = method == null ? "._L" : "._" + method + "_L";
+        c.currLabel = 0;
     }
 
     // **********************************************************************
@@ -321,8 +1029,9 @@ public class Codegen {
     //        ._L0 ._L1 ._L2, etc.
     // **********************************************************************
     public static String nextLabel() {
-        String result = "._L" + currLabel;
-        currLabel++;
+        Codegen c = current();
+        String result = c.labelPrefix + c.currLabel;
+        c.currLabel++;
         return result;
     }                               
 }
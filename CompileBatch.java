@@ -0,0 +1,85 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// **********************************************************************
+// CompileBatch class
+//
+// Compiles every .sim file of a directory in one JVM:
+//     java P5 -batch <dir> [-threads <n>] <options of P5>
+// x.sim is compiled to x.out and x.spim with the options, a % in an
+// option stands for x (-elf %.elf).  The files are compiled on a work
+// stealing pool with a thread per core (or n), every compile in a
+// CompileContext of its own.  Once all are done, what each compile
+// printed comes out in the order of the file names, after a line with
+// the name, and a line with how long it all took.  The exit status is 0
+// if every compile's was.
+//
+// Public Methods
+// ==============
+// run(args)   -- args are what comes after -batch, returns the exit status
+// **********************************************************************
+public class CompileBatch {
+    public static int run(String[] args) {
+        if (args.length < 1) {
+            System.err.println("please supply the directory of the files to be compiled");
+            return -1;
+        }
+        File dir = new File(args[0]);
+        int threads = Runtime.getRuntime().availableProcessors();
+        int first = 1;
+        if (args.length > 2 && args[1].equals("-threads")) {
+            threads = Integer.parseInt(args[2]);
+            first = 3;
+        }
+        String[] options = Arrays.copyOfRange(args, first, args.length);
+        String[] names = dir.list((d, name) -> name.endsWith(".sim"));
+        if (names == null) {
+            System.err.println(args[0] + " is not a directory");
+            return -1;
+        }
+        Arrays.sort(names);
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ArrayList<Future<CompileContext.Result>> results = new ArrayList<Future<CompileContext.Result>>();
+        for (String name : names) {
+            String[] compileArgs = arguments(name.substring(0, name.length() - ".sim".length()), options);
+            results.add(pool.submit(() -> CompileContext.compile(compileArgs, dir)));
+        }
+        int failed = 0;
+        for (int i = 0; i < names.length; i++) {
+            CompileContext.Result result;
+            try {
+                result = results.get(i).get();
+            } catch (InterruptedException | ExecutionException ex) {
+                result = new CompileContext.Result(1, new byte[0], (ex.getCause() + "\n").getBytes());
+            }
+            System.out.println("== " + names[i]);
+            System.out.write(result.out, 0, result.out.length);
+            System.out.flush();
+            System.err.write(result.err, 0, result.err.length);
+            System.err.flush();
+            if (result.status != 0) failed++;
+        }
+        pool.shutdown();
+        System.out.println("Batch: compiled " + names.length + " files in " + (System.nanoTime() - start) / 1000000 +
+                           " ms on " + threads + " threads" + (failed == 0 ? "" : ", " + failed + " failed"));
+        return failed == 0 ? 0 : 1;
+    }
+
+    // the command line of P5 for base.sim
+    private static String[] arguments(String base, String[] options) {
+        String[] args = new String[options.length + 3];
+        args[0] = base + ".sim";
+        args[1] = base + ".out";
+        args[2] = base + ".spim";
+        for (int i = 0; i < options.length; i++) {
+            args[i + 3] = options[i].replace("%", base);
+        }
+        return args;
+    }
+}
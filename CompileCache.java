@@ -0,0 +1,256 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+// **********************************************************************
+// CompileCache class
+//
+// Incremental compilation (P5 -incremental <dir>): the SPIM code of every
+// method is kept in the directory, under the method's fingerprint, and a
+// method whose fingerprint is there already is not optimized and generated
+// again, its code is copied from the file.
+//
+// The fingerprint is a SHA-256 over everything the code of the method is
+// made from:
+//   - the method as the decompiler prints it, which is its tokens, with
+//     the type and the frame offset name analysis gave every identifier
+//   - whether main can reach it at all (CallGraph.isReachable)
+//   - the signature of every method and static field it uses: the type,
+//     the types of the params, for a field whether anybody reads it, for
+//     a method whether it is pure.  Calls of pure methods are run at
+//     compile time (see Evaluator), so for those the decompiled text of
+//     the callee and of the methods it calls goes in as well
+//   - the options the code is generated with (Codegen.configuration)
+// Name analysis tells the cache which method it is in (enterMethod) and
+// the static symbols it finds there (addReference), fingerprint is called
+// once the program has been type checked, before cgen changes the methods.
+//
+// The code of a method uses labels only it has (Codegen.labelsFor), so
+// code from the cache goes with freshly generated code.  A file holds a
+// line with what the method adds to the statistics P5 prints and the
+// runtime routines it needs, then the code.  Only SPIM code is kept, the
+// machine code backend (-bin, -elf, -run) and profiles, whose keys are
+// source positions, compile everything.
+//
+// Public Methods
+// ==============
+// enterMethod(name), addReference(sym)  -- from name analysis
+// fingerprint(methods)                  -- before cgen
+// replay(method)                        -- the cached code, false if none
+// beginRecord(), endRecord(method)      -- around generating a method
+// hits(), misses()
+// **********************************************************************
+public class CompileCache {
+    // goes into every fingerprint, change it when the code generator changes
+    public static final String VERSION = "1";
+
+    public CompileCache(File dir) throws IOException {
+        myDir = dir;
+        if (!myDir.isDirectory() && !myDir.mkdirs()) {
+            throw new IOException("cannot make the directory " + dir);
+        }
+    }
+
+    public void enterMethod(String name) {
+        myCurrent = new TreeMap<String, SymbolTable.Sym>();
+        myReferences.put(name, myCurrent);
+    }
+
+    // a static field or a method the current method uses
+    public void addReference(SymbolTable.Sym sym) {
+        if (myCurrent != null) myCurrent.put(sym.name(), sym);
+    }
+
+    public void fingerprint(Collection<MethodDeclNode> methods) {
+        for (MethodDeclNode method : methods) {
+            StringWriter text = new StringWriter();
+            PrintWriter p = new PrintWriter(text);
+            method.decompile(p, 0);
+            p.flush();
+            myTexts.put(method.getName(), text.toString());
+        }
+        String configuration = Codegen.configuration();
+        for (MethodDeclNode method : methods) {
+            String name = method.getName();
+            StringBuilder b = new StringBuilder();
+            b.append(VERSION).append('\n').append(configuration).append('\n');
+            b.append(myTexts.get(name));
+            b.append("reachable ").append(CompileContext.current().callGraph.isReachable(name)).append('\n');
+            TreeMap<String, SymbolTable.Sym> used = myReferences.get(name);
+            if (used != null) {
+                for (SymbolTable.Sym sym : used.values()) {
+                    signature(b, sym);
+                }
+            }
+            myFingerprints.put(name, digest(b.toString()));
+        }
+    }
+
+    private void signature(StringBuilder b, SymbolTable.Sym sym) {
+        Codegen c = Codegen.current();
+        String name = sym.name();
+        b.append("uses ").append(name).append(' ').append(Types.ToString(sym.type()));
+        if (sym.list() != null) {
+            b.append(' ').append(sym.list().getFormalList());
+            boolean pure = CompileContext.current().callGraph.isPure(name);
+            b.append(" pure ").append(pure).append('\n');
+            if (c.foldPureCalls && pure) {
+                // the calls may be run at compile time, so what they compute counts too
+                for (String callee : closure(name)) {
+                    b.append(myTexts.get(callee));
+                }
+            }
+        } else {
+            b.append(" read ").append(CompileContext.current().callGraph.isRead(name)).append('\n');
+        }
+    }
+
+    // the method and every method it calls, directly or not, in a fixed order
+    private ArrayList<String> closure(String name) {
+        ArrayList<String> found = new ArrayList<String>();
+        HashSet<String> seen = new HashSet<String>();
+        ArrayList<String> work = new ArrayList<String>();
+        work.add(name);
+        while (!work.isEmpty()) {
+            String method = work.remove(work.size() - 1);
+            if (!myTexts.containsKey(method) || !seen.add(method)) continue;
+            found.add(method);
+            for (SymbolTable.Sym sym : myReferences.get(method).values()) {
+                if (sym.list() != null) work.add(sym.name());
+            }
+        }
+        return found;
+    }
+
+    private static String digest(String text) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte x : hash) hex.append(String.format("%02x", x));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // every JVM has SHA-256
+        }
+    }
+
+    // writes the cached code of the method to the output of the emitter, false if there is none
+    public boolean replay(String method) {
+        Codegen c = Codegen.current();
+        File file = new File(myDir, myFingerprints.get(method));
+        String text;
+        try {
+            text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            return false;
+        }
+        int newline = text.indexOf('\n');
+        String[] counts = newline < 0 ? new String[0] : text.substring(0, newline).split(" ");
+        if (counts.length != COUNTS) return false; // not one of ours, it gets overwritten
+        int[] added = new int[COUNTS];
+        for (int i = 0; i < COUNTS; i++) added[i] = Integer.parseInt(counts[i]);
+        if (c.scheduler != null) c.scheduler.flush();
+        c.p.print(text.substring(newline + 1));
+        add(added);
+        myHits++;
+        return true;
+    }
+
+    public void beginRecord() {
+        Codegen c = Codegen.current();
+        if (c.scheduler != null) c.scheduler.flush();
+        myRecorded = new StringWriter();
+        myKeptP = c.p;
+        c.p = new PrintWriter(myRecorded);
+        // whether the method needs them, no matter if an earlier one does
+        myKeptUsesPower = c.usesPower;
+        myKeptUsesOutputBuffer = c.usesOutputBuffer;
+        c.usesPower = false;
+        c.usesOutputBuffer = false;
+        myBefore = counts();
+    }
+
+    // the method's code goes into the cache and on to where it would have gone
+    public void endRecord(String method) {
+        Codegen c = Codegen.current();
+        if (c.scheduler != null) c.scheduler.flush();
+        c.p.flush();
+        c.p = myKeptP;
+        int[] after = counts();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < COUNTS; i++) {
+            if (i > 0) line.append(' ');
+            line.append(after[i] - myBefore[i]);
+        }
+        c.usesPower |= myKeptUsesPower;
+        c.usesOutputBuffer |= myKeptUsesOutputBuffer;
+        String code = myRecorded.toString();
+        c.p.print(code);
+        myMisses++;
+        try {
+            // written next to it and renamed, so a file in the cache is always complete
+            File file = new File(myDir, myFingerprints.get(method));
+            File temp = File.createTempFile("fragment", ".tmp", myDir);
+            Files.write(temp.toPath(), (line + "\n" + code).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            CompileContext.current().err.println("Incremental: could not cache " + method + ": " + ex.getMessage());
+        }
+        myRecorded = null;
+    }
+
+    // what a method adds to, in the order of the first line of a file
+    private static int[] counts() {
+        Codegen c = Codegen.current();
+        return new int[] {
+            c.usesPower ? 1 : 0, c.usesOutputBuffer ? 1 : 0,
+            c.removedStatements, c.foldedCalls, c.inlinedCalls,
+            c.outlinedBlocks, c.swappedBranches, c.removedMethods,
+            c.removedInstructions, c.removedBytes
+        };
+    }
+
+    private static void add(int[] added) {
+        Codegen c = Codegen.current();
+        c.usesPower |= added[0] != 0;
+        c.usesOutputBuffer |= added[1] != 0;
+        c.removedStatements += added[2];
+        c.foldedCalls += added[3];
+        c.inlinedCalls += added[4];
+        c.outlinedBlocks += added[5];
+        c.swappedBranches += added[6];
+        c.removedMethods += added[7];
+        c.removedInstructions += added[8];
+        c.removedBytes += added[9];
+    }
+
+    public int hits() {
+        return myHits;
+    }
+
+    public int misses() {
+        return myMisses;
+    }
+
+    private static final int COUNTS = 10;
+    private File myDir;
+    private TreeMap<String, SymbolTable.Sym> myCurrent = null; // what the current method uses, by name
+    private HashMap<String, TreeMap<String, SymbolTable.Sym>> myReferences =
+        new HashMap<String, TreeMap<String, SymbolTable.Sym>>();
+    private HashMap<String, String> myTexts = new HashMap<String, String>(); // decompiled, by method
+    private HashMap<String, String> myFingerprints = new HashMap<String, String>();
+    private int myHits = 0;
+    private int myMisses = 0;
+    private StringWriter myRecorded = null; // while a method is generated
+    private PrintWriter myKeptP = null;
+    private int[] myBefore;
+    private boolean myKeptUsesPower, myKeptUsesOutputBuffer;
+}
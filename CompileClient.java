@@ -0,0 +1,47 @@
+import java.io.*;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+// **********************************************************************
+// CompileClient class
+//
+// Compiles with a CompileServer instead of a P5 of its own:
+//     java CompileClient <address> <the arguments of P5>
+// does what java P5 <the arguments> does, the server writes the files
+// and what it printed comes out here, with its exit status.  It only
+// needs the classes of the JDK, so it starts fast.
+// **********************************************************************
+public class CompileClient {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("please supply the address of the compile server and the arguments of P5");
+            System.exit(-1);
+        }
+        SocketAddress address = CompileServer.address(args[0]);
+        SocketChannel channel = address instanceof UnixDomainSocketAddress
+            ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+        channel.connect(address);
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            out.writeUTF(new File("").getAbsolutePath());
+            out.writeInt(args.length - 1);
+            for (int i = 1; i < args.length; i++) out.writeUTF(args[i]);
+            out.flush();
+
+            byte[] stdout = new byte[in.readInt()];
+            in.readFully(stdout);
+            byte[] stderr = new byte[in.readInt()];
+            in.readFully(stderr);
+            int status = in.readInt();
+            System.out.write(stdout);
+            System.out.flush();
+            System.err.write(stderr);
+            System.err.flush();
+            if (status != 0) System.exit(status);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.util.HashMap;
+
+// **********************************************************************
+// CompileContext class
+//
+// What one compilation knows about the program it compiles, so that
+// compilations can run side by side in one JVM (P5 -batch, P5 -server):
+//   - the emitter (a Codegen: the output, the labels, the options, the
+//     frame of the current method, the statistics, ...)
+//   - the methods and the call graph name analysis finds, whether it
+//     found errors, the method being generated
+//   - the results of the calls run at compile time (Evaluator)
+//   - the incremental cache (P5 -incremental)
+//   - the streams the compilation prints to, diagnostics (Errors) and
+//     what a run of the program prints included
+// The scanner keeps the position on the line itself.  A new context is
+// how a compilation starts out, so nothing of an earlier one is left.
+//
+// P5.compile makes its context the current one of the thread while it
+// runs (enter, leave).  The AST methods, the parser actions and Codegen
+// get to it with current(): their signatures are the ones of the code
+// generator (and of CUP), a context passed along would have to go
+// through every cgen, nameAnalysis, ... of the AST.
+//
+// Public Methods
+// ==============
+// CompileContext(out, err)
+// current()            -- the context of the compilation the thread runs
+// enter(), leave()     -- around a compilation, P5.compile does it
+// compile(args, dir)   -- P5.compile in a context of its own, what it
+//                         printed goes into the Result
+// **********************************************************************
+public class CompileContext {
+    public static class Result {
+        public final int status;
+        public final byte[] out;
+        public final byte[] err;
+
+        Result(int status, byte[] out, byte[] err) {
+            this.status = status;
+            this.out = out;
+            this.err = err;
+        }
+    }
+
+    public final PrintStream out;
+    public final PrintStream err;
+    public final Codegen codegen = new Codegen();
+    public final Evaluator.Calls evaluations = new Evaluator.Calls();
+    public final CallGraph callGraph = new CallGraph(); // filled in by name analysis
+    public final HashMap<String, MethodDeclNode> methods = new HashMap<String, MethodDeclNode>(); // by name
+    public MethodDeclNode currentMethod = null; // the method being generated
+    public boolean errorNameAnalysis = false;
+    public CompileCache cache = null; // P5 -incremental, name analysis tells it what methods use
+
+    public CompileContext(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    public static CompileContext current() {
+        CompileContext context = myCurrent.get();
+        if (context == null) {
+            throw new IllegalStateException("no compilation runs on " + Thread.currentThread().getName());
+        }
+        return context;
+    }
+
+    public void enter() {
+        myCurrent.set(this);
+    }
+
+    public void leave() {
+        out.flush();
+        err.flush();
+        myCurrent.remove();
+    }
+
+    public static Result compile(String[] args, File dir) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        CompileContext context = new CompileContext(new PrintStream(out, true), new PrintStream(err, true));
+        int status;
+        try {
+            status = P5.compile(args, dir, context);
+        } catch (IOException | RuntimeException | StackOverflowError ex) {
+            // what would have ended the JVM of a P5 of its own
+            ex.printStackTrace(context.err);
+            status = 1;
+        }
+        context.out.flush();
+        context.err.flush();
+        return new Result(status, out.toByteArray(), err.toByteArray());
+    }
+
+    private static final ThreadLocal<CompileContext> myCurrent = new ThreadLocal<CompileContext>();
+}
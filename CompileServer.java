@@ -0,0 +1,143 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// **********************************************************************
+// CompileServer class
+//
+// Keeps a JVM with the compiler in it running (P5 -server <address>), so
+// a compile does not pay for starting the JVM, loading the classes and
+// unpacking the parser tables every time.  CompileClient sends it what
+// would be the command line of P5 and the directory the file names are
+// relative to; it compiles with P5.compile, which writes the files like
+// P5 does, and sends back what went to System.out and System.err and the
+// exit status.
+//
+// The address is a port on localhost if it is a number, else the path of
+// a Unix domain socket.  Every connection gets a thread of its own, a
+// virtual one where the JDK has them.  Every compile has a CompileContext
+// of its own; as many run at the same time as there are cores, the rest
+// wait for one of them to finish.
+//
+// A compile, and the run of the program with -run and the like, gets
+// seconds (P5 -server <address> <seconds>, 60 if not given) before the
+// client is told it took too long and its core is given to the next one.
+// It is interrupted then, which stops the Simulator at the next
+// instruction it interprets; a loop the Jit translated, or a program in
+// another engine, goes on in the background until it ends.
+//
+// The protocol, in DataOutput terms:
+//     request:   UTF directory, int n, n times UTF arg
+//     response:  int length, bytes of System.out, int length, bytes
+//                of System.err, int exit status
+//
+// Public Methods
+// ==============
+// serve(address)   -- runs the server, until the JVM is stopped
+// serve(address, seconds)  -- the same, with a time limit per compile
+// address(string)  -- the socket address for a port or a path
+// **********************************************************************
+public class CompileServer {
+    public static void serve(String where) throws IOException {
+        serve(where, 60);
+    }
+
+    public static void serve(String where, int seconds) throws IOException {
+        mySeconds = seconds;
+        SocketAddress address = address(where);
+        ServerSocketChannel server;
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress)address).getPath());
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address);
+        ExecutorService threads = threads();
+        System.err.println("Compile server: listening on " + where);
+        for (;;) {
+            SocketChannel client = server.accept();
+            threads.execute(() -> handle(client));
+        }
+    }
+
+    public static SocketAddress address(String where) {
+        if (where.matches("[0-9]+")) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(where));
+        }
+        return UnixDomainSocketAddress.of(Path.of(where));
+    }
+
+    // a virtual thread per task if there are virtual threads (Java 21), a pool of
+    // platform threads if not
+    private static ExecutorService threads() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(run -> {
+                Thread thread = new Thread(run, "compile");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static void handle(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            File dir = new File(in.readUTF());
+            String[] args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) args[i] = in.readUTF();
+
+            CompileContext.Result result = compile(args, dir);
+            out.writeInt(result.out.length);
+            out.write(result.out);
+            out.writeInt(result.err.length);
+            out.write(result.err);
+            out.writeInt(result.status);
+            out.flush();
+        } catch (IOException | InterruptedException ex) {
+            System.err.println("Compile server: " + ex.getMessage());
+        }
+    }
+
+    // waits while as many compiles run as there are cores, gives up on one after mySeconds
+    private static CompileContext.Result compile(String[] args, File dir) throws InterruptedException {
+        myRunning.acquire();
+        Future<CompileContext.Result> compile = null;
+        try {
+            compile = myCompiles.submit(() -> CompileContext.compile(args, dir));
+            return compile.get(mySeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            String message = "Compile server: stopped after " + mySeconds + " seconds\n";
+            return new CompileContext.Result(-1, new byte[0], message.getBytes(StandardCharsets.UTF_8));
+        } catch (ExecutionException ex) {
+            String message = "Compile server: " + ex.getCause() + "\n";
+            return new CompileContext.Result(-1, new byte[0], message.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            if (compile != null) compile.cancel(true);
+            myRunning.release();
+        }
+    }
+
+    private static final Semaphore myRunning = new Semaphore(Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService myCompiles = threads();
+    private static int mySeconds;
+}
@@ -0,0 +1,85 @@
+import java.util.HashMap;
+
+// **********************************************************************
+// ConstantTable class
+//
+// Book keeping for conditional constant propagation.  A ConstantTable
+// belongs to one point of a method body and holds the locals (by
+// IdNode.varKey) whose value is known there at compile time.  A local that
+// is not in the table may have any value.  Booleans are stored as the
+// TRUE/FALSE words the generated code uses.
+//
+// The pass walks the structured body instead of building an explicit SSA
+// graph, but it computes the same thing: every assignment starts a new
+// version of its variable, and where control flow merges (after an if or
+// if/else, at the test of a loop) the phi of the incoming versions is
+// their meet - a variable stays known only if it has the same value on
+// every incoming edge.  Points that can never be reached have no table at
+// all (null) and do not take part in a meet, so a branch whose condition
+// is known to be false cannot spoil a constant.  Loops are solved
+// optimistically: the first round assumes the values coming around the
+// back edge are the ones coming in from above, and the table at the test
+// shrinks until it holds for every iteration.
+// **********************************************************************
+public class ConstantTable {
+    public static final int TRUE = Integer.parseInt(Codegen.TRUE);
+    public static final int FALSE = Integer.parseInt(Codegen.FALSE);
+
+    // method entry: nothing is known, not even the locals that have not been assigned yet
+    public ConstantTable() {
+    }
+
+    public ConstantTable(ConstantTable other) {
+        myValues = new HashMap<String, Integer>(other.myValues);
+    }
+
+    public Integer get(String varKey) {
+        return myValues.get(varKey);
+    }
+
+    // the table after varKey = value, a null value means the new value is not known
+    public ConstantTable with(String varKey, Integer value) {
+        ConstantTable result = new ConstantTable(this);
+        if (value == null) {
+            result.myValues.remove(varKey);
+        } else {
+            result.myValues.put(varKey, value);
+        }
+        return result;
+    }
+
+    // the table after code that may assign the given variables
+    public ConstantTable without(HashMap<String, Integer> assigned) {
+        ConstantTable result = new ConstantTable(this);
+        for (String varKey : assigned.keySet()) result.myValues.remove(varKey);
+        return result;
+    }
+
+    // the phi of two incoming edges
+    public static ConstantTable meet(ConstantTable a, ConstantTable b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        ConstantTable result = new ConstantTable();
+        for (String varKey : a.myValues.keySet()) {
+            if (a.myValues.get(varKey).equals(b.myValues.get(varKey))) {
+                result.myValues.put(varKey, a.myValues.get(varKey));
+            }
+        }
+        return result;
+    }
+
+    public static boolean same(ConstantTable a, ConstantTable b) {
+        if (a == null || b == null) return a == b;
+        return a.myValues.equals(b.myValues);
+    }
+
+    public static boolean isTrue(Integer value) {
+        return value != null && value.intValue() == TRUE;
+    }
+
+    public static boolean isFalse(Integer value) {
+        return value != null && value.intValue() == FALSE;
+    }
+
+    private HashMap<String, Integer> myValues = new HashMap<String, Integer>();
+}
@@ -1,13 +1,14 @@
 // Errors
 //
-// This class is used to generate warning and fatal error messages.
+// This class is used to generate warning and fatal error messages.  They
+// go to the error stream of the compilation (CompileContext.err).
 
 class Errors {
     static void fatal(int lineNum, int charNum, String msg) {
-        System.err.println(lineNum + ":" + charNum + " **ERROR** " + msg);
+        CompileContext.current().err.println(lineNum + ":" + charNum + " **ERROR** " + msg);
     }
 
     static void warn(int lineNum, int charNum, String msg) {
-        System.err.println(lineNum + ":" + charNum + " **WARNING** " + msg);
+        CompileContext.current().err.println(lineNum + ":" + charNum + " **WARNING** " + msg);
     }
 }
@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// **********************************************************************
+// Evaluator class
+//
+// Compile time evaluation of calls to pure methods.  A method the call
+// graph found to be pure (CallGraph.isPure: it prints nothing and writes no
+// static field, and neither do the methods it calls) returns the same
+// value every time it is called with the same arguments.  When constant
+// propagation knows all arguments of such a call, the call is run here and
+// its value takes the place of the call (CallExpNode.constantValue).
+//
+// The body is run by the evaluate methods of the statements, with an
+// Evaluator as the table of known values: it holds every local that has
+// been assigned so far, so the constantValue methods of the expressions
+// compute what the generated code would.  Anything that is not known stops
+// the evaluation - a static field (some other method may change it), an
+// uninitialized local, a division by zero that would trap at run time -
+// and so does running out of steps: a loop or a recursion that goes on for
+// too long, or forever, is left to run time.  The call stays as it is then.
+// Strings are never known, a String param only stops the evaluation if the
+// method reads it.
+// **********************************************************************
+public class Evaluator extends ConstantTable {
+    // statements a call may run before it is given up on, including the calls it makes
+    public static final int BUDGET = 100000;
+    // nested calls, the evaluation recurses on the Java stack
+    public static final int MAX_DEPTH = 100;
+
+    // the value the method returns for the given arguments (0 for a void method),
+    // null if that cannot be found out at compile time
+    public static Integer call(MethodDeclNode method, ArrayList<Integer> args) {
+        CompileContext context = CompileContext.current();
+        if (method == null || !context.callGraph.isPure(method.getName())) return null;
+        Calls calls = context.evaluations;
+        String key = method.getName() + args;
+        if (calls.results.containsKey(key)) return calls.results.get(key);
+        if (calls.depth == 0) {
+            calls.stepsLeft = BUDGET;
+        } else if (calls.depth >= MAX_DEPTH) {
+            return null;
+        }
+        calls.depth++;
+        Evaluator ev = new Evaluator();
+        Integer result = method.evaluate(ev, args) ? ev.myResult : null;
+        calls.depth--;
+        // a nested call that ran out of steps might still manage with a budget of its own
+        if (result != null || calls.depth == 0) calls.results.put(key, result);
+        return result;
+    }
+
+    // what the calls of one compilation share (CompileContext.evaluations)
+    public static class Calls {
+        HashMap<String, Integer> results = new HashMap<String, Integer>(); // by method and arguments
+        int stepsLeft = 0;
+        int depth = 0;
+    }
+
+    public Integer get(String varKey) {
+        return myValues.get(varKey);
+    }
+
+    // a null value is not known (a String)
+    public void set(String varKey, Integer value) {
+        if (value == null) {
+            myValues.remove(varKey);
+        } else {
+            myValues.put(varKey, value);
+        }
+    }
+
+    // one more statement, false once the budget is used up
+    public boolean step() {
+        return --myCalls.stepsLeft >= 0;
+    }
+
+    public void setResult(int value) {
+        myResult = value;
+        myReturned = true;
+    }
+
+    public boolean hasReturned() {
+        return myReturned;
+    }
+
+    private Calls myCalls = CompileContext.current().evaluations;
+    private HashMap<String, Integer> myValues = new HashMap<String, Integer>();
+    private Integer myResult = null;
+    private boolean myReturned = false;
+}
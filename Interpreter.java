@@ -0,0 +1,846 @@
+import java.io.PrintStream;
+import java.util.HashMap;
+
+// **********************************************************************
+// Interpreter class
+//
+// Runs a program straight from the AST, without generating code for it
+// (P5 -interpret).  Before code generation rewrites the methods, every
+// AST node makes the node that runs it (interpreterNode in ast.java), and
+// those nodes are what the interpreter runs.
+//
+// The nodes specialise themselves.  The first time a node runs, it looks
+// at what it was given - after its operands have run, so at what they
+// turned into - and puts a node that does only what is needed for that in
+// its place in the parent (replace).  A variable becomes a read of an int
+// or String slot of the frame or of a static field.  An operator with a
+// literal on the right becomes the operator with a constant, and with an
+// int local on the left as well, or two of them, it reads the slots
+// itself.  An if or a loop whose condition is a comparison compares and
+// branches itself instead of making a boolean first.  A call looks the
+// method up once and keeps it (an inline cache: there is only ever one
+// method by a name, so it never has to be thrown away).  The node that
+// rewrote itself finishes the run it is in; from then on the parent runs
+// the new one.
+//
+// Values: ints and booleans (TRUE/FALSE, like the generated code) are
+// ints, Strings are objects; a frame has an int and a String slot for
+// every local and param.  The semantics are those of the generated code:
+// the arguments of a call are evaluated last to first, + - * wrap around
+// like the addu, subu, negu and mul that Codegen writes (not add, which
+// traps on overflow), switch does nothing (there is no code generation
+// for it yet).  A division by zero does not trap on MIPS, the result is
+// undefined; here it is 0.  Calls nest up to MAX_DEPTH deep, as in the
+// VM, deeper is a stack overflow that P5 reports.
+//
+// Public Methods
+// ==============
+// run(out)              -- runs main, its output goes to out
+// beginMethod, slot(offset), global(name), addMethod  -- used while the
+//                          AST nodes make their nodes
+// rewrites(), calls()   -- statistics
+// **********************************************************************
+public class Interpreter {
+    // the operators of Binary
+    public static final int PLUS = 0, MINUS = 1, TIMES = 2, DIVIDE = 3, POWER = 4;
+    public static final int EQUALS = 5, NOT_EQUALS = 6, LESS = 7, GREATER = 8, LESS_EQ = 9, GREATER_EQ = 10;
+
+    // calls of the program nested at most this deep, like in the VM. Every one is a few nested
+    // Java calls, so the program runs on a thread with a stack large enough for them
+    public static final int MAX_DEPTH = 1 << 16;
+    public static final long STACK_BYTES = 1L << 28;
+
+    public void run(PrintStream out) {
+        myGlobals = new int[myGlobalIndexes.size()];
+        myGlobalStrings = new Object[myGlobalIndexes.size()];
+        myOut = new StringBuilder();
+        myDepth = 0;
+        try {
+            onLargeStack("interpreter", () -> {
+                Method main = method("main");
+                main.body.execute(new Frame(this, main.slots));
+            });
+        } finally {
+            out.print(myOut);
+            out.flush();
+        }
+    }
+
+    // runs body on a thread with a stack of STACK_BYTES and waits for it.  Running out of
+    // even that stack is an IllegalStateException("stack overflow") too.  The Closures
+    // and the JVM class (JvmCodegen) run on it as well
+    public static void onLargeStack(String name, Runnable body) {
+        RuntimeException[] failed = new RuntimeException[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                body.run();
+            } catch (StackOverflowError ex) {
+                failed[0] = new IllegalStateException("stack overflow");
+            } catch (RuntimeException ex) {
+                failed[0] = ex;
+            }
+        }, name, STACK_BYTES);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+        if (failed[0] != null) throw failed[0];
+    }
+
+    public int rewrites() {
+        return myRewrites;
+    }
+
+    public long calls() {
+        return myCalls;
+    }
+
+    // **********************************************************************
+    // building the nodes: the locals of a method get a slot each, by
+    // their offset in the frame
+    // **********************************************************************
+    public void beginMethod() {
+        mySlots = new HashMap<Integer, Integer>();
+    }
+
+    public int slot(int offset) {
+        Integer slot = mySlots.get(offset);
+        if (slot == null) {
+            slot = mySlots.size();
+            mySlots.put(offset, slot);
+        }
+        return slot;
+    }
+
+    public int global(String name) {
+        Integer index = myGlobalIndexes.get(name);
+        if (index == null) {
+            index = myGlobalIndexes.size();
+            myGlobalIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    // params by slot, strings tells which ones are Strings
+    public void addMethod(String name, int[] params, boolean[] strings, Node body) {
+        myMethods.put(name, new Method(params, strings, mySlots.size(), body));
+    }
+
+    private Method method(String name) {
+        Method method = myMethods.get(name);
+        if (method == null) throw new IllegalStateException("there is no method " + name);
+        return method;
+    }
+
+    // the text of a string literal as written in the source
+    public static String unquote(String literal) {
+        return new String(MipsEncoder.unquote(literal), java.nio.charset.StandardCharsets.ISO_8859_1);
+    }
+
+    // **********************************************************************
+    // the operators, as the generated code does them
+    // **********************************************************************
+    static int apply(int op, int a, int b) {
+        switch (op) {
+        case PLUS: return a + b;
+        case MINUS: return a - b;
+        case TIMES: return a * b;
+        case DIVIDE: return b == 0 ? 0 : a / b;
+        case POWER: return power(a, b);
+        default: return compare(op, a, b) ? ConstantTable.TRUE : ConstantTable.FALSE;
+        }
+    }
+
+    static boolean compare(int op, int a, int b) {
+        switch (op) {
+        case EQUALS: return a == b;
+        case NOT_EQUALS: return a != b;
+        case LESS: return a < b;
+        case GREATER: return a > b;
+        case LESS_EQ: return a <= b;
+        case GREATER_EQ: return a >= b;
+        default: throw new IllegalStateException("not a comparison: " + op);
+        }
+    }
+
+    static boolean isComparison(int op) {
+        return op >= EQUALS;
+    }
+
+    // like the runtime routine: wraps around, a negative exponent gives 1 / base ** n
+    static int power(int base, int exponent) {
+        if (exponent < 0) {
+            if (base == 1) return 1;
+            if (base == -1) return (exponent & 1) == 0 ? 1 : -1;
+            return 0;
+        }
+        int result = 1;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0) result *= base;
+            base *= base;
+            exponent >>>= 1;
+        }
+        return result;
+    }
+
+    // **********************************************************************
+    // Frame and Method
+    // **********************************************************************
+    public static final class Frame {
+        Frame(Interpreter interpreter, int slots) {
+            this.interpreter = interpreter;
+            ints = new int[slots];
+            strings = new Object[slots];
+        }
+
+        final Interpreter interpreter;
+        final int[] ints;
+        final Object[] strings;
+        int result = 0;  // an int method that falls off its end returns 0
+    }
+
+    private static final class Method {
+        Method(int[] params, boolean[] strings, int slots, Node body) {
+            this.params = params;
+            this.strings = strings;
+            this.slots = slots;
+            this.body = body;
+        }
+
+        final int[] params;
+        final boolean[] strings;
+        final int slots;
+        final Node body;
+    }
+
+    // **********************************************************************
+    // Node
+    //    expressions run with executeInt (ints and booleans) or
+    //    executeString, statements with execute, which is true once the
+    //    method has returned
+    // **********************************************************************
+    public abstract static class Node {
+        protected Node(Node... kids) {
+            this.kids = kids;
+            for (int i = 0; i < kids.length; i++) adopt(kids[i], i);
+        }
+
+        public int executeInt(Frame frame) {
+            throw new IllegalStateException(getClass().getSimpleName() + " has no int value");
+        }
+
+        public Object executeString(Frame frame) {
+            throw new IllegalStateException(getClass().getSimpleName() + " has no String value");
+        }
+
+        public boolean execute(Frame frame) {
+            throw new IllegalStateException(getClass().getSimpleName() + " is not a statement");
+        }
+
+        // puts node where this one is in the parent, returns it
+        protected final Node replace(Node node, Frame frame) {
+            myParent.kids[myIndex] = node;
+            myParent.adopt(node, myIndex);
+            frame.interpreter.myRewrites++;
+            return node;
+        }
+
+        private void adopt(Node kid, int index) {
+            kid.myParent = this;
+            kid.myIndex = index;
+        }
+
+        protected final Node[] kids;
+        private Node myParent = null;  // null for the body of a method, which is never replaced
+        private int myIndex;
+    }
+
+    // **********************************************************************
+    // literals and variables
+    // **********************************************************************
+    public static final class Literal extends Node {
+        public Literal(int value) {
+            this.value = value;
+        }
+
+        public int executeInt(Frame frame) {
+            return value;
+        }
+
+        final int value;
+    }
+
+    public static final class StringLiteral extends Node {
+        public StringLiteral(String value) {
+            this.value = value;
+        }
+
+        public Object executeString(Frame frame) {
+            return value;
+        }
+
+        private final String value;
+    }
+
+    // a read of a variable, by slot for a local, by global() for a static field
+    public static final class Variable extends Node {
+        public Variable(boolean local, int index, boolean string) {
+            myLocal = local;
+            myIndex = index;
+            myString = string;
+        }
+
+        public int executeInt(Frame frame) {
+            return specialize(frame).executeInt(frame);
+        }
+
+        public Object executeString(Frame frame) {
+            return specialize(frame).executeString(frame);
+        }
+
+        private Node specialize(Frame frame) {
+            if (myLocal) {
+                return replace(myString ? new LocalString(myIndex) : new LocalInt(myIndex), frame);
+            }
+            return replace(myString ? new GlobalString(myIndex) : new GlobalInt(myIndex), frame);
+        }
+
+        private final boolean myLocal;
+        private final int myIndex;
+        private final boolean myString;
+    }
+
+    static final class LocalInt extends Node {
+        LocalInt(int slot) {
+            this.slot = slot;
+        }
+
+        public int executeInt(Frame frame) {
+            return frame.ints[slot];
+        }
+
+        final int slot;
+    }
+
+    static final class LocalString extends Node {
+        LocalString(int slot) {
+            this.slot = slot;
+        }
+
+        public Object executeString(Frame frame) {
+            return frame.strings[slot];
+        }
+
+        private final int slot;
+    }
+
+    static final class GlobalInt extends Node {
+        GlobalInt(int index) {
+            this.index = index;
+        }
+
+        public int executeInt(Frame frame) {
+            return frame.interpreter.myGlobals[index];
+        }
+
+        private final int index;
+    }
+
+    static final class GlobalString extends Node {
+        GlobalString(int index) {
+            this.index = index;
+        }
+
+        public Object executeString(Frame frame) {
+            return frame.interpreter.myGlobalStrings[index];
+        }
+
+        private final int index;
+    }
+
+    // **********************************************************************
+    // operators.  An Operation knows its operands, so an if or a loop can
+    // take a comparison apart
+    // **********************************************************************
+    abstract static class Operation extends Node {
+        Operation(int op, Node... kids) {
+            super(kids);
+            this.op = op;
+        }
+
+        abstract Node left();
+
+        abstract Node right();
+
+        final int op;
+    }
+
+    // not run yet: becomes one of the others the first time
+    public static final class Binary extends Operation {
+        public Binary(int op, Node left, Node right) {
+            super(op, left, right);
+        }
+
+        public int executeInt(Frame frame) {
+            int a = kids[0].executeInt(frame);
+            int b = kids[1].executeInt(frame);
+            Node left = kids[0], right = kids[1];
+            if (right instanceof Literal && left instanceof LocalInt) {
+                replace(new LocalConstant(op, ((LocalInt)left).slot, ((Literal)right).value), frame);
+            } else if (right instanceof Literal) {
+                replace(new ConstantOperand(op, left, ((Literal)right).value), frame);
+            } else if (left instanceof LocalInt && right instanceof LocalInt) {
+                replace(new LocalOperands(op, ((LocalInt)left).slot, ((LocalInt)right).slot), frame);
+            } else {
+                replace(new Operands(op, left, right), frame);
+            }
+            return apply(op, a, b);
+        }
+
+        Node left() {
+            return kids[0];
+        }
+
+        Node right() {
+            return kids[1];
+        }
+    }
+
+    static final class Operands extends Operation {
+        Operands(int op, Node left, Node right) {
+            super(op, left, right);
+        }
+
+        public int executeInt(Frame frame) {
+            int a = kids[0].executeInt(frame);
+            return apply(op, a, kids[1].executeInt(frame));
+        }
+
+        Node left() {
+            return kids[0];
+        }
+
+        Node right() {
+            return kids[1];
+        }
+    }
+
+    static final class ConstantOperand extends Operation {
+        ConstantOperand(int op, Node left, int value) {
+            super(op, left);
+            myValue = value;
+        }
+
+        public int executeInt(Frame frame) {
+            return apply(op, kids[0].executeInt(frame), myValue);
+        }
+
+        Node left() {
+            return kids[0];
+        }
+
+        Node right() {
+            return new Literal(myValue);
+        }
+
+        private final int myValue;
+    }
+
+    static final class LocalConstant extends Operation {
+        LocalConstant(int op, int slot, int value) {
+            super(op);
+            mySlot = slot;
+            myValue = value;
+        }
+
+        public int executeInt(Frame frame) {
+            return apply(op, frame.ints[mySlot], myValue);
+        }
+
+        Node left() {
+            return new LocalInt(mySlot);
+        }
+
+        Node right() {
+            return new Literal(myValue);
+        }
+
+        private final int mySlot;
+        private final int myValue;
+    }
+
+    static final class LocalOperands extends Operation {
+        LocalOperands(int op, int slot1, int slot2) {
+            super(op);
+            mySlot1 = slot1;
+            mySlot2 = slot2;
+        }
+
+        public int executeInt(Frame frame) {
+            return apply(op, frame.ints[mySlot1], frame.ints[mySlot2]);
+        }
+
+        Node left() {
+            return new LocalInt(mySlot1);
+        }
+
+        Node right() {
+            return new LocalInt(mySlot2);
+        }
+
+        private final int mySlot1;
+        private final int mySlot2;
+    }
+
+    // == and != on Strings compare the addresses, so the objects here
+    public static final class StringEquals extends Node {
+        public StringEquals(boolean equal, Node left, Node right) {
+            super(left, right);
+            myEqual = equal;
+        }
+
+        public int executeInt(Frame frame) {
+            Object a = kids[0].executeString(frame);
+            return (a == kids[1].executeString(frame)) == myEqual ? ConstantTable.TRUE : ConstantTable.FALSE;
+        }
+
+        private final boolean myEqual;
+    }
+
+    public static final class Negate extends Node {
+        public Negate(Node operand) {
+            super(operand);
+        }
+
+        public int executeInt(Frame frame) {
+            return -kids[0].executeInt(frame);
+        }
+    }
+
+    public static final class Not extends Node {
+        public Not(Node operand) {
+            super(operand);
+        }
+
+        public int executeInt(Frame frame) {
+            return kids[0].executeInt(frame) == ConstantTable.TRUE ? ConstantTable.FALSE : ConstantTable.TRUE;
+        }
+    }
+
+    // the right side only runs if it matters
+    public static final class And extends Node {
+        public And(Node left, Node right) {
+            super(left, right);
+        }
+
+        public int executeInt(Frame frame) {
+            if (kids[0].executeInt(frame) == ConstantTable.FALSE) return ConstantTable.FALSE;
+            return kids[1].executeInt(frame) == ConstantTable.TRUE ? ConstantTable.TRUE : ConstantTable.FALSE;
+        }
+    }
+
+    public static final class Or extends Node {
+        public Or(Node left, Node right) {
+            super(left, right);
+        }
+
+        public int executeInt(Frame frame) {
+            if (kids[0].executeInt(frame) == ConstantTable.TRUE) return ConstantTable.TRUE;
+            return kids[1].executeInt(frame) == ConstantTable.TRUE ? ConstantTable.TRUE : ConstantTable.FALSE;
+        }
+    }
+
+    // **********************************************************************
+    // calls
+    // **********************************************************************
+    public static final class Call extends Node {
+        public Call(String name, Node... args) {
+            super(args);
+            myName = name;
+        }
+
+        public int executeInt(Frame frame) {
+            return replace(new CachedCall(frame.interpreter.method(myName), kids), frame).executeInt(frame);
+        }
+
+        private final String myName;
+    }
+
+    static final class CachedCall extends Node {
+        CachedCall(Method method, Node[] args) {
+            super(args);
+            myMethod = method;
+        }
+
+        // the arguments last to first, like cgenCall
+        public int executeInt(Frame frame) {
+            Frame callee = new Frame(frame.interpreter, myMethod.slots);
+            for (int i = kids.length - 1; i >= 0; i--) {
+                int slot = myMethod.params[i];
+                if (myMethod.strings[i]) {
+                    callee.strings[slot] = kids[i].executeString(frame);
+                } else {
+                    callee.ints[slot] = kids[i].executeInt(frame);
+                }
+            }
+            Interpreter in = frame.interpreter;
+            in.myCalls++;
+            if (++in.myDepth > MAX_DEPTH) throw new IllegalStateException("stack overflow");
+            myMethod.body.execute(callee);
+            in.myDepth--;
+            return callee.result;
+        }
+
+        private final Method myMethod;
+    }
+
+    // **********************************************************************
+    // statements
+    // **********************************************************************
+    public static final class Block extends Node {
+        public Block(Node... stmts) {
+            super(stmts);
+        }
+
+        public boolean execute(Frame frame) {
+            for (Node stmt : kids) {
+                if (stmt.execute(frame)) return true;
+            }
+            return false;
+        }
+    }
+
+    public static final class Print extends Node {
+        public Print(Node exp, boolean string) {
+            super(exp);
+            myString = string;
+        }
+
+        public boolean execute(Frame frame) {
+            StringBuilder out = frame.interpreter.myOut;
+            if (myString) {
+                out.append(kids[0].executeString(frame));
+            } else {
+                out.append(kids[0].executeInt(frame));
+            }
+            out.append('\n');
+            return false;
+        }
+
+        private final boolean myString;
+    }
+
+    // a call statement
+    public static final class Evaluate extends Node {
+        public Evaluate(Node exp) {
+            super(exp);
+        }
+
+        public boolean execute(Frame frame) {
+            kids[0].executeInt(frame);
+            return false;
+        }
+    }
+
+    public static final class Return extends Node {
+        public Return(Node... value) {
+            super(value);
+        }
+
+        public boolean execute(Frame frame) {
+            if (kids.length > 0) frame.result = kids[0].executeInt(frame);
+            return true;
+        }
+    }
+
+    // an assignment to a variable, like Variable
+    public static final class Assign extends Node {
+        public Assign(boolean local, int index, boolean string, Node exp) {
+            super(exp);
+            myLocal = local;
+            myIndex = index;
+            myString = string;
+        }
+
+        public boolean execute(Frame frame) {
+            Node store;
+            if (myLocal) {
+                store = myString ? new StoreLocalString(myIndex, kids[0]) : new StoreLocalInt(myIndex, kids[0]);
+            } else {
+                store = myString ? new StoreGlobalString(myIndex, kids[0]) : new StoreGlobalInt(myIndex, kids[0]);
+            }
+            return replace(store, frame).execute(frame);
+        }
+
+        private final boolean myLocal;
+        private final int myIndex;
+        private final boolean myString;
+    }
+
+    static final class StoreLocalInt extends Node {
+        StoreLocalInt(int slot, Node exp) {
+            super(exp);
+            mySlot = slot;
+        }
+
+        public boolean execute(Frame frame) {
+            frame.ints[mySlot] = kids[0].executeInt(frame);
+            return false;
+        }
+
+        private final int mySlot;
+    }
+
+    static final class StoreLocalString extends Node {
+        StoreLocalString(int slot, Node exp) {
+            super(exp);
+            mySlot = slot;
+        }
+
+        public boolean execute(Frame frame) {
+            frame.strings[mySlot] = kids[0].executeString(frame);
+            return false;
+        }
+
+        private final int mySlot;
+    }
+
+    static final class StoreGlobalInt extends Node {
+        StoreGlobalInt(int index, Node exp) {
+            super(exp);
+            myIndex = index;
+        }
+
+        public boolean execute(Frame frame) {
+            frame.interpreter.myGlobals[myIndex] = kids[0].executeInt(frame);
+            return false;
+        }
+
+        private final int myIndex;
+    }
+
+    static final class StoreGlobalString extends Node {
+        StoreGlobalString(int index, Node exp) {
+            super(exp);
+            myIndex = index;
+        }
+
+        public boolean execute(Frame frame) {
+            frame.interpreter.myGlobalStrings[myIndex] = kids[0].executeString(frame);
+            return false;
+        }
+
+        private final int myIndex;
+    }
+
+    // **********************************************************************
+    // if and while.  Once the condition has run, a comparison is taken
+    // apart and the if (loop) compares itself
+    // **********************************************************************
+    public static final class If extends Node {
+        public If(Node condition, Node then, Node otherwise) {
+            super(condition, then, otherwise);
+        }
+
+        public boolean execute(Frame frame) {
+            boolean taken = kids[0].executeInt(frame) == ConstantTable.TRUE;
+            Node condition = kids[0];
+            if (condition instanceof Operation && isComparison(((Operation)condition).op)) {
+                Operation compare = (Operation)condition;
+                replace(new IfCompare(compare.op, compare.left(), compare.right(), kids[1], kids[2]), frame);
+            } else {
+                replace(new Branch(condition, kids[1], kids[2]), frame);
+            }
+            return taken ? kids[1].execute(frame) : kids[2].execute(frame);
+        }
+    }
+
+    static final class Branch extends Node {
+        Branch(Node condition, Node then, Node otherwise) {
+            super(condition, then, otherwise);
+        }
+
+        public boolean execute(Frame frame) {
+            return kids[0].executeInt(frame) == ConstantTable.TRUE ? kids[1].execute(frame) : kids[2].execute(frame);
+        }
+    }
+
+    static final class IfCompare extends Node {
+        IfCompare(int op, Node left, Node right, Node then, Node otherwise) {
+            super(left, right, then, otherwise);
+            myOp = op;
+        }
+
+        public boolean execute(Frame frame) {
+            int a = kids[0].executeInt(frame);
+            return compare(myOp, a, kids[1].executeInt(frame)) ? kids[2].execute(frame) : kids[3].execute(frame);
+        }
+
+        private final int myOp;
+    }
+
+    public static final class While extends Node {
+        public While(Node condition, Node body) {
+            super(condition, body);
+        }
+
+        // the first test and iteration here, the rest in the node that takes its place
+        public boolean execute(Frame frame) {
+            boolean taken = kids[0].executeInt(frame) == ConstantTable.TRUE;
+            Node condition = kids[0];
+            Node body = kids[1];
+            Node loop;
+            if (condition instanceof Operation && isComparison(((Operation)condition).op)) {
+                Operation compare = (Operation)condition;
+                loop = replace(new WhileCompare(compare.op, compare.left(), compare.right(), body), frame);
+            } else {
+                loop = replace(new Loop(condition, body), frame);
+            }
+            if (!taken) return false;
+            if (body.execute(frame)) return true;
+            return loop.execute(frame);
+        }
+    }
+
+    static final class Loop extends Node {
+        Loop(Node condition, Node body) {
+            super(condition, body);
+        }
+
+        public boolean execute(Frame frame) {
+            while (kids[0].executeInt(frame) == ConstantTable.TRUE) {
+                if (kids[1].execute(frame)) return true;
+            }
+            return false;
+        }
+    }
+
+    static final class WhileCompare extends Node {
+        WhileCompare(int op, Node left, Node right, Node body) {
+            super(left, right, body);
+            myOp = op;
+        }
+
+        public boolean execute(Frame frame) {
+            while (compare(myOp, kids[0].executeInt(frame), kids[1].executeInt(frame))) {
+                if (kids[2].execute(frame)) return true;
+            }
+            return false;
+        }
+
+        private final int myOp;
+    }
+
+    private HashMap<String, Method> myMethods = new HashMap<String, Method>();
+    private HashMap<String, Integer> myGlobalIndexes = new HashMap<String, Integer>();
+    private HashMap<Integer, Integer> mySlots;   // of the method being built, by offset
+    private int[] myGlobals;
+    private Object[] myGlobalStrings;
+    private StringBuilder myOut;
+    private int myRewrites = 0;
+    private long myCalls = 0;
+    private int myDepth = 0; // calls of the program running
+}
@@ -0,0 +1,516 @@
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// **********************************************************************
+// Jit class
+//
+// Translates the hot parts of a program the Simulator runs into JVM
+// bytecode.  The text segment is cut into basic blocks: a block starts at a
+// label, at the target of a branch or jump and after a branch or jump (and
+// its delay slot).  The simulator calls enter() every time it is about to
+// run an instruction; at the start of a block that is counted, and once a
+// block has been entered THRESHOLD times it is translated together with the
+// blocks it branches to (the region), up to MAX_REGION instructions.
+//
+// A region becomes the run method of a class of its own (written with
+// JvmClassWriter and loaded as a hidden class, so it goes away again with
+// the simulator).  The registers live in JVM locals while it runs: they are
+// loaded when it is entered and written back when it is left.  Branches
+// between the blocks of the region are gotos, so a loop runs in the region
+// without coming back to the simulator.  It is left at jal, jr and syscall
+// (system calls are always done by the simulator) and at branches to code
+// outside the region; run returns the address to go on at, and the
+// simulator's dispatcher goes on with the region starting there, or with
+// the interpreter if there is none.
+//
+// Public Methods
+// ==============
+// Jit(text, labels, delaySlots, threshold)
+// Translated enter(sim, pc) -- the translation starting at pc, null if none (yet)
+// regions(), instructions(), entries() -- statistics
+// **********************************************************************
+public class Jit {
+    public static final int THRESHOLD = 50;
+    public static final int MAX_REGION = 400;   // MIPS instructions in one region
+
+    public Jit(int[] text, Map<String, Integer> labels, boolean delaySlots, int threshold) {
+        myText = text;
+        myDelaySlots = delaySlots;
+        myThreshold = threshold;
+        myLeader = new boolean[text.length + 1];
+        myCounts = new int[text.length];
+        myFailed = new boolean[text.length];
+        myTranslated = new Simulator.Translated[text.length];
+        for (int address : labels.values()) {
+            int index = indexOf(address);
+            if (index >= 0 && index < text.length) myLeader[index] = true;
+        }
+        for (int i = 0; i < text.length; i++) {
+            if (!endsBlock(text[i])) continue;
+            int next = i + 1 + slot(text[i]);
+            if (next <= text.length) myLeader[next] = true;
+            int target = targetIndex(i);
+            if (target >= 0 && target < text.length) myLeader[target] = true;
+        }
+    }
+
+    // **********************************************************************
+    // enter
+    //    called by the dispatcher before the instruction at pc is run
+    // **********************************************************************
+    public Simulator.Translated enter(Simulator sim, int pc) {
+        int index = indexOf(pc);
+        if (index < 0 || index >= myText.length) return null;
+        Simulator.Translated code = myTranslated[index];
+        if (code == null) {
+            if (!myLeader[index] || myFailed[index] || ++myCounts[index] < myThreshold) return null;
+            code = translate(index);
+            if (code == null) {
+                myFailed[index] = true;
+                return null;
+            }
+            myTranslated[index] = code;
+        }
+        myEntries++;
+        return code;
+    }
+
+    public int regions() {
+        return myRegions;
+    }
+
+    public int instructions() {
+        return myInstructions;
+    }
+
+    public long entries() {
+        return myEntries;
+    }
+
+    // **********************************************************************
+    // the instructions that end a block
+    // **********************************************************************
+    private static boolean endsBlock(int w) {
+        int op = w >>> 26;
+        if (op == 0) {
+            int funct = w & 63;
+            return funct == 0x08 || funct == 0x09 || funct == 0x0c;
+        }
+        return op >= 0x01 && op <= 0x07;
+    }
+
+    private static boolean isSyscall(int w) {
+        return (w >>> 26) == 0 && (w & 63) == 0x0c;
+    }
+
+    // 1 if the instruction has a delay slot
+    private int slot(int w) {
+        return myDelaySlots && !isSyscall(w) ? 1 : 0;
+    }
+
+    // the index a branch or j/jal at index i goes to, -1 for the others
+    private int targetIndex(int i) {
+        int w = myText[i];
+        int op = w >>> 26;
+        if (op == 0x02 || op == 0x03) {
+            int pc = addressOf(i);
+            return indexOf((pc & 0xf0000000) | ((w & 0x03ffffff) << 2));
+        }
+        if (op == 0x01 || (op >= 0x04 && op <= 0x07)) return i + 1 + (short)w;
+        return -1;
+    }
+
+    private static int indexOf(int address) {
+        return (address - MipsEncoder.TEXT_BASE) >> 2;
+    }
+
+    private static int addressOf(int index) {
+        return MipsEncoder.TEXT_BASE + 4 * index;
+    }
+
+    // **********************************************************************
+    // translate
+    //    finds the region starting at the given block and makes a class for
+    //    it; null if it has something that cannot be translated
+    // **********************************************************************
+    private Simulator.Translated translate(int entry) {
+        if (isSyscall(myText[entry])) return null;
+        // the blocks of the region, by first instruction; the value is the last one (with the delay slot)
+        LinkedHashMap<Integer, Integer> blocks = new LinkedHashMap<Integer, Integer>();
+        ArrayList<Integer> work = new ArrayList<Integer>();
+        work.add(entry);
+        int size = 0;
+        while (!work.isEmpty() && size < MAX_REGION) {
+            int start = work.remove(0);
+            if (blocks.containsKey(start) || start < 0 || start >= myText.length || isSyscall(myText[start])) continue;
+            int end = start;
+            while (!endsBlock(myText[end]) && end + 1 < myText.length && !myLeader[end + 1]) end++;
+            int w = myText[end];
+            if (endsBlock(w)) {
+                if (end + slot(w) >= myText.length || (slot(w) == 1 && endsBlock(myText[end + 1]))) return null;
+                end += slot(w);
+                int op = w >>> 26;
+                if (op != 0 && op != 0x03) work.add(targetIndex(end - slot(w)));
+                if (op == 0x01 || op >= 0x04) work.add(end + 1);
+            } else {
+                work.add(end + 1);
+            }
+            blocks.put(start, end);
+            size += end - start + 1;
+        }
+        try {
+            byte[] bytes = new Translation(blocks).write();
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            Simulator.Translated code = (Simulator.Translated)lookup.lookupClass().getDeclaredConstructor().newInstance();
+            myRegions++;
+            myInstructions += size;
+            return code;
+        } catch (IllegalArgumentException ex) {
+            // an instruction that is not translated
+            return null;
+        } catch (IllegalStateException ex) {
+            // a branch too far for the JVM
+            return null;
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("cannot load translated code: " + ex);
+        }
+    }
+
+    // **********************************************************************
+    // Translation class
+    //    the bytecode for one region.  Locals: 0 this, 1 the simulator, 2 its
+    //    registers, 3 + r register r (hi and lo too), then the address a jr
+    //    leaves to, a branch condition and a long for mult
+    // **********************************************************************
+    private class Translation {
+        Translation(LinkedHashMap<Integer, Integer> blocks) {
+            myBlocks = blocks;
+            myWriter = new JvmClassWriter("JitRegion", "java/lang/Object", "Simulator$Translated");
+            JvmClassWriter.Code init = myWriter.method(JvmClassWriter.ACC_PUBLIC, "<init>", "()V");
+            init.local(JvmClassWriter.ALOAD, 0);
+            init.invoke(JvmClassWriter.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+            init.op(JvmClassWriter.RETURN);
+            init.maxStack(1);
+            c = myWriter.method(JvmClassWriter.ACC_PUBLIC, "run", "(LSimulator;)I");
+            for (int start : blocks.keySet()) myLabels.put(start, c.newLabel());
+        }
+
+        byte[] write() {
+            // the registers are loaded at the end, once it is known which ones are used
+            JvmClassWriter.Label prologue = c.newLabel();
+            c.jump(JvmClassWriter.GOTO, prologue);
+            for (Map.Entry<Integer, Integer> block : myBlocks.entrySet()) {
+                c.mark(myLabels.get(block.getKey()));
+                block(block.getKey(), block.getValue());
+            }
+            for (Map.Entry<Integer, JvmClassWriter.Label> exit : myExits.entrySet()) {
+                c.mark(exit.getValue());
+                writeBack();
+                c.push(addressOf(exit.getKey()));
+                c.op(JvmClassWriter.IRETURN);
+            }
+            if (myDynamicExit != null) {
+                c.mark(myDynamicExit);
+                writeBack();
+                c.local(JvmClassWriter.ILOAD, NEXT);
+                c.op(JvmClassWriter.IRETURN);
+            }
+            c.mark(prologue);
+            c.local(JvmClassWriter.ALOAD, 1);
+            c.field(JvmClassWriter.GETFIELD, "Simulator", "regs", "[I");
+            c.local(JvmClassWriter.ASTORE, REGS);
+            for (int r = 1; r < myUsed.length; r++) {
+                if (!myUsed[r]) continue;
+                c.local(JvmClassWriter.ALOAD, REGS);
+                c.push(r);
+                c.op(JvmClassWriter.IALOAD);
+                c.local(JvmClassWriter.ISTORE, REGS + 1 + r);
+            }
+            c.jump(JvmClassWriter.GOTO, myLabels.get(myBlocks.keySet().iterator().next()));
+            c.maxStack(6);
+            return myWriter.toBytes();
+        }
+
+        private void writeBack() {
+            for (int r = 1; r < myWritten.length; r++) {
+                if (!myWritten[r]) continue;
+                c.local(JvmClassWriter.ALOAD, REGS);
+                c.push(r);
+                c.local(JvmClassWriter.ILOAD, REGS + 1 + r);
+                c.op(JvmClassWriter.IASTORE);
+            }
+        }
+
+        // the label for going on at index: the block, if it is in the region, otherwise an exit
+        private JvmClassWriter.Label to(int index) {
+            JvmClassWriter.Label label = myLabels.get(index);
+            return label != null ? label : exit(index);
+        }
+
+        private JvmClassWriter.Label dynamicExit() {
+            if (myDynamicExit == null) myDynamicExit = c.newLabel();
+            return myDynamicExit;
+        }
+
+        private void read(int r) {
+            if (r == 0) {
+                c.push(0);
+            } else {
+                myUsed[r] = true;
+                c.local(JvmClassWriter.ILOAD, REGS + 1 + r);
+            }
+        }
+
+        private void write(int r) {
+            if (r == 0) {
+                c.op(JvmClassWriter.POP);
+            } else {
+                myUsed[r] = myWritten[r] = true;
+                c.local(JvmClassWriter.ISTORE, REGS + 1 + r);
+            }
+        }
+
+        // **********************************************************************
+        // block
+        //    the instructions from start to end; the last one (or the one
+        //    before the delay slot) may be a branch
+        // **********************************************************************
+        private void block(int start, int end) {
+            int last = end;
+            if (endsBlock(myText[end])) {
+                last = end;
+            } else if (end > start && endsBlock(myText[end - 1]) && slot(myText[end - 1]) == 1) {
+                last = end - 1;
+            } else {
+                for (int i = start; i <= end; i++) instruction(myText[i]);
+                c.jump(JvmClassWriter.GOTO, to(end + 1));
+                return;
+            }
+            for (int i = start; i < last; i++) instruction(myText[i]);
+            control(last);
+        }
+
+        private void control(int i) {
+            int w = myText[i];
+            int op = w >>> 26;
+            int rs = (w >> 21) & 31;
+            int next = i + 1 + slot(w);
+            if (op == 0) {
+                int funct = w & 63;
+                if (funct == 0x0c) {
+                    c.jump(JvmClassWriter.GOTO, to(i));
+                    return;
+                }
+                read(rs);
+                c.local(JvmClassWriter.ISTORE, NEXT);
+                if (funct == 0x09) {
+                    c.push(addressOf(next));
+                    write(31);
+                }
+                delaySlot(i);
+                c.jump(JvmClassWriter.GOTO, dynamicExit());
+            } else if (op == 0x02 || op == 0x03) {
+                if (op == 0x03) {
+                    c.push(addressOf(next));
+                    write(31);
+                }
+                delaySlot(i);
+                // a call leaves the region, so does the return to it
+                c.jump(JvmClassWriter.GOTO, op == 0x03 ? exit(targetIndex(i)) : to(targetIndex(i)));
+            } else if (slot(w) == 0) {
+                condition(w, to(targetIndex(i)));
+                c.jump(JvmClassWriter.GOTO, to(next));
+            } else {
+                // the delay slot may change what the branch compares
+                JvmClassWriter.Label taken = c.newLabel(), done = c.newLabel();
+                condition(w, taken);
+                c.push(0);
+                c.jump(JvmClassWriter.GOTO, done);
+                c.mark(taken);
+                c.push(1);
+                c.mark(done);
+                c.local(JvmClassWriter.ISTORE, COND);
+                delaySlot(i);
+                c.local(JvmClassWriter.ILOAD, COND);
+                c.jump(JvmClassWriter.IFNE, to(targetIndex(i)));
+                c.jump(JvmClassWriter.GOTO, to(next));
+            }
+        }
+
+        private JvmClassWriter.Label exit(int index) {
+            JvmClassWriter.Label label = myExits.get(index);
+            if (label == null) {
+                label = c.newLabel();
+                myExits.put(index, label);
+            }
+            return label;
+        }
+
+        private void delaySlot(int i) {
+            if (slot(myText[i]) == 1) instruction(myText[i + 1]);
+        }
+
+        // jumps to target if the branch is taken
+        private void condition(int w, JvmClassWriter.Label target) {
+            int op = w >>> 26;
+            int rs = (w >> 21) & 31;
+            int rt = (w >> 16) & 31;
+            read(rs);
+            switch (op) {
+            case 0x01: c.jump(rt == 0 ? JvmClassWriter.IFLT : JvmClassWriter.IFGE, target); break;
+            case 0x04: read(rt); c.jump(JvmClassWriter.IF_ICMPEQ, target); break;
+            case 0x05: read(rt); c.jump(JvmClassWriter.IF_ICMPNE, target); break;
+            case 0x06: c.jump(JvmClassWriter.IFLE, target); break;
+            default: c.jump(JvmClassWriter.IFGT, target); break;
+            }
+        }
+
+        // **********************************************************************
+        // instruction
+        //    one that does not change the flow; the same semantics as
+        //    Simulator.step
+        // **********************************************************************
+        private void instruction(int w) {
+            int op = w >>> 26;
+            int rs = (w >> 21) & 31;
+            int rt = (w >> 16) & 31;
+            int rd = (w >> 11) & 31;
+            int imm = (short)w;
+            switch (op) {
+            case 0:
+                switch (w & 63) {
+                case 0x00: read(rt); c.push((w >> 6) & 31); c.op(JvmClassWriter.ISHL); write(rd); break;
+                case 0x02: read(rt); c.push((w >> 6) & 31); c.op(JvmClassWriter.IUSHR); write(rd); break;
+                case 0x03: read(rt); c.push((w >> 6) & 31); c.op(JvmClassWriter.ISHR); write(rd); break;
+                case 0x04: read(rt); read(rs); c.op(JvmClassWriter.ISHL); write(rd); break;
+                case 0x10: read(Simulator.HI); write(rd); break;
+                case 0x12: read(Simulator.LO); write(rd); break;
+                case 0x18:
+                    read(rs);
+                    c.op(JvmClassWriter.I2L);
+                    read(rt);
+                    c.op(JvmClassWriter.I2L);
+                    c.op(JvmClassWriter.LMUL);
+                    c.local(JvmClassWriter.LSTORE, PRODUCT);
+                    c.local(JvmClassWriter.LLOAD, PRODUCT);
+                    c.op(JvmClassWriter.L2I);
+                    write(Simulator.LO);
+                    c.local(JvmClassWriter.LLOAD, PRODUCT);
+                    c.push(32);
+                    c.op(JvmClassWriter.LSHR);
+                    c.op(JvmClassWriter.L2I);
+                    write(Simulator.HI);
+                    break;
+                case 0x1a: {
+                    JvmClassWriter.Label skip = c.newLabel();
+                    read(rt);
+                    c.jump(JvmClassWriter.IFEQ, skip);
+                    read(rs);
+                    read(rt);
+                    c.op(JvmClassWriter.IDIV);
+                    write(Simulator.LO);
+                    read(rs);
+                    read(rt);
+                    c.op(JvmClassWriter.IREM);
+                    write(Simulator.HI);
+                    c.mark(skip);
+                    break;
+                }
+                case 0x20: case 0x21: binary(rs, rt, JvmClassWriter.IADD, rd); break;
+                case 0x22: case 0x23: binary(rs, rt, JvmClassWriter.ISUB, rd); break;
+                case 0x24: binary(rs, rt, JvmClassWriter.IAND, rd); break;
+                case 0x25: binary(rs, rt, JvmClassWriter.IOR, rd); break;
+                case 0x26: binary(rs, rt, JvmClassWriter.IXOR, rd); break;
+                case 0x27:
+                    read(rs);
+                    read(rt);
+                    c.op(JvmClassWriter.IOR);
+                    c.push(-1);
+                    c.op(JvmClassWriter.IXOR);
+                    write(rd);
+                    break;
+                case 0x2a: read(rs); read(rt); compare("lessThan"); write(rd); break;
+                case 0x2b: read(rs); read(rt); compare("lessThanUnsigned"); write(rd); break;
+                default: throw new IllegalArgumentException(Simulator.hex(w));
+                }
+                break;
+            case 0x08: case 0x09: immediate(rs, imm, JvmClassWriter.IADD, rt); break;
+            case 0x0a: read(rs); c.push(imm); compare("lessThan"); write(rt); break;
+            case 0x0b: read(rs); c.push(imm); compare("lessThanUnsigned"); write(rt); break;
+            case 0x0c: immediate(rs, w & 0xffff, JvmClassWriter.IAND, rt); break;
+            case 0x0d: immediate(rs, w & 0xffff, JvmClassWriter.IOR, rt); break;
+            case 0x0e: immediate(rs, w & 0xffff, JvmClassWriter.IXOR, rt); break;
+            case 0x0f: c.push(w << 16); write(rt); break;
+            case 0x20: load(rs, imm, "loadByte"); write(rt); break;
+            case 0x23: load(rs, imm, "loadWord"); write(rt); break;
+            case 0x24: load(rs, imm, "loadByte"); c.push(0xff); c.op(JvmClassWriter.IAND); write(rt); break;
+            case 0x28: store(rs, imm, rt, "storeByte"); break;
+            case 0x2b: store(rs, imm, rt, "storeWord"); break;
+            default: throw new IllegalArgumentException(Simulator.hex(w));
+            }
+        }
+
+        private void binary(int rs, int rt, int opcode, int rd) {
+            read(rs);
+            read(rt);
+            c.op(opcode);
+            write(rd);
+        }
+
+        private void immediate(int rs, int value, int opcode, int rt) {
+            read(rs);
+            c.push(value);
+            c.op(opcode);
+            write(rt);
+        }
+
+        private void compare(String helper) {
+            c.invoke(JvmClassWriter.INVOKESTATIC, "Simulator", helper, "(II)I");
+        }
+
+        private void load(int rs, int offset, String method) {
+            c.local(JvmClassWriter.ALOAD, 1);
+            read(rs);
+            c.push(offset);
+            c.op(JvmClassWriter.IADD);
+            c.invoke(JvmClassWriter.INVOKEVIRTUAL, "Simulator", method, "(I)I");
+        }
+
+        private void store(int rs, int offset, int rt, String method) {
+            c.local(JvmClassWriter.ALOAD, 1);
+            read(rs);
+            c.push(offset);
+            c.op(JvmClassWriter.IADD);
+            read(rt);
+            c.invoke(JvmClassWriter.INVOKEVIRTUAL, "Simulator", method, "(II)V");
+        }
+
+        private static final int REGS = 2;
+        private static final int NEXT = REGS + 1 + 34;
+        private static final int COND = NEXT + 1;
+        private static final int PRODUCT = COND + 1;
+
+        private LinkedHashMap<Integer, Integer> myBlocks;
+        private JvmClassWriter myWriter;
+        private JvmClassWriter.Code c;
+        private HashMap<Integer, JvmClassWriter.Label> myLabels = new HashMap<Integer, JvmClassWriter.Label>();
+        private LinkedHashMap<Integer, JvmClassWriter.Label> myExits = new LinkedHashMap<Integer, JvmClassWriter.Label>();
+        private JvmClassWriter.Label myDynamicExit = null;
+        private boolean[] myUsed = new boolean[34];
+        private boolean[] myWritten = new boolean[34];
+    }
+
+    private int[] myText;
+    private boolean myDelaySlots;
+    private int myThreshold;
+    private boolean[] myLeader;     // a block starts here
+    private int[] myCounts;         // times the block was entered
+    private boolean[] myFailed;     // cannot be translated
+    private Simulator.Translated[] myTranslated;
+    private int myRegions = 0;
+    private int myInstructions = 0;
+    private long myEntries = 0;
+}
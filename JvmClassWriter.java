@@ -0,0 +1,421 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// **********************************************************************
+// JvmClassWriter class
+//
+// Writes JVM class files by hand, the JDK we build with has no class file
+// API yet.  It knows just enough for generated code: a constant pool that
+// shares its entries, fields, and methods whose bytecode is put together
+// with a Code builder.  Branches go to Labels, their offsets are filled in
+// once the label is placed.
+//
+// The class files are version 49 (Java 5).  For those the verifier works
+// out the types of the stack and the locals by itself, so there are no
+// stack map frames to compute.  The caller gives max stack and max
+// locals; a generous max stack costs nothing but a little memory.
+//
+// Public Methods
+// ==============
+// JvmClassWriter(name, superName, interfaces...)  -- names with slashes
+// field(access, name, descriptor)                 -- add a field
+// method(access, name, descriptor)                -- add a method, returns
+//                                                    the Code to fill in
+// toBytes()                                       -- the class file
+// **********************************************************************
+public class JvmClassWriter {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PRIVATE = 0x0002;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    // the opcodes generated code uses
+    public static final int NOP = 0x00, ACONST_NULL = 0x01, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11;
+    public static final int LDC = 0x12, LDC_W = 0x13, LDC2_W = 0x14;
+    public static final int ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19;
+    public static final int IALOAD = 0x2e, AALOAD = 0x32, BALOAD = 0x33;
+    public static final int ISTORE = 0x36, LSTORE = 0x37, ASTORE = 0x3a;
+    public static final int IASTORE = 0x4f, AASTORE = 0x53, BASTORE = 0x54;
+    public static final int POP = 0x57, POP2 = 0x58, DUP = 0x59, DUP_X1 = 0x5a, DUP2 = 0x5c, SWAP = 0x5f;
+    public static final int IADD = 0x60, LADD = 0x61, ISUB = 0x64, LSUB = 0x65, IMUL = 0x68, LMUL = 0x69;
+    public static final int IDIV = 0x6c, IREM = 0x70, INEG = 0x74;
+    public static final int ISHL = 0x78, ISHR = 0x7a, LSHR = 0x7b, IUSHR = 0x7c, LUSHR = 0x7d;
+    public static final int IAND = 0x7e, LAND = 0x7f, IOR = 0x80, IXOR = 0x82, IINC = 0x84;
+    public static final int I2L = 0x85, L2I = 0x88, LCMP = 0x94;
+    public static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+    public static final int IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2;
+    public static final int IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, IF_ACMPEQ = 0xa5, IF_ACMPNE = 0xa6;
+    public static final int GOTO = 0xa7, TABLESWITCH = 0xaa, LOOKUPSWITCH = 0xab;
+    public static final int IRETURN = 0xac, ARETURN = 0xb0, RETURN = 0xb1;
+    public static final int GETSTATIC = 0xb2, PUTSTATIC = 0xb3, GETFIELD = 0xb4, PUTFIELD = 0xb5;
+    public static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, INVOKEINTERFACE = 0xb9;
+    public static final int NEW = 0xbb, NEWARRAY = 0xbc, ANEWARRAY = 0xbd, ARRAYLENGTH = 0xbe, ATHROW = 0xbf;
+    public static final int CHECKCAST = 0xc0, IFNULL = 0xc6, IFNONNULL = 0xc7;
+    private static final int WIDE = 0xc4;
+
+    public static final int T_INT = 10; // NEWARRAY element type
+
+    // a place in the code that branches can go to
+    public static class Label {
+        private int position = -1;
+        private ArrayList<int[]> fixups = new ArrayList<int[]>(); // {branch opcode position, offset position}
+    }
+
+    // **********************************************************************
+    // Code
+    //    the bytecode of one method.  load/store/push pick the short form of
+    //    the instruction where there is one.
+    // **********************************************************************
+    public class Code {
+        public void op(int opcode) {
+            myCode.write(opcode);
+        }
+
+        public void push(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value >= -128 && value <= 127) {
+                op(BIPUSH);
+                myCode.write(value);
+            } else if (value >= -32768 && value <= 32767) {
+                op(SIPUSH);
+                writeShort(myCode, value);
+            } else {
+                constant(integer(value));
+            }
+        }
+
+        public void pushLong(long value) {
+            op(LDC2_W);
+            writeShort(myCode, longConstant(value));
+        }
+
+        public void pushString(String value) {
+            constant(string(value));
+        }
+
+        // ILOAD, LLOAD, ALOAD, ISTORE, LSTORE, ASTORE
+        public void local(int opcode, int slot) {
+            if (slot > 255) {
+                op(WIDE);
+                op(opcode);
+                writeShort(myCode, slot);
+            } else {
+                op(opcode);
+                myCode.write(slot);
+            }
+            myMaxLocals = Math.max(myMaxLocals, slot + (opcode == LLOAD || opcode == LSTORE ? 2 : 1));
+        }
+
+        public void iinc(int slot, int delta) {
+            if (slot > 255 || delta < -128 || delta > 127) {
+                op(WIDE);
+                op(IINC);
+                writeShort(myCode, slot);
+                writeShort(myCode, delta);
+            } else {
+                op(IINC);
+                myCode.write(slot);
+                myCode.write(delta);
+            }
+            myMaxLocals = Math.max(myMaxLocals, slot + 1);
+        }
+
+        // GETSTATIC, PUTSTATIC, GETFIELD, PUTFIELD
+        public void field(int opcode, String owner, String name, String descriptor) {
+            op(opcode);
+            writeShort(myCode, member(9, owner, name, descriptor));
+        }
+
+        // INVOKEVIRTUAL, INVOKESPECIAL, INVOKESTATIC, INVOKEINTERFACE
+        public void invoke(int opcode, String owner, String name, String descriptor) {
+            op(opcode);
+            writeShort(myCode, member(opcode == INVOKEINTERFACE ? 11 : 10, owner, name, descriptor));
+            if (opcode == INVOKEINTERFACE) {
+                myCode.write(argumentWords(descriptor) + 1);
+                myCode.write(0);
+            }
+        }
+
+        // NEW, ANEWARRAY, CHECKCAST
+        public void type(int opcode, String className) {
+            op(opcode);
+            writeShort(myCode, classRef(className));
+        }
+
+        public void newIntArray() {
+            op(NEWARRAY);
+            myCode.write(T_INT);
+        }
+
+        // the IF*, IF_ICMP*, GOTO branches
+        public void jump(int opcode, Label target) {
+            int at = myCode.size();
+            op(opcode);
+            target.fixups.add(new int[] { at, myCode.size() });
+            writeShort(myCode, 0);
+        }
+
+        public Label newLabel() {
+            Label label = new Label();
+            myLabels.add(label);
+            return label;
+        }
+
+        public void mark(Label label) {
+            label.position = myCode.size();
+        }
+
+        // TABLESWITCH over low..low+targets.length-1
+        public void tableSwitch(int low, Label fallback, Label[] targets) {
+            int at = myCode.size();
+            op(TABLESWITCH);
+            while (myCode.size() % 4 != 0) myCode.write(0);
+            mySwitchFixups.add(new Object[] { at, myCode.size(), fallback });
+            writeInt(myCode, 0);
+            writeInt(myCode, low);
+            writeInt(myCode, low + targets.length - 1);
+            for (Label target : targets) {
+                mySwitchFixups.add(new Object[] { at, myCode.size(), target });
+                writeInt(myCode, 0);
+            }
+        }
+
+        public void maxStack(int words) {
+            myMaxStack = Math.max(myMaxStack, words);
+        }
+
+        public void maxLocals(int words) {
+            myMaxLocals = Math.max(myMaxLocals, words);
+        }
+
+        // bytes of code so far, a method may have at most 65535
+        public int size() {
+            return myCode.size();
+        }
+
+        private void constant(int index) {
+            if (index < 256) {
+                op(LDC);
+                myCode.write(index);
+            } else {
+                op(LDC_W);
+                writeShort(myCode, index);
+            }
+        }
+
+        private byte[] bytes() {
+            byte[] code = myCode.toByteArray();
+            for (Label label : myLabels) {
+                for (int[] fixup : label.fixups) {
+                    if (label.position < 0) throw new IllegalStateException("label never placed");
+                    int offset = label.position - fixup[0];
+                    if (offset < -32768 || offset > 32767) throw new IllegalStateException("branch out of range");
+                    code[fixup[1]] = (byte)(offset >> 8);
+                    code[fixup[1] + 1] = (byte)offset;
+                }
+            }
+            for (Object[] fixup : mySwitchFixups) {
+                Label label = (Label)fixup[2];
+                if (label.position < 0) throw new IllegalStateException("label never placed");
+                int offset = label.position - (Integer)fixup[0];
+                int pos = (Integer)fixup[1];
+                for (int i = 0; i < 4; i++) code[pos + i] = (byte)(offset >> (24 - 8 * i));
+            }
+            return code;
+        }
+
+        private ByteArrayOutputStream myCode = new ByteArrayOutputStream();
+        private ArrayList<Label> myLabels = new ArrayList<Label>();
+        private ArrayList<Object[]> mySwitchFixups = new ArrayList<Object[]>();
+        private int myMaxStack = 0;
+        private int myMaxLocals = 0;
+    }
+
+    public JvmClassWriter(String name, String superName, String... interfaces) {
+        myThis = classRef(name);
+        mySuper = classRef(superName);
+        for (String i : interfaces) myInterfaces.add(classRef(i));
+    }
+
+    public void field(int access, String name, String descriptor) {
+        writeShort(myFields, access);
+        writeShort(myFields, utf8(name));
+        writeShort(myFields, utf8(descriptor));
+        writeShort(myFields, 0);
+        myFieldCount++;
+    }
+
+    public Code method(int access, String name, String descriptor) {
+        Code code = new Code();
+        // the arguments are locals too, this included
+        code.maxLocals(argumentWords(descriptor) + ((access & ACC_STATIC) != 0 ? 0 : 1));
+        myMethods.add(new Object[] { access, utf8(name), utf8(descriptor), code });
+        utf8("Code");
+        return code;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, 0xcafebabe);
+        writeShort(out, 0);      // minor
+        writeShort(out, 49);     // major: Java 5, no stack maps
+        writeShort(out, myPoolCount);
+        out.write(myPool.toByteArray(), 0, myPool.size());
+        writeShort(out, ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        writeShort(out, myThis);
+        writeShort(out, mySuper);
+        writeShort(out, myInterfaces.size());
+        for (int i : myInterfaces) writeShort(out, i);
+        writeShort(out, myFieldCount);
+        out.write(myFields.toByteArray(), 0, myFields.size());
+        writeShort(out, myMethods.size());
+        int codeName = utf8("Code");
+        for (Object[] m : myMethods) {
+            Code code = (Code)m[3];
+            byte[] bytes = code.bytes();
+            if (bytes.length > 65535) throw new IllegalStateException("method too large");
+            writeShort(out, (Integer)m[0]);
+            writeShort(out, (Integer)m[1]);
+            writeShort(out, (Integer)m[2]);
+            writeShort(out, 1);  // attributes: Code
+            writeShort(out, codeName);
+            writeInt(out, 12 + bytes.length);
+            writeShort(out, code.myMaxStack);
+            writeShort(out, code.myMaxLocals);
+            writeInt(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+            writeShort(out, 0);  // exception table
+            writeShort(out, 0);  // attributes
+        }
+        writeShort(out, 0);      // class attributes
+        return out.toByteArray();
+    }
+
+    // **********************************************************************
+    // constant pool, every entry is only added once
+    // **********************************************************************
+    public int utf8(String s) {
+        Integer index = myIndex.get("U" + s);
+        if (index != null) return index;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(bytes).writeUTF(s);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        myPool.write(1);
+        myPool.write(bytes.toByteArray(), 0, bytes.size());
+        return add("U" + s, 1);
+    }
+
+    public int classRef(String name) {
+        Integer index = myIndex.get("C" + name);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        myPool.write(7);
+        writeShort(myPool, nameIndex);
+        return add("C" + name, 1);
+    }
+
+    public int string(String s) {
+        Integer index = myIndex.get("S" + s);
+        if (index != null) return index;
+        int value = utf8(s);
+        myPool.write(8);
+        writeShort(myPool, value);
+        return add("S" + s, 1);
+    }
+
+    public int integer(int value) {
+        Integer index = myIndex.get("I" + value);
+        if (index != null) return index;
+        myPool.write(3);
+        writeInt(myPool, value);
+        return add("I" + value, 1);
+    }
+
+    public int longConstant(long value) {
+        Integer index = myIndex.get("J" + value);
+        if (index != null) return index;
+        myPool.write(5);
+        writeInt(myPool, (int)(value >>> 32));
+        writeInt(myPool, (int)value);
+        return add("J" + value, 2);
+    }
+
+    // tag 9 field, 10 method, 11 interface method
+    private int member(int tag, String owner, String name, String descriptor) {
+        String key = "M" + tag + owner + "." + name + ":" + descriptor;
+        Integer index = myIndex.get(key);
+        if (index != null) return index;
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        myPool.write(tag);
+        writeShort(myPool, ownerIndex);
+        writeShort(myPool, nameAndType);
+        return add(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + ":" + descriptor;
+        Integer index = myIndex.get(key);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        myPool.write(12);
+        writeShort(myPool, nameIndex);
+        writeShort(myPool, descriptorIndex);
+        return add(key, 1);
+    }
+
+    private int add(String key, int slots) {
+        int index = myPoolCount;
+        myIndex.put(key, index);
+        myPoolCount += slots;
+        return index;
+    }
+
+    // words the arguments of a method descriptor take (long and double take two)
+    private static int argumentWords(String descriptor) {
+        int words = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                words += 2;
+                i++;
+            } else {
+                while (descriptor.charAt(i) == '[') i++;
+                if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+                words++;
+                i++;
+            }
+        }
+        return words;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >> 24);
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private ByteArrayOutputStream myPool = new ByteArrayOutputStream();
+    private int myPoolCount = 1; // entry 0 is not used
+    private HashMap<String, Integer> myIndex = new HashMap<String, Integer>();
+    private int myThis;
+    private int mySuper;
+    private ArrayList<Integer> myInterfaces = new ArrayList<Integer>();
+    private ByteArrayOutputStream myFields = new ByteArrayOutputStream();
+    private int myFieldCount = 0;
+    private ArrayList<Object[]> myMethods = new ArrayList<Object[]>();
+}
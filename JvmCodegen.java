@@ -0,0 +1,481 @@
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Supplier;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+// **********************************************************************
+// JvmCodegen class
+//
+// Turns a Simple program into a JVM class, so HotSpot runs it (P5 -jvm,
+// -jvm-run, -jvm-benchmark).  It starts from the Bytecode of the program,
+// which already has registers for the locals and temps and the branches
+// worked out: a method becomes a static method with the registers as its
+// locals (the params first, like the JVM passes them), a static field
+// becomes a static int field, a print System.out.println.  Everything is
+// an int like in the generated code, Strings too: they index the String[]
+// $strings the class fills in when it is loaded.
+//
+// The class is self-contained, java -cp . <name> runs it when it is
+// written as a .class, java -jar when it is written as a .jar.
+//
+// Public Methods
+// ==============
+// JvmCodegen(program, className)
+// toBytes()          -- the class file
+// write(file)        -- as <name>.class or, for a .jar, as a jar with a manifest
+// load()             -- defines the class in this JVM, run(out) runs it
+// benchmark(...)     -- the class against the machine code in the simulator
+// **********************************************************************
+public class JvmCodegen {
+    private static final String STRINGS = "$strings";
+    private static final int MAX_STACK = 6;
+
+    public JvmCodegen(Bytecode program, String className) {
+        myProgram = program;
+        myClassName = className;
+    }
+
+    public byte[] toBytes() {
+        JvmClassWriter cw = new JvmClassWriter(myClassName, "java/lang/Object");
+        for (String field : myProgram.fields) {
+            cw.field(JvmClassWriter.ACC_PRIVATE | JvmClassWriter.ACC_STATIC, field, "I");
+        }
+        cw.field(JvmClassWriter.ACC_PRIVATE | JvmClassWriter.ACC_STATIC | JvmClassWriter.ACC_FINAL,
+                 STRINGS, "[Ljava/lang/String;");
+        strings(cw);
+        reset(cw);
+        entryPoint(cw);
+        divide(cw);
+        power(cw);
+        int[] ends = methodEnds();
+        for (int m = 0; m < myProgram.names.length; m++) {
+            method(cw, m, ends[m]);
+        }
+        return cw.toBytes();
+    }
+
+    // a name ending in .jar gets a jar that runs main, anything else the class file
+    public void write(String fileName) throws IOException {
+        try (OutputStream out = new FileOutputStream(fileName)) {
+            if (!fileName.endsWith(".jar")) {
+                out.write(toBytes());
+                return;
+            }
+            Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, myClassName);
+            try (JarOutputStream jar = new JarOutputStream(out, manifest)) {
+                jar.putNextEntry(new JarEntry(myClassName + ".class"));
+                jar.write(toBytes());
+                jar.closeEntry();
+            }
+        }
+    }
+
+    // **********************************************************************
+    // Loaded
+    //    the class defined in this JVM.  run() sets the static fields back
+    //    to 0 first, so it can be run again and again.  The class prints to
+    //    System.out, run(out) makes that out while it runs (see printingTo).
+    //    A program recursing deeper than the stack of run(out) is a stack
+    //    overflow (IllegalStateException) like in the Interpreter
+    // **********************************************************************
+    public static final class Loaded {
+        private Loaded(MethodHandle reset, MethodHandle main) {
+            myReset = reset;
+            myMain = main;
+        }
+
+        public void run() {
+            try {
+                myReset.invokeExact();
+                int ignored = (int)myMain.invokeExact();
+            } catch (RuntimeException | Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        // on a thread with the Interpreter's large stack, the JVM's own stack holds a few
+        // thousand calls of a method
+        public void run(PrintStream out) {
+            printingTo(out, () -> {
+                Interpreter.onLargeStack("jvm class", this::run);
+                return null;
+            });
+        }
+
+        private final MethodHandle myReset;
+        private final MethodHandle myMain;
+    }
+
+    public Loaded load() {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(toBytes(), true);
+            Class<?> c = lookup.lookupClass();
+            return new Loaded(lookup.findStatic(c, "$reset", MethodType.methodType(void.class)),
+                              lookup.findStatic(c, myProgram.names[myProgram.main], MethodType.methodType(int.class)));
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            throw new IllegalStateException("the class for the program cannot be loaded: " + ex);
+        }
+    }
+
+    // **********************************************************************
+    // benchmark
+    //    how long a run of the program takes as a JVM class and as machine
+    //    code in the simulator (what spim would run), after warming up both
+    // **********************************************************************
+    public static void benchmark(Bytecode program, MipsEncoder image, boolean delaySlots, PrintStream report) {
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        Loaded loaded = new JvmCodegen(program, "SimpleProgram").load();
+        double simulator = time(() -> {
+            Simulator sim = new Simulator(image, delaySlots);
+            return () -> sim.run(discard);
+        });
+        double jit = time(() -> {
+            Simulator sim = new Simulator(image, delaySlots);
+            sim.useJit(Jit.THRESHOLD);
+            return () -> sim.run(discard);
+        });
+        double jvm = printingTo(discard, () -> time(() -> loaded::run));
+        report.printf("Benchmark: %-22s %10.1f microseconds per run%n", "simulator", simulator / 1000);
+        report.printf("Benchmark: %-22s %10.1f microseconds per run%n", "simulator with jit", jit / 1000);
+        report.printf("Benchmark: %-22s %10.1f microseconds per run, %.1f times as fast as the simulator%n",
+                      "jvm class", jvm / 1000, simulator / jvm);
+    }
+
+    // nanoseconds per run, not counting what it takes to get a run ready
+    private static double time(Supplier<Runnable> prepare) {
+        long nanos = 0;
+        int rounds = 0;
+        for (int round = 0; round < Simulator.WARMUP || nanos < Simulator.BENCHMARK_NANOS; round++) {
+            Runnable run = prepare.get();
+            long start = System.nanoTime();
+            run.run();
+            if (round >= Simulator.WARMUP) {
+                nanos += System.nanoTime() - start;
+                rounds++;
+            }
+        }
+        return (double)nanos / rounds;
+    }
+
+    // what get returns, System.out is out while it runs.  Only the classes made here
+    // print to System.out in a compile, the compiler prints to the streams of its
+    // CompileContext; they get it one at a time, and it is put back afterwards
+    private static <T> T printingTo(PrintStream out, Supplier<T> get) {
+        synchronized (PRINTING) {
+            PrintStream saved = System.out;
+            System.setOut(out);
+            try {
+                return get.get();
+            } finally {
+                System.out.flush();
+                System.setOut(saved);
+            }
+        }
+    }
+
+    private static final Object PRINTING = new Object();
+
+    // **********************************************************************
+    // the methods every class has
+    // **********************************************************************
+
+    // <clinit> fills in $strings
+    private void strings(JvmClassWriter cw) {
+        JvmClassWriter.Code code = cw.method(JvmClassWriter.ACC_STATIC, "<clinit>", "()V");
+        code.push(myProgram.strings.length);
+        code.type(JvmClassWriter.ANEWARRAY, "java/lang/String");
+        for (int i = 0; i < myProgram.strings.length; i++) {
+            code.op(JvmClassWriter.DUP);
+            code.push(i);
+            code.pushString(myProgram.strings[i]);
+            code.op(JvmClassWriter.AASTORE);
+        }
+        code.field(JvmClassWriter.PUTSTATIC, myClassName, STRINGS, "[Ljava/lang/String;");
+        code.op(JvmClassWriter.RETURN);
+        code.maxStack(4);
+    }
+
+    private void reset(JvmClassWriter cw) {
+        JvmClassWriter.Code code = cw.method(JvmClassWriter.ACC_PUBLIC | JvmClassWriter.ACC_STATIC, "$reset", "()V");
+        for (String field : myProgram.fields) {
+            code.push(0);
+            code.field(JvmClassWriter.PUTSTATIC, myClassName, field, "I");
+        }
+        code.op(JvmClassWriter.RETURN);
+        code.maxStack(1);
+    }
+
+    // main(String[]) calls the Simple main, which is main()I
+    private void entryPoint(JvmClassWriter cw) {
+        JvmClassWriter.Code code = cw.method(JvmClassWriter.ACC_PUBLIC | JvmClassWriter.ACC_STATIC,
+                                             "main", "([Ljava/lang/String;)V");
+        code.invoke(JvmClassWriter.INVOKESTATIC, myClassName, myProgram.names[myProgram.main], "()I");
+        code.op(JvmClassWriter.POP);
+        code.op(JvmClassWriter.RETURN);
+        code.maxStack(1);
+    }
+
+    // like the generated code, a division by zero gives 0
+    private void divide(JvmClassWriter cw) {
+        JvmClassWriter.Code code = cw.method(JvmClassWriter.ACC_PRIVATE | JvmClassWriter.ACC_STATIC, "$divide", "(II)I");
+        JvmClassWriter.Label divide = code.newLabel();
+        code.local(JvmClassWriter.ILOAD, 1);
+        code.jump(JvmClassWriter.IFNE, divide);
+        code.push(0);
+        code.op(JvmClassWriter.IRETURN);
+        code.mark(divide);
+        code.local(JvmClassWriter.ILOAD, 0);
+        code.local(JvmClassWriter.ILOAD, 1);
+        code.op(JvmClassWriter.IDIV);
+        code.op(JvmClassWriter.IRETURN);
+        code.maxStack(2);
+    }
+
+    // Interpreter.power: wraps around, a negative exponent gives 1 / base ** n
+    private void power(JvmClassWriter cw) {
+        JvmClassWriter.Code code = cw.method(JvmClassWriter.ACC_PRIVATE | JvmClassWriter.ACC_STATIC, "$power", "(II)I");
+        JvmClassWriter.Label positive = code.newLabel(), notOne = code.newLabel(), zero = code.newLabel();
+        JvmClassWriter.Label odd = code.newLabel(), loop = code.newLabel(), even = code.newLabel();
+        JvmClassWriter.Label done = code.newLabel();
+        code.local(JvmClassWriter.ILOAD, 1);
+        code.jump(JvmClassWriter.IFGE, positive);
+        code.local(JvmClassWriter.ILOAD, 0);
+        code.push(1);
+        code.jump(JvmClassWriter.IF_ICMPNE, notOne);
+        code.push(1);
+        code.op(JvmClassWriter.IRETURN);
+        code.mark(notOne);
+        code.local(JvmClassWriter.ILOAD, 0);
+        code.push(-1);
+        code.jump(JvmClassWriter.IF_ICMPNE, zero);
+        code.local(JvmClassWriter.ILOAD, 1);
+        code.push(1);
+        code.op(JvmClassWriter.IAND);
+        code.jump(JvmClassWriter.IFNE, odd);
+        code.push(1);
+        code.op(JvmClassWriter.IRETURN);
+        code.mark(odd);
+        code.push(-1);
+        code.op(JvmClassWriter.IRETURN);
+        code.mark(zero);
+        code.push(0);
+        code.op(JvmClassWriter.IRETURN);
+        code.mark(positive);
+        code.push(1);
+        code.local(JvmClassWriter.ISTORE, 2);
+        code.mark(loop);
+        code.local(JvmClassWriter.ILOAD, 1);
+        code.jump(JvmClassWriter.IFLE, done);
+        code.local(JvmClassWriter.ILOAD, 1);
+        code.push(1);
+        code.op(JvmClassWriter.IAND);
+        code.jump(JvmClassWriter.IFEQ, even);
+        code.local(JvmClassWriter.ILOAD, 2);
+        code.local(JvmClassWriter.ILOAD, 0);
+        code.op(JvmClassWriter.IMUL);
+        code.local(JvmClassWriter.ISTORE, 2);
+        code.mark(even);
+        code.local(JvmClassWriter.ILOAD, 0);
+        code.local(JvmClassWriter.ILOAD, 0);
+        code.op(JvmClassWriter.IMUL);
+        code.local(JvmClassWriter.ISTORE, 0);
+        code.local(JvmClassWriter.ILOAD, 1);
+        code.push(1);
+        code.op(JvmClassWriter.IUSHR);
+        code.local(JvmClassWriter.ISTORE, 1);
+        code.jump(JvmClassWriter.GOTO, loop);
+        code.mark(done);
+        code.local(JvmClassWriter.ILOAD, 2);
+        code.op(JvmClassWriter.IRETURN);
+        code.maxStack(2);
+    }
+
+    // **********************************************************************
+    // the Simple methods
+    // **********************************************************************
+
+    // the methods are one after the other in the code, each ends where the next one starts
+    private int[] methodEnds() {
+        int[] sorted = myProgram.entries.clone();
+        Arrays.sort(sorted);
+        int[] ends = new int[sorted.length];
+        for (int m = 0; m < ends.length; m++) {
+            int i = Arrays.binarySearch(sorted, myProgram.entries[m]);
+            ends[m] = i + 1 < sorted.length ? sorted[i + 1] : myProgram.code.length;
+        }
+        return ends;
+    }
+
+    private static String descriptor(int params) {
+        StringBuilder d = new StringBuilder("(");
+        for (int i = 0; i < params; i++) d.append('I');
+        return d.append(")I").toString();
+    }
+
+    private void method(JvmClassWriter cw, int m, int end) {
+        int[] bc = myProgram.code;
+        JvmClassWriter.Code code = cw.method(JvmClassWriter.ACC_PRIVATE | JvmClassWriter.ACC_STATIC,
+                                             myProgram.names[m], descriptor(myProgram.params[m]));
+        code.maxStack(MAX_STACK);
+        code.maxLocals(myProgram.registers[m]);
+
+        // a label for everything a jump goes to
+        HashMap<Integer, JvmClassWriter.Label> labels = new HashMap<Integer, JvmClassWriter.Label>();
+        for (int pc = myProgram.entries[m]; pc < end; pc += length(bc[pc])) {
+            if (bc[pc] >= Bytecode.JUMP && bc[pc] <= Bytecode.BLE) {
+                labels.putIfAbsent(bc[pc + length(bc[pc]) - 1], code.newLabel());
+            }
+        }
+
+        // the verifier wants every local written before it is read, the VM starts them at 0 too
+        for (int r = myProgram.params[m]; r < myProgram.registers[m]; r++) {
+            code.push(0);
+            code.local(JvmClassWriter.ISTORE, r);
+        }
+
+        for (int pc = myProgram.entries[m]; pc < end; pc += length(bc[pc])) {
+            JvmClassWriter.Label label = labels.get(pc);
+            if (label != null) code.mark(label);
+            int op = bc[pc];
+            switch (op) {
+            case Bytecode.CONST:
+                code.push(bc[pc + 2]);
+                code.local(JvmClassWriter.ISTORE, bc[pc + 1]);
+                break;
+            case Bytecode.MOVE:
+                code.local(JvmClassWriter.ILOAD, bc[pc + 2]);
+                code.local(JvmClassWriter.ISTORE, bc[pc + 1]);
+                break;
+            case Bytecode.ADD: case Bytecode.SUB: case Bytecode.MUL: case Bytecode.DIV: case Bytecode.POW:
+                code.local(JvmClassWriter.ILOAD, bc[pc + 2]);
+                code.local(JvmClassWriter.ILOAD, bc[pc + 3]);
+                if (op == Bytecode.ADD) code.op(JvmClassWriter.IADD);
+                if (op == Bytecode.SUB) code.op(JvmClassWriter.ISUB);
+                if (op == Bytecode.MUL) code.op(JvmClassWriter.IMUL);
+                if (op == Bytecode.DIV) code.invoke(JvmClassWriter.INVOKESTATIC, myClassName, "$divide", "(II)I");
+                if (op == Bytecode.POW) code.invoke(JvmClassWriter.INVOKESTATIC, myClassName, "$power", "(II)I");
+                code.local(JvmClassWriter.ISTORE, bc[pc + 1]);
+                break;
+            case Bytecode.EQ: case Bytecode.NE: case Bytecode.LT: case Bytecode.GT: case Bytecode.LE: case Bytecode.GE:
+                code.local(JvmClassWriter.ILOAD, bc[pc + 2]);
+                code.local(JvmClassWriter.ILOAD, bc[pc + 3]);
+                bool(code, compare(Bytecode.branch(op, true)), bc[pc + 1]);
+                break;
+            case Bytecode.ADDK:
+                if (bc[pc + 1] == bc[pc + 2] && bc[pc + 3] >= -32768 && bc[pc + 3] <= 32767) {
+                    code.iinc(bc[pc + 1], bc[pc + 3]);
+                    break;
+                }
+                code.local(JvmClassWriter.ILOAD, bc[pc + 2]);
+                code.push(bc[pc + 3]);
+                code.op(JvmClassWriter.IADD);
+                code.local(JvmClassWriter.ISTORE, bc[pc + 1]);
+                break;
+            case Bytecode.NEG:
+                code.local(JvmClassWriter.ILOAD, bc[pc + 2]);
+                code.op(JvmClassWriter.INEG);
+                code.local(JvmClassWriter.ISTORE, bc[pc + 1]);
+                break;
+            case Bytecode.NOT:
+                code.local(JvmClassWriter.ILOAD, bc[pc + 2]);
+                code.push(ConstantTable.TRUE);
+                bool(code, JvmClassWriter.IF_ICMPNE, bc[pc + 1]);
+                break;
+            case Bytecode.LOADG:
+                code.field(JvmClassWriter.GETSTATIC, myClassName, myProgram.fields[bc[pc + 2]], "I");
+                code.local(JvmClassWriter.ISTORE, bc[pc + 1]);
+                break;
+            case Bytecode.STOREG:
+                code.local(JvmClassWriter.ILOAD, bc[pc + 2]);
+                code.field(JvmClassWriter.PUTSTATIC, myClassName, myProgram.fields[bc[pc + 1]], "I");
+                break;
+            case Bytecode.PRINT:
+                code.field(JvmClassWriter.GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+                code.local(JvmClassWriter.ILOAD, bc[pc + 1]);
+                code.invoke(JvmClassWriter.INVOKEVIRTUAL, "java/io/PrintStream", "println", "(I)V");
+                break;
+            case Bytecode.PRINTS:
+                code.field(JvmClassWriter.GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+                code.field(JvmClassWriter.GETSTATIC, myClassName, STRINGS, "[Ljava/lang/String;");
+                code.local(JvmClassWriter.ILOAD, bc[pc + 1]);
+                code.op(JvmClassWriter.AALOAD);
+                code.invoke(JvmClassWriter.INVOKEVIRTUAL, "java/io/PrintStream", "println", "(Ljava/lang/String;)V");
+                break;
+            case Bytecode.JUMP:
+                code.jump(JvmClassWriter.GOTO, labels.get(bc[pc + 1]));
+                break;
+            case Bytecode.JUMPT: case Bytecode.JUMPF:
+                code.local(JvmClassWriter.ILOAD, bc[pc + 1]);
+                code.push(ConstantTable.TRUE);
+                code.jump(op == Bytecode.JUMPT ? JvmClassWriter.IF_ICMPEQ : JvmClassWriter.IF_ICMPNE, labels.get(bc[pc + 2]));
+                break;
+            case Bytecode.BEQ: case Bytecode.BNE: case Bytecode.BLT: case Bytecode.BGE: case Bytecode.BGT: case Bytecode.BLE:
+                code.local(JvmClassWriter.ILOAD, bc[pc + 1]);
+                code.local(JvmClassWriter.ILOAD, bc[pc + 2]);
+                code.jump(compare(op), labels.get(bc[pc + 3]));
+                break;
+            case Bytecode.CALL: {
+                int callee = bc[pc + 1];
+                for (int i = 0; i < bc[pc + 2]; i++) code.local(JvmClassWriter.ILOAD, bc[pc + 3] + i);
+                code.invoke(JvmClassWriter.INVOKESTATIC, myClassName, myProgram.names[callee],
+                            descriptor(myProgram.params[callee]));
+                code.local(JvmClassWriter.ISTORE, bc[pc + 4]);
+                code.maxStack(bc[pc + 2] + 1);
+                break;
+            }
+            case Bytecode.RET:
+                code.local(JvmClassWriter.ILOAD, bc[pc + 1]);
+                code.op(JvmClassWriter.IRETURN);
+                break;
+            case Bytecode.RET0:
+                code.push(0);
+                code.op(JvmClassWriter.IRETURN);
+                break;
+            default:
+                throw new IllegalStateException("bad opcode " + op + " at " + pc);
+            }
+        }
+    }
+
+    private static int length(int op) {
+        return 1 + Bytecode.operandKinds(op).length;
+    }
+
+    // the IF_ICMP for a compare and branch
+    private static int compare(int branch) {
+        switch (branch) {
+        case Bytecode.BEQ: return JvmClassWriter.IF_ICMPEQ;
+        case Bytecode.BNE: return JvmClassWriter.IF_ICMPNE;
+        case Bytecode.BLT: return JvmClassWriter.IF_ICMPLT;
+        case Bytecode.BGE: return JvmClassWriter.IF_ICMPGE;
+        case Bytecode.BGT: return JvmClassWriter.IF_ICMPGT;
+        default: return JvmClassWriter.IF_ICMPLE;
+        }
+    }
+
+    // TRUE into register if the IF_ICMP branch on the two ints on the stack is taken, FALSE if not
+    private static void bool(JvmClassWriter.Code code, int branch, int register) {
+        JvmClassWriter.Label yes = code.newLabel(), done = code.newLabel();
+        code.jump(branch, yes);
+        code.push(ConstantTable.FALSE);
+        code.jump(JvmClassWriter.GOTO, done);
+        code.mark(yes);
+        code.push(ConstantTable.TRUE);
+        code.mark(done);
+        code.local(JvmClassWriter.ISTORE, register);
+    }
+
+    private Bytecode myProgram;
+    private String myClassName;
+}
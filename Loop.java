@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// **********************************************************************
+// Loop class
+//
+// Book keeping for loop invariant code motion.  Every while loop of a
+// method gets a Loop object, the method body itself gets one too (the root,
+// which never hoists anything).  A Loop knows which variables are assigned
+// somewhere in the loop and whether the loop calls a method, and it collects
+// the temps that are computed once in its preheader instead of on every
+// iteration.
+//
+// It also knows the loop's basic induction variable, if there is one: a
+// local that is assigned exactly once per iteration, by i = i + c.  Products
+// i * k with an invariant k are strength reduced to derived induction
+// variables, temps that start out as i * k and get c * k added whenever i
+// is incremented.
+//
+// Variables are identified by IdNode.varKey(), i.e. by their frame slot
+// (locals) or their label (globals).  Sibling blocks share slots, so two
+// different variables can have the same key - that only makes the analysis
+// more careful than necessary.
+// **********************************************************************
+public class Loop {
+
+    // a value computed before the loop and kept in a hidden frame slot: either loop
+    // invariant, or a derived induction variable that is stepped along with i.
+    // Value numbering (ValueTable) keeps its saved values in Temps too, without an owner
+    public static class Temp {
+        ExpNode exp;
+        int offset;
+        Loop owner;
+        ExpNode step;    // derived induction variables only: added after every increment
+
+        Temp(ExpNode exp, int offset, Loop owner) {
+            this.exp = exp;
+            this.offset = offset;
+            this.owner = owner;
+        }
+    }
+
+    // root: the method body
+    public Loop(SymbolTable frame) {
+        myFrame = frame;
+        myEnclosing = null;
+    }
+
+    // assigned maps IdNode.varKey() to the number of assignments in the loop
+    public Loop(Loop enclosing, HashMap<String, Integer> assigned, boolean calls) {
+        myFrame = enclosing.myFrame;
+        myEnclosing = enclosing;
+        myAssigned = assigned;
+        myCalls = calls;
+    }
+
+    // only real loops have a preheader to hoist into
+    public boolean canHoist() {
+        return myEnclosing != null;
+    }
+
+    // locals only change by assignment, globals may also be changed by any method the loop calls
+    public boolean isInvariant(IdNode id) {
+        if (!canHoist()) return false;
+        if (myAssigned.containsKey(id.varKey())) return false;
+        return id.isLocal() || !myCalls;
+    }
+
+    // true if the temp is computed before this loop starts, so it cannot change inside it
+    public boolean computedOutside(Temp temp) {
+        if (temp.step != null) return false; // induction variables change on every iteration
+        for (Loop loop = this; loop != null; loop = loop.myEnclosing) {
+            if (temp.owner == loop) return true;
+        }
+        return false;
+    }
+
+    public Temp newTemp(ExpNode exp) {
+        Temp temp = new Temp(exp, myFrame.newTemp(), this);
+        myTemps.add(temp);
+        return temp;
+    }
+
+    public ArrayList<Temp> temps() {
+        return myTemps;
+    }
+
+    // **********************************************************************
+    // induction variables
+    // **********************************************************************
+    public void setInduction(AssignStmtNode increment, String key, int step) {
+        myInductionKey = key;
+        myInductionStep = step;
+        increment.setInductionUpdates(myDerived);
+    }
+
+    public boolean isInduction(ExpNode exp) {
+        return myInductionKey != null && exp instanceof IdNode
+            && ((IdNode)exp).varKey().equals(myInductionKey);
+    }
+
+    public int inductionStep() {
+        return myInductionStep;
+    }
+
+    // returns the derived induction variable for product = i * factor (factor is invariant),
+    // the same factor always gets the same one
+    public Temp derived(ExpNode product, ExpNode factor) {
+        String name = factorName(factor);
+        Temp temp = myDerivedByFactor.get(name);
+        if (temp != null) return temp;
+        ExpNode step;
+        if (factor instanceof IntLitNode) {
+            step = new IntLitNode(0, 0, myInductionStep * ((IntLitNode)factor).getValue());
+        } else {
+            step = new TempExpNode(newTemp(new TimesNode(new IntLitNode(0, 0, myInductionStep), factor)));
+        }
+        temp = newTemp(product);
+        temp.step = step;
+        myDerived.add(temp);
+        myDerivedByFactor.put(name, temp);
+        return temp;
+    }
+
+    // factors with the same name have the same value in the loop
+    private static String factorName(ExpNode factor) {
+        if (factor instanceof IntLitNode) return "lit " + ((IntLitNode)factor).getValue();
+        if (factor instanceof IdNode) return ((IdNode)factor).varKey();
+        if (factor instanceof TempExpNode) return "temp " + ((TempExpNode)factor).getTemp().offset;
+        return "exp " + System.identityHashCode(factor);
+    }
+
+    public boolean hasNestedLoop() {
+        return myHasNestedLoop;
+    }
+
+    // **********************************************************************
+    // adopt
+    //    called when a nested loop is done: its temps are computed on every
+    //    iteration of this loop, so the ones that are invariant here as well
+    //    move up into this preheader.  The others may still have invariant
+    //    parts.  Temps are visited in the order they are computed, so when a
+    //    temp uses another one, that one has been moved already if it can be.
+    // **********************************************************************
+    public void adopt(Loop inner) {
+        myHasNestedLoop = true;
+        if (!canHoist()) return;
+        for (Temp temp : new ArrayList<Temp>(inner.myTemps)) {
+            if (temp.exp.isInvariant(this)) {
+                inner.myTemps.remove(temp);
+                temp.owner = this;
+                myTemps.add(temp);
+            } else {
+                temp.exp = temp.exp.hoist(this);
+            }
+        }
+    }
+
+    private SymbolTable myFrame;
+    private Loop myEnclosing;
+    private HashMap<String, Integer> myAssigned;
+    private boolean myCalls;
+    private ArrayList<Temp> myTemps = new ArrayList<Temp>();
+    private boolean myHasNestedLoop = false;
+    // basic induction variable
+    private String myInductionKey;
+    private int myInductionStep;
+    private ArrayList<Temp> myDerived = new ArrayList<Temp>();
+    private HashMap<String, Temp> myDerivedByFactor = new HashMap<String, Temp>();
+}
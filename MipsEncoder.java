@@ -0,0 +1,636 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// **********************************************************************
+// MipsEncoder class
+//
+// Binary backend: Codegen hands every instruction, label and directive it
+// writes to the SPIM file to the encoder as well, which turns them straight
+// into MIPS32 machine words, without printing and re-parsing assembly text.
+//
+// Labels are resolved in two passes:
+//   1. while Codegen runs, every instruction is recorded together with its
+//      address.  Pseudo instructions (li, la, blt, ...) always expand to the
+//      same number of words, so label addresses are final once defined.
+//   2. when the image is written, all recorded instructions are encoded and
+//      the label references (the fixups) are filled in.
+//
+// The segments use the SPIM layout: text at 0x00400000 and data at
+// 0x10010000.  The text segment starts with a small stub (__start) that
+// calls main and exits, like the SPIM startup code does.  Branch delay
+// slots are whatever the instructions say: the normal SPIM text output
+// ignores them, code scheduled for .set noreorder (P5 -pipeline) fills
+// them itself, and then the stub gets a nop after its jal too.
+//
+// Public Methods
+// ==============
+// instruction(op, args)  -- record an instruction (args may contain "")
+// label(name)            -- define a label at the current position
+// directive(d, arg)      -- .text, .data, .globl, .word, .asciiz, ...
+// errors()               -- instructions that cannot be encoded, empty if none
+// writeRaw(out)          -- text segment followed by the data segment
+// writeElf(out)          -- minimal little-endian ELF32 executable
+// **********************************************************************
+public class MipsEncoder {
+    public static final int TEXT_BASE = 0x00400000;
+    public static final int DATA_BASE = 0x10010000;
+    public static final String ENTRY = "__start";
+
+    // register names as used by Codegen
+    private static final String[] REGS = {
+        "zero", "at", "v0", "v1", "a0", "a1", "a2", "a3",
+        "t0", "t1", "t2", "t3", "t4", "t5", "t6", "t7",
+        "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7",
+        "t8", "t9", "k0", "k1", "gp", "sp", "fp", "ra"
+    };
+    private static final int AT = 1;
+
+    // one recorded instruction, encoded in pass 2
+    private static class Insn {
+        String op;
+        String[] args;
+        int address;
+        int words;
+        Insn(String op, String[] args, int address, int words) {
+            this.op = op;
+            this.args = args;
+            this.address = address;
+            this.words = words;
+        }
+    }
+
+    private ArrayList<Insn> text = new ArrayList<Insn>();
+    private int textSize = 0;
+    private ByteArrayOutputStream data = new ByteArrayOutputStream();
+    private boolean inData = false;
+    // labels in definition order, with their absolute address
+    private LinkedHashMap<String, Integer> labels = new LinkedHashMap<String, Integer>();
+    private HashSet<String> dataLabels = new HashSet<String>();
+    private HashSet<String> globals = new HashSet<String>();
+    // data labels wait for the next directive, which might have to align first
+    private ArrayList<String> pendingDataLabels = new ArrayList<String>();
+    // instructions pass 1 could not even size, they are left out
+    private ArrayList<String> errors = new ArrayList<String>();
+
+    public MipsEncoder() {
+        this(false);
+    }
+
+    public MipsEncoder(boolean delaySlots) {
+        label(ENTRY);
+        instruction("jal", "main");
+        if (delaySlots) instruction("nop");
+        instruction("li", "$v0", "10");
+        instruction("syscall");
+        globals.add(ENTRY);
+    }
+
+    // **********************************************************************
+    // pass 1: record instructions, labels and data
+    // **********************************************************************
+    public void instruction(String op, String... args) {
+        ArrayList<String> list = new ArrayList<String>();
+        for (String a : args) {
+            if (a != null && !a.equals("")) list.add(a.trim());
+        }
+        String[] a = list.toArray(new String[0]);
+        if (inData) {
+            throw new IllegalStateException("instruction " + op + " in data segment");
+        }
+        int words;
+        try {
+            words = sizeOf(op, a);
+        } catch (RuntimeException ex) {
+            // a missing or malformed operand, P5 reports it (see errors)
+            errors.add(describe(op, a, ex));
+            return;
+        }
+        text.add(new Insn(op, a, TEXT_BASE + textSize, words));
+        textSize += 4 * words;
+    }
+
+    public void label(String name) {
+        if (labels.containsKey(name)) {
+            throw new IllegalStateException("label " + name + " defined twice");
+        }
+        if (inData) {
+            pendingDataLabels.add(name);
+        } else {
+            labels.put(name, TEXT_BASE + textSize);
+        }
+    }
+
+    public void directive(String directive) {
+        directive(directive, "");
+    }
+
+    public void directive(String directive, String arg) {
+        directive = directive.trim();
+        arg = arg == null ? "" : arg.trim();
+        if (directive.equals(".text")) {
+            bindPendingLabels();
+            inData = false;
+        } else if (directive.equals(".data")) {
+            inData = true;
+        } else if (directive.equals(".globl")) {
+            globals.add(arg);
+        } else if (directive.equals(".word")) {
+            align(4);
+            bindPendingLabels();
+            for (String w : arg.split(",")) {
+                writeWord(data, parseInt(w.trim()));
+            }
+        } else if (directive.equals(".asciiz") || directive.equals(".ascii")) {
+            bindPendingLabels();
+            byte[] bytes = unquote(arg);
+            data.write(bytes, 0, bytes.length);
+            if (directive.equals(".asciiz")) data.write(0);
+        } else if (directive.equals(".byte")) {
+            bindPendingLabels();
+            for (String b : arg.split(",")) {
+                data.write(parseInt(b.trim()));
+            }
+        } else if (directive.equals(".space")) {
+            bindPendingLabels();
+            for (int i = parseInt(arg); i > 0; i--) data.write(0);
+        } else if (directive.equals(".align")) {
+            align(1 << parseInt(arg));
+        } else if (directive.equals(".set")) {
+            // assembler options (noreorder, ...) do not change the encoding
+        } else {
+            throw new IllegalArgumentException("unsupported directive " + directive);
+        }
+    }
+
+    private void bindPendingLabels() {
+        for (String name : pendingDataLabels) {
+            labels.put(name, DATA_BASE + data.size());
+            dataLabels.add(name);
+        }
+        pendingDataLabels.clear();
+    }
+
+    private void align(int n) {
+        while (data.size() % n != 0) data.write(0);
+    }
+
+    // **********************************************************************
+    // sizeOf
+    //    number of machine words an instruction expands to.  This has to be
+    //    known in pass 1 already, so it may only depend on the instruction
+    //    itself, never on label addresses.
+    // **********************************************************************
+    static int sizeOf(String op, String[] a) {
+        switch (op) {
+        case "li":
+            int v = parseInt(a[1]);
+            return (fitsSigned16(v) || (v & 0xffff0000) == 0) ? 1 : 2;
+        case "la":
+        case "blt": case "bgt": case "ble": case "bge":
+        case "mul": case "rem":
+            return 2;
+        case "div":
+            return a.length == 3 ? 2 : 1;
+        case "lw": case "sw": case "lb": case "lbu": case "sb":
+            return a[1].contains("(") ? 1 : 2;
+        default:
+            return 1;
+        }
+    }
+
+    // **********************************************************************
+    // pass 2: encode every instruction, resolving labels
+    // **********************************************************************
+    public int[] textWords() {
+        if (!pendingDataLabels.isEmpty()) bindPendingLabels();
+        int[] words = new int[textSize / 4];
+        int pos = 0;
+        for (Insn insn : text) {
+            int[] enc = encode(insn);
+            if (enc.length != insn.words) {
+                throw new IllegalStateException("size mismatch for " + insn.op);
+            }
+            for (int w : enc) words[pos++] = w;
+        }
+        return words;
+    }
+
+    // the instructions with operands that cannot be encoded, as compile errors.
+    // Empty if the image can be written
+    public ArrayList<String> errors() {
+        if (!pendingDataLabels.isEmpty()) bindPendingLabels();
+        ArrayList<String> found = new ArrayList<String>(errors);
+        for (Insn insn : text) {
+            try {
+                encode(insn);
+            } catch (RuntimeException ex) {
+                found.add(describe(insn.op, insn.args, ex));
+            }
+        }
+        return found;
+    }
+
+    private static String describe(String op, String[] a, RuntimeException ex) {
+        String why = ex instanceof ArrayIndexOutOfBoundsException ? "missing operand"
+            : ex instanceof NumberFormatException ? "not a number: " + ex.getMessage()
+            : ex.getMessage();
+        return "cannot encode " + op + " " + String.join(", ", a) + ": " + why;
+    }
+
+    public byte[] dataBytes() {
+        return data.toByteArray();
+    }
+
+    public int entryPoint() {
+        return labels.get(ENTRY);
+    }
+
+    // label addresses, e.g. for simulators that want to map addresses back to labels
+    public Map<String, Integer> labelAddresses() {
+        return labels;
+    }
+
+    private int[] encode(Insn insn) {
+        String[] a = insn.args;
+        int pc = insn.address;
+        switch (insn.op) {
+        // ---- R-type arithmetic, immediate forms are turned into their I-type twin
+        case "add":  return arith(a, 0x20, 0x08);
+        case "addu": return arith(a, 0x21, 0x09);
+        case "sub":  return sub(a, 0x22, 0x08);
+        case "subu": return sub(a, 0x23, 0x09);
+        case "and":  return arith(a, 0x24, 0x0c);
+        case "or":   return arith(a, 0x25, 0x0d);
+        case "xor":  return arith(a, 0x26, 0x0e);
+        case "nor":  return one(rType(reg(a[1]), reg(a[2]), reg(a[0]), 0, 0x27));
+        case "slt":  return arith(a, 0x2a, 0x0a);
+        case "sltu": return arith(a, 0x2b, 0x0b);
+        case "addi":  return one(iType(0x08, reg(a[1]), reg(a[0]), parseInt(a[2])));
+        case "addiu": return one(iType(0x09, reg(a[1]), reg(a[0]), parseInt(a[2])));
+        case "slti":  return one(iType(0x0a, reg(a[1]), reg(a[0]), parseInt(a[2])));
+        case "sltiu": return one(iType(0x0b, reg(a[1]), reg(a[0]), parseInt(a[2])));
+        case "andi":  return one(iType(0x0c, reg(a[1]), reg(a[0]), parseInt(a[2])));
+        case "ori":   return one(iType(0x0d, reg(a[1]), reg(a[0]), parseInt(a[2])));
+        case "xori":  return one(iType(0x0e, reg(a[1]), reg(a[0]), parseInt(a[2])));
+        case "lui":   return one(iType(0x0f, 0, reg(a[0]), parseInt(a[1])));
+        case "sll":  return one(rType(0, reg(a[1]), reg(a[0]), parseInt(a[2]), 0x00));
+        case "srl":  return one(rType(0, reg(a[1]), reg(a[0]), parseInt(a[2]), 0x02));
+        case "sra":  return one(rType(0, reg(a[1]), reg(a[0]), parseInt(a[2]), 0x03));
+        case "sllv": return one(rType(reg(a[2]), reg(a[1]), reg(a[0]), 0, 0x04));
+        case "mult": return one(rType(reg(a[0]), reg(a[1]), 0, 0, 0x18));
+        case "div":
+            if (a.length == 3) {
+                return two(rType(reg(a[1]), reg(a[2]), 0, 0, 0x1a), rType(0, 0, reg(a[0]), 0, 0x12));
+            }
+            return one(rType(reg(a[0]), reg(a[1]), 0, 0, 0x1a));
+        case "mul":
+            return two(rType(reg(a[1]), reg(a[2]), 0, 0, 0x18), rType(0, 0, reg(a[0]), 0, 0x12));
+        case "rem":
+            return two(rType(reg(a[1]), reg(a[2]), 0, 0, 0x1a), rType(0, 0, reg(a[0]), 0, 0x10));
+        case "mflo": return one(rType(0, 0, reg(a[0]), 0, 0x12));
+        case "mfhi": return one(rType(0, 0, reg(a[0]), 0, 0x10));
+        case "jr":   return one(rType(reg(a[0]), 0, 0, 0, 0x08));
+        case "jalr": return one(rType(reg(a[0]), 0, 31, 0, 0x09));
+        case "syscall": return one(0x0c);
+        case "nop":  return one(0);
+        // ---- pseudo instructions
+        case "move": return one(rType(reg(a[1]), 0, reg(a[0]), 0, 0x21));
+        case "neg":  return one(rType(0, reg(a[1]), reg(a[0]), 0, 0x22));
+        case "negu": return one(rType(0, reg(a[1]), reg(a[0]), 0, 0x23));
+        case "not":  return one(rType(reg(a[1]), 0, reg(a[0]), 0, 0x27));
+        case "li": {
+            int v = parseInt(a[1]);
+            int rt = reg(a[0]);
+            if (fitsSigned16(v)) return one(iType(0x09, 0, rt, v));
+            if ((v & 0xffff0000) == 0) return one(iType(0x0d, 0, rt, v));
+            return two(iType(0x0f, 0, rt, v >>> 16), iType(0x0d, rt, rt, v));
+        }
+        case "la": {
+            int addr = address(a[1]);
+            int rt = reg(a[0]);
+            return two(iType(0x0f, 0, rt, addr >>> 16), iType(0x0d, rt, rt, addr));
+        }
+        // ---- loads and stores, either off a register or off a label
+        case "lw":  return memory(a, 0x23);
+        case "sw":  return memory(a, 0x2b);
+        case "lb":  return memory(a, 0x20);
+        case "lbu": return memory(a, 0x24);
+        case "sb":  return memory(a, 0x28);
+        // ---- branches and jumps
+        case "beq":  return one(iType(0x04, reg(a[0]), reg(a[1]), branch(pc, a[2])));
+        case "bne":  return one(iType(0x05, reg(a[0]), reg(a[1]), branch(pc, a[2])));
+        case "beqz": return one(iType(0x04, reg(a[0]), 0, branch(pc, a[1])));
+        case "bnez": return one(iType(0x05, reg(a[0]), 0, branch(pc, a[1])));
+        case "blez": return one(iType(0x06, reg(a[0]), 0, branch(pc, a[1])));
+        case "bgtz": return one(iType(0x07, reg(a[0]), 0, branch(pc, a[1])));
+        case "bltz": return one(iType(0x01, reg(a[0]), 0, branch(pc, a[1])));
+        case "bgez": return one(iType(0x01, reg(a[0]), 1, branch(pc, a[1])));
+        case "b":    return one(iType(0x04, 0, 0, branch(pc, a[0])));
+        // slt $at first, the branch is the second word
+        case "blt": return two(rType(reg(a[0]), reg(a[1]), AT, 0, 0x2a), iType(0x05, AT, 0, branch(pc + 4, a[2])));
+        case "bgt": return two(rType(reg(a[1]), reg(a[0]), AT, 0, 0x2a), iType(0x05, AT, 0, branch(pc + 4, a[2])));
+        case "ble": return two(rType(reg(a[1]), reg(a[0]), AT, 0, 0x2a), iType(0x04, AT, 0, branch(pc + 4, a[2])));
+        case "bge": return two(rType(reg(a[0]), reg(a[1]), AT, 0, 0x2a), iType(0x04, AT, 0, branch(pc + 4, a[2])));
+        case "j":   return one((0x02 << 26) | jumpTarget(a[0]));
+        case "jal": return one((0x03 << 26) | jumpTarget(a[0]));
+        default:
+            throw new IllegalArgumentException("cannot encode " + insn.op);
+        }
+    }
+
+    // R-type op with a register or an immediate as third operand
+    private int[] arith(String[] a, int funct, int immOp) {
+        if (isReg(a[2])) return one(rType(reg(a[1]), reg(a[2]), reg(a[0]), 0, funct));
+        return one(iType(immOp, reg(a[1]), reg(a[0]), immediate(parseInt(a[2]))));
+    }
+
+    // subtracting an immediate is adding its negation
+    private int[] sub(String[] a, int funct, int immOp) {
+        if (isReg(a[2])) return one(rType(reg(a[1]), reg(a[2]), reg(a[0]), 0, funct));
+        return one(iType(immOp, reg(a[1]), reg(a[0]), immediate(-parseInt(a[2]))));
+    }
+
+    private int[] memory(String[] a, int op) {
+        int rt = reg(a[0]);
+        String m = a[1];
+        int paren = m.indexOf('(');
+        if (paren >= 0) {
+            int offset = paren == 0 ? 0 : parseInt(m.substring(0, paren));
+            int base = reg(m.substring(paren + 1, m.indexOf(')')));
+            return one(iType(op, base, rt, immediate(offset)));
+        }
+        // lui $at, %hi(label); op rt, %lo(label)($at) - %hi is rounded since %lo is sign extended
+        int addr = address(m);
+        int hi = (addr + 0x8000) >>> 16;
+        return two(iType(0x0f, 0, AT, hi), iType(op, AT, rt, addr));
+    }
+
+    private int branch(int pc, String target) {
+        int offset = (address(target) - (pc + 4)) >> 2;
+        if (!fitsSigned16(offset)) {
+            throw new IllegalStateException("branch to " + target + " out of range");
+        }
+        return offset;
+    }
+
+    private int jumpTarget(String target) {
+        return (address(target) >>> 2) & 0x03ffffff;
+    }
+
+    private int address(String label) {
+        Integer addr = labels.get(label);
+        if (addr == null) {
+            throw new IllegalStateException("undefined label " + label);
+        }
+        return addr;
+    }
+
+    private static int rType(int rs, int rt, int rd, int shamt, int funct) {
+        return (rs << 21) | (rt << 16) | (rd << 11) | ((shamt & 0x1f) << 6) | funct;
+    }
+
+    private static int iType(int op, int rs, int rt, int imm) {
+        return (op << 26) | (rs << 21) | (rt << 16) | (imm & 0xffff);
+    }
+
+    private static int[] one(int w) {
+        return new int[] { w };
+    }
+
+    private static int[] two(int w1, int w2) {
+        return new int[] { w1, w2 };
+    }
+
+    private static int immediate(int v) {
+        if (!fitsSigned16(v)) {
+            throw new IllegalArgumentException("immediate " + v + " does not fit into 16 bits");
+        }
+        return v;
+    }
+
+    private static boolean fitsSigned16(int v) {
+        return v >= -32768 && v <= 32767;
+    }
+
+    private static boolean isReg(String s) {
+        return s.startsWith("$");
+    }
+
+    private static int reg(String s) {
+        s = s.trim();
+        if (!s.startsWith("$")) throw new IllegalArgumentException("not a register: " + s);
+        String name = s.substring(1);
+        if (Character.isDigit(name.charAt(0))) return Integer.parseInt(name);
+        if (name.equals("s8")) return 30;
+        for (int i = 0; i < REGS.length; i++) {
+            if (REGS[i].equals(name)) return i;
+        }
+        throw new IllegalArgumentException("unknown register " + s);
+    }
+
+    private static int parseInt(String s) {
+        s = s.trim();
+        if (s.startsWith("0x") || s.startsWith("-0x")) {
+            boolean neg = s.startsWith("-");
+            long v = Long.parseLong(s.substring(neg ? 3 : 2), 16);
+            return (int) (neg ? -v : v);
+        }
+        return Integer.parseInt(s);
+    }
+
+    // string literal as written in the source, including the quotes
+    static byte[] unquote(String s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int start = s.startsWith("\"") ? 1 : 0;
+        int end = s.endsWith("\"") && s.length() > 1 ? s.length() - 1 : s.length();
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < end) {
+                char n = s.charAt(++i);
+                switch (n) {
+                case 'n': out.write('\n'); break;
+                case 't': out.write('\t'); break;
+                case '0': out.write(0); break;
+                default: out.write(n);
+                }
+            } else {
+                out.write(c);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeWord(OutputStream out, int w) {
+        try {
+            out.write(w);
+            out.write(w >>> 8);
+            out.write(w >>> 16);
+            out.write(w >>> 24);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static void writeHalf(OutputStream out, int h) {
+        try {
+            out.write(h);
+            out.write(h >>> 8);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // **********************************************************************
+    // writeRaw
+    //    text segment (little endian words) immediately followed by the data
+    //    segment.  The loader places them at TEXT_BASE and DATA_BASE and
+    //    starts at TEXT_BASE, where the __start stub is.
+    // **********************************************************************
+    public void writeRaw(OutputStream out) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (int w : textWords()) writeWord(buf, w);
+        buf.write(dataBytes());
+        buf.writeTo(out);
+        out.flush();
+    }
+
+    // **********************************************************************
+    // writeElf
+    //    minimal ELF32 executable (EM_MIPS, little endian) with one PT_LOAD
+    //    program header per segment and a symbol table with all labels.
+    //    Segments are only aligned to 16 bytes to keep the file small.
+    // **********************************************************************
+    public void writeElf(OutputStream out) throws IOException {
+        int[] words = textWords();
+        byte[] dataSeg = dataBytes();
+
+        // string tables
+        ByteArrayOutputStream shstr = new ByteArrayOutputStream();
+        shstr.write(0);
+        int nameText = addString(shstr, ".text");
+        int nameData = addString(shstr, ".data");
+        int nameSymtab = addString(shstr, ".symtab");
+        int nameStrtab = addString(shstr, ".strtab");
+        int nameShstrtab = addString(shstr, ".shstrtab");
+
+        // symbols: locals have to come first
+        ByteArrayOutputStream strtab = new ByteArrayOutputStream();
+        strtab.write(0);
+        ByteArrayOutputStream symtab = new ByteArrayOutputStream();
+        writeSymbol(symtab, 0, 0, 0, 0);
+        int numLocals = 1;
+        for (int pass = 0; pass < 2; pass++) {
+            for (Map.Entry<String, Integer> e : labels.entrySet()) {
+                boolean global = globals.contains(e.getKey());
+                if (global != (pass == 1)) continue;
+                int shndx = dataLabels.contains(e.getKey()) ? 2 : 1;
+                int info = (global ? 1 : 0) << 4;
+                writeSymbol(symtab, addString(strtab, e.getKey()), e.getValue(), info, shndx);
+                if (!global) numLocals++;
+            }
+        }
+
+        // file layout: header, program headers, text, data, tables, section headers
+        int ehsize = 52, phentsize = 32, shentsize = 40;
+        int textOff = align16(ehsize + 2 * phentsize);
+        int textLen = words.length * 4;
+        int dataOff = align16(textOff + textLen);
+        int symOff = align16(dataOff + dataSeg.length);
+        int strOff = symOff + symtab.size();
+        int shstrOff = strOff + strtab.size();
+        int shOff = align16(shstrOff + shstr.size());
+
+        ByteArrayOutputStream f = new ByteArrayOutputStream();
+        // ELF header
+        f.write(new byte[] { 0x7f, 'E', 'L', 'F', 1 /* 32 bit */, 1 /* little endian */, 1 /* version */ });
+        f.write(new byte[9]);
+        writeHalf(f, 2);             // ET_EXEC
+        writeHalf(f, 8);             // EM_MIPS
+        writeWord(f, 1);             // EV_CURRENT
+        writeWord(f, entryPoint());
+        writeWord(f, ehsize);        // program headers follow the header
+        writeWord(f, shOff);
+        writeWord(f, 0x50001000);    // MIPS32, O32 ABI
+        writeHalf(f, ehsize);
+        writeHalf(f, phentsize);
+        writeHalf(f, 2);
+        writeHalf(f, shentsize);
+        writeHalf(f, 6);
+        writeHalf(f, 5);             // index of .shstrtab
+        // program headers
+        writeProgramHeader(f, textOff, TEXT_BASE, textLen, 5 /* r-x */);
+        writeProgramHeader(f, dataOff, DATA_BASE, dataSeg.length, 6 /* rw- */);
+        pad(f, textOff);
+        for (int w : words) writeWord(f, w);
+        pad(f, dataOff);
+        f.write(dataSeg);
+        pad(f, symOff);
+        symtab.writeTo(f);
+        strtab.writeTo(f);
+        shstr.writeTo(f);
+        pad(f, shOff);
+        // section headers: null, .text, .data, .symtab, .strtab, .shstrtab
+        writeSectionHeader(f, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+        writeSectionHeader(f, nameText, 1, 6, TEXT_BASE, textOff, textLen, 0, 0, 4, 0);
+        writeSectionHeader(f, nameData, 1, 3, DATA_BASE, dataOff, dataSeg.length, 0, 0, 4, 0);
+        writeSectionHeader(f, nameSymtab, 2, 0, 0, symOff, symtab.size(), 4, numLocals, 4, 16);
+        writeSectionHeader(f, nameStrtab, 3, 0, 0, strOff, strtab.size(), 0, 0, 1, 0);
+        writeSectionHeader(f, nameShstrtab, 3, 0, 0, shstrOff, shstr.size(), 0, 0, 1, 0);
+        f.writeTo(out);
+        out.flush();
+    }
+
+    private static int addString(ByteArrayOutputStream table, String s) {
+        int offset = table.size();
+        byte[] bytes = s.getBytes();
+        table.write(bytes, 0, bytes.length);
+        table.write(0);
+        return offset;
+    }
+
+    private static void writeSymbol(OutputStream out, int name, int value, int info, int shndx) throws IOException {
+        writeWord(out, name);
+        writeWord(out, value);
+        writeWord(out, 0);           // size
+        out.write(info);
+        out.write(0);                // other
+        writeHalf(out, shndx);
+    }
+
+    private static void writeProgramHeader(OutputStream out, int offset, int vaddr, int size, int flags) {
+        writeWord(out, 1);           // PT_LOAD
+        writeWord(out, offset);
+        writeWord(out, vaddr);
+        writeWord(out, vaddr);
+        writeWord(out, size);
+        writeWord(out, size);
+        writeWord(out, flags);
+        writeWord(out, 16);
+    }
+
+    private static void writeSectionHeader(OutputStream out, int name, int type, int flags, int addr,
+                                           int offset, int size, int link, int info, int align, int entsize) {
+        writeWord(out, name);
+        writeWord(out, type);
+        writeWord(out, flags);
+        writeWord(out, addr);
+        writeWord(out, offset);
+        writeWord(out, size);
+        writeWord(out, link);
+        writeWord(out, info);
+        writeWord(out, align);
+        writeWord(out, entsize);
+    }
+
+    private static int align16(int n) {
+        return (n + 15) & ~15;
+    }
+
+    private static void pad(ByteArrayOutputStream f, int upTo) {
+        while (f.size() < upTo) f.write(0);
+    }
+}
@@ -46,6 +46,11 @@ public class P4 {
 	}
 
 
+	// the scanner's errors, name analysis and type checking all go
+	// through the context of the compilation
+	CompileContext context = new CompileContext(System.out, System.err);
+	context.enter();
+
 	parser P = new parser();
 	P.setScanner(new Yylex(inFile));
 	
@@ -67,6 +72,7 @@ public class P4 {
 	((ASTnode)root.value).decompile(outFile, 0);
 	outFile.close();
 	((ProgramNode)root.value).typeCheck();
+	context.leave();
 
 	return;
     }
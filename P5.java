@@ -1,4 +1,12 @@
 import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 
 import java_cup.runtime.*;
@@ -10,6 +18,43 @@ import java_cup.runtime.*;
 //    1. the file to be parsed
 //    2. the output file into which the AST built by the parser
 //       should be unparsed.
+//    3. the output file for the generated spim code
+// followed by optional flags:
+//    -bin <file>   also write the machine code (text then data segment)
+//    -elf <file>   also write the machine code as an ELF executable
+//    -O0           turn off the optimizations (loop invariant code motion, ...)
+//    -unroll <n>   unroll counted loops n times (default 4, 1 turns it off)
+//    -pipeline     fill branch and load delay slots (code for .set noreorder)
+//    -profile-generate       count what the program does, it prints the counts
+//                            when main returns (spim -file x.s > x.prof)
+//    -profile-use <file>     use such a profile: hot branches fall through, cold
+//                            code goes out of line, hot calls of leaf methods are inlined
+//    -run          run the machine code in the simulator after compiling
+//    -jit          the same, translating hot code to JVM bytecode as it runs
+//    -jit-threshold <n>      times a block runs before it is translated (default 50)
+//    -interpret    run the program straight from the AST, without the machine code
+//    -closures     run the program as closures (anonymous classes) compiled from the AST
+//    -bytecode <file>        also write the program as bytecode (see Bytecode), which
+//                            java VM <file> runs
+//    -vm           run the bytecode in the VM
+//    -jvm <file>   also write the program as a JVM class, <file> is <name>.class
+//                  or a .jar with a manifest (java -jar runs it)
+//    -jvm-run      run the program as a JVM class in this JVM
+//    -jvm-benchmark          time a run as a JVM class and as machine code in
+//                            the simulator
+//    -benchmark    simulated instructions per second with switch dispatch, threaded
+//                  code and threaded code with superinstructions
+//    -incremental <dir>      keep the code of every method in dir and only generate
+//                            the methods that changed since (see CompileCache)
+//    -watch        compile again whenever the file to be parsed changes, with
+//                  -incremental .p5cache unless another directory is given
+//
+// Or, with the arguments -server <port|socket> [<seconds>], it stays
+// running and compiles what CompileClient sends it, giving each compile
+// and run the seconds, 60 if not given (see CompileServer):
+//    java CompileClient <port|socket> <the arguments above>
+// And with -batch <dir> [-threads <n>] <flags> it compiles every .sim file
+// in dir, side by side (see CompileBatch).
 // The program opens the files, creates a scanner and a parser, and
 // calls the parser.  If the parse is successful, the name analyzer is
 // called and the AST is then unparsed.  If there have been no
@@ -20,37 +65,218 @@ public class P5 {
     public static void main(String[] args)
 	throws IOException // may be thrown by the scanner
     {
+	if (args.length == 2 && args[0].equals("-server")) {
+	    CompileServer.serve(args[1]);
+	    return;
+	}
+	if (args.length == 3 && args[0].equals("-server")) {
+	    CompileServer.serve(args[1], Integer.parseInt(args[2]));
+	    return;
+	}
+	if (args.length >= 1 && args[0].equals("-batch")) {
+	    int status = CompileBatch.run(Arrays.copyOfRange(args, 1, args.length));
+	    if (status != 0) System.exit(status);
+	    return;
+	}
+	if (Arrays.asList(args).contains("-watch")) {
+	    watch(args);
+	    return;
+	}
+	int status = compile(args, new File("."), new CompileContext(System.out, System.err));
+	if (status != 0) System.exit(status);
+    }
+
+    // compiles, waits for the source to change, compiles again, ... until stopped
+    private static void watch(String[] args) throws IOException {
+	if (args.length < 1) {
+	    System.err.println("please supply name of file to be parsed");
+	    System.exit(-1);
+	}
+	Path source = Path.of(args[0]).toAbsolutePath();
+	WatchService watcher = FileSystems.getDefault().newWatchService();
+	// editors often write a new file and rename it, so creating counts as changing
+	source.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				    StandardWatchEventKinds.ENTRY_MODIFY);
+	for (;;) {
+	    long start = System.nanoTime();
+	    int status = compile(args, new File("."), new CompileContext(System.out, System.err));
+	    System.out.println("Compiled in " + (System.nanoTime() - start) / 1000000 + " ms" +
+			       (status == 0 ? "" : ", exit status " + status) + ", watching " + args[0]);
+	    try {
+		boolean changed = false;
+		while (!changed) {
+		    WatchKey key = watcher.take();
+		    for (WatchEvent<?> event : key.pollEvents()) {
+			changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+			    || source.getFileName().equals(event.context());
+		    }
+		    key.reset();
+		}
+		// one save is often a few events in a row, they all go into this compile
+		Thread.sleep(50);
+		for (WatchKey key = watcher.poll(); key != null; key = watcher.poll()) {
+		    key.pollEvents();
+		    key.reset();
+		}
+	    } catch (InterruptedException ex) {
+		return;
+	    }
+	}
+    }
+
+    // one compile in the given context, the file names are relative to dir. Returns the exit status
+    public static int compile(String[] args, File dir, CompileContext context)
+	throws IOException
+    {
+	context.enter();
+	try {
+	    return compileIn(context, args, dir);
+	} finally {
+	    context.leave();
+	}
+    }
+
+    private static int compileIn(CompileContext context, String[] args, File dir)
+	throws IOException
+    {
+	Codegen codegen = context.codegen;
 	// check for command-line arg
-	if (args.length != 3) {
-	    System.err.println("please supply name of file to be parsed " +
+	if (args.length < 3) {
+	    context.err.println("please supply name of file to be parsed " +
 			       "and name of file for unparsing");
-	    System.exit(-1);
+	    return -1;
+	}
+	String binFileName = null;
+	String elfFileName = null;
+	boolean pipeline = false;
+	String profileFileName = null;
+	boolean run = false;
+	int jitThreshold = -1;
+	boolean benchmark = false;
+	boolean interpret = false;
+	boolean closures = false;
+	String bytecodeFileName = null;
+	boolean vm = false;
+	String jvmFileName = null;
+	boolean jvmRun = false;
+	boolean jvmBenchmark = false;
+	String cacheDirName = null;
+	boolean watch = false;
+	for (int i = 3; i < args.length; i++) {
+	    if (args[i].equals("-bin") && i + 1 < args.length) {
+		binFileName = path(dir, args[++i]);
+	    } else if (args[i].equals("-elf") && i + 1 < args.length) {
+		elfFileName = path(dir, args[++i]);
+	    } else if (args[i].equals("-O0")) {
+		codegen.hoistInvariants = false;
+		codegen.numberValues = false;
+		codegen.eliminateDeadCode = false;
+		codegen.eliminateDeadMethods = false;
+		codegen.propagateConstants = false;
+		codegen.foldPureCalls = false;
+		codegen.promoteGlobals = false;
+		codegen.bufferOutput = false;
+		codegen.unrollFactor = 1;
+	    } else if (args[i].equals("-pipeline")) {
+		pipeline = true;
+	    } else if (args[i].equals("-profile-generate")) {
+		codegen.instrument = true;
+	    } else if (args[i].equals("-profile-use") && i + 1 < args.length) {
+		profileFileName = path(dir, args[++i]);
+	    } else if (args[i].equals("-run")) {
+		run = true;
+	    } else if (args[i].equals("-jit")) {
+		run = true;
+		if (jitThreshold < 0) jitThreshold = Jit.THRESHOLD;
+	    } else if (args[i].equals("-jit-threshold") && i + 1 < args.length) {
+		run = true;
+		jitThreshold = Integer.parseInt(args[++i]);
+	    } else if (args[i].equals("-interpret")) {
+		interpret = true;
+	    } else if (args[i].equals("-closures")) {
+		closures = true;
+	    } else if (args[i].equals("-bytecode") && i + 1 < args.length) {
+		bytecodeFileName = path(dir, args[++i]);
+	    } else if (args[i].equals("-vm")) {
+		vm = true;
+	    } else if (args[i].equals("-jvm") && i + 1 < args.length) {
+		jvmFileName = path(dir, args[++i]);
+	    } else if (args[i].equals("-jvm-run")) {
+		jvmRun = true;
+	    } else if (args[i].equals("-jvm-benchmark")) {
+		jvmBenchmark = true;
+	    } else if (args[i].equals("-benchmark")) {
+		benchmark = true;
+	    } else if (args[i].equals("-incremental") && i + 1 < args.length) {
+		cacheDirName = path(dir, args[++i]);
+	    } else if (args[i].equals("-watch")) {
+		watch = true; // main does the watching
+	    } else if (args[i].equals("-unroll") && i + 1 < args.length) {
+		codegen.unrollFactor = Integer.parseInt(args[++i]);
+	    } else {
+		context.err.println("unknown option " + args[i]);
+		return -1;
+	    }
+	}
+
+	if (watch && cacheDirName == null) {
+	    cacheDirName = path(dir, ".p5cache");
+	}
+	boolean machineCode = binFileName != null || elfFileName != null || run || benchmark || jvmBenchmark;
+	if (cacheDirName != null && (machineCode || codegen.instrument || profileFileName != null)) {
+	    context.err.println("-incremental: the cache only holds SPIM code without profiles, " +
+			       "every method is generated");
+	    cacheDirName = null;
+	}
+	if (cacheDirName != null) {
+	    try {
+		context.cache = new CompileCache(new File(cacheDirName));
+	    } catch (IOException ex) {
+		context.err.println(ex.getMessage());
+		return -1;
+	    }
+	}
+
+	if (profileFileName != null) {
+	    if (codegen.instrument) {
+		context.err.println("-profile-generate and -profile-use cannot be used together");
+		return -1;
+	    }
+	    try {
+		codegen.profile = new Profile(profileFileName);
+	    } catch (IOException ex) {
+		context.err.println("Profile " + profileFileName + " could not be read: " + ex.getMessage());
+		return -1;
+	    }
 	}
 
 	// open input file
 	FileReader inFile = null;
 	try {
-	    inFile = new FileReader(args[0]);
+	    inFile = new FileReader(path(dir, args[0]));
 	} catch (FileNotFoundException ex) {
-	    System.err.println("File " + args[0] + " not found.");
-	    System.exit(-1);
+	    context.err.println("File " + args[0] + " not found.");
+	    return -1;
 	}
 
 	// open output file
 	PrintWriter outFile = null;
 	try {
-	    outFile = IO.openOutputFile(args[1]);
+	    outFile = IO.openOutputFile(path(dir, args[1]));
 	} catch (IOException ex) {
-	    System.err.println("File " + args[1] + " could not be opened.");
-	    System.exit(-1);
+	    context.err.println("File " + args[1] + " could not be opened.");
+	    inFile.close();
+	    return -1;
 	}
 	// added to generate spim code and still have decompiled code for debugging
 	PrintWriter spimFilWriter = null;
 	try {
-	    spimFilWriter = IO.openOutputFile(args[2]);
+	    spimFilWriter = IO.openOutputFile(path(dir, args[2]));
 	} catch (IOException ex) {
-	    System.err.println("File " + args[2] + " could not be opened.");
-	    System.exit(-1);
+	    context.err.println("File " + args[2] + " could not be opened.");
+	    inFile.close();
+	    outFile.close();
+	    return -1;
 	}
 
 	parser P = new parser(new Yylex(inFile));
@@ -62,11 +288,15 @@ public class P5 {
 
 	try {
 	    root = P.parse(); // do the parse
-	    System.out.println ("Simple program parsed correctly.");
+	    context.out.println ("Simple program parsed correctly.");
 	} catch (Exception ex){
-	    System.out.println(ex);
-	    System.exit(0);
+	    context.out.println(ex);
+	    inFile.close();
+	    outFile.close();
+	    spimFilWriter.close();
+	    return 0;
 	}
+	inFile.close();
 
 	// Run your typechecker in two passes here
 	// e.g. ((ProgramNode)root.value).processNames();
@@ -83,11 +313,163 @@ public class P5 {
 	((ASTnode)root.value).nameAnalysis(symTabList, 0);
 	((ASTnode)root.value).decompile(outFile, 0);
 	((ProgramNode)root.value).typeCheck();
-	Codegen.p = spimFilWriter;
+	Interpreter interpreter = interpret ? ((ProgramNode)root.value).interpreter() : null;
+	long compileStart = System.nanoTime();
+	Closures closureProgram = closures ? ((ProgramNode)root.value).closures() : null;
+	long compileNanos = System.nanoTime() - compileStart;
+	boolean jvm = jvmFileName != null || jvmRun || jvmBenchmark;
+	Bytecode bytecode = (bytecodeFileName != null || vm || jvm) ? ((ProgramNode)root.value).bytecode() : null;
+	codegen.p = spimFilWriter;
+	if (machineCode) {
+	    codegen.bin = new MipsEncoder(pipeline);
+	}
+	if (pipeline) {
+	    codegen.scheduler = new Scheduler();
+	}
 	((ProgramNode)root.value).cgen();
+	if (pipeline) {
+	    codegen.scheduler.flush();
+	}
 	spimFilWriter.close();
+	if (codegen.bin != null && !codegen.bin.errors().isEmpty()) {
+	    for (String error : codegen.bin.errors()) {
+		context.err.println("Machine code: " + error);
+	    }
+	    outFile.close();
+	    return -1;
+	}
+	if (codegen.bin != null && pipeline) {
+	    ArrayList<String> hazards = Scheduler.loadHazards(codegen.bin.textWords());
+	    for (String hazard : hazards) {
+		context.err.println("Pipeline: " + hazard);
+	    }
+	    if (!hazards.isEmpty()) {
+		outFile.close();
+		return -1;
+	    }
+	}
+	if (codegen.removedStatements > 0) {
+	    context.out.println("Dead code elimination removed " + codegen.removedStatements +
+			       " statements (listed in the generated code)");
+	}
+	if (codegen.foldedCalls > 0) {
+	    context.out.println("Pure calls: replaced " + codegen.foldedCalls +
+			       " calls by the values they return");
+	}
+	if (codegen.removedMethods + codegen.removedFields > 0) {
+	    context.out.println("Call graph: left out " + codegen.removedMethods + " methods main cannot reach (" +
+			       codegen.removedInstructions + " instructions, " + codegen.removedBytes +
+			       " bytes) and " + codegen.removedFields + " static fields nobody reads (" +
+			       4 * codegen.removedFields + " bytes)");
+	}
+	if (context.cache != null) {
+	    context.out.println("Incremental: " + context.cache.hits() + " methods from the cache, " +
+			       context.cache.misses() + " generated");
+	}
+	if (codegen.profile != null) {
+	    context.out.println("Profile: inlined " + codegen.inlinedCalls + " calls, moved " +
+			       codegen.outlinedBlocks + " cold blocks out of line, put " +
+			       codegen.swappedBranches + " else parts first");
+	}
+	if (binFileName != null) {
+	    OutputStream binFile = new FileOutputStream(binFileName);
+	    codegen.bin.writeRaw(binFile);
+	    binFile.close();
+	}
+	if (elfFileName != null) {
+	    OutputStream elfFile = new FileOutputStream(elfFileName);
+	    codegen.bin.writeElf(elfFile);
+	    elfFile.close();
+	}
+	if (bytecodeFileName != null) {
+	    OutputStream bytecodeFile = new FileOutputStream(bytecodeFileName);
+	    bytecode.write(bytecodeFile);
+	    bytecodeFile.close();
+	}
+	if (jvmFileName != null) {
+	    String name = new File(jvmFileName).getName().replaceFirst("\\.(class|jar)$", "");
+	    if (!name.matches("[A-Za-z_][A-Za-z_0-9]*")) {
+		context.err.println(jvmFileName + ": " + name + " cannot be the name of a class");
+		outFile.close();
+		return -1;
+	    }
+	    new JvmCodegen(bytecode, name).write(jvmFileName);
+	}
 	outFile.close();
+	if (run) {
+	    Simulator sim = new Simulator(codegen.bin, pipeline);
+	    if (jitThreshold >= 0) sim.useJit(jitThreshold);
+	    try {
+		sim.run(context.out);
+	    } catch (IllegalStateException ex) {
+		context.err.println("Simulator: " + ex.getMessage());
+		return -1;
+	    }
+	    context.err.print("Simulator: interpreted " + sim.interpreted() + " instructions in " +
+			     sim.dispatches() + " dispatches (" + sim.superinstructions() + " superinstructions)");
+	    if (sim.getJit() != null) {
+		Jit jit = sim.getJit();
+		context.err.print(", translated " + jit.regions() + " regions (" + jit.instructions() +
+				 " instructions) entered " + jit.entries() + " times");
+	    }
+	    context.err.println();
+	}
+	if (interpreter != null) {
+	    try {
+		interpreter.run(context.out);
+	    } catch (IllegalStateException ex) {
+		context.err.println("Interpreter: " + ex.getMessage());
+		return -1;
+	    }
+	    context.err.println("Interpreter: " + interpreter.calls() + " calls, " +
+			       interpreter.rewrites() + " nodes specialised themselves");
+	}
+	if (closureProgram != null) {
+	    try {
+		closureProgram.run(context.out);
+	    } catch (IllegalStateException ex) {
+		context.err.println("Closures: " + ex.getMessage());
+		return -1;
+	    }
+	    context.err.println("Closures: compiled " + closureProgram.methods() + " methods in " +
+			       compileNanos / 1000 + " microseconds");
+	}
+	if (vm) {
+	    // the VM runs the serialised form, the way java VM would
+	    byte[] bytes = bytecode.toBytes();
+	    long start = System.nanoTime();
+	    Bytecode program = Bytecode.read(bytes);
+	    long loaded = System.nanoTime();
+	    VM machine = new VM(program);
+	    try {
+		machine.run(context.out);
+	    } catch (IllegalStateException ex) {
+		context.err.println("VM: " + ex.getMessage());
+		return -1;
+	    }
+	    context.err.println("VM: loaded " + bytes.length + " bytes in " + (loaded - start) / 1000 +
+			       " microseconds, executed " + machine.instructions() + " instructions");
+	}
+	if (jvmRun) {
+	    try {
+		new JvmCodegen(bytecode, "SimpleProgram").load().run(context.out);
+	    } catch (IllegalStateException ex) {
+		context.err.println("JVM: " + ex.getMessage());
+		return -1;
+	    }
+	    context.out.flush();
+	}
+	if (jvmBenchmark) {
+	    JvmCodegen.benchmark(bytecode, codegen.bin, pipeline, context.out);
+	}
+	if (benchmark) {
+	    Simulator.benchmark(codegen.bin, pipeline, context.out);
+	}
 	
-	return;
+	return 0;
+    }
+
+    private static String path(File dir, String name) {
+	return new File(name).isAbsolute() ? name : new File(dir, name).getPath();
     }
 }
@@ -0,0 +1,82 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// **********************************************************************
+// Profile class
+//
+// Execution counts for profile guided optimization.  A program compiled
+// with -profile-generate counts how often its methods are entered, its
+// if statements are reached, their branches are taken and its call sites
+// run (see Codegen.genCount).  When main returns it prints the counts
+// after its own output: a line MARKER, then one line per counter with the
+// counter's key and the count.  Running it (spim -file x.s > x.prof) gives
+// the profile file -profile-use reads back, everything before the marker
+// is ignored.
+//
+// Keys name places in the source, so they match up between the two
+// compiles as long as the program has not been changed:
+//     entry <method>                         method entered
+//     <line>:<char> if|then|else             if reached, branch taken
+//     call <caller> <line>:<char> <callee>   call site executed
+// A key that is not in the profile has no count (-1) and the code there is
+// generated as without a profile.
+// **********************************************************************
+public class Profile {
+    public static final String MARKER = "#profile";
+    // a call site is hot if it runs at least 1/HOT_SHARE as often as the hottest counter
+    public static final int HOT_SHARE = 16;
+    // a branch is cold if it is taken at most once in COLD_SHARE times
+    public static final int COLD_SHARE = 10;
+
+    public Profile(String fileName) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(fileName));
+        boolean found = false;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (!found) {
+                found = line.equals(MARKER);
+                continue;
+            }
+            int space = line.lastIndexOf(' ');
+            if (space < 0) continue;
+            long count = Long.parseLong(line.substring(space + 1).trim());
+            myCounts.put(line.substring(0, space), count);
+            myHottest = Math.max(myHottest, count);
+        }
+        in.close();
+        if (!found) {
+            throw new IOException("no profile in " + fileName + " (no line " + MARKER + ")");
+        }
+    }
+
+    public long count(String key) {
+        Long count = myCounts.get(key);
+        return count == null ? -1 : count.longValue();
+    }
+
+    public boolean isHot(String key) {
+        long count = count(key);
+        return count > 0 && count * HOT_SHARE >= myHottest;
+    }
+
+    // taken out of total, both known
+    public static boolean isCold(long taken, long total) {
+        return taken >= 0 && total > 0 && taken * COLD_SHARE <= total;
+    }
+
+    // the methods called from hot call sites in the given method
+    public ArrayList<String> hotCallees(String caller) {
+        ArrayList<String> result = new ArrayList<String>();
+        String prefix = "call " + caller + " ";
+        for (String key : myCounts.keySet()) {
+            if (key.startsWith(prefix) && isHot(key)) {
+                result.add(key.substring(key.lastIndexOf(' ') + 1));
+            }
+        }
+        return result;
+    }
+
+    private HashMap<String, Long> myCounts = new HashMap<String, Long>();
+    private long myHottest = 0;
+}
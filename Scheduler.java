@@ -0,0 +1,460 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+
+// **********************************************************************
+// Scheduler class
+//
+// Delay slot scheduling (P5 -pipeline).  On a real MIPS pipeline the
+// instruction after a branch or jump (the branch delay slot) runs before
+// the jump takes effect, and the register a load writes is not ready yet
+// for the instruction right after the load (the load delay slot).  The
+// normal SPIM output ignores both and leaves them to the assembler.  With
+// -pipeline the code is written for .set noreorder instead, and filling
+// the slots is up to us.
+//
+// Codegen hands the instructions of a basic block to the scheduler instead
+// of writing them.  When the block ends (a branch or jump, a label, a
+// directive), it is written out in a new order:
+//   0. the accumulator code moves most operands through $a0, which makes
+//      every instruction depend on the one before.  lw $a0, x followed by
+//      move $t1, $a0 becomes lw $t1, x when $a0 is written again before it
+//      is read (same for any other instruction that computes $a0)
+//   1. the delay slot of the closing branch gets the last instruction of
+//      the block that nothing after it depends on, the branch included.
+//      If there is none, it gets a nop
+//   2. the other instructions are list scheduled.  Of the instructions
+//      whose operands are ready, the one with the longest chain of
+//      instructions waiting for it goes first (loads count twice).  An instruction never goes
+//      right after a load of a register it reads; if every ready
+//      instruction would, a nop fills the load delay slot
+//
+// Dependences are tracked on registers (hi/lo and the $at of pseudo
+// instructions included) and on memory: loads and stores never pass a
+// store.  syscall is a barrier.  Loads do not go into branch delay slots,
+// so the first instruction at a branch target never waits for one.  A
+// block that falls through into a label and ends with a load hands the
+// loaded register on to the next block.
+//
+// The simulator interlocks loads, so running the code does not show a
+// load slot filled wrong.  P5 checks the machine code of -pipeline code
+// with loadHazards instead, before anything runs or is written.
+// **********************************************************************
+public class Scheduler {
+
+    private static final String MEMORY = "memory";
+    private static final String ALL = "everything";
+
+    private static class Insn {
+        String line;
+        String op;
+        String[] args;
+        ArrayList<String> comments; // header comments written right before the instruction
+        HashSet<String> uses = new HashSet<String>();
+        HashSet<String> defs = new HashSet<String>();
+        boolean load;
+        boolean singleWord;
+        ArrayList<Insn> preds = new ArrayList<Insn>();
+        int height;             // cycles from here to the end of the longest chain depending on this one
+        boolean done;
+
+        boolean dependsOn(Insn other) {
+            return overlaps(other.defs, uses) || overlaps(other.defs, defs) || overlaps(other.uses, defs);
+        }
+
+        // reads the register other loads
+        boolean waitsFor(Insn other) {
+            return other != null && other.load && overlaps(other.defs, uses);
+        }
+    }
+
+    private ArrayList<Insn> block = new ArrayList<Insn>();
+    private ArrayList<String> comments = new ArrayList<String>();
+    private Insn lastWritten = null; // the instruction written last, if control falls through from it
+    private int nops = 0;
+
+    // **********************************************************************
+    // Codegen interface
+    // **********************************************************************
+    public void comment(String line) {
+        comments.add(line);
+    }
+
+    public void add(String line, String op, String... args) {
+        Insn insn = analyze(line, op, args);
+        insn.comments = comments;
+        comments = new ArrayList<String>();
+        if (isBranch(op)) {
+            schedule(insn);
+        } else {
+            block.add(insn);
+        }
+    }
+
+    // the block ends without a branch: a label or a directive follows
+    public void flush() {
+        schedule(null);
+    }
+
+    // number of nops written because no instruction could fill a slot
+    public int nops() {
+        return nops;
+    }
+
+    // **********************************************************************
+    // loadHazards
+    //    checks the machine code (MipsEncoder.textWords) of scheduled code:
+    //    a load whose register the instruction run after it reads.  That is
+    //    the next one, or the branch target for a load in a delay slot.
+    //    The simulator interlocks loads, so it would not notice
+    // **********************************************************************
+    public static ArrayList<String> loadHazards(int[] words) {
+        ArrayList<String> hazards = new ArrayList<String>();
+        for (int i = 0; i < words.length; i++) {
+            int op = words[i] >>> 26;
+            int rt = (words[i] >> 16) & 31;
+            if (op < 0x20 || op > 0x25 || rt == 0) continue;
+            ArrayList<Integer> next = new ArrayList<Integer>();
+            int before = i > 0 ? words[i - 1] : 0;
+            int beforeOp = before >>> 26;
+            if (i > 0 && (beforeOp == 1 || (beforeOp >= 4 && beforeOp <= 7))) {
+                next.add(i + (short)before);   // the target, relative to the slot
+                next.add(i + 1);
+            } else if (i > 0 && (beforeOp == 2 || beforeOp == 3)) {
+                next.add(((before & 0x03ffffff) << 2) - MipsEncoder.TEXT_BASE >> 2);
+            } else if (i > 0 && beforeOp == 0 && ((before & 0x3f) == 8 || (before & 0x3f) == 9)) {
+                continue;   // where jr goes is not known here
+            } else {
+                next.add(i + 1);
+            }
+            for (int n : next) {
+                if (n >= 0 && n < words.length && reads(words[n], rt)) {
+                    hazards.add("load into $" + rt + " at 0x" + Integer.toHexString(MipsEncoder.TEXT_BASE + 4 * i) +
+                                " is read by the next instruction at 0x" +
+                                Integer.toHexString(MipsEncoder.TEXT_BASE + 4 * n));
+                }
+            }
+        }
+        return hazards;
+    }
+
+    // whether the machine instruction reads register r
+    private static boolean reads(int word, int r) {
+        int op = word >>> 26;
+        int rs = (word >> 21) & 31;
+        int rt = (word >> 16) & 31;
+        switch (op) {
+        case 0:
+            switch (word & 0x3f) {
+            case 0x00: case 0x02: case 0x03:        // shifts by an amount
+                return rt == r;
+            case 0x08: case 0x09:                   // jr, jalr
+                return rs == r;
+            case 0x0c:                              // syscall: the service in $v0, the argument in $a0
+                return r == 2 || r == 4;
+            case 0x10: case 0x12:                   // mfhi, mflo
+                return false;
+            default:
+                return rs == r || rt == r;
+            }
+        case 1: case 6: case 7:                     // bltz, bgez, blez, bgtz
+            return rs == r;
+        case 2: case 3: case 0x0f:                  // j, jal, lui
+            return false;
+        case 4: case 5:                             // beq, bne
+            return rs == r || rt == r;
+        case 0x28: case 0x29: case 0x2b:            // stores read the value too
+            return rs == r || rt == r;
+        default:                                    // immediate operations and loads
+            return rs == r;
+        }
+    }
+
+    // **********************************************************************
+    // schedule
+    //    writes out the current block, closed by branch (null if the block
+    //    falls through)
+    // **********************************************************************
+    private void schedule(Insn branch) {
+        renameCopies(branch);
+        Insn slot = null;
+        if (branch != null) {
+            slot = findDelaySlot(branch);
+            if (slot != null) block.remove(slot);
+        }
+        for (int i = 0; i < block.size(); i++) {
+            for (int j = 0; j < i; j++) {
+                if (block.get(i).dependsOn(block.get(j))) block.get(i).preds.add(block.get(j));
+            }
+        }
+        if (branch != null) {
+            for (Insn insn : block) {
+                if (branch.dependsOn(insn)) insn.height = latency(insn);
+            }
+        }
+        for (int i = block.size() - 1; i >= 0; i--) {
+            for (Insn pred : block.get(i).preds) {
+                pred.height = Math.max(pred.height, block.get(i).height + latency(pred));
+            }
+        }
+        for (int left = block.size(); left > 0; left--) {
+            Insn next = null;
+            boolean stall = true;
+            for (Insn insn : block) {
+                if (insn.done || !ready(insn)) continue;
+                boolean waits = insn.waitsFor(lastWritten);
+                if (next == null || (stall && !waits) || (stall == waits && insn.height > next.height)) {
+                    next = insn;
+                    stall = waits;
+                }
+            }
+            if (stall) writeNop("load delay slot");
+            write(next);
+            next.done = true;
+        }
+        block.clear();
+        if (branch == null) {
+            for (String line : comments) Codegen.write(line);
+            comments.clear();
+            return;
+        }
+        if (branch.waitsFor(lastWritten)) writeNop("load delay slot");
+        write(branch);
+        if (slot != null) {
+            write(slot);
+        } else {
+            writeNop("branch delay slot");
+        }
+        lastWritten = null; // whatever comes next is reached by a jump
+    }
+
+    // **********************************************************************
+    // renameCopies
+    //    x computes $a0, the next instruction copies it into another
+    //    register and $a0 is overwritten before anybody reads it: x computes
+    //    into that register right away and the copy goes
+    // **********************************************************************
+    private void renameCopies(Insn branch) {
+        for (int i = 0; i + 1 < block.size(); i++) {
+            Insn x = block.get(i);
+            Insn copy = block.get(i + 1);
+            if (!copy.op.equals("move") || !copy.args[1].trim().equals("$a0") || !computesA0(x)) continue;
+            if (!overwritten("$a0", i + 2, branch)) continue;
+            String target = copy.args[0].trim();
+            String[] args = x.args.clone();
+            args[0] = target;
+            x.line = x.line.replaceFirst("\\$a0", java.util.regex.Matcher.quoteReplacement(target));
+            Insn renamed = analyze(x.line, x.op, args);
+            renamed.comments = x.comments;
+            renamed.comments.addAll(copy.comments);
+            block.set(i, renamed);
+            block.remove(i + 1);
+        }
+    }
+
+    // true if x writes $a0 (its first operand) and nothing else that matters
+    private static boolean computesA0(Insn x) {
+        if (!x.args[0].trim().equals("$a0") || !x.defs.contains("$a0")) return false;
+        for (String def : x.defs) {
+            if (!def.equals("$a0") && !def.equals("$at")) return false;
+        }
+        return true;
+    }
+
+    // true if reg is written before it is read, starting at block[from] (the branch comes last)
+    private boolean overwritten(String reg, int from, Insn branch) {
+        for (int j = from; j <= block.size(); j++) {
+            Insn insn = j < block.size() ? block.get(j) : branch;
+            if (insn == null) return false;
+            if (insn.uses.contains(reg) || insn.uses.contains(ALL)) return false;
+            if (insn.defs.contains(reg)) return true;
+        }
+        return false;
+    }
+
+    // the last instruction of the block that can just as well run after the branch
+    private Insn findDelaySlot(Insn branch) {
+        for (int i = block.size() - 1; i >= 0; i--) {
+            Insn candidate = block.get(i);
+            if (candidate.singleWord && !candidate.load && !candidate.uses.contains(ALL)
+                && !branch.dependsOn(candidate)) {
+                boolean needed = false;
+                for (int j = i + 1; j < block.size(); j++) {
+                    if (block.get(j).dependsOn(candidate)) needed = true;
+                }
+                if (!needed) return candidate;
+            }
+            if (candidate.uses.contains(ALL)) return null;
+        }
+        return null;
+    }
+
+    // a load takes an extra cycle before its result can be used
+    private static int latency(Insn insn) {
+        return insn.load ? 2 : 1;
+    }
+
+    private boolean ready(Insn insn) {
+        for (Insn pred : insn.preds) {
+            if (!pred.done) return false;
+        }
+        return true;
+    }
+
+    private void write(Insn insn) {
+        for (String line : insn.comments) Codegen.write(line);
+        Codegen.write(insn.line, insn.op, insn.args);
+        lastWritten = insn;
+    }
+
+    private void writeNop(String comment) {
+        Codegen.write("\tnop\t\t#" + comment, "nop");
+        lastWritten = null;
+        nops++;
+    }
+
+    // **********************************************************************
+    // analyze
+    //    registers an instruction reads and writes
+    // **********************************************************************
+    private static Insn analyze(String line, String op, String[] given) {
+        Insn insn = new Insn();
+        insn.line = line;
+        insn.op = op;
+        insn.args = given;
+        ArrayList<String> list = new ArrayList<String>();
+        for (String a : given) {
+            if (a != null && !a.equals("")) list.add(a.trim());
+        }
+        String[] a = list.toArray(new String[0]);
+        insn.singleWord = MipsEncoder.sizeOf(op, a) == 1;
+        switch (op) {
+        case "add": case "addu": case "sub": case "subu": case "and": case "or": case "xor": case "nor":
+        case "slt": case "sltu": case "sllv": case "seq": case "sne": case "sle": case "sgt": case "sge":
+        case "addi": case "addiu": case "slti": case "sltiu": case "andi": case "ori": case "xori":
+        case "sll": case "srl": case "sra":
+            def(insn, a[0]);
+            use(insn, a[1]);
+            use(insn, a[2]);
+            break;
+        case "mul": case "rem":
+            def(insn, a[0]);
+            use(insn, a[1]);
+            use(insn, a[2]);
+            insn.defs.add("hi");
+            insn.defs.add("lo");
+            break;
+        case "div":
+            if (a.length == 3) {
+                def(insn, a[0]);
+                use(insn, a[1]);
+                use(insn, a[2]);
+            } else {
+                use(insn, a[0]);
+                use(insn, a[1]);
+            }
+            insn.defs.add("hi");
+            insn.defs.add("lo");
+            break;
+        case "mult":
+            use(insn, a[0]);
+            use(insn, a[1]);
+            insn.defs.add("hi");
+            insn.defs.add("lo");
+            break;
+        case "mflo":
+            def(insn, a[0]);
+            insn.uses.add("lo");
+            break;
+        case "mfhi":
+            def(insn, a[0]);
+            insn.uses.add("hi");
+            break;
+        case "move": case "neg": case "negu": case "not":
+            def(insn, a[0]);
+            use(insn, a[1]);
+            break;
+        case "li": case "lui":
+            def(insn, a[0]);
+            break;
+        case "la":
+            def(insn, a[0]);
+            insn.defs.add("$at");
+            break;
+        case "lw": case "lb": case "lbu":
+            def(insn, a[0]);
+            address(insn, a[1]);
+            insn.uses.add(MEMORY);
+            insn.load = true;
+            break;
+        case "sw": case "sb":
+            use(insn, a[0]);
+            address(insn, a[1]);
+            insn.defs.add(MEMORY);
+            break;
+        case "beq": case "bne":
+            use(insn, a[0]);
+            use(insn, a[1]);
+            break;
+        case "blt": case "bgt": case "ble": case "bge":
+            use(insn, a[0]);
+            use(insn, a[1]);
+            insn.defs.add("$at");
+            break;
+        case "beqz": case "bnez": case "blez": case "bgtz": case "bltz": case "bgez": case "jr":
+            use(insn, a[0]);
+            break;
+        case "jalr":
+            use(insn, a[0]);
+            insn.defs.add("$ra");
+            break;
+        case "jal":
+            insn.defs.add("$ra");
+            break;
+        case "j": case "b": case "nop":
+            break;
+        default:
+            // syscall and anything unknown: nothing moves across it
+            insn.uses.add(ALL);
+            insn.defs.add(ALL);
+            break;
+        }
+        return insn;
+    }
+
+    private static boolean isBranch(String op) {
+        switch (op) {
+        case "j": case "b": case "jal": case "jr": case "jalr":
+        case "beq": case "bne": case "blt": case "bgt": case "ble": case "bge":
+        case "beqz": case "bnez": case "blez": case "bgtz": case "bltz": case "bgez":
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static void use(Insn insn, String arg) {
+        if (arg.startsWith("$") && !arg.equals("$zero") && !arg.equals("$0")) insn.uses.add(arg);
+    }
+
+    private static void def(Insn insn, String arg) {
+        if (arg.startsWith("$") && !arg.equals("$zero") && !arg.equals("$0")) insn.defs.add(arg);
+    }
+
+    // off(reg) reads reg, a label is reached through $at
+    private static void address(Insn insn, String arg) {
+        int paren = arg.indexOf('(');
+        if (paren >= 0) {
+            use(insn, arg.substring(paren + 1, arg.indexOf(')')));
+        } else {
+            insn.defs.add("$at");
+        }
+    }
+
+    private static boolean overlaps(HashSet<String> a, HashSet<String> b) {
+        if (a.contains(ALL) || b.contains(ALL)) return true;
+        for (String x : a) {
+            if (b.contains(x)) return true;
+        }
+        return false;
+    }
+}
@@ -1,3 +1,5 @@
+import java.util.ArrayList;
+
 // **********************************************************************
 // Sequence class
 //
@@ -23,6 +25,9 @@
 //                        -- current object be current (if the current
 //                        -- object was the last object in the Sequence,
 //                        -- then make there be NO current object)
+// void replaceCurrent(Object ob)
+//                        -- error if there is no current object
+//                        -- otherwise, replace the current object by ob
 //
 // other operations
 // ----------------
@@ -30,6 +35,10 @@
 // boolean isCurrent()    -- return true iff there is a current object
 // Object getCurrent()    -- error if there is no current object
 //                        -- otherwise, return the current object
+// ArrayList<Object> items()
+//                        -- return the objects in order, without
+//                        -- touching the current object (so it can be
+//                        -- used while the Sequence is being iterated)
 // 
 // **********************************************************************
 public class Sequence {
@@ -134,11 +143,31 @@ public class Sequence {
 	size++;
     }
 
+    // ******************
+    // * replaceCurrent
+    // ******************
+    public void replaceCurrent(Object ob) throws NoCurrentException {
+	if (current == null) {
+	    throw new NoCurrentException();
+	}
+	current.data = ob;
+    }
+
     // ******************
     // * isCurrent
     // ******************
     public boolean isCurrent() {
 	return(current != null);
     }
-}
 
+    // ******************
+    // * items
+    // ******************
+    public ArrayList<Object> items() {
+	ArrayList<Object> result = new ArrayList<Object>();
+	for (Seqnode node = header.next; node != null; node = node.next) {
+	    result.add(node.data);
+	}
+	return result;
+    }
+}
@@ -0,0 +1,604 @@
+import java.io.*;
+import java.util.Map;
+
+// **********************************************************************
+// Simulator class
+//
+// Runs the machine code the binary backend (MipsEncoder) produces, inside
+// the compiler: P5 -run.  Memory is the text segment, the data segment and
+// a stack below the SPIM stack pointer; the system calls are the ones the
+// generated code makes (print int, print string, print char, exit).
+//
+// The program is decoded once, before it runs: link() turns every
+// instruction into a handler that does just what that instruction does,
+// so running it is one call per instruction (threaded code) instead of
+// taking the instruction word apart again every time, as step() does.
+// Handlers for the sequences Codegen writes over and over - genPush,
+// genPop, the frame set up and taken down, li $t1, -1 and the branch that
+// tests a boolean - do the whole sequence in one call (superinstructions).
+// step() is kept to compare against (P5 -benchmark).
+//
+// With a Jit
+// (P5 -jit) the simulator counts how often every basic block is entered,
+// and the Jit translates the hot ones, together with the blocks around
+// them, into JVM bytecode.  The loop in run() is the dispatcher: where a
+// translation starts, it runs the translation, which returns the address
+// it left off at; everything else is interpreted.
+//
+// Branch delay slots are simulated when the code was scheduled for them
+// (P5 -pipeline).  Loads are interlocked, a loaded register can be used by
+// the next instruction, so the load slots the scheduler fills are not
+// checked here; P5 checks them in the code (Scheduler.loadHazards).
+//
+// Arithmetic wraps around.  add, addi and sub would trap on overflow, but
+// Codegen only writes addu, addiu, subu and negu, so they are run like those.
+// **********************************************************************
+public class Simulator {
+    public static final int INITIAL_SP = 0x7fffeffc;   // like SPIM
+    public static final int STACK_BYTES = 1 << 22;
+    public static final int STACK_BASE = 0x80000000 - STACK_BYTES;
+    // hi and lo are kept behind the general registers
+    public static final int HI = 32;
+    public static final int LO = 33;
+
+    // P5 -benchmark: runs not timed, then timed ones until this much time went by
+    public static final int WARMUP = 5;
+    public static final long BENCHMARK_NANOS = 500000000L;
+
+    // what the Jit makes: runs a part of the program, returns the address to go on at
+    public interface Translated {
+        int run(Simulator sim);
+    }
+
+    // threaded code: runs the instruction(s) at pc, returns the address to go on at
+    private interface Handler {
+        int run(int pc);
+    }
+
+    public Simulator(MipsEncoder image, boolean delaySlots) {
+        myText = image.textWords();
+        byte[] data = image.dataBytes();
+        myData = new int[(data.length + 3) / 4];
+        for (int i = 0; i < data.length; i++) {
+            myData[i >> 2] |= (data[i] & 0xff) << (8 * (i & 3));
+        }
+        myStack = new int[STACK_BYTES / 4];
+        myDelaySlots = delaySlots;
+        myLabels = image.labelAddresses();
+        myPc = image.entryPoint();
+        regs[29] = INITIAL_SP;
+        link(true);
+    }
+
+    public void useJit(int threshold) {
+        myJit = new Jit(myText, myLabels, myDelaySlots, threshold);
+    }
+
+    public Jit getJit() {
+        return myJit;
+    }
+
+    public long interpreted() {
+        return myInterpreted;
+    }
+
+    public long dispatches() {
+        return myDispatches;
+    }
+
+    public int superinstructions() {
+        return mySuperinstructions;
+    }
+
+    // runs the program until it exits, its output goes to out
+    public void run(PrintStream out) {
+        myOut = new StringBuilder();
+        myRunning = true;
+        try {
+            while (myRunning) {
+                // the dispatcher: translated code only starts at the start of a block
+                if (myJit != null && !myInSlot) {
+                    Translated code = myJit.enter(this, myPc);
+                    if (code != null) {
+                        myPc = code.run(this);
+                        continue;
+                    }
+                }
+                myDispatches++;
+                // the compile server gives up on runs that take too long (CompileServer)
+                if ((myDispatches & 0xfffff) == 0 && Thread.interrupted()) {
+                    throw new IllegalStateException("interrupted at " + hex(myPc));
+                }
+                if (myCode == null) {
+                    step();
+                } else {
+                    int index = (myPc - MipsEncoder.TEXT_BASE) >> 2;
+                    if (index < 0 || index >= myCode.length) {
+                        throw new IllegalStateException("pc " + hex(myPc) + " is outside the text segment");
+                    }
+                    myInterpreted += myLength[index];
+                    myPc = myCode[index].run(myPc);
+                }
+            }
+        } finally {
+            out.print(myOut);
+            out.flush();
+        }
+    }
+
+    // **********************************************************************
+    // benchmark
+    //    runs the program with each kind of dispatch and reports how many
+    //    instructions a second are simulated.  The output of the program is
+    //    thrown away
+    // **********************************************************************
+    public static void benchmark(MipsEncoder image, boolean delaySlots, PrintStream report) {
+        String[] kinds = { "switch", "threaded", "superinstructions" };
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        for (int kind = 0; kind < kinds.length; kind++) {
+            long nanos = 0, instructions = 0, dispatches = 0;
+            for (int round = 0; round < WARMUP || nanos < BENCHMARK_NANOS; round++) {
+                Simulator sim = new Simulator(image, delaySlots);
+                if (kind == 0) {
+                    sim.unlink();
+                } else {
+                    sim.link(kind == 2);
+                }
+                long start = System.nanoTime();
+                sim.run(discard);
+                if (round >= WARMUP) {
+                    nanos += System.nanoTime() - start;
+                    instructions += sim.interpreted();
+                    dispatches += sim.dispatches();
+                }
+            }
+            report.printf("Benchmark: %-17s %7.1f million instructions/s, %.2f instructions per dispatch%n",
+                          kinds[kind], instructions * 1000.0 / nanos, (double)instructions / dispatches);
+        }
+    }
+
+    // **********************************************************************
+    // link
+    //    makes the handler for every instruction, with or without
+    //    superinstructions; unlink goes back to step()
+    // **********************************************************************
+    public void link(boolean superinstructions) {
+        myCode = new Handler[myText.length];
+        myLength = new int[myText.length];
+        mySuperinstructions = 0;
+        for (int i = 0; i < myText.length; i++) {
+            if (superinstructions) myCode[i] = fuse(i);
+            if (myCode[i] != null) {
+                mySuperinstructions++;
+            } else {
+                myCode[i] = decode(i);
+                myLength[i] = slotOf(i) == null ? 1 : 2;
+            }
+        }
+    }
+
+    public void unlink() {
+        myCode = null;
+        myLength = null;
+    }
+
+    // the handler for the delay slot of the branch at index, null if there is none
+    private Handler slotOf(int index) {
+        int w = myText[index];
+        int op = w >>> 26;
+        boolean branch = op == 0 ? (w & 63) == 0x08 || (w & 63) == 0x09 : op >= 0x01 && op <= 0x07;
+        if (!myDelaySlots || !branch || index + 1 >= myText.length) return null;
+        return decode(index + 1);
+    }
+
+    // **********************************************************************
+    // decode
+    //    the handler for one instruction (and its delay slot); the same
+    //    semantics as step
+    // **********************************************************************
+    private Handler decode(int index) {
+        int w = myText[index];
+        int op = w >>> 26;
+        int rs = (w >> 21) & 31;
+        int rt = (w >> 16) & 31;
+        int rd = (w >> 11) & 31;
+        int sa = (w >> 6) & 31;
+        int imm = (short)w;
+        int uimm = w & 0xffff;
+        // branches: where they go relative to their address, and where they fall through to
+        Handler slot = slotOf(index);
+        int offset = 4 + (imm << 2);
+        int next = slot == null ? 4 : 8;
+        int target = jumpTarget(MipsEncoder.TEXT_BASE + 4 * index, w);
+        switch (op) {
+        case 0:
+            switch (w & 63) {
+            case 0x00: return pc -> { set(rd, regs[rt] << sa); return pc + 4; };
+            case 0x02: return pc -> { set(rd, regs[rt] >>> sa); return pc + 4; };
+            case 0x03: return pc -> { set(rd, regs[rt] >> sa); return pc + 4; };
+            case 0x04: return pc -> { set(rd, regs[rt] << regs[rs]); return pc + 4; };
+            case 0x08: return pc -> {
+                int to = regs[rs];
+                if (slot != null) slot.run(pc + 4);
+                return to;
+            };
+            case 0x09: return pc -> {
+                int to = regs[rs];
+                set(31, pc + next);
+                if (slot != null) slot.run(pc + 4);
+                return to;
+            };
+            case 0x0c: return pc -> { syscall(); return pc + 4; };
+            case 0x10: return pc -> { set(rd, regs[HI]); return pc + 4; };
+            case 0x12: return pc -> { set(rd, regs[LO]); return pc + 4; };
+            case 0x18: return pc -> {
+                long product = (long)regs[rs] * regs[rt];
+                regs[LO] = (int)product;
+                regs[HI] = (int)(product >> 32);
+                return pc + 4;
+            };
+            case 0x1a: return pc -> {
+                if (regs[rt] != 0) {
+                    regs[LO] = regs[rs] / regs[rt];
+                    regs[HI] = regs[rs] % regs[rt];
+                }
+                return pc + 4;
+            };
+            case 0x20: case 0x21: return pc -> { set(rd, regs[rs] + regs[rt]); return pc + 4; };
+            case 0x22: case 0x23: return pc -> { set(rd, regs[rs] - regs[rt]); return pc + 4; };
+            case 0x24: return pc -> { set(rd, regs[rs] & regs[rt]); return pc + 4; };
+            case 0x25: return pc -> { set(rd, regs[rs] | regs[rt]); return pc + 4; };
+            case 0x26: return pc -> { set(rd, regs[rs] ^ regs[rt]); return pc + 4; };
+            case 0x27: return pc -> { set(rd, ~(regs[rs] | regs[rt])); return pc + 4; };
+            case 0x2a: return pc -> { set(rd, lessThan(regs[rs], regs[rt])); return pc + 4; };
+            case 0x2b: return pc -> { set(rd, lessThanUnsigned(regs[rs], regs[rt])); return pc + 4; };
+            default: return pc -> { throw illegal(pc, w); };
+            }
+        case 0x01:
+            if (rt == 0) {
+                return pc -> {
+                    boolean taken = regs[rs] < 0;
+                    if (slot != null) slot.run(pc + 4);
+                    return taken ? pc + offset : pc + next;
+                };
+            }
+            return pc -> {
+                boolean taken = regs[rs] >= 0;
+                if (slot != null) slot.run(pc + 4);
+                return taken ? pc + offset : pc + next;
+            };
+        case 0x02: return pc -> {
+            if (slot != null) slot.run(pc + 4);
+            return target;
+        };
+        case 0x03: return pc -> {
+            set(31, pc + next);
+            if (slot != null) slot.run(pc + 4);
+            return target;
+        };
+        case 0x04: return pc -> {
+            boolean taken = regs[rs] == regs[rt];
+            if (slot != null) slot.run(pc + 4);
+            return taken ? pc + offset : pc + next;
+        };
+        case 0x05: return pc -> {
+            boolean taken = regs[rs] != regs[rt];
+            if (slot != null) slot.run(pc + 4);
+            return taken ? pc + offset : pc + next;
+        };
+        case 0x06: return pc -> {
+            boolean taken = regs[rs] <= 0;
+            if (slot != null) slot.run(pc + 4);
+            return taken ? pc + offset : pc + next;
+        };
+        case 0x07: return pc -> {
+            boolean taken = regs[rs] > 0;
+            if (slot != null) slot.run(pc + 4);
+            return taken ? pc + offset : pc + next;
+        };
+        case 0x08: case 0x09: return pc -> { set(rt, regs[rs] + imm); return pc + 4; };
+        case 0x0a: return pc -> { set(rt, lessThan(regs[rs], imm)); return pc + 4; };
+        case 0x0b: return pc -> { set(rt, lessThanUnsigned(regs[rs], imm)); return pc + 4; };
+        case 0x0c: return pc -> { set(rt, regs[rs] & uimm); return pc + 4; };
+        case 0x0d: return pc -> { set(rt, regs[rs] | uimm); return pc + 4; };
+        case 0x0e: return pc -> { set(rt, regs[rs] ^ uimm); return pc + 4; };
+        case 0x0f: return pc -> { set(rt, w << 16); return pc + 4; };
+        case 0x20: return pc -> { set(rt, loadByte(regs[rs] + imm)); return pc + 4; };
+        case 0x23: return pc -> { set(rt, loadWord(regs[rs] + imm)); return pc + 4; };
+        case 0x24: return pc -> { set(rt, loadByte(regs[rs] + imm) & 0xff); return pc + 4; };
+        case 0x28: return pc -> { storeByte(regs[rs] + imm, regs[rt]); return pc + 4; };
+        case 0x2b: return pc -> { storeWord(regs[rs] + imm, regs[rt]); return pc + 4; };
+        default: return pc -> { throw illegal(pc, w); };
+        }
+    }
+
+    // **********************************************************************
+    // fuse
+    //    a superinstruction for the sequence starting at index, null if it
+    //    is not one of them.  Jumping into the middle of a sequence is fine,
+    //    the next instruction has a handler of its own
+    // **********************************************************************
+    private Handler fuse(int index) {
+        if (index + 1 >= myText.length) return null;
+        int w = myText[index];
+        int v = myText[index + 1];
+        int r = (w >> 16) & 31;
+        int n = (short)w;
+        int m = (short)v;
+        // genPush: sw $r, 0($sp); subu $sp, $sp, 4
+        if (w >>> 21 == (0x2b << 5 | 29) && n == 0 && v == addiuSp(-4)) {
+            myLength[index] = 2;
+            return pc -> {
+                int sp = regs[29];
+                storeWord(sp, regs[r]);
+                regs[29] = sp - 4;
+                return pc + 8;
+            };
+        }
+        // genPop: lw $r, 4($sp); addu $sp, $sp, 4
+        if (w >>> 21 == (0x23 << 5 | 29) && n == 4 && r != 29 && v == addiuSp(4)) {
+            myLength[index] = 2;
+            return pc -> {
+                int sp = regs[29];
+                set(r, loadWord(sp + 4));
+                regs[29] = sp + 4;
+                return pc + 8;
+            };
+        }
+        // allocating the frame: subu $sp, $sp, n; sw $r, m($sp)
+        int saved = (v >> 16) & 31;
+        if (w >>> 16 == (0x09 << 10 | 29 << 5 | 29) && n < 0 && v >>> 21 == (0x2b << 5 | 29) && saved != 29) {
+            myLength[index] = 2;
+            return pc -> {
+                int sp = regs[29] + n;
+                regs[29] = sp;
+                storeWord(sp + m, regs[saved]);
+                return pc + 8;
+            };
+        }
+        // popping the frame and returning: addu $sp, $sp, n; jr $ra
+        int to = (v >> 21) & 31;
+        if (w >>> 16 == (0x09 << 10 | 29 << 5 | 29) && n > 0 && (v & 0xfc1fffff) == 0x08 && to != 29) {
+            Handler slot = slotOf(index + 1);
+            myLength[index] = slot == null ? 2 : 3;
+            return pc -> {
+                regs[29] += n;
+                int address = regs[to];
+                if (slot != null) slot.run(pc + 8);
+                return address;
+            };
+        }
+        // testing a boolean: li $r, n; beq/bne $x, $r, label
+        int op = v >>> 26;
+        int x = ((v >> 21) & 31) == r ? (v >> 16) & 31 : (v >> 21) & 31;
+        if (w >>> 21 == 0x09 << 5 && r != 0 && (op == 0x04 || op == 0x05)
+            && (((v >> 21) & 31) == r || ((v >> 16) & 31) == r)) {
+            Handler slot = slotOf(index + 1);
+            boolean equal = op == 0x04;
+            int offset = 8 + (m << 2);
+            int next = slot == null ? 8 : 12;
+            myLength[index] = slot == null ? 2 : 3;
+            return pc -> {
+                regs[r] = n;
+                boolean taken = (regs[x] == n) == equal;
+                if (slot != null) slot.run(pc + 8);
+                return taken ? pc + offset : pc + next;
+            };
+        }
+        return null;
+    }
+
+    private static int addiuSp(int n) {
+        return 0x09 << 26 | 29 << 21 | 29 << 16 | (n & 0xffff);
+    }
+
+    // **********************************************************************
+    // step
+    //    runs the instruction at the pc.  In a delay slot the pc goes to the
+    //    branch target afterwards, otherwise to the next instruction or the
+    //    target of a branch (after the delay slot, if there are any)
+    // **********************************************************************
+    public void step() {
+        int pc = myPc;
+        int index = (pc - MipsEncoder.TEXT_BASE) >> 2;
+        if (index < 0 || index >= myText.length || (pc & 3) != 0) {
+            throw new IllegalStateException("pc " + hex(pc) + " is outside the text segment");
+        }
+        int w = myText[index];
+        myInterpreted++;
+        int op = w >>> 26;
+        int rs = (w >> 21) & 31;
+        int rt = (w >> 16) & 31;
+        int rd = (w >> 11) & 31;
+        int imm = (short)w;
+        int target = -1;  // taken branch or jump
+        switch (op) {
+        case 0:
+            switch (w & 63) {
+            case 0x00: set(rd, regs[rt] << ((w >> 6) & 31)); break;
+            case 0x02: set(rd, regs[rt] >>> ((w >> 6) & 31)); break;
+            case 0x03: set(rd, regs[rt] >> ((w >> 6) & 31)); break;
+            case 0x04: set(rd, regs[rt] << regs[rs]); break;
+            case 0x08: target = regs[rs]; break;
+            case 0x09: target = regs[rs]; set(31, pc + (myDelaySlots ? 8 : 4)); break;
+            case 0x0c: syscall(); break;
+            case 0x10: set(rd, regs[HI]); break;
+            case 0x12: set(rd, regs[LO]); break;
+            case 0x18: {
+                long product = (long)regs[rs] * regs[rt];
+                regs[LO] = (int)product;
+                regs[HI] = (int)(product >> 32);
+                break;
+            }
+            case 0x1a:
+                // MIPS does not trap, the result is simply undefined - here it stays what it was
+                if (regs[rt] != 0) {
+                    regs[LO] = regs[rs] / regs[rt];
+                    regs[HI] = regs[rs] % regs[rt];
+                }
+                break;
+            case 0x20: case 0x21: set(rd, regs[rs] + regs[rt]); break;
+            case 0x22: case 0x23: set(rd, regs[rs] - regs[rt]); break;
+            case 0x24: set(rd, regs[rs] & regs[rt]); break;
+            case 0x25: set(rd, regs[rs] | regs[rt]); break;
+            case 0x26: set(rd, regs[rs] ^ regs[rt]); break;
+            case 0x27: set(rd, ~(regs[rs] | regs[rt])); break;
+            case 0x2a: set(rd, lessThan(regs[rs], regs[rt])); break;
+            case 0x2b: set(rd, lessThanUnsigned(regs[rs], regs[rt])); break;
+            default: throw illegal(pc, w);
+            }
+            break;
+        case 0x01:
+            if (rt == 0 ? regs[rs] < 0 : regs[rs] >= 0) target = pc + 4 + (imm << 2);
+            break;
+        case 0x02: target = jumpTarget(pc, w); break;
+        case 0x03: target = jumpTarget(pc, w); set(31, pc + (myDelaySlots ? 8 : 4)); break;
+        case 0x04: if (regs[rs] == regs[rt]) target = pc + 4 + (imm << 2); break;
+        case 0x05: if (regs[rs] != regs[rt]) target = pc + 4 + (imm << 2); break;
+        case 0x06: if (regs[rs] <= 0) target = pc + 4 + (imm << 2); break;
+        case 0x07: if (regs[rs] > 0) target = pc + 4 + (imm << 2); break;
+        case 0x08: case 0x09: set(rt, regs[rs] + imm); break;
+        case 0x0a: set(rt, lessThan(regs[rs], imm)); break;
+        case 0x0b: set(rt, lessThanUnsigned(regs[rs], imm)); break;
+        case 0x0c: set(rt, regs[rs] & (w & 0xffff)); break;
+        case 0x0d: set(rt, regs[rs] | (w & 0xffff)); break;
+        case 0x0e: set(rt, regs[rs] ^ (w & 0xffff)); break;
+        case 0x0f: set(rt, w << 16); break;
+        case 0x20: set(rt, loadByte(regs[rs] + imm)); break;
+        case 0x23: set(rt, loadWord(regs[rs] + imm)); break;
+        case 0x24: set(rt, loadByte(regs[rs] + imm) & 0xff); break;
+        case 0x28: storeByte(regs[rs] + imm, regs[rt]); break;
+        case 0x2b: storeWord(regs[rs] + imm, regs[rt]); break;
+        default: throw illegal(pc, w);
+        }
+        if (myInSlot) {
+            myInSlot = false;
+            myPc = mySlotTarget;
+        } else if (target == -1) {
+            myPc = pc + 4;
+        } else if (myDelaySlots) {
+            myInSlot = true;
+            mySlotTarget = target;
+            myPc = pc + 4;
+        } else {
+            myPc = target;
+        }
+    }
+
+    private void set(int reg, int value) {
+        if (reg != 0) regs[reg] = value;
+    }
+
+    private static int jumpTarget(int pc, int w) {
+        return (pc & 0xf0000000) | ((w & 0x03ffffff) << 2);
+    }
+
+    // **********************************************************************
+    // syscall
+    //    the translated code leaves these to the interpreter
+    // **********************************************************************
+    private void syscall() {
+        switch (regs[2]) {
+        case 1:
+            myOut.append(regs[4]);
+            break;
+        case 4:
+            for (int address = regs[4]; ; address++) {
+                int c = loadByte(address) & 0xff;
+                if (c == 0) break;
+                myOut.append((char)c);
+            }
+            break;
+        case 11:
+            myOut.append((char)(regs[4] & 0xff));
+            break;
+        case 10:
+            myRunning = false;
+            break;
+        default:
+            throw new IllegalStateException("unknown syscall " + regs[2] + " at " + hex(myPc));
+        }
+    }
+
+    // **********************************************************************
+    // memory, little endian like the ELF image.  Called by translated code
+    // as well, so these are public
+    // **********************************************************************
+    public int loadWord(int address) {
+        if ((address & 3) != 0) throw unaligned(address);
+        int offset = address - STACK_BASE;
+        if (offset >= 0 && offset < STACK_BYTES) return myStack[offset >> 2];
+        offset = address - MipsEncoder.DATA_BASE;
+        if (offset >= 0 && offset < myData.length * 4) return myData[offset >> 2];
+        throw outside(address);
+    }
+
+    public void storeWord(int address, int value) {
+        if ((address & 3) != 0) throw unaligned(address);
+        int offset = address - STACK_BASE;
+        if (offset >= 0 && offset < STACK_BYTES) {
+            myStack[offset >> 2] = value;
+            return;
+        }
+        offset = address - MipsEncoder.DATA_BASE;
+        if (offset >= 0 && offset < myData.length * 4) {
+            myData[offset >> 2] = value;
+            return;
+        }
+        throw outside(address);
+    }
+
+    // sign extended, like lb
+    public int loadByte(int address) {
+        int word = loadWord(address & ~3);
+        return (byte)(word >> (8 * (address & 3)));
+    }
+
+    public void storeByte(int address, int value) {
+        int shift = 8 * (address & 3);
+        int word = loadWord(address & ~3);
+        storeWord(address & ~3, (word & ~(0xff << shift)) | ((value & 0xff) << shift));
+    }
+
+    public static int lessThan(int a, int b) {
+        return a < b ? 1 : 0;
+    }
+
+    public static int lessThanUnsigned(int a, int b) {
+        return Integer.compareUnsigned(a, b) < 0 ? 1 : 0;
+    }
+
+    private IllegalStateException unaligned(int address) {
+        return new IllegalStateException("unaligned access to " + hex(address) + " near " + hex(myPc));
+    }
+
+    private IllegalStateException outside(int address) {
+        return new IllegalStateException("access to " + hex(address) + " outside data and stack near " + hex(myPc));
+    }
+
+    private IllegalStateException illegal(int pc, int w) {
+        return new IllegalStateException("cannot run instruction " + hex(w) + " at " + hex(pc));
+    }
+
+    static String hex(int value) {
+        return "0x" + Integer.toHexString(value);
+    }
+
+    public int[] regs = new int[34];  // translated code keeps them in locals while it runs
+    private int[] myText;
+    private int[] myData;
+    private int[] myStack;
+    private Map<String, Integer> myLabels;
+    private boolean myDelaySlots;
+    private int myPc;
+    private boolean myInSlot = false;   // the instruction at the pc is in a delay slot
+    private int mySlotTarget;           // where to go after it
+    private boolean myRunning;
+    private StringBuilder myOut;
+    private Jit myJit = null;
+    private Handler[] myCode = null;    // by instruction index, null for step()
+    private int[] myLength;             // instructions each handler runs
+    private int mySuperinstructions = 0;
+    private long myInterpreted = 0;
+    private long myDispatches = 0;
+}
@@ -58,9 +58,21 @@ public class SymbolTable {
 
     Hashtable table;
 	int offset = 0; //offsett for each symtable - it is always a new scope so starting at 4
+	// frame layout: 0($fp) holds the saved $ra and -4($fp) the saved $fp, so locals grow downwards from -8
+	int localOffset = -4; // offset of the last local slot handed out in this scope
+	int lowestOffset = -4; // lowest slot used by this scope or any nested block scope
+	int maxCallArgs = 0; // most arguments passed by any call in this scope, sizes the outgoing argument area
 
     SymbolTable () { table = new Hashtable(); }
 
+	// nested block scope - starts handing out slots right below the enclosing scope,
+	// so sibling blocks reuse the same slots since their variables are never alive at the same time
+	SymbolTable (SymbolTable enclosing) {
+		this();
+		localOffset = enclosing.localOffset;
+		lowestOffset = enclosing.localOffset;
+	}
+
     public Sym lookup (String name) { 
 		return (Sym) table.get(name); 
     }
@@ -83,16 +95,59 @@ public class SymbolTable {
 		return sym;
 	}
 
-	//insert ids
+	//insert ids - locals get the next free slot below the saved registers
 	public Sym insert(String name, int type, boolean isLocal){
+		if (table.containsKey(name))
+			return (Sym) table.get(name);
+		int slot = 0;
+		if (isLocal) {
+			localOffset -= 4;
+			slot = localOffset;
+			lowestOffset = Math.min(lowestOffset, localOffset);
+		}
+		Sym sym = new Sym(name, type, isLocal, slot);
+		table.put(name, sym);
+		return sym;
+	}
+
+	//insert params - they are pushed by the caller, so they live above the frame pointer
+	public Sym insertParam(String name, int type){
 		if (table.containsKey(name))
 			return (Sym) table.get(name);
 		offset+=4;
-		Sym sym = new Sym(name, type, isLocal, offset);
+		Sym sym = new Sym(name, type, true, offset);
 		table.put(name, sym);
 		return sym;
 	}
 
+	// called when a nested block scope is closed, so the enclosing scope knows how deep the frame has to be
+	public void closeNestedScope(SymbolTable nested){
+		lowestOffset = Math.min(lowestOffset, nested.lowestOffset);
+		maxCallArgs = Math.max(maxCallArgs, nested.maxCallArgs);
+	}
+
+	// called for every call site, so the caller can preallocate room for the arguments in its frame
+	public void noteCall(int numArgs){
+		maxCallArgs = Math.max(maxCallArgs, numArgs);
+	}
+
+	// hidden slot for a compiler temporary (e.g. a value hoisted out of a loop). It goes below
+	// everything handed out so far, so it never shares a slot with a variable of a nested block
+	public int newTemp(){
+		lowestOffset -= 4;
+		return lowestOffset;
+	}
+
+	// number of bytes needed below the saved registers for all locals of this scope and its nested blocks
+	public int localBytes(){
+		return -4 - lowestOffset;
+	}
+
+	// number of bytes needed at the bottom of the frame for outgoing arguments
+	public int outgoingBytes(){
+		return maxCallArgs * 4;
+	}
+
 	@Override
 	public String toString() {
 		return table.toString();
@@ -0,0 +1,231 @@
+import java.io.*;
+import java.util.Arrays;
+
+// **********************************************************************
+// VM class
+//
+// Runs a Bytecode program.  The registers of all the frames are one
+// int[] that is allocated once: a call moves the frame pointer past the
+// registers of the caller and copies the args to the first registers of
+// the callee, a return moves it back.  What a return needs (where to go
+// on, the caller's frame, where the result goes) is kept in another
+// int[], so a call allocates nothing.
+//
+// Loading a serialised program and running it:
+//     java VM program.sbc
+//
+// Public Methods
+// ==============
+// run(out)        -- runs main, returns what it printed
+// instructions()  -- executed by the last run
+// **********************************************************************
+public class VM {
+    private static final int STACK_WORDS = 1 << 20;
+    private static final int MAX_DEPTH = 1 << 16;
+
+    public VM(Bytecode program) {
+        myProgram = program;
+        myRegisters = new int[STACK_WORDS];
+        myCalls = new int[4 * MAX_DEPTH];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("please supply the name of a bytecode file");
+            System.exit(-1);
+        }
+        byte[] bytes = java.nio.file.Files.readAllBytes(new File(args[0]).toPath());
+        long start = System.nanoTime();
+        Bytecode program = Bytecode.read(bytes);
+        long loaded = System.nanoTime();
+        new VM(program).run(System.out);
+        System.err.println("VM: loaded " + args[0] + " in " + (loaded - start) / 1000 + " microseconds");
+    }
+
+    public long instructions() {
+        return myInstructions;
+    }
+
+    public String run(PrintStream out) {
+        final int[] code = myProgram.code;
+        final int[] regs = myRegisters;
+        final int[] calls = myCalls;
+        final int[] entries = myProgram.entries;
+        final int[] sizes = myProgram.registers;
+        final int[] params = myProgram.params;
+        final String[] strings = myProgram.strings;
+        final int[] globals = new int[myProgram.globals];
+        StringBuilder output = new StringBuilder();
+        long count = 0;
+
+        int method = myProgram.main;
+        int fp = 0;
+        int size = sizes[method];
+        int depth = 0;
+        int pc = entries[method];
+        Arrays.fill(regs, 0, size, 0);
+
+        try {
+            for (;;) {
+                count++;
+                switch (code[pc]) {
+                case Bytecode.CONST:
+                    regs[fp + code[pc + 1]] = code[pc + 2];
+                    pc += 3;
+                    break;
+                case Bytecode.MOVE:
+                    regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case Bytecode.ADD:
+                    regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] + regs[fp + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case Bytecode.SUB:
+                    regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] - regs[fp + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case Bytecode.MUL:
+                    regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] * regs[fp + code[pc + 3]];
+                    pc += 4;
+                    break;
+                case Bytecode.DIV:
+                case Bytecode.POW:
+                    regs[fp + code[pc + 1]] = Interpreter.apply(code[pc] == Bytecode.DIV ? Interpreter.DIVIDE : Interpreter.POWER,
+                                                                regs[fp + code[pc + 2]], regs[fp + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Bytecode.EQ:
+                    regs[fp + code[pc + 1]] = bool(regs[fp + code[pc + 2]] == regs[fp + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Bytecode.NE:
+                    regs[fp + code[pc + 1]] = bool(regs[fp + code[pc + 2]] != regs[fp + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Bytecode.LT:
+                    regs[fp + code[pc + 1]] = bool(regs[fp + code[pc + 2]] < regs[fp + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Bytecode.GT:
+                    regs[fp + code[pc + 1]] = bool(regs[fp + code[pc + 2]] > regs[fp + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Bytecode.LE:
+                    regs[fp + code[pc + 1]] = bool(regs[fp + code[pc + 2]] <= regs[fp + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Bytecode.GE:
+                    regs[fp + code[pc + 1]] = bool(regs[fp + code[pc + 2]] >= regs[fp + code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case Bytecode.ADDK:
+                    regs[fp + code[pc + 1]] = regs[fp + code[pc + 2]] + code[pc + 3];
+                    pc += 4;
+                    break;
+                case Bytecode.NEG:
+                    regs[fp + code[pc + 1]] = -regs[fp + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case Bytecode.NOT:
+                    regs[fp + code[pc + 1]] = bool(regs[fp + code[pc + 2]] != ConstantTable.TRUE);
+                    pc += 3;
+                    break;
+                case Bytecode.LOADG:
+                    regs[fp + code[pc + 1]] = globals[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case Bytecode.STOREG:
+                    globals[code[pc + 1]] = regs[fp + code[pc + 2]];
+                    pc += 3;
+                    break;
+                case Bytecode.PRINT:
+                    output.append(regs[fp + code[pc + 1]]).append('\n');
+                    pc += 2;
+                    break;
+                case Bytecode.PRINTS:
+                    output.append(strings[regs[fp + code[pc + 1]]]).append('\n');
+                    pc += 2;
+                    break;
+                case Bytecode.JUMP:
+                    pc = code[pc + 1];
+                    break;
+                case Bytecode.JUMPT:
+                    pc = regs[fp + code[pc + 1]] == ConstantTable.TRUE ? code[pc + 2] : pc + 3;
+                    break;
+                case Bytecode.JUMPF:
+                    pc = regs[fp + code[pc + 1]] != ConstantTable.TRUE ? code[pc + 2] : pc + 3;
+                    break;
+                case Bytecode.BEQ:
+                    pc = regs[fp + code[pc + 1]] == regs[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Bytecode.BNE:
+                    pc = regs[fp + code[pc + 1]] != regs[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Bytecode.BLT:
+                    pc = regs[fp + code[pc + 1]] < regs[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Bytecode.BGE:
+                    pc = regs[fp + code[pc + 1]] >= regs[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Bytecode.BGT:
+                    pc = regs[fp + code[pc + 1]] > regs[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Bytecode.BLE:
+                    pc = regs[fp + code[pc + 1]] <= regs[fp + code[pc + 2]] ? code[pc + 3] : pc + 4;
+                    break;
+                case Bytecode.CALL: {
+                    int callee = code[pc + 1];
+                    int n = code[pc + 2];
+                    int args = fp + code[pc + 3];
+                    int calleeFp = fp + size;
+                    int calleeSize = sizes[callee];
+                    if (depth == MAX_DEPTH || calleeFp + calleeSize > regs.length) {
+                        throw new IllegalStateException("stack overflow in " + myProgram.names[callee]);
+                    }
+                    calls[4 * depth] = pc + 5;
+                    calls[4 * depth + 1] = fp;
+                    calls[4 * depth + 2] = code[pc + 4];
+                    calls[4 * depth + 3] = size;
+                    depth++;
+                    System.arraycopy(regs, args, regs, calleeFp, n);
+                    // locals start out 0, the same every run
+                    Arrays.fill(regs, calleeFp + params[callee], calleeFp + calleeSize, 0);
+                    fp = calleeFp;
+                    size = calleeSize;
+                    pc = entries[callee];
+                    break;
+                }
+                case Bytecode.RET:
+                case Bytecode.RET0: {
+                    int value = code[pc] == Bytecode.RET ? regs[fp + code[pc + 1]] : 0;
+                    if (depth == 0) {
+                        myInstructions = count;
+                        out.print(output);
+                        return output.toString();
+                    }
+                    depth--;
+                    pc = calls[4 * depth];
+                    fp = calls[4 * depth + 1];
+                    regs[fp + calls[4 * depth + 2]] = value;
+                    size = calls[4 * depth + 3];
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("bad opcode " + code[pc] + " at " + pc);
+                }
+            }
+        } finally {
+            myInstructions = count;
+        }
+    }
+
+    private static int bool(boolean value) {
+        return value ? ConstantTable.TRUE : ConstantTable.FALSE;
+    }
+
+    private Bytecode myProgram;
+    private int[] myRegisters;
+    private int[] myCalls;   // return pc, frame pointer, result register and frame size of each call
+    private long myInstructions;
+}
@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+// **********************************************************************
+// ValueTable class
+//
+// Book keeping for value numbering (common subexpression elimination).
+// The method body is walked in the order the code runs, and the table
+// knows which arithmetic expressions have been computed already and where
+// their value can be found again: in a local variable they were assigned
+// to, or in a hidden frame slot that the first computation saves into as
+// soon as somebody wants to reuse it.
+//
+// Expressions are identified by ExpNode.valueKey(), which is the same for
+// expressions computing the same value out of the same variables.  An entry
+// dies when one of the variables it reads (or the local holding it) is
+// assigned, entries reading globals also die at every call.  Branches and
+// loop bodies work on a copy of the table, afterwards only what was known
+// before them and is not killed inside them survives - so a value is only
+// reused where its computation is guaranteed to have run.
+// **********************************************************************
+public class ValueTable {
+
+    private static class Entry {
+        HashSet<String> reads;  // varKeys the value depends on
+        IdNode var;             // a local holding the value, or
+        SavedExpNode saved;     // the first computation, which saves its value once it is reused
+
+        Entry(HashSet<String> reads, IdNode var, SavedExpNode saved) {
+            this.reads = reads;
+            this.var = var;
+            this.saved = saved;
+        }
+    }
+
+    public ValueTable(SymbolTable frame) {
+        myFrame = frame;
+    }
+
+    // for a branch or a loop body: starts out knowing what is known here
+    public ValueTable(ValueTable other) {
+        myFrame = other.myFrame;
+        myEntries = new HashMap<String, Entry>(other.myEntries);
+    }
+
+    // returns an expression that reads the already computed value, or null if there is none
+    public ExpNode reuse(String key) {
+        if (key == null || !myEntries.containsKey(key)) return null;
+        Entry entry = myEntries.get(key);
+        if (entry.var != null) return entry.var.copy();
+        if (entry.saved.getTemp() == null) {
+            entry.saved.saveTo(new Loop.Temp(entry.saved, myFrame.newTemp(), null));
+        }
+        return new TempExpNode(entry.saved.getTemp());
+    }
+
+    // exp has just been computed, returns what to use instead of it: a node that can
+    // save the value for later, when that is cheaper than computing it again
+    public ExpNode remember(String key, HashSet<String> reads, ExpNode exp) {
+        if (key == null || !worthSaving(exp)) return exp;
+        SavedExpNode saved = new SavedExpNode(exp);
+        myEntries.put(key, new Entry(reads, null, saved));
+        return saved;
+    }
+
+    // var = exp: from now on the value can be loaded from the variable
+    public void rememberIn(String key, HashSet<String> reads, IdNode var) {
+        if (key == null || !var.isLocal() || reads.contains(var.varKey())) return;
+        HashSet<String> withVar = new HashSet<String>(reads);
+        withVar.add(var.varKey());
+        myEntries.put(key, new Entry(withVar, var, null));
+    }
+
+    // **********************************************************************
+    // kills
+    // **********************************************************************
+    public void kill(String varKey) {
+        for (String key : new ArrayList<String>(myEntries.keySet())) {
+            if (myEntries.get(key).reads.contains(varKey)) myEntries.remove(key);
+        }
+    }
+
+    // a call may change any global
+    public void killGlobals() {
+        for (String key : new ArrayList<String>(myEntries.keySet())) {
+            for (String read : myEntries.get(key).reads) {
+                if (read.startsWith("_")) {
+                    myEntries.remove(key);
+                    break;
+                }
+            }
+        }
+    }
+
+    // everything a branch or a loop may change, see StmtNode.collectAssigned
+    public void killAll(HashMap<String, Integer> assigned, boolean calls) {
+        for (String varKey : assigned.keySet()) kill(varKey);
+        if (calls) killGlobals();
+    }
+
+    // one operation on a variable and a constant is as cheap to redo as it is to save and reload
+    private static boolean worthSaving(ExpNode exp) {
+        if (exp instanceof UnaryExpNode) {
+            return !((UnaryExpNode)exp).myExp.isLeaf();
+        }
+        if (exp instanceof BinaryExpNode) {
+            ExpNode exp1 = ((BinaryExpNode)exp).myExp1;
+            ExpNode exp2 = ((BinaryExpNode)exp).myExp2;
+            return !(exp1.isLeaf() && exp2.isLeaf() && (exp1 instanceof IntLitNode || exp2 instanceof IntLitNode));
+        }
+        return false;
+    }
+
+    private SymbolTable myFrame;
+    private HashMap<String, Entry> myEntries = new HashMap<String, Entry>();
+}
@@ -2,6 +2,9 @@ import java.io.*;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
 import java.util.ArrayList;;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeSet;
 // **********************************************************************
 // The ASTnode class defines the nodes of the abstract-syntax tree that
 // represents a "Simple" program.
@@ -68,6 +71,8 @@ import java.util.ArrayList;;
 //       FalseNode           -- none --
 //       IdNode              -- none --
 //       CallExpNode         IdNode, ExpListNode
+//       TempExpNode         -- none --  (made by loop invariant code motion)
+//       SavedExpNode        ExpNode     (made by value numbering)
 //       UnaryExpNode        ExpNode
 //         UnaryMinusNode
 //         NotNode
@@ -129,7 +134,6 @@ abstract class ASTnode {
 // MethodBodyNode, StmtListNode, ExpListNode, SwitchGroupListNode
 // **********************************************************************
 class ProgramNode extends ASTnode {
-    public static boolean errorNameAnalysis = false;
     public ProgramNode(IdNode id, ClassBodyNode classBody) {
 	myId = id;
 	myClassBody = classBody;
@@ -139,6 +143,13 @@ class ProgramNode extends ASTnode {
         symTabList.addFirst(symTab);
         myId.nameAnalysis(symTabList, scope, Types.ClassType, false); //class name is global
         myClassBody.nameAnalysis(symTabList, scope);
+        CompileContext context = CompileContext.current();
+        if (context.codegen.eliminateDeadMethods) {
+            context.callGraph.computeReachable("main");
+        }
+        if (context.codegen.foldPureCalls) {
+            context.callGraph.computePurity();
+        }
     }
 
     public void decompile(PrintWriter p, int indent) {
@@ -150,19 +161,52 @@ class ProgramNode extends ASTnode {
     }
 
     public void typeCheck(){
-        if(errorNameAnalysis){
+        if(CompileContext.current().errorNameAnalysis){
             Errors.fatal(0, 0, "Name analysis failed, not starting with type check");
             return;
         }
         myClassBody.typeCheck();
     }
 
+    // the interpreter for the program (P5 -interpret). It is made before cgen, which rewrites the methods
+    public Interpreter interpreter(){
+        Interpreter in = new Interpreter();
+        for (MethodDeclNode method : CompileContext.current().methods.values()) {
+            method.addTo(in);
+        }
+        return in;
+    }
+
+    // the program as bytecode (P5 -bytecode, P5 -vm). Made before cgen too
+    public Bytecode bytecode(){
+        Bytecode.Builder b = new Bytecode.Builder();
+        for (MethodDeclNode method : CompileContext.current().methods.values()) {
+            method.bcgen(b);
+        }
+        return b.finish("main");
+    }
+
+    // the program as closures (P5 -closures). Made before cgen too
+    public Closures closures(){
+        Closures c = new Closures();
+        for (MethodDeclNode method : CompileContext.current().methods.values()) {
+            method.addTo(c);
+        }
+        return c;
+    }
+
     // this is where the fun begins
     public void cgen(){
         // generate header
         //Codegen.generateHeader();
         Codegen.generateHeader();
+        CompileContext context = CompileContext.current();
+        if (context.cache != null) {
+            context.cache.fingerprint(context.methods.values());
+        }
         myClassBody.cgen();
+        Codegen.labelsFor(null);
+        Codegen.genRuntime();
 
     }
 
@@ -191,7 +235,7 @@ class ClassBodyNode extends ASTnode {
         }
         if(!mainDeclared){
             Errors.fatal(0, 0, "No main method declared");
-            ProgramNode.errorNameAnalysis = true;
+            CompileContext.current().errorNameAnalysis = true;
         }
     }
 
@@ -222,7 +266,7 @@ class DeclListNode extends ASTnode {
                 ((DeclNode)myDecls.getCurrent()).nameAnalysis(symTabList, scope);
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in DeclListNode.nameAnalysis");
+            CompileContext.current().err.println("unexpected NoCurrentException in DeclListNode.nameAnalysis");
             System.exit(-1);
         }
     }
@@ -233,7 +277,7 @@ class DeclListNode extends ASTnode {
 		((DeclNode)myDecls.getCurrent()).decompile(p, indent);
 	    }
 	} catch (NoCurrentException ex) {
-	    System.err.println("unexpected NoCurrentException in DeclListNode.print");
+	    CompileContext.current().err.println("unexpected NoCurrentException in DeclListNode.print");
 	    System.exit(-1);
 	}
     }
@@ -244,7 +288,7 @@ class DeclListNode extends ASTnode {
                 ((DeclNode)myDecls.getCurrent()).typeCheck();
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in DeclListNode.typeCheck");
+            CompileContext.current().err.println("unexpected NoCurrentException in DeclListNode.typeCheck");
             System.exit(-1);
         }
     }
@@ -255,7 +299,7 @@ class DeclListNode extends ASTnode {
                 ((DeclNode)myDecls.getCurrent()).cgen();
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in DeclListNode.cgen");
+            CompileContext.current().err.println("unexpected NoCurrentException in DeclListNode.cgen");
             System.exit(-1);
         }
     }
@@ -281,7 +325,7 @@ class FormalsListNode extends ASTnode {
                 myList.add(((FormalDeclNode)myFormals.getCurrent()).getType());
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in FormalsListNode.nameAnalysis");
+            CompileContext.current().err.println("unexpected NoCurrentException in FormalsListNode.nameAnalysis");
             System.exit(-1);
         }
     }
@@ -298,14 +342,29 @@ class FormalsListNode extends ASTnode {
                 first = false;
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in FormalsListNode.print");
+            CompileContext.current().err.println("unexpected NoCurrentException in FormalsListNode.print");
             System.exit(-1);
         }
         p.print(")");
     }
 
-    public void cgen(){
-        System.out.println("FormalsListNode cgen");
+    // the first params arrive in $a0-$a3, store them in their home slots in the caller's outgoing area
+    // params that are not live on entry (see MethodBodyNode.liveness) are never read, so
+    // they do not have to be homed. live is null if that is not known
+    public void cgen(HashSet<String> live){
+        int i = 0;
+        try {
+            for (myFormals.start(); myFormals.isCurrent() && i < Codegen.ARG_REGS; myFormals.advance()) {
+                FormalDeclNode formal = (FormalDeclNode)myFormals.getCurrent();
+                if (live == null || live.contains("local " + formal.getOffset())) {
+                    Codegen.genStoreLocal("$a" + i, formal.getOffset(), "home param " + i);
+                }
+                i++;
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in FormalsListNode.cgen");
+            System.exit(-1);
+        }
     }
 
     public ArrayList<Integer> getFormalList(){
@@ -316,6 +375,48 @@ class FormalsListNode extends ASTnode {
         return myFormals.length();
     }
 
+    // compile time evaluation: the params start out with the values of the arguments
+    public void bind(Evaluator ev, ArrayList<Integer> args){
+        int i = 0;
+        for (Object formal : myFormals.items()) {
+            ev.set("local " + ((FormalDeclNode)formal).getOffset(), args.get(i++));
+        }
+    }
+
+    // the slots the interpreter gives the params
+    public int[] interpreterSlots(Interpreter in){
+        ArrayList<Object> formals = myFormals.items();
+        int[] slots = new int[formals.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = in.slot(((FormalDeclNode)formals.get(i)).getOffset());
+        }
+        return slots;
+    }
+
+    public boolean[] stringParams(){
+        ArrayList<Object> formals = myFormals.items();
+        boolean[] strings = new boolean[formals.size()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = ((FormalDeclNode)formals.get(i)).getType() == Types.StringType;
+        }
+        return strings;
+    }
+
+    // the params get the first registers of the method, in order
+    public void bcgenParams(Bytecode.Builder b){
+        for (Object formal : myFormals.items()) {
+            b.local(((FormalDeclNode)formal).getOffset());
+        }
+        b.params(myFormals.length());
+    }
+
+    // the params get the first slots of the frame, in order
+    public void closureParams(Closures c){
+        for (Object formal : myFormals.items()) {
+            c.slot(((FormalDeclNode)formal).getOffset());
+        }
+    }
+
   // sequence of kids (FormalDeclNodes)
     private Sequence myFormals;
     private ArrayList <Integer> myList = new ArrayList<Integer>();
@@ -351,6 +452,43 @@ class MethodBodyNode extends ASTnode {
         myStmtList.cgen(returnLabel);
     }
 
+    public boolean containsCall(){
+        return myStmtList.containsCall();
+    }
+
+    public void hoistInvariants(Loop loop){
+        myStmtList.hoistInvariants(loop);
+    }
+
+    public void numberValues(ValueTable table){
+        myStmtList.numberValues(table);
+    }
+
+    public void propagateConstants(){
+        myStmtList.propagateConstants(new ConstantTable(), true);
+    }
+
+    // returns the locals (and params) that are read before they are written
+    public HashSet<String> liveness(ArrayList<String> removed){
+        return myStmtList.liveness(new HashSet<String>(), removed);
+    }
+
+    public boolean evaluate(Evaluator ev){
+        return myStmtList.evaluate(ev);
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return myStmtList.interpreterNode(in);
+    }
+
+    public void bcgen(Bytecode.Builder b){
+        myStmtList.bcgen(b);
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return myStmtList.closure(c);
+    }
+
     // 2 kids
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
@@ -367,7 +505,7 @@ class StmtListNode extends ASTnode {
                 ((StmtNode)myStmts.getCurrent()).nameAnalysis(symTabList, scope);
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in StmtListNode.nameAnalysis");
+            CompileContext.current().err.println("unexpected NoCurrentException in StmtListNode.nameAnalysis");
             System.exit(-1);
         }
     }
@@ -379,7 +517,7 @@ class StmtListNode extends ASTnode {
                 ((StmtNode)myStmts.getCurrent()).decompile(p, indent);
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in StmtListNode.print");
+            CompileContext.current().err.println("unexpected NoCurrentException in StmtListNode.print");
             System.exit(-1);
         }
     }
@@ -390,7 +528,7 @@ class StmtListNode extends ASTnode {
                 ((StmtNode)myStmts.getCurrent()).typeCheck();
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in StmtListNode.typeCheck");
+            CompileContext.current().err.println("unexpected NoCurrentException in StmtListNode.typeCheck");
             System.exit(-1);
         }
     }
@@ -403,11 +541,198 @@ class StmtListNode extends ASTnode {
                 ((StmtNode)myStmts.getCurrent()).cgen(returnLabel);
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in StmtListNode.cgen");
+            CompileContext.current().err.println("unexpected NoCurrentException in StmtListNode.cgen");
+            System.exit(-1);
+        }
+    }
+
+    public boolean containsCall(){
+        try {
+            for (myStmts.start(); myStmts.isCurrent(); myStmts.advance()) {
+                if (((StmtNode)myStmts.getCurrent()).containsCall()) return true;
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in StmtListNode.containsCall");
+            System.exit(-1);
+        }
+        return false;
+    }
+
+    public void hoistInvariants(Loop loop){
+        StmtNode previous = null;
+        try {
+            for (myStmts.start(); myStmts.isCurrent(); myStmts.advance()) {
+                StmtNode stmt = (StmtNode)myStmts.getCurrent();
+                // i = c right before a loop gives the start value of its induction variable
+                if (stmt instanceof WhileStmtNode && previous instanceof AssignStmtNode) {
+                    ((WhileStmtNode)stmt).setInit((AssignStmtNode)previous);
+                }
+                stmt.hoistInvariants(loop);
+                previous = stmt;
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in StmtListNode.hoistInvariants");
+            System.exit(-1);
+        }
+    }
+
+    // an increment i = i + c that runs exactly once per iteration: a statement at
+    // the top level of the loop body, and the only assignment to i in the loop
+    public AssignStmtNode findIncrement(HashMap<String, Integer> assigned){
+        try {
+            for (myStmts.start(); myStmts.isCurrent(); myStmts.advance()) {
+                StmtNode stmt = (StmtNode)myStmts.getCurrent();
+                if (stmt instanceof AssignStmtNode) {
+                    AssignStmtNode assign = (AssignStmtNode)stmt;
+                    if (assign.incrementStep() != null && assigned.get(assign.targetKey()) == 1) {
+                        return assign;
+                    }
+                }
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in StmtListNode.findIncrement");
+            System.exit(-1);
+        }
+        return null;
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+        try {
+            for (myStmts.start(); myStmts.isCurrent(); myStmts.advance()) {
+                ((StmtNode)myStmts.getCurrent()).collectAssigned(vars);
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in StmtListNode.collectAssigned");
+            System.exit(-1);
+        }
+    }
+
+    public void numberValues(ValueTable table){
+        try {
+            for (myStmts.start(); myStmts.isCurrent(); myStmts.advance()) {
+                ((StmtNode)myStmts.getCurrent()).numberValues(table);
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in StmtListNode.numberValues");
             System.exit(-1);
         }
     }
 
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        ConstantTable known = in;
+        for (StmtNode stmt : statements()) {
+            known = stmt.propagateConstants(known, rewrite);
+        }
+        return known;
+    }
+
+    // **********************************************************************
+    // liveness
+    //    walks the statements backwards. When removing, constant conditions
+    //    are folded and everything after a return is dropped first, then
+    //    stores to locals that are not live afterwards
+    // **********************************************************************
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        ArrayList<StmtNode> stmts = statements();
+        if (removed != null) {
+            ArrayList<StmtNode> reachable = new ArrayList<StmtNode>();
+            for (int k = 0; k < stmts.size(); k++) {
+                StmtNode simple = stmts.get(k).simplify(removed);
+                if (simple == null) continue;
+                reachable.add(simple);
+                if (simple.alwaysReturns()) {
+                    for (k++; k < stmts.size(); k++) removed.add("unreachable statement after return");
+                }
+            }
+            stmts = reachable;
+        }
+        HashSet<String> live = new HashSet<String>(liveOut);
+        for (int i = stmts.size() - 1; i >= 0; i--) {
+            StmtNode stmt = stmts.get(i);
+            if (removed != null && stmt instanceof AssignStmtNode) {
+                stmt = ((AssignStmtNode)stmt).removeDeadStore(live, removed);
+                if (stmt == null) {
+                    stmts.remove(i);
+                    continue;
+                }
+                stmts.set(i, stmt);
+            }
+            live = stmt.liveness(live, removed);
+            if (removed != null && stmt.doesNothing()) {
+                removed.add("empty " + (stmt instanceof IfStmtNode ? "if" : "if else"));
+                stmts.remove(i);
+            }
+        }
+        if (removed != null) {
+            myStmts = new Sequence();
+            for (StmtNode stmt : stmts) myStmts.addToEnd(stmt);
+        }
+        return live;
+    }
+
+    public boolean alwaysReturns(){
+        for (StmtNode stmt : statements()) {
+            if (stmt.alwaysReturns()) return true;
+        }
+        return false;
+    }
+
+    // every statement takes a step of the budget, a return ends the list
+    public boolean evaluate(Evaluator ev){
+        for (StmtNode stmt : statements()) {
+            if (!ev.step() || !stmt.evaluate(ev)) return false;
+            if (ev.hasReturned()) return true;
+        }
+        return true;
+    }
+
+    public boolean containsReturn(){
+        for (StmtNode stmt : statements()) {
+            if (stmt.containsReturn()) return true;
+        }
+        return false;
+    }
+
+    public boolean isEmpty(){
+        return myStmts.length() == 0;
+    }
+
+    // leaves the current statement alone, so a walk that ends up in a list being walked
+    // further up (a pure call evaluated at compile time may) cannot disturb that walk
+    private ArrayList<StmtNode> statements(){
+        ArrayList<StmtNode> stmts = new ArrayList<StmtNode>();
+        for (Object stmt : myStmts.items()) {
+            stmts.add((StmtNode)stmt);
+        }
+        return stmts;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        ArrayList<StmtNode> stmts = statements();
+        Interpreter.Node[] nodes = new Interpreter.Node[stmts.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = stmts.get(i).interpreterNode(in);
+        }
+        return new Interpreter.Block(nodes);
+    }
+
+    // no statement keeps a temp for the next one
+    public void bcgen(Bytecode.Builder b){
+        for (StmtNode stmt : statements()) {
+            stmt.bcgen(b);
+            b.endStatement();
+        }
+    }
+
+    public Closures.Stmt closure(Closures c){
+        ArrayList<StmtNode> stmts = statements();
+        Closures.Stmt[] closures = new Closures.Stmt[stmts.size()];
+        for (int i = 0; i < closures.length; i++) {
+            closures[i] = stmts.get(i).closure(c);
+        }
+        return c.block(closures);
+    }
+
     // sequence of kids (StmtNodes)
     private Sequence myStmts;
 }
@@ -423,7 +748,7 @@ class ExpListNode extends ASTnode {
                 ((ExpNode)myExps.getCurrent()).lookup(symTabList, scope);
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in ExpListNode.nameAnalysis");
+            CompileContext.current().err.println("unexpected NoCurrentException in ExpListNode.nameAnalysis");
             System.exit(-1);
         }
     }
@@ -438,7 +763,7 @@ class ExpListNode extends ASTnode {
                 }
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in ExpListNode.nameAnalysis");
+            CompileContext.current().err.println("unexpected NoCurrentException in ExpListNode.nameAnalysis");
             System.exit(-1);
         }
     }
@@ -454,7 +779,7 @@ class ExpListNode extends ASTnode {
                 first = false;
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in ExpListNode.print");
+            CompileContext.current().err.println("unexpected NoCurrentException in ExpListNode.print");
             System.exit(-1);
         }
         p.print(")");
@@ -466,24 +791,193 @@ class ExpListNode extends ASTnode {
         return myList;
     }
 
-    public void cgen(){
+    // generates the whole call sequence: the first Codegen.ARG_REGS arguments go into $a0-$a3,
+    // the rest into the outgoing argument area at the bottom of the caller's frame
+    public void cgenCall(String methodName){
         // Ah it sucks to use this approach - I am sorry to whoever has to read this
         ArrayList<ExpNode> expList = new ArrayList<ExpNode>();
         try {
             for (myExps.start(); myExps.isCurrent(); myExps.advance()) {
                 expList.add((ExpNode)myExps.getCurrent());
             }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in ExpListNode.cgen");
+            System.exit(-1);
+        }
+        int numRegArgs = Math.min(expList.size(), Codegen.ARG_REGS);
+        if (Codegen.canUseOutgoingArea() && !containsCall()) {
+            // nothing can clobber $a1-$a3 while the remaining arguments are evaluated
+            for (int i = expList.size() - 1; i >= Codegen.ARG_REGS; i--) {
+                expList.get(i).cgen();
+                Codegen.genStoreOutgoing("$a0", i);
+            }
+            for (int i = numRegArgs - 1; i >= 0; i--) {
+                expList.get(i).cgen();
+                if (i > 0) Codegen.generateWithComment("move", "argument " + i, "$a" + i, "$a0");
+            }
+            Codegen.generateWithComment("jal", "call method", methodName);
+        } else {
+            // arguments contain calls or temporaries are on the stack, so build the argument area by pushing
             for (int i = expList.size() - 1; i >= 0; i--) {
                 expList.get(i).cgen();
                 Codegen.genPush("$a0");
             }
+            for (int i = 0; i < numRegArgs; i++) {
+                Codegen.generateIndexed("lw", "$a" + i, Codegen.SP, 4 + 4 * i, "argument " + i);
+            }
+            Codegen.generateWithComment("jal", "call method", methodName);
+            Codegen.genRelease(expList.size()*4, "release arguments");
+        }
+    }
+
+    // counts the call with -profile-generate. With a profile that says the call site is hot and a
+    // callee that can be inlined (MethodDeclNode.canInline), the arguments are stored straight
+    // into the callee's params in the inline area and its body follows: returns true then.
+    // Arguments with calls in them could overwrite the area, those calls are made the usual way
+    public boolean cgenInline(IdNode method){
+        String name = method.getStrVal();
+        String key = "call " + CompileContext.current().currentMethod.getName() + " " + method.getLineNum() + ":"
+            + method.getCharNum() + " " + name;
+        if (Codegen.current().instrument) Codegen.genCount(key);
+        MethodDeclNode callee = CompileContext.current().methods.get(name);
+        if (Codegen.current().profile == null || !Codegen.current().profile.isHot(key) || Codegen.isInlining()
+                || callee == null || !callee.canInline() || containsCall()) {
+            return false;
+        }
+        ArrayList<ExpNode> expList = new ArrayList<ExpNode>();
+        try {
+            for (myExps.start(); myExps.isCurrent(); myExps.advance()) {
+                expList.add((ExpNode)myExps.getCurrent());
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in ExpListNode.cgenInline");
+            System.exit(-1);
+        }
+        // last to first, like cgenCall
+        for (int i = expList.size() - 1; i >= 0; i--) {
+            expList.get(i).cgen();
+            Codegen.genStoreInlineArg("$a0", i, callee.getLocalBytes());
+        }
+        callee.cgenInline();
+        return true;
+    }
+
+    public boolean containsCall(){
+        try {
+            for (myExps.start(); myExps.isCurrent(); myExps.advance()) {
+                if (((ExpNode)myExps.getCurrent()).containsCall()) return true;
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in ExpListNode.containsCall");
+            System.exit(-1);
+        }
+        return false;
+    }
+
+    public void hoist(Loop loop){
+        try {
+            for (myExps.start(); myExps.isCurrent(); myExps.advance()) {
+                myExps.replaceCurrent(((ExpNode)myExps.getCurrent()).hoist(loop));
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in ExpListNode.hoist");
+            System.exit(-1);
+        }
+    }
+
+    public void collectReads(HashSet<String> reads){
+        try {
+            for (myExps.start(); myExps.isCurrent(); myExps.advance()) {
+                ((ExpNode)myExps.getCurrent()).collectReads(reads);
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in ExpListNode.collectReads");
+            System.exit(-1);
+        }
+    }
+
+    // folding an argument may evaluate a call (see Evaluator), which may get back to this very
+    // list, so the arguments are folded first and only put back into the sequence afterwards
+    public void foldConstants(ConstantTable known){
+        ArrayList<ExpNode> expList = new ArrayList<ExpNode>();
+        for (Object exp : myExps.items()) {
+            expList.add(((ExpNode)exp).foldConstants(known));
+        }
+        myExps = new Sequence();
+        for (ExpNode exp : expList) myExps.addToEnd(exp);
+    }
+
+    // the values of the arguments if they are all known, null otherwise. A String argument
+    // counts as known, with a null value: the evaluation only stops if the callee reads it
+    public ArrayList<Integer> constantValues(ConstantTable known){
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (Object exp : myExps.items()) {
+            Integer value = ((ExpNode)exp).constantValue(known);
+            if (value == null && ((ExpNode)exp).getType() != Types.StringType) return null;
+            values.add(value);
+        }
+        return values;
+    }
 
+    // cgenCall evaluates the arguments last to first, so they are numbered in that order too
+    public void numberValues(ValueTable table){
+        ArrayList<ExpNode> expList = new ArrayList<ExpNode>();
+        try {
+            for (myExps.start(); myExps.isCurrent(); myExps.advance()) {
+                expList.add((ExpNode)myExps.getCurrent());
+            }
+            for (int i = expList.size() - 1; i >= 0; i--) {
+                expList.set(i, expList.get(i).numberValues(table));
+            }
+            int i = 0;
+            for (myExps.start(); myExps.isCurrent(); myExps.advance()) {
+                myExps.replaceCurrent(expList.get(i++));
+            }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in ExpListNode.cgen");
+            CompileContext.current().err.println("unexpected NoCurrentException in ExpListNode.numberValues");
             System.exit(-1);
         }
     }
 
+    // the nodes the interpreter runs for the arguments
+    public Interpreter.Node[] interpreterNodes(Interpreter in){
+        ArrayList<Object> exps = myExps.items();
+        Interpreter.Node[] nodes = new Interpreter.Node[exps.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = ((ExpNode)exps.get(i)).interpreterNode(in);
+        }
+        return nodes;
+    }
+
+    // a call of method with these args, last to first into registers next to each other like the
+    // generated code pushes them. Returns the register the result goes to
+    public int bcgenCall(Bytecode.Builder b, IdNode method){
+        int count = method.getArgs().getNumParams();
+        ArrayList<Object> exps = myExps.items();
+        int first = 0;
+        for (int i = 0; i < count; i++) {
+            int temp = b.temp();
+            if (i == 0) first = temp;
+        }
+        // temps count down until the method is done
+        for (int i = count - 1; i >= 0; i--) {
+            b.moveTo(first - i, ((ExpNode)exps.get(i)).bcgen(b));
+        }
+        int result = b.temp();
+        b.emit(Bytecode.CALL, b.method(method.getStrVal()), count, first, result);
+        return result;
+    }
+
+    // a call of method with these args, bound to it now
+    public Closures.Exp closureCall(Closures c, IdNode method){
+        ArrayList<Object> exps = myExps.items();
+        Closures.Exp[] args = new Closures.Exp[exps.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = ((ExpNode)exps.get(i)).closure(c);
+        }
+        return c.call(c.method(method.getStrVal()), args);
+    }
+
     // sequence of kids (ExpNodes)
     private Sequence myExps;
     private ArrayList <Integer> myList = new ArrayList<Integer>();
@@ -501,7 +995,7 @@ class SwitchGroupListNode extends ASTnode {
                 ((SwitchGroupNode)mySwitchGroups.getCurrent()).nameAnalysis(symTabList, scope);
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in SwitchGroupListNode.nameAnalysis");
+            CompileContext.current().err.println("unexpected NoCurrentException in SwitchGroupListNode.nameAnalysis");
             System.exit(-1);
         }
     }
@@ -512,7 +1006,7 @@ class SwitchGroupListNode extends ASTnode {
                 ((SwitchGroupNode)mySwitchGroups.getCurrent()).decompile(p, indent);
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in SwitchGroupList.print");
+            CompileContext.current().err.println("unexpected NoCurrentException in SwitchGroupList.print");
             System.exit(-1);
         }
     }
@@ -523,7 +1017,30 @@ class SwitchGroupListNode extends ASTnode {
                 ((SwitchGroupNode)mySwitchGroups.getCurrent()).typeCheck();
             }
         } catch (NoCurrentException ex) {
-            System.err.println("unexpected NoCurrentException in SwitchGroupList.typeCheck");
+            CompileContext.current().err.println("unexpected NoCurrentException in SwitchGroupList.typeCheck");
+            System.exit(-1);
+        }
+    }
+
+    public boolean containsCall(){
+        try {
+            for (mySwitchGroups.start(); mySwitchGroups.isCurrent(); mySwitchGroups.advance()) {
+                if (((SwitchGroupNode)mySwitchGroups.getCurrent()).containsCall()) return true;
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in SwitchGroupList.containsCall");
+            System.exit(-1);
+        }
+        return false;
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+        try {
+            for (mySwitchGroups.start(); mySwitchGroups.isCurrent(); mySwitchGroups.advance()) {
+                ((SwitchGroupNode)mySwitchGroups.getCurrent()).collectAssigned(vars);
+            }
+        } catch (NoCurrentException ex) {
+            CompileContext.current().err.println("unexpected NoCurrentException in SwitchGroupList.collectAssigned");
             System.exit(-1);
         }
     }
@@ -543,7 +1060,7 @@ abstract class DeclNode extends ASTnode
     }
     public void cgen(){
         //do nothing
-        System.err.println("Oh no, seems like you forgot to cover this case: " + this.getClass());
+        CompileContext.current().err.println("Oh no, seems like you forgot to cover this case: " + this.getClass());
     }
 }
 
@@ -565,6 +1082,12 @@ class FieldDeclNode extends DeclNode {
     }
 
     public void cgen(){ 
+        if (!CompileContext.current().callGraph.isRead(myId.getStrVal())) {
+            // nothing main can reach reads it, the stores to it are left out as well
+            Codegen.generateHeaderComment("static " + myId.getStrVal() + " is never read, left out");
+            Codegen.current().removedFields++;
+            return;
+        }
         // define static vars as global vars
         Codegen.generateDirective(".data");
         Codegen.generateLabeled("_" + myId.getStrVal(), ".word", "global static variable", "0");
@@ -596,6 +1119,10 @@ class VarDeclNode extends DeclNode {
         p.println(";");
     }
 
+    public void cgen(){
+        // nothing to do, the slot is already part of the method frame
+    }
+
 
     // 2 kids
     private TypeNode myType;
@@ -610,11 +1137,142 @@ class MethodDeclNode extends DeclNode {
 	myBody = body;
     }
     int num_local_vars;
+    int localBytes; // size of the locals area of the frame, including all nested blocks
+    int outgoingBytes; // size of the outgoing argument area for the calls this method makes
+    SymbolTable myScope; // the method scope, the optimizations add hidden slots to it
+    HashSet<String> liveOnEntry; // locals read before they are written, null if unknown
+    boolean optimized = false; // optimize runs once, possibly early for a caller that inlines us
+    boolean leaf = false; // makes no calls, known once optimized
+    ArrayList<String> removed = new ArrayList<String>(); // by dead code elimination
+    int inlineArea = 0; // first slot of the area the methods we inline share, see planInlining
     public void nameAnalysis(LinkedList<SymbolTable> symTabList, int scope) {
         num_local_vars = myBody.getVarNumber();
         myId.methodNameAnalyisis(symTabList, scope, Types.MethodTypeVoid,myFormalsList, num_local_vars);
+        CompileContext.current().callGraph.enterMethod(myId.getStrVal());
+        if (CompileContext.current().cache != null) CompileContext.current().cache.enterMethod(myId.getStrVal());
         myFormalsList.nameAnalysis(symTabList, scope);
         myBody.nameAnalysis(symTabList, scope); 
+        layoutFrame(symTabList.getFirst());
+        symTabList.removeFirst();
+    }
+
+    // the method scope has seen every local and nested block by now, so the frame size is known
+    protected void layoutFrame(SymbolTable methodScope){
+        CompileContext.current().methods.put(myId.getStrVal(), this);
+        myScope = methodScope;
+        localBytes = methodScope.localBytes();
+        outgoingBytes = methodScope.outgoingBytes();
+    }
+
+    // runs right before code generation, after type checking, since it rewrites the body.
+    // Hoisted and saved values live in hidden slots, so the frame has to be sized again afterwards
+    protected void optimize(){
+        if (optimized) return;
+        optimized = true;
+        if (Codegen.current().propagateConstants) {
+            myBody.propagateConstants();
+        }
+        if (Codegen.current().eliminateDeadCode) {
+            liveOnEntry = myBody.liveness(removed);
+            Codegen.current().removedStatements += removed.size();
+        }
+        if (Codegen.current().hoistInvariants) {
+            myBody.hoistInvariants(new Loop(myScope));
+        }
+        if (Codegen.current().numberValues) {
+            myBody.numberValues(new ValueTable(myScope));
+        }
+        leaf = !myBody.containsCall();
+        planInlining();
+        localBytes = myScope.localBytes();
+    }
+
+    // profile guided: hot call sites of leaf methods are expanded in line (see CallExpNode).
+    // The params and locals of the inlined bodies get an area in our frame, one at a time is
+    // in use, so it is as large as the largest of them
+    private void planInlining(){
+        if (Codegen.current().profile == null) return;
+        int bytes = 0;
+        for (String name : Codegen.current().profile.hotCallees(myId.getStrVal())) {
+            MethodDeclNode callee = CompileContext.current().methods.get(name);
+            if (callee != null && callee.canInline()) {
+                bytes = Math.max(bytes, callee.inlineBytes());
+            }
+        }
+        for (int i = 0; i < bytes; i += 4) {
+            int slot = myScope.newTemp();
+            if (i == 0) inlineArea = slot;
+        }
+    }
+
+    // only leaf methods are inlined: nothing in the body uses $ra or the outgoing argument area
+    // and it cannot be recursive. Asked while code is generated, when the statement lists may be
+    // in the middle of being walked, so it must not walk them itself
+    public boolean canInline(){
+        optimize();
+        return leaf && !myId.getStrVal().equals("main");
+    }
+
+    public int inlineBytes(){
+        optimize();
+        return localBytes + 4 * myFormalsList.length();
+    }
+
+    public int getLocalBytes(){
+        return localBytes;
+    }
+
+    // compile time evaluation of a call with the given arguments (see Evaluator),
+    // false if it cannot be done
+    public boolean evaluate(Evaluator ev, ArrayList<Integer> args){
+        if (args.size() != myFormalsList.length()) return false;
+        myFormalsList.bind(ev, args);
+        if (!myBody.evaluate(ev)) return false;
+        if (!ev.hasReturned()) {
+            // an int method that falls off its end returns whatever happens to be in $v0
+            if (returnsValue()) return false;
+            ev.setResult(0);
+        }
+        return true;
+    }
+
+    protected boolean returnsValue(){
+        return false;
+    }
+
+    // makes the nodes the interpreter runs for the method (see Interpreter)
+    public void addTo(Interpreter in){
+        in.beginMethod();
+        int[] params = myFormalsList.interpreterSlots(in);
+        in.addMethod(myId.getStrVal(), params, myFormalsList.stringParams(), myBody.interpreterNode(in));
+    }
+
+    public void bcgen(Bytecode.Builder b){
+        b.beginMethod(myId.getStrVal());
+        myFormalsList.bcgenParams(b);
+        myBody.bcgen(b);
+        b.endMethod();
+    }
+
+    public void addTo(Closures c){
+        c.beginMethod();
+        myFormalsList.closureParams(c);
+        c.endMethod(myId.getStrVal(), myBody.closure(c));
+    }
+
+    public String getName(){
+        return myId.getStrVal();
+    }
+
+    // the body in place of a call, the arguments have been stored into the inline area already
+    public void cgenInline(){
+        String endLabel = Codegen.nextLabel();
+        Codegen.generateHeaderComment("INLINE " + myId.getStrVal());
+        Codegen.beginInline(localBytes);
+        myBody.cgen(endLabel);
+        Codegen.endInline();
+        Codegen.genLabel(endLabel, "INLINE END " + myId.getStrVal());
+        Codegen.current().inlinedCalls++;
     }
 
     public void decompile(PrintWriter p, int indent) {
@@ -633,26 +1291,56 @@ class MethodDeclNode extends DeclNode {
     public void typeCheck(){
         myBody.typeCheck();
     }
+
+    // with P5 -incremental the code comes from the cache if the method has not changed,
+    // and freshly generated code goes into it
     public void cgen(){
+        CompileCache cache = CompileContext.current().cache;
+        if (cache != null && cache.replay(getName())) return;
+        if (cache != null) cache.beginRecord();
+        generate();
+        if (cache != null) cache.endRecord(getName());
+    }
+
+    private void generate(){
+        // main cannot get here, the method is generated into nothing only to count what that saves
+        boolean dead = !CompileContext.current().callGraph.isReachable(myId.getStrVal());
+        if (dead) Codegen.beginDiscard();
         // entry
         Codegen.generateDirective(".text");
         Codegen.generateDirective(".globl", myId.getStrVal());
         Codegen.generateHeaderComment("FUNCTION ENTRY " + myId.getStrVal());
         Codegen.genLabel(myId.getStrVal());
-        Codegen.genPush("$ra");
-        Codegen.genPush(Codegen.FP);
-        //if(myId.getStrVal().equals("main")) Codegen.generate("addu",Codegen.FP, Codegen.SP, 8);
-        Codegen.generate("addu",Codegen.FP, Codegen.SP, 8);
-        // TODO stack pointer needs space for all arguments called functions have
-        Codegen.generate("subu", Codegen.SP, Codegen.SP, num_local_vars*4 + 8);
+        Codegen.labelsFor(myId.getStrVal());
+        CompileContext.current().currentMethod = this;
+        optimize();
+        for (String what : removed) {
+            Codegen.generateHeaderComment("removed " + what);
+        }
+        Codegen.setInlineArea(inlineArea);
+        // the program ends when main returns, whatever is still in the output buffer goes out then,
+        // and so does the profile
+        boolean isMain = myId.getStrVal().equals("main");
+        boolean flush = Codegen.current().bufferOutput && isMain;
+        boolean dump = Codegen.current().instrument && isMain;
+        // leaf methods never overwrite $ra, so only methods that call need to save it
+        Codegen.genPrologue(myBody.containsCall() || flush || dump, localBytes, outgoingBytes);
+        myFormalsList.cgen(liveOnEntry);
+        if (Codegen.current().instrument) Codegen.genCount("entry " + myId.getStrVal());
         String returnLabel = Codegen.nextLabel(); // save for return statement
         myBody.cgen(returnLabel);
         // exit
         Codegen.genLabel(returnLabel, "FUNCTION EXIT");
-        Codegen.generateIndexed("lw", "$ra", Codegen.FP , 0, "restore ra");
-        Codegen.generateWithComment("move", "restore SP", Codegen.SP, Codegen.FP);
-        Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -4, "restore FP");
-        Codegen.generateWithComment("jr", "return to caller", "$ra");
+        if (flush) {
+            Codegen.current().usesOutputBuffer = true;
+            Codegen.generateWithComment("jal", "write out the output buffer", Codegen.FLUSH);
+        }
+        if (dump) {
+            Codegen.generateWithComment("jal", "print the profile", Codegen.DUMP_PROFILE);
+        }
+        Codegen.genEpilogue();
+        Codegen.genOutlined();
+        if (dead) Codegen.endDiscard();
     }
 
 
@@ -679,15 +1367,18 @@ class MethodDeclNodeInt extends MethodDeclNode {
     public void nameAnalysis(LinkedList<SymbolTable> symTabList, int scope) {
          num_local_vars = myBody.getVarNumber();
         myId.methodNameAnalyisis(symTabList, scope, Types.MethodTypeInt, myFormalsList, num_local_vars);
+        CompileContext.current().callGraph.enterMethod(myId.getStrVal());
+        if (CompileContext.current().cache != null) CompileContext.current().cache.enterMethod(myId.getStrVal());
         myFormalsList.nameAnalysis(symTabList, scope); 
         myBody.nameAnalysis(symTabList, scope);
         
         //check if the method has a return statement
         if(symTabList.getFirst().lookup("return") == null){
             Errors.fatal(myId.getLineNum(), myId.getCharNum(), "Method must have a return statement");
-            ProgramNode.errorNameAnalysis = true;
+            CompileContext.current().errorNameAnalysis = true;
         }
 
+        layoutFrame(symTabList.getFirst());
         symTabList.removeFirst(); 
     }
 
@@ -712,7 +1403,11 @@ class MethodDeclNodeInt extends MethodDeclNode {
         return myFormalsList;
     }
 
-    // 3 kids
+    protected boolean returnsValue(){
+        return true;
+    }
+
+    // 3 kids
     private IdNode myId;
     private FormalsListNode myFormalsList;
     private MethodBodyNode myBody;
@@ -725,7 +1420,7 @@ class FormalDeclNode extends DeclNode {
     }
     //these are all parameter, so they are local
     public void nameAnalysis(LinkedList<SymbolTable> symTabList, int scope) {
-        myId.nameAnalysis(symTabList, scope, myType.returnType(), true);
+        myId.nameAnalysis(symTabList, scope, myType.returnType(), true, true);
     }
 
     public void decompile(PrintWriter p, int indent) {
@@ -737,6 +1432,9 @@ class FormalDeclNode extends DeclNode {
     public int getType(){
         return myId.getType();
     }
+    public int getOffset(){
+        return myId.offset();
+    }
 
     // 2 kids
     private TypeNode myType;
@@ -861,6 +1559,12 @@ class SwitchGroupNode extends ASTnode {
         myStmtList.typeCheck();
         mySwitchLabelNode.typeCheck();
     }
+    public boolean containsCall(){
+        return myStmtList.containsCall();
+    }
+    public void collectAssigned(HashMap<String, Integer> vars){
+        myStmtList.collectAssigned(vars);
+    }
     // 2 kids
     private StmtListNode myStmtList;
     private SwitchLabelNode mySwitchLabelNode;
@@ -872,9 +1576,66 @@ class SwitchGroupNode extends ASTnode {
 abstract class StmtNode extends ASTnode {
     public abstract void nameAnalysis(LinkedList<SymbolTable> symTabList, int scope);
     public abstract void typeCheck();
+    // true if executing the statement may call a method (and thereby overwrite $ra)
+    public abstract boolean containsCall();
+    // loop invariant code motion: move invariant expressions into the preheader of the given loop
+    public abstract void hoistInvariants(Loop loop);
+    // count the assignments in the statement, per variable (by IdNode.varKey).
+    // Loops also list the temps their preheader fills, once those exist
+    public abstract void collectAssigned(HashMap<String, Integer> vars);
+    // value numbering: reuse values computed earlier, table holds what is known before the statement
+    public abstract void numberValues(ValueTable table);
+    // conditional constant propagation: returns what is known after the statement, given what is
+    // known before it (null: the statement is never reached). With rewrite, known values are filled in
+    public abstract ConstantTable propagateConstants(ConstantTable in, boolean rewrite);
+    // dead code elimination: returns the locals (by varKey) that are live before the statement,
+    // given the ones live after it. With a list to report to, dead stores are removed as well
+    public abstract HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed);
+    // a statement with a constant condition is replaced by the part that runs, null if none does
+    public StmtNode simplify(ArrayList<String> removed){
+        return this;
+    }
+    // true if control never gets past the statement
+    public boolean alwaysReturns(){
+        return false;
+    }
+    // true if the statement has a return somewhere inside
+    public boolean containsReturn(){
+        return false;
+    }
+    // true if the statement can be left out without changing anything
+    public boolean doesNothing(){
+        return false;
+    }
+    // compile time evaluation of a pure method (see Evaluator): runs the statement with the
+    // values in ev, false if that cannot be done at compile time
+    public boolean evaluate(Evaluator ev){
+        return false;
+    }
+
+    // the node the interpreter runs for the statement (see Interpreter)
+    public Interpreter.Node interpreterNode(Interpreter in){
+        throw new IllegalStateException("cannot interpret " + getClass().getName());
+    }
+
+    // the bytecode for the statement (see Bytecode)
+    public void bcgen(Bytecode.Builder b){
+        throw new IllegalStateException("no bytecode for " + getClass().getName());
+    }
+
+    // the closure that runs the statement (see Closures)
+    public Closures.Stmt closure(Closures c){
+        throw new IllegalStateException("cannot compile " + getClass().getName());
+    }
+    // live plus everything exp reads
+    protected static HashSet<String> plusReads(HashSet<String> live, ExpNode exp){
+        HashSet<String> result = new HashSet<String>(live);
+        exp.collectReads(result);
+        return result;
+    }
     public void cgen(String returnLabel){
         //do nothing
-        System.err.println("Oh no, seems like you forgot to cover this case: " + this.getClass());
+        CompileContext.current().err.println("Oh no, seems like you forgot to cover this case: " + this.getClass());
     }
 }
 
@@ -885,6 +1646,7 @@ class PrintStmtNode extends StmtNode {
     
     public void nameAnalysis(LinkedList<SymbolTable> symTabList, int scope) {
         myExp.lookup(symTabList, scope);
+        CompileContext.current().callGraph.addPrint();
     }
 
     public void decompile(PrintWriter p, int indent) {
@@ -906,6 +1668,12 @@ class PrintStmtNode extends StmtNode {
 
     public void cgen(String returnLabel){
         myExp.cgen();
+        if (Codegen.current().bufferOutput) {
+            // the runtime routine appends the value and the newline to the output buffer
+            Codegen.current().usesOutputBuffer = true;
+            Codegen.generate("jal", sysCallType == 4 ? Codegen.PRINT_STRING : Codegen.PRINT_INT);
+            return;
+        }
         //print the string
         Codegen.generate("li", "$v0", sysCallType);
         Codegen.generate("syscall");
@@ -914,6 +1682,43 @@ class PrintStmtNode extends StmtNode {
         Codegen.generate("li", "$v0", 4);
         Codegen.generate("syscall");
     }
+
+    // printing into the output buffer calls a runtime routine
+    public boolean containsCall(){
+        return Codegen.current().bufferOutput || myExp.containsCall();
+    }
+
+    public void hoistInvariants(Loop loop){
+        myExp = myExp.hoist(loop);
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+    }
+
+    public void numberValues(ValueTable table){
+        myExp = myExp.numberValues(table);
+    }
+
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        return plusReads(liveOut, myExp);
+    }
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        if (in != null && rewrite) myExp = myExp.foldConstants(in);
+        return in;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Print(myExp.interpreterNode(in), sysCallType == 4);
+    }
+
+    public void bcgen(Bytecode.Builder b){
+        b.emit(sysCallType == 4 ? Bytecode.PRINTS : Bytecode.PRINT, myExp.bcgen(b));
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return c.print(myExp.closure(c), sysCallType == 4);
+    }
+
     //assuming you can print only type String 
     // 1 kid
     private ExpNode myExp;
@@ -928,8 +1733,11 @@ class AssignStmtNode extends StmtNode {
     }
 
     public void nameAnalysis(LinkedList<SymbolTable> symTabList, int scope) {
-        myId.lookup(symTabList, scope);
+        myId.lookupAssigned(symTabList, scope);
+        if (!myId.isLocal()) CompileContext.current().callGraph.addWrite(myId.getStrVal());
+        CompileContext.current().callGraph.beginAssignment(myId.getStrVal());
         myExp.lookup(symTabList, scope);
+        CompileContext.current().callGraph.endAssignment();
     }
 
     public void decompile(PrintWriter p, int indent) {
@@ -957,20 +1765,162 @@ class AssignStmtNode extends StmtNode {
             myExp.cgen();
             //check if myExp is local or global
             if(myId.isLocal()){
-                Codegen.generateIndexed("sw", "$a0", Codegen.FP, myId.offset(), "store value of local var" + myId.getStrVal());
+                Codegen.genStoreLocal("$a0", myId.offset(), "store value of local var" + myId.getStrVal());
+            } else if(!CompileContext.current().callGraph.isRead(myId.getStrVal())){
+                Codegen.generateHeaderComment("global var _" + myId.getStrVal() + " is never read, no store");
+            } else if(Codegen.promotedRegister("_" + myId.getStrVal()) != null){
+                Codegen.generateWithComment("move", "global var _" + myId.getStrVal() + " is in a register", Codegen.promotedRegister("_" + myId.getStrVal()), "$a0");
             } else {
-                Codegen.generateWithComment("sw", "store value of global var" + "_"+myId.getStrVal(), "$a0", "_" + myId.getStrVal());
+                Codegen.genStore("$a0", "_" + myId.getStrVal(), "store value of global var" + "_"+myId.getStrVal());
+            }
+            if(myInductionUpdates != null){
+                for(Loop.Temp derived : myInductionUpdates){
+                    Codegen.genLoadLocal("$a0", derived.offset, "derived induction variable");
+                    if(derived.step instanceof IntLitNode && Codegen.fitsImmediate(((IntLitNode)derived.step).getValue())){
+                        Codegen.generate("addiu", "$a0", "$a0", ((IntLitNode)derived.step).getValue());
+                    } else {
+                        Codegen.generate("move", "$t1", "$a0");
+                        derived.step.cgen();
+                        Codegen.generate("addu", "$a0", "$t1", "$a0");
+                    }
+                    Codegen.genStoreLocal("$a0", derived.offset, "step derived induction variable");
+                }
+            }
+    }
+
+    public boolean containsCall(){
+        return myExp.containsCall();
+    }
+
+    public void hoistInvariants(Loop loop){
+        myExp = myExp.hoist(loop);
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+        String key = myId.varKey();
+        vars.put(key, vars.containsKey(key) ? vars.get(key) + 1 : 1);
+    }
+
+    // after x = a + b, a later a + b can simply load x
+    public void numberValues(ValueTable table){
+        String key = myExp.isLeaf() ? null : myExp.valueKey();
+        HashSet<String> reads = new HashSet<String>();
+        myExp.collectReads(reads);
+        myExp = myExp.numberValues(table);
+        table.kill(myId.varKey());
+        if(myInductionUpdates != null){
+            for(Loop.Temp derived : myInductionUpdates){
+                table.kill("temp " + derived.offset);
             }
-            
+        }
+        table.rememberIn(key, reads, myId);
+    }
+
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        HashSet<String> live = new HashSet<String>(liveOut);
+        live.remove(myId.varKey());
+        myExp.collectReads(live);
+        return live;
+    }
+
+    // x = e starts a new version of x, known if the value of e is
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        if (in == null) return null;
+        Integer value = myExp.constantValue(in);
+        if (rewrite) myExp = myExp.foldConstants(in);
+        if (!myId.isLocal()) return in;
+        return in.with(myId.varKey(), value);
+    }
+
+    // a String is never known, any other value that is not known would have to be found out at
+    // run time (it might trap or not terminate)
+    public boolean evaluate(Evaluator ev){
+        Integer value = myExp.constantValue(ev);
+        if (!myId.isLocal() || (value == null && myExp.getType() != Types.StringType)) return false;
+        ev.set(myId.varKey(), value);
+        return true;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Assign(myId.isLocal(), myId.interpreterIndex(in), myId.getType() == Types.StringType,
+                                      myExp.interpreterNode(in));
+    }
+
+    public void bcgen(Bytecode.Builder b){
+        myId.bcgenStore(b, myExp.bcgen(b));
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return myId.closureStore(c, myExp.closure(c));
+    }
+
+    // x = e for a local x that is not read afterwards, or a static x that is never read at all:
+    // returns null if the whole statement can go, the call if e is one (it might have side
+    // effects), otherwise the statement itself
+    public StmtNode removeDeadStore(HashSet<String> live, ArrayList<String> removed){
+        if(myId.isLocal() ? live.contains(myId.varKey()) : CompileContext.current().callGraph.isRead(myId.getStrVal())){
+            return this;
+        }
+        if(!myExp.containsCall()){
+            removed.add("dead store to " + myId.getStrVal());
+            return null;
+        }
+        if(myExp instanceof CallExpNode){
+            removed.add("dead store to " + myId.getStrVal() + ", the call stays");
+            return ((CallExpNode)myExp).asStatement();
+        }
+        return this;
+    }
+
+    // if this is i = i + c, i = c + i or i = i - c for a local i, returns c, otherwise null
+    public Integer incrementStep(){
+        if(!myId.isLocal() || !(myExp instanceof PlusNode || myExp instanceof MinusNode)){
+            return null;
+        }
+        ExpNode exp1 = ((BinaryExpNode)myExp).myExp1;
+        ExpNode exp2 = ((BinaryExpNode)myExp).myExp2;
+        if(isTarget(exp1) && exp2 instanceof IntLitNode){
+            int c = ((IntLitNode)exp2).getValue();
+            return myExp instanceof PlusNode ? c : -c;
+        }
+        if(myExp instanceof PlusNode && exp1 instanceof IntLitNode && isTarget(exp2)){
+            return ((IntLitNode)exp1).getValue();
+        }
+        return null;
+    }
+
+    // if this is x = c, returns c, otherwise null
+    public Integer constantValue(){
+        if(myExp instanceof IntLitNode){
+            return ((IntLitNode)myExp).getValue();
+        }
+        return null;
+    }
+
+    public String targetKey(){
+        return myId.varKey();
+    }
+
+    private boolean isTarget(ExpNode exp){
+        return exp instanceof IdNode && ((IdNode)exp).varKey().equals(myId.varKey());
+    }
+
+    // set when this statement increments the induction variable of a loop: the derived
+    // induction variables are stepped right after it, so they always equal i * k
+    public void setInductionUpdates(ArrayList<Loop.Temp> derived){
+        myInductionUpdates = derived;
     }
 
     // 2 kids
     private IdNode myId;
     private ExpNode myExp;
+    private ArrayList<Loop.Temp> myInductionUpdates;
 }
 
 class IfStmtNode extends StmtNode {
-    public IfStmtNode(ExpNode exp, StmtListNode slist) {
+    public IfStmtNode(int lineNum, int charNum, ExpNode exp, StmtListNode slist) {
+	myLineNum = lineNum;
+	myCharNum = charNum;
 	myExp = exp;
 	myStmtList = slist;
     }
@@ -1004,25 +1954,120 @@ class IfStmtNode extends StmtNode {
     }
 
     public void cgen(String returnLabel){
+        String position = myLineNum + ":" + myCharNum;
+        if (Codegen.current().instrument) Codegen.genCount(position + " if");
         myExp.cgen();
         // compare if myExp is true and if not jump to the end of the if statement
         //Codegen.genPush("$a0");
         Codegen.generateWithComment("li", "Load to comapre if true", "$t1", Codegen.TRUE);
         String falseLabel = Codegen.nextLabel();
+        Profile profile = Codegen.current().profile;
+        if (profile != null && Codegen.canOutline()
+                && Profile.isCold(profile.count(position + " then"), profile.count(position + " if"))) {
+            // the body hardly ever runs, it goes after the method and the usual path falls through
+            String coldLabel = Codegen.nextLabel();
+            Codegen.generateWithComment("beq", "If Statement, cold body", "$a0", "$t1", coldLabel);
+            Codegen.outline(myStmtList, coldLabel, falseLabel, returnLabel);
+            Codegen.genLabel(falseLabel, "If Statement End");
+            return;
+        }
         Codegen.generateWithComment("bne", "If Statement", "$a0", "$t1", falseLabel);
+        if (Codegen.current().instrument) Codegen.genCount(position + " then");
         myStmtList.cgen(returnLabel);
         Codegen.genLabel(falseLabel, "If Statement End");
         //Codegen.generateWithComment("addu", "Restore the stack", Codegen.SP, Codegen.SP, "4");
     }
 
+    public boolean containsCall(){
+        return myExp.containsCall() || myStmtList.containsCall();
+    }
+
+    public void hoistInvariants(Loop loop){
+        myExp = myExp.hoist(loop);
+        myStmtList.hoistInvariants(loop);
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+        myStmtList.collectAssigned(vars);
+    }
+
+    public boolean containsReturn(){
+        return myStmtList.containsReturn();
+    }
+
+    public void numberValues(ValueTable table){
+        myExp = myExp.numberValues(table);
+        myStmtList.numberValues(new ValueTable(table));
+        HashMap<String, Integer> assigned = new HashMap<String, Integer>();
+        myStmtList.collectAssigned(assigned);
+        table.killAll(assigned, myStmtList.containsCall());
+    }
+
+    // the phi after the if merges the end of the branch with the path around it,
+    // a known condition leaves only one of them
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        if (in == null) return null;
+        Integer condition = myExp.constantValue(in);
+        if (rewrite) myExp = myExp.foldConstants(in);
+        ConstantTable thenOut = myStmtList.propagateConstants(ConstantTable.isFalse(condition) ? null : in, rewrite);
+        return ConstantTable.meet(thenOut, ConstantTable.isTrue(condition) ? null : in);
+    }
+
+    public boolean evaluate(Evaluator ev){
+        Integer condition = myExp.constantValue(ev);
+        if (condition == null) return false;
+        return !ConstantTable.isTrue(condition) || myStmtList.evaluate(ev);
+    }
+
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        HashSet<String> live = new HashSet<String>(liveOut);
+        live.addAll(myStmtList.liveness(liveOut, removed));
+        return plusReads(live, myExp);
+    }
+
+    public StmtNode simplify(ArrayList<String> removed){
+        if (myExp instanceof TrueNode) {
+            removed.add("test of if (true)");
+            return new BlockStmtNode(new DeclListNode(new Sequence()), myStmtList);
+        }
+        if (myExp instanceof FalseNode) {
+            removed.add("if (false)");
+            return null;
+        }
+        return this;
+    }
+
+    public boolean doesNothing(){
+        return myStmtList.isEmpty() && !myExp.containsCall();
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.If(myExp.interpreterNode(in), myStmtList.interpreterNode(in), new Interpreter.Block());
+    }
+
+    public void bcgen(Bytecode.Builder b){
+        Bytecode.Builder.Label end = b.newLabel();
+        myExp.bcgenBranch(b, end, false);
+        myStmtList.bcgen(b);
+        b.mark(end);
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return c.ifThen(myExp.closureCondition(c), myStmtList.closure(c), c.block(new Closures.Stmt[0]));
+    }
+
+    private int myLineNum;
+    private int myCharNum;
     // 2 kids
     private ExpNode myExp;
     private StmtListNode myStmtList;
 }
 
 class IfElseStmtNode extends StmtNode {
-    public IfElseStmtNode(ExpNode exp, StmtListNode slist1,
+    public IfElseStmtNode(int lineNum, int charNum, ExpNode exp, StmtListNode slist1,
 			  StmtListNode slist2) {
+	myLineNum = lineNum;
+	myCharNum = charNum;
 	myExp = exp;
 	myThenStmtList = slist1;
 	myElseStmtList = slist2;
@@ -1061,20 +2106,136 @@ class IfElseStmtNode extends StmtNode {
         myElseStmtList.typeCheck();
     }
 
+    // with a profile the branch that runs more often comes first and falls through, the other
+    // one goes after the method if it hardly ever runs
     public void cgen(String returnLabel){
+        String position = myLineNum + ":" + myCharNum;
         String elseLabel = Codegen.nextLabel();
         String endLabel = Codegen.nextLabel();
+        long thenCount = -1;
+        long elseCount = -1;
+        if (Codegen.current().profile != null) {
+            thenCount = Codegen.current().profile.count(position + " then");
+            elseCount = Codegen.current().profile.count(position + " else");
+        }
+        boolean swap = elseCount > thenCount && thenCount >= 0;
+        StmtListNode first = swap ? myElseStmtList : myThenStmtList;
+        StmtListNode second = swap ? myThenStmtList : myElseStmtList;
+        boolean cold = Codegen.canOutline() && thenCount >= 0 && elseCount >= 0
+            && Profile.isCold(swap ? thenCount : elseCount, thenCount + elseCount);
         myExp.cgen();
         // compare if myExp is true and if not jump to else statement
         Codegen.generateWithComment("li", "Load to comapre if true", "$t1", Codegen.TRUE);
-        Codegen.generateWithComment("bne", "If Statement", "$a0", "$t1", elseLabel);
-        myThenStmtList.cgen(returnLabel);
-        Codegen.generate("j", endLabel);
-        Codegen.genLabel(elseLabel, "Else Statement");
-        myElseStmtList.cgen(returnLabel);
+        if (swap) {
+            Codegen.current().swappedBranches++;
+            Codegen.generateWithComment("beq", "If Statement, else part first", "$a0", "$t1", elseLabel);
+        } else {
+            Codegen.generateWithComment("bne", "If Statement", "$a0", "$t1", elseLabel);
+        }
+        if (Codegen.current().instrument) Codegen.genCount(position + " then");
+        first.cgen(returnLabel);
+        if (cold) {
+            Codegen.outline(second, elseLabel, endLabel, returnLabel);
+        } else {
+            Codegen.generate("j", endLabel);
+            Codegen.genLabel(elseLabel, swap ? "Then Statement" : "Else Statement");
+            if (Codegen.current().instrument) Codegen.genCount(position + " else");
+            second.cgen(returnLabel);
+        }
         Codegen.genLabel(endLabel, "If Else Statement End");
     }
 
+    public boolean containsCall(){
+        return myExp.containsCall() || myThenStmtList.containsCall() || myElseStmtList.containsCall();
+    }
+
+    public void hoistInvariants(Loop loop){
+        myExp = myExp.hoist(loop);
+        myThenStmtList.hoistInvariants(loop);
+        myElseStmtList.hoistInvariants(loop);
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+        myThenStmtList.collectAssigned(vars);
+        myElseStmtList.collectAssigned(vars);
+    }
+
+    public void numberValues(ValueTable table){
+        myExp = myExp.numberValues(table);
+        myThenStmtList.numberValues(new ValueTable(table));
+        myElseStmtList.numberValues(new ValueTable(table));
+        HashMap<String, Integer> assigned = new HashMap<String, Integer>();
+        collectAssigned(assigned);
+        table.killAll(assigned, myThenStmtList.containsCall() || myElseStmtList.containsCall());
+    }
+
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        if (in == null) return null;
+        Integer condition = myExp.constantValue(in);
+        if (rewrite) myExp = myExp.foldConstants(in);
+        ConstantTable thenOut = myThenStmtList.propagateConstants(ConstantTable.isFalse(condition) ? null : in, rewrite);
+        ConstantTable elseOut = myElseStmtList.propagateConstants(ConstantTable.isTrue(condition) ? null : in, rewrite);
+        return ConstantTable.meet(thenOut, elseOut);
+    }
+
+    public boolean evaluate(Evaluator ev){
+        Integer condition = myExp.constantValue(ev);
+        if (condition == null) return false;
+        return ConstantTable.isTrue(condition) ? myThenStmtList.evaluate(ev) : myElseStmtList.evaluate(ev);
+    }
+
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        HashSet<String> live = myThenStmtList.liveness(liveOut, removed);
+        live.addAll(myElseStmtList.liveness(liveOut, removed));
+        return plusReads(live, myExp);
+    }
+
+    public StmtNode simplify(ArrayList<String> removed){
+        if (myExp instanceof TrueNode) {
+            removed.add("else branch of if (true)");
+            return new BlockStmtNode(new DeclListNode(new Sequence()), myThenStmtList);
+        }
+        if (myExp instanceof FalseNode) {
+            removed.add("then branch of if (false)");
+            return new BlockStmtNode(new DeclListNode(new Sequence()), myElseStmtList);
+        }
+        return this;
+    }
+
+    public boolean alwaysReturns(){
+        return myThenStmtList.alwaysReturns() && myElseStmtList.alwaysReturns();
+    }
+
+    public boolean containsReturn(){
+        return myThenStmtList.containsReturn() || myElseStmtList.containsReturn();
+    }
+
+    public boolean doesNothing(){
+        return myThenStmtList.isEmpty() && myElseStmtList.isEmpty() && !myExp.containsCall();
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.If(myExp.interpreterNode(in), myThenStmtList.interpreterNode(in),
+                                  myElseStmtList.interpreterNode(in));
+    }
+
+    public void bcgen(Bytecode.Builder b){
+        Bytecode.Builder.Label otherwise = b.newLabel();
+        Bytecode.Builder.Label end = b.newLabel();
+        myExp.bcgenBranch(b, otherwise, false);
+        myThenStmtList.bcgen(b);
+        b.jump(Bytecode.JUMP, end);
+        b.mark(otherwise);
+        myElseStmtList.bcgen(b);
+        b.mark(end);
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return c.ifThen(myExp.closureCondition(c), myThenStmtList.closure(c), myElseStmtList.closure(c));
+    }
+
+    private int myLineNum;
+    private int myCharNum;
     // 3 kids
     private ExpNode myExp;
     private StmtListNode myThenStmtList;
@@ -1115,22 +2276,291 @@ class WhileStmtNode extends StmtNode {
         myStmtList.typeCheck();
     }
 
+    // **********************************************************************
+    // cgen
+    //    a loop without calls keeps the globals it uses in registers: they are
+    //    loaded before the loop and the ones it assigns are stored back on the
+    //    way out - after the loop, or on the way to the return label when the
+    //    body returns. Nested loops use the registers of the outermost one
+    // **********************************************************************
     public void cgen(String returnLabel){
+        ArrayList<String> globals = promotableGlobals();
+        if (globals.isEmpty()) {
+            cgenLoop(returnLabel);
+            return;
+        }
+        HashMap<String, Integer> assigned = new HashMap<String, Integer>();
+        myStmtList.collectAssigned(assigned);
+        ArrayList<String> stored = new ArrayList<String>();
+        for (int k = 0; k < globals.size(); k++) {
+            String global = globals.get(k);
+            Codegen.promote(global, Codegen.PROMOTE_REGS[k]);
+            Codegen.genLoad(Codegen.PROMOTE_REGS[k], global, "keep " + global + " in a register during the loop");
+            if (assigned.containsKey(global)) stored.add(global);
+        }
+        String bodyReturn = myStmtList.containsReturn() ? Codegen.nextLabel() : returnLabel;
+        cgenLoop(bodyReturn);
+        storePromoted(stored);
+        if (bodyReturn != returnLabel) {
+            String doneLabel = Codegen.nextLabel();
+            Codegen.generate("j", doneLabel);
+            Codegen.genLabel(bodyReturn, "return from inside the loop");
+            storePromoted(stored);
+            Codegen.generate("j", returnLabel);
+            Codegen.genLabel(doneLabel);
+        }
+        Codegen.clearPromoted();
+    }
+
+    // the globals the loop reads or assigns, if it can keep them in registers. The ones it
+    // assigns come first, they save a store as well. There are only so many registers
+    private ArrayList<String> promotableGlobals(){
+        ArrayList<String> globals = new ArrayList<String>();
+        if (!Codegen.current().promoteGlobals || Codegen.hasPromoted() || containsCall()) return globals;
+        HashMap<String, Integer> assigned = new HashMap<String, Integer>();
+        myStmtList.collectAssigned(assigned);
+        HashSet<String> used = liveness(new HashSet<String>(), null);
+        used.addAll(assigned.keySet());
+        // a field that is never read is never stored either (AssignStmtNode.cgen)
+        for (String key : new TreeSet<String>(used)) {
+            if (!key.startsWith("_") || !CompileContext.current().callGraph.isRead(key.substring(1))) used.remove(key);
+        }
+        for (String key : new TreeSet<String>(used)) {
+            if (assigned.containsKey(key)) globals.add(key);
+        }
+        for (String key : new TreeSet<String>(used)) {
+            if (!assigned.containsKey(key)) globals.add(key);
+        }
+        while (globals.size() > Codegen.PROMOTE_REGS.length) globals.remove(globals.size() - 1);
+        return globals;
+    }
+
+    private static void storePromoted(ArrayList<String> stored){
+        for (String global : stored) {
+            Codegen.genStore(Codegen.promotedRegister(global), global, "store " + global + " back");
+        }
+    }
+
+    private void cgenLoop(String returnLabel){
         String startLabel = Codegen.nextLabel();
-        String endLabel = Codegen.nextLabel();
+        String testLabel = Codegen.nextLabel();
+        // preheader: everything that does not change in the loop is computed once, up front
+        if (myLoop != null) {
+            for (Loop.Temp temp : myLoop.temps()) {
+                temp.exp.cgen();
+                Codegen.genStoreLocal("$a0", temp.offset, "hoisted out of the loop");
+            }
+        }
+        int copies = 1;
+        if (myTripCount >= 0 && Codegen.current().unrollFactor > 1 && !myLoop.hasNestedLoop()) {
+            copies = Codegen.current().unrollFactor;
+            Codegen.generateHeaderComment("loop runs " + myTripCount + " times, unrolled " + copies + " times");
+            if (myTripCount <= copies) {
+                for (int k = 0; k < myTripCount; k++) myStmtList.cgen(returnLabel);
+                return;
+            }
+            // the left over iterations go first, after them the trip count is a multiple of copies,
+            // so the condition only needs checking after every group. There is at least one group left
+            for (int k = 0; k < myTripCount % copies; k++) myStmtList.cgen(returnLabel);
+        } else {
+            // the test sits at the bottom, so an iteration takes a single branch
+            Codegen.generateWithComment("j", "test the loop condition first", testLabel);
+        }
         Codegen.genLabel(startLabel, "Start While Statment");
-        myExp.cgen();
-        //check if true
-        Codegen.generateWithComment("li", "loading true value", "$t1", Codegen.TRUE);
-        Codegen.generateWithComment("bne", "exit loop if not true anymore", "$a0", "$t1", endLabel);
-        myStmtList.cgen(returnLabel);
-        Codegen.generate("j", startLabel);
-        Codegen.genLabel(endLabel, "End of the while loop");
+        for (int k = 0; k < copies; k++) myStmtList.cgen(returnLabel);
+        Codegen.genLabel(testLabel, "While condition");
+        myExp.cgenBranch(startLabel, true);
+    }
+
+    public boolean containsCall(){
+        return myExp.containsCall() || myStmtList.containsCall();
+    }
+
+    // nested loops are done first, whatever they hoisted is offered to the enclosing loop afterwards
+    public void hoistInvariants(Loop enclosing){
+        HashMap<String, Integer> assigned = new HashMap<String, Integer>();
+        myStmtList.collectAssigned(assigned);
+        myLoop = new Loop(enclosing, assigned, containsCall());
+        AssignStmtNode increment = myStmtList.findIncrement(assigned);
+        if (increment != null) {
+            myLoop.setInduction(increment, increment.targetKey(), increment.incrementStep());
+        }
+        myStmtList.hoistInvariants(myLoop);
+        myExp = myExp.hoist(myLoop);
+        enclosing.adopt(myLoop);
+        if (increment != null) {
+            myTripCount = tripCount(increment);
+        }
+    }
+
+    // the statement right before the loop, it might set the start value of the induction variable
+    public void setInit(AssignStmtNode init){
+        myInit = init;
+    }
+
+    // **********************************************************************
+    // tripCount
+    //    number of iterations if it is known at compile time, -1 otherwise.
+    //    That is the case for i = c0; do { ... i = i + c; ... } while (i < n)
+    //    with constants c0, c and n (and the other comparisons).
+    // **********************************************************************
+    private long tripCount(AssignStmtNode increment){
+        if (myInit == null || myInit.constantValue() == null || !myInit.targetKey().equals(increment.targetKey())) {
+            return -1;
+        }
+        if (!(myExp instanceof BinaryExpNode)) {
+            return -1;
+        }
+        BinaryExpNode cond = (BinaryExpNode)myExp;
+        long start = myInit.constantValue();
+        long step = increment.incrementStep();
+        long bound;
+        boolean flip; // bound on the left, so i < n is really n > i
+        if (myLoop.isInduction(cond.myExp1) && cond.myExp2 instanceof IntLitNode) {
+            bound = ((IntLitNode)cond.myExp2).getValue();
+            flip = false;
+        } else if (cond.myExp1 instanceof IntLitNode && myLoop.isInduction(cond.myExp2)) {
+            bound = ((IntLitNode)cond.myExp1).getValue();
+            flip = true;
+        } else {
+            return -1;
+        }
+        long trips;
+        boolean less = cond instanceof LessNode || cond instanceof LessEqNode;
+        boolean greater = cond instanceof GreaterNode || cond instanceof GreaterEqNode;
+        if (flip) {
+            boolean tmp = less;
+            less = greater;
+            greater = tmp;
+        }
+        if (cond instanceof LessEqNode || cond instanceof GreaterEqNode) {
+            // i <= n is i < n + 1, i >= n is i > n - 1
+            bound += less ? 1 : -1;
+        }
+        if (less) {
+            if (start >= bound) return 0;
+            if (step <= 0) return -1;
+            trips = (bound - start + step - 1) / step;
+        } else if (greater) {
+            if (start <= bound) return 0;
+            if (step >= 0) return -1;
+            trips = (start - bound - step - 1) / -step;
+        } else if (cond instanceof NotEqualsNode) {
+            if (step == 0 || (bound - start) % step != 0 || (bound - start) / step < 0) return -1;
+            trips = (bound - start) / step;
+        } else {
+            return -1;
+        }
+        // i must not wrap around on the way
+        long last = start + trips * step;
+        if (last > Integer.MAX_VALUE || last < Integer.MIN_VALUE) return -1;
+        return trips;
+    }
+
+    public boolean containsReturn(){
+        return myStmtList.containsReturn();
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+        myStmtList.collectAssigned(vars);
+        if (myLoop != null) {
+            for (Loop.Temp temp : myLoop.temps()) {
+                vars.put("temp " + temp.offset, 1);
+            }
+        }
+    }
+
+    // the phi sits at the test, which is reached from above and from the end of the body.
+    // The body is analyzed until the table at the test holds, only then is anything rewritten
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        if (in == null) return null;
+        ConstantTable atTest = in;
+        Integer condition;
+        while (true) {
+            condition = myExp.constantValue(atTest);
+            ConstantTable bodyOut = myStmtList.propagateConstants(ConstantTable.isFalse(condition) ? null : atTest, false);
+            ConstantTable next = ConstantTable.meet(in, bodyOut);
+            if (ConstantTable.same(next, atTest)) break;
+            atTest = next;
+        }
+        if (rewrite) {
+            myExp = myExp.foldConstants(atTest);
+            myStmtList.propagateConstants(ConstantTable.isFalse(condition) ? null : atTest, true);
+        }
+        return ConstantTable.isTrue(condition) ? null : atTest;
+    }
+
+    // the test takes a step too, so a loop that does nothing still runs out of budget
+    public boolean evaluate(Evaluator ev){
+        while (true) {
+            Integer condition = myExp.constantValue(ev);
+            if (condition == null || !ev.step()) return false;
+            if (!ConstantTable.isTrue(condition)) return true;
+            if (!myStmtList.evaluate(ev)) return false;
+            if (ev.hasReturned()) return true;
+        }
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.While(myExp.interpreterNode(in), myStmtList.interpreterNode(in));
+    }
+
+    // the test is at the bottom, so an iteration takes one branch
+    public void bcgen(Bytecode.Builder b){
+        Bytecode.Builder.Label body = b.newLabel();
+        Bytecode.Builder.Label test = b.newLabel();
+        b.jump(Bytecode.JUMP, test);
+        b.mark(body);
+        myStmtList.bcgen(b);
+        b.mark(test);
+        myExp.bcgenBranch(b, body, true);
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return c.loop(myExp.closureCondition(c), myStmtList.closure(c));
+    }
+
+    // the condition is tested before every iteration and after the last one, so what is live
+    // there is live after the body too. Iterated until nothing changes, then the body is cleaned
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        HashSet<String> atTest = plusReads(liveOut, myExp);
+        while (true) {
+            HashSet<String> next = new HashSet<String>(atTest);
+            next.addAll(myStmtList.liveness(atTest, null));
+            if (next.equals(atTest)) break;
+            atTest = next;
+        }
+        if (removed != null) {
+            myStmtList.liveness(atTest, removed);
+        }
+        return atTest;
+    }
+
+    // the condition is tested first, so with a false one the body never runs
+    public StmtNode simplify(ArrayList<String> removed){
+        if (myExp instanceof FalseNode) {
+            removed.add("loop with condition false");
+            return null;
+        }
+        return this;
+    }
+
+    // only what survives a whole iteration is known inside the loop. The condition is tested
+    // first, but unrolled copies of the body skip it, so the body cannot use its values
+    public void numberValues(ValueTable table){
+        HashMap<String, Integer> assigned = new HashMap<String, Integer>();
+        collectAssigned(assigned);
+        table.killAll(assigned, containsCall());
+        myStmtList.numberValues(new ValueTable(table));
+        myExp = myExp.numberValues(new ValueTable(table));
     }
 
     // 2 kids
     private ExpNode myExp;
     private StmtListNode myStmtList;
+    private Loop myLoop; // set by hoistInvariants
+    private AssignStmtNode myInit;
+    private long myTripCount = -1;
 }
 
 class CallStmtNode extends StmtNode {
@@ -1148,6 +2578,8 @@ class CallStmtNode extends StmtNode {
         myId.lookup(symTabList, scope);
         myExpList.methodeNameAnlysis(symTabList, scope);
         usedArgsList = myExpList.getExpList();
+        symTabList.getFirst().noteCall(myExpList.length());
+        CompileContext.current().callGraph.addCall(myId.getStrVal());
     }
 
     public void decompile(PrintWriter p, int indent) {
@@ -1172,11 +2604,66 @@ class CallStmtNode extends StmtNode {
     }
 
     public void cgen(String returnLabel){
-        Codegen.generateWithComment("subu", "allocate space for arguments", Codegen.SP, Codegen.SP, myExpList.length()*4+"");
-        myExpList.cgen();
-        Codegen.generateWithComment("jal", "call method", myId.getStrVal());
+        if (!myExpList.cgenInline(myId)) {
+            myExpList.cgenCall(myId.getStrVal());
+        }
+    }
+
+    public boolean containsCall(){
+        return true;
+    }
+
+    public void hoistInvariants(Loop loop){
+        myExpList.hoist(loop);
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+    }
+
+    public void numberValues(ValueTable table){
+        myExpList.numberValues(table);
+        table.killGlobals();
+    }
+
+    // the callee cannot change our locals
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        if (in != null && rewrite) myExpList.foldConstants(in);
+        return in;
+    }
+
+    // the callee cannot see our locals, only the arguments are read
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        HashSet<String> live = new HashSet<String>(liveOut);
+        myExpList.collectReads(live);
+        return live;
+    }
+
+    // a pure callee changes nothing, all it has to do is get to its end
+    public boolean evaluate(Evaluator ev){
+        ArrayList<Integer> args = myExpList.constantValues(ev);
+        return args != null && Evaluator.call(CompileContext.current().methods.get(myId.getStrVal()), args) != null;
+    }
+
+    // so if it is known to get there, the call can go
+    public StmtNode simplify(ArrayList<String> removed){
+        if (Codegen.current().foldPureCalls && evaluate(new Evaluator())) {
+            removed.add("call of pure method " + myId.getStrVal());
+            return null;
+        }
+        return this;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Evaluate(new Interpreter.Call(myId.getStrVal(), myExpList.interpreterNodes(in)));
+    }
+
+    public void bcgen(Bytecode.Builder b){
+        myExpList.bcgenCall(b, myId);
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return c.evaluate(myExpList.closureCall(c, myId));
     }
-    
 
     // 2 kids
     private IdNode myId;
@@ -1201,6 +2688,52 @@ class ReturnStmtNode extends StmtNode {
     public void cgen(String returnLabel){
         Codegen.generate("j", returnLabel);
     }
+
+    public boolean containsCall(){
+        return false;
+    }
+
+    public void hoistInvariants(Loop loop){
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+    }
+
+    public void numberValues(ValueTable table){
+    }
+
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        return null;
+    }
+
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        return new HashSet<String>();
+    }
+
+    public boolean evaluate(Evaluator ev){
+        ev.setResult(0);
+        return true;
+    }
+
+    public boolean alwaysReturns(){
+        return true;
+    }
+
+    public boolean containsReturn(){
+        return true;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Return();
+    }
+
+    public void bcgen(Bytecode.Builder b){
+        b.emit(Bytecode.RET0);
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return c.ret(null);
+    }
 }
 // this helper class has been added to handle return statements with values
 class ReturnWithValueNode extends StmtNode {
@@ -1233,25 +2766,78 @@ class ReturnWithValueNode extends StmtNode {
 
     public void cgen(String returnLabel){
         myExp.cgen();
+        Codegen.generateWithComment("move", "return value", Codegen.RV, "$a0");
         Codegen.generate("j", returnLabel);
     }
 
-    // 1 kid
-    private ExpNode myExp;
-}
-// added to handle nested blocks
-class BlockStmtNode extends StmtNode {
-    public BlockStmtNode(DeclListNode varDecls, StmtListNode stmts) {
-        myVarDecls = varDecls;
-        myStmts = stmts;
+    public boolean containsCall(){
+        return myExp.containsCall();
+    }
+
+    public void hoistInvariants(Loop loop){
+        myExp = myExp.hoist(loop);
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+    }
+
+    public void numberValues(ValueTable table){
+        myExp = myExp.numberValues(table);
+    }
+
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        if (in != null && rewrite) myExp = myExp.foldConstants(in);
+        return null;
+    }
+
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        return plusReads(new HashSet<String>(), myExp);
+    }
+
+    public boolean evaluate(Evaluator ev){
+        Integer value = myExp.constantValue(ev);
+        if (value == null) return false;
+        ev.setResult(value);
+        return true;
+    }
+
+    public boolean alwaysReturns(){
+        return true;
+    }
+
+    public boolean containsReturn(){
+        return true;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Return(myExp.interpreterNode(in));
+    }
+
+    public void bcgen(Bytecode.Builder b){
+        b.emit(Bytecode.RET, myExp.bcgen(b));
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return c.ret(myExp.closure(c));
+    }
+
+    // 1 kid
+    private ExpNode myExp;
+}
+// added to handle nested blocks
+class BlockStmtNode extends StmtNode {
+    public BlockStmtNode(DeclListNode varDecls, StmtListNode stmts) {
+        myVarDecls = varDecls;
+        myStmts = stmts;
     }
 
     public void nameAnalysis(LinkedList<SymbolTable> symTabList, int scope) {
-        SymbolTable symTab = new SymbolTable();
-        symTabList.addFirst(symTab); // new scope
+        SymbolTable symTab = new SymbolTable(symTabList.getFirst());
+        symTabList.addFirst(symTab); // new scope, slots continue below the enclosing scope
         myVarDecls.nameAnalysis(symTabList, scope);
         myStmts.nameAnalysis(symTabList, scope);
         symTabList.removeFirst(); 
+        symTabList.getFirst().closeNestedScope(symTab);
     }
 
     public void decompile(PrintWriter p, int indent) {
@@ -1270,6 +2856,54 @@ class BlockStmtNode extends StmtNode {
         myVarDecls.cgen();
         myStmts.cgen(returnLabel);
     }    
+
+    public boolean containsCall(){
+        return myStmts.containsCall();
+    }
+
+    public void hoistInvariants(Loop loop){
+        myStmts.hoistInvariants(loop);
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+        myStmts.collectAssigned(vars);
+    }
+
+    public void numberValues(ValueTable table){
+        myStmts.numberValues(table);
+    }
+
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        return myStmts.propagateConstants(in, rewrite);
+    }
+
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        return myStmts.liveness(liveOut, removed);
+    }
+
+    public boolean evaluate(Evaluator ev){
+        return myStmts.evaluate(ev);
+    }
+
+    public boolean alwaysReturns(){
+        return myStmts.alwaysReturns();
+    }
+
+    public boolean containsReturn(){
+        return myStmts.containsReturn();
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return myStmts.interpreterNode(in);
+    }
+
+    public void bcgen(Bytecode.Builder b){
+        myStmts.bcgen(b);
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return myStmts.closure(c);
+    }
     // 2 kids
     private DeclListNode myVarDecls;
     private StmtListNode myStmts;
@@ -1309,6 +2943,46 @@ class SwitchStmtNode extends StmtNode {
         mySwitchGroupList.typeCheck();
     }
 
+    public boolean containsCall(){
+        return myExp.containsCall() || mySwitchGroupList.containsCall();
+    }
+
+    // there is no code generation for switch yet, so there is nothing to hoist either
+    public void hoistInvariants(Loop loop){
+    }
+
+    public void collectAssigned(HashMap<String, Integer> vars){
+        mySwitchGroupList.collectAssigned(vars);
+    }
+
+    public void numberValues(ValueTable table){
+    }
+
+    // nothing in the groups is rewritten, whatever they assign is simply no longer known
+    public ConstantTable propagateConstants(ConstantTable in, boolean rewrite){
+        if (in == null) return null;
+        HashMap<String, Integer> assigned = new HashMap<String, Integer>();
+        mySwitchGroupList.collectAssigned(assigned);
+        return in.without(assigned);
+    }
+
+    // no code is generated for the groups yet, so they neither read nor write anything
+    public HashSet<String> liveness(HashSet<String> liveOut, ArrayList<String> removed){
+        return plusReads(liveOut, myExp);
+    }
+
+    // there is no code generation for switch yet, so it does nothing here either
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Block();
+    }
+
+    public void bcgen(Bytecode.Builder b){
+    }
+
+    public Closures.Stmt closure(Closures c){
+        return c.block(new Closures.Stmt[0]);
+    }
+
     // 2 kids
     private ExpNode myExp;
     private SwitchGroupListNode mySwitchGroupList;
@@ -1326,7 +3000,90 @@ abstract class ExpNode extends ASTnode {
     } 
     public void cgen(){
         //do nothing
-        System.err.println("Oh no, seems like you forgot to cover this case: " + this.getClass());
+        CompileContext.current().err.println("Oh no, seems like you forgot to cover this case: " + this.getClass());
+    }
+    // true if evaluating the expression may call a method
+    public boolean containsCall(){
+        return false;
+    }
+    // true if the expression has the same value on every iteration of the loop
+    public boolean isInvariant(Loop loop){
+        return false;
+    }
+    // returns the expression to use instead of this one - the largest invariant
+    // subexpressions are replaced by TempExpNodes that are computed before the loop
+    public ExpNode hoist(Loop loop){
+        return this;
+    }
+    // literals and variables can be loaded into $a0 without touching any other register
+    public boolean isLeaf(){
+        return false;
+    }
+    // value numbering: expressions with the same key compute the same value (as long as the
+    // variables they read do not change), null if the expression is not numbered
+    public String valueKey(){
+        return null;
+    }
+    // adds the varKeys of all variables (and temps) the expression reads
+    public void collectReads(HashSet<String> reads){
+    }
+    // returns the expression to use instead of this one - already computed values are reused
+    public ExpNode numberValues(ValueTable table){
+        return this;
+    }
+    // constant propagation: the value of the expression if it is known at compile time
+    // (booleans as TRUE/FALSE), null otherwise
+    public Integer constantValue(ConstantTable known){
+        return null;
+    }
+    // true for boolean expressions, their known values turn back into true/false
+    public boolean isBoolean(){
+        return false;
+    }
+    // returns the expression to use instead of this one, with the known values filled in
+    public ExpNode foldConstants(ConstantTable known){
+        return this;
+    }
+    protected static int bool(boolean value){
+        return value ? ConstantTable.TRUE : ConstantTable.FALSE;
+    }
+    // the literal for a known value of this expression
+    protected ExpNode literal(int value){
+        if (isBoolean()) {
+            return value == ConstantTable.TRUE ? new TrueNode(0, 0) : new FalseNode(0, 0);
+        }
+        return new IntLitNode(0, 0, value);
+    }
+    // evaluates a condition and jumps to the label if it is onTrue, falls through otherwise
+    public void cgenBranch(String label, boolean onTrue){
+        cgen();
+        Codegen.generateWithComment("li", "loading true value", "$t1", Codegen.TRUE);
+        Codegen.generateWithComment(onTrue ? "beq" : "bne", "branch on condition", "$a0", "$t1", label);
+    }
+
+    // the node the interpreter runs for the expression (see Interpreter)
+    public Interpreter.Node interpreterNode(Interpreter in){
+        throw new IllegalStateException("cannot interpret " + getClass().getName());
+    }
+
+    // puts the value in a register of the bytecode (see Bytecode) and returns which
+    public int bcgen(Bytecode.Builder b){
+        throw new IllegalStateException("no bytecode for " + getClass().getName());
+    }
+
+    // jumps to the label if the condition is onTrue, falls through otherwise
+    public void bcgenBranch(Bytecode.Builder b, Bytecode.Builder.Label label, boolean onTrue){
+        b.jump(onTrue ? Bytecode.JUMPT : Bytecode.JUMPF, label, bcgen(b));
+    }
+
+    // the closure that evaluates the expression (see Closures)
+    public Closures.Exp closure(Closures c){
+        throw new IllegalStateException("cannot compile " + getClass().getName());
+    }
+
+    // the same as a condition
+    public Closures.Cond closureCondition(Closures c){
+        return c.test(closure(c));
     }
 }
 
@@ -1358,6 +3115,40 @@ class IntLitNode extends ExpNode {
         Codegen.generateWithComment("li", "load int val", "$a0", myIntVal+"");
     }
 
+    public boolean isInvariant(Loop loop){
+        return true;
+    }
+
+    public boolean isLeaf(){
+        return true;
+    }
+
+    public int getValue(){
+        return myIntVal;
+    }
+
+    public String valueKey(){
+        return "" + myIntVal;
+    }
+
+    public Integer constantValue(ConstantTable known){
+        return myIntVal;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Literal(myIntVal);
+    }
+
+    public int bcgen(Bytecode.Builder b){
+        int temp = b.temp();
+        b.emit(Bytecode.CONST, temp, myIntVal);
+        return temp;
+    }
+
+    public Closures.Exp closure(Closures c){
+        return c.constant(myIntVal);
+    }
+
     private int myLineNum;
     private int myColNum;
     private int myIntVal;
@@ -1392,6 +3183,24 @@ class StringLitNode extends ExpNode {
         return Types.StringType;
     }
 
+    public boolean isLeaf(){
+        return true;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.StringLiteral(Interpreter.unquote(myStrVal));
+    }
+
+    public int bcgen(Bytecode.Builder b){
+        int temp = b.temp();
+        b.emit(Bytecode.CONST, temp, b.string(Interpreter.unquote(myStrVal)));
+        return temp;
+    }
+
+    public Closures.Exp closure(Closures c){
+        return c.constant(c.string(Interpreter.unquote(myStrVal)));
+    }
+
     private int myLineNum;
     private int myColNum;
     private String myStrVal;
@@ -1416,6 +3225,36 @@ class TrueNode extends ExpNode {
         Codegen.generateWithComment("li","load true val ", "$a0", Codegen.TRUE);
     }
 
+    public boolean isInvariant(Loop loop){
+        return true;
+    }
+
+    public boolean isLeaf(){
+        return true;
+    }
+
+    public Integer constantValue(ConstantTable known){
+        return ConstantTable.TRUE;
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Literal(ConstantTable.TRUE);
+    }
+
+    public int bcgen(Bytecode.Builder b){
+        int temp = b.temp();
+        b.emit(Bytecode.CONST, temp, ConstantTable.TRUE);
+        return temp;
+    }
+
+    public Closures.Exp closure(Closures c){
+        return c.constant(ConstantTable.TRUE);
+    }
+
     private int myLineNum;
     private int myColNum;
 }
@@ -1439,6 +3278,36 @@ class FalseNode extends ExpNode {
         Codegen.generateWithComment("li","load false val", "$a0", Codegen.FALSE);
     }
 
+    public boolean isInvariant(Loop loop){
+        return true;
+    }
+
+    public boolean isLeaf(){
+        return true;
+    }
+
+    public Integer constantValue(ConstantTable known){
+        return ConstantTable.FALSE;
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Literal(ConstantTable.FALSE);
+    }
+
+    public int bcgen(Bytecode.Builder b){
+        int temp = b.temp();
+        b.emit(Bytecode.CONST, temp, ConstantTable.FALSE);
+        return temp;
+    }
+
+    public Closures.Exp closure(Closures c){
+        return c.constant(ConstantTable.FALSE);
+    }
+
     private int myLineNum;
     private int myColNum;
 }
@@ -1454,6 +3323,11 @@ class IdNode extends ExpNode
     }
     // check if idNode already exists in the symbol table and insert it if it doesn't
     public void nameAnalysis(LinkedList<SymbolTable> symTabList, int scope, int type, boolean isLocal) {
+        nameAnalysis(symTabList, scope, type, isLocal, false);
+    }
+
+    // params are laid out above the frame pointer, all other locals get a slot in the frame
+    public void nameAnalysis(LinkedList<SymbolTable> symTabList, int scope, int type, boolean isLocal, boolean isParam) {
         boolean exists = false;
         this.isLocal = isLocal;
         //once used to check all scopes encapuslating the current scope, commented out since shadowing is allowed
@@ -1469,13 +3343,17 @@ class IdNode extends ExpNode
             exists = true;
         }
         if (!exists) {
-            symTabList.getFirst().insert(myStrVal, type, isLocal);
+            if (isParam) {
+                symTabList.getFirst().insertParam(myStrVal, type);
+            } else {
+                symTabList.getFirst().insert(myStrVal, type, isLocal);
+            }
             myType = type;
             offset = symTabList.getFirst().lookup(myStrVal).offset();
         } else {
             myType = Types.ErrorType;
             Errors.fatal(myLineNum, myCharNum, "Multiply declared identifier");
-            ProgramNode.errorNameAnalysis = true;
+            CompileContext.current().errorNameAnalysis = true;
         }
         
     }
@@ -1499,7 +3377,7 @@ class IdNode extends ExpNode
         } else {
             myType = Types.ErrorType;
             Errors.fatal(myLineNum, myCharNum, "Multiply declared identifier");
-            ProgramNode.errorNameAnalysis = true;
+            CompileContext.current().errorNameAnalysis = true;
         }
     }
     // used for debugging. 
@@ -1517,22 +3395,35 @@ class IdNode extends ExpNode
         } 
         return null; 
     }
-    // check if idNode exists in the symbol table and set the type of the idNode
+    // a use of the variable, which reads it. The call graph keeps track of the static fields read
     public void lookup(LinkedList<SymbolTable> symTabList, int scope) {
+        lookupAssigned(symTabList, scope);
+        if (!isLocal && (myType == Types.IntType || myType == Types.BoolType || myType == Types.StringType)) {
+            CompileContext.current().callGraph.addRead(myStrVal);
+        }
+    }
+
+    // check if idNode exists in the symbol table and set the type of the idNode
+    public void lookupAssigned(LinkedList<SymbolTable> symTabList, int scope) {
         boolean exists = false;
+        SymbolTable.Sym found = null;
         for (SymbolTable symTab: symTabList) {
             if (symTab.lookup(myStrVal) != null) {
                 exists = true;
+                found = symTab.lookup(myStrVal);
                 myType = symTab.lookup(myStrVal).type();
                 isLocal = symTab.lookup(myStrVal).isLocal();
                 offset = symTab.lookup(myStrVal).offset();
             }
             symArgTabList = symTabList;
         }
+        if (exists && !isLocal && CompileContext.current().cache != null) {
+            CompileContext.current().cache.addReference(found);
+        }
         if (!exists) {
             myType = Types.ErrorType;
             Errors.fatal(myLineNum, myCharNum, "Undeclared identifier");
-            ProgramNode.errorNameAnalysis = true;
+            CompileContext.current().errorNameAnalysis = true;
         }
     }
 
@@ -1550,10 +3441,104 @@ class IdNode extends ExpNode
         //System.out.println("I am " + myStrVal + " and I am local " + isLocal + " and my offset is " + offset);
         // check fi the variable is local or global
         if(isLocal){
-            Codegen.generateIndexed("lw", "$a0", Codegen.FP, offset, "load local variable " + myStrVal);
+            Codegen.genLoadLocal("$a0", offset, "load local variable " + myStrVal);
+        } else if(!CompileContext.current().callGraph.isRead(myStrVal)){
+            // only read to compute a new value for itself, which is never stored
+            Codegen.generateWithComment("li", "variable _" + myStrVal + " is left out", "$a0", "0");
+        } else if(Codegen.promotedRegister("_"+myStrVal) != null){
+            Codegen.generateWithComment("move", "variable _" + myStrVal + " is in a register", "$a0", Codegen.promotedRegister("_"+myStrVal));
         } else {
-        Codegen.generateWithComment("lw","load variable " + "_"+myStrVal, "$a0", "_"+myStrVal);
+        Codegen.genLoad("$a0", "_"+myStrVal, "load variable " + "_"+myStrVal);
+        }
+    }
+
+    // identifies the variable for the loop optimizations: locals by frame slot, globals by label
+    public String varKey(){
+        if(isLocal){
+            return "local " + offset;
+        }
+        return "_" + myStrVal;
+    }
+
+    public boolean isInvariant(Loop loop){
+        return loop.isInvariant(this);
+    }
+
+    public boolean isLeaf(){
+        return true;
+    }
+
+    // a local is loaded off the frame anyway, but a global takes an absolute load (lui + lw)
+    public ExpNode hoist(Loop loop){
+        if(!isLocal && loop.isInvariant(this)){
+            return new TempExpNode(loop.newTemp(this));
         }
+        return this;
+    }
+
+    public String valueKey(){
+        return varKey();
+    }
+
+    public void collectReads(HashSet<String> reads){
+        reads.add(varKey());
+    }
+
+    // only locals are tracked, a global may be changed by any call
+    public Integer constantValue(ConstantTable known){
+        return isLocal ? known.get(varKey()) : null;
+    }
+
+    public boolean isBoolean(){
+        return myType == Types.BoolType;
+    }
+
+    public ExpNode foldConstants(ConstantTable known){
+        Integer value = constantValue(known);
+        return value == null ? this : literal(value);
+    }
+
+    // another use of the same variable, value numbering puts these where a value can be reloaded
+    public IdNode copy(){
+        IdNode copy = new IdNode(myLineNum, myCharNum, myStrVal);
+        copy.isLocal = isLocal;
+        copy.offset = offset;
+        copy.myType = myType;
+        copy.symArgTabList = symArgTabList;
+        return copy;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Variable(isLocal, interpreterIndex(in), myType == Types.StringType);
+    }
+
+    // the slot of a local, the index of a static field
+    public int interpreterIndex(Interpreter in){
+        return isLocal ? in.slot(offset) : in.global(myStrVal);
+    }
+
+    // a local is read where it is, a static field into a temp
+    public int bcgen(Bytecode.Builder b){
+        if (isLocal) return b.local(offset);
+        int temp = b.temp();
+        b.emit(Bytecode.LOADG, temp, b.global(myStrVal));
+        return temp;
+    }
+
+    public void bcgenStore(Bytecode.Builder b, int register){
+        if (isLocal) {
+            b.moveTo(b.local(offset), register);
+        } else {
+            b.emit(Bytecode.STOREG, b.global(myStrVal), register);
+        }
+    }
+
+    public Closures.Exp closure(Closures c){
+        return isLocal ? c.local(c.slot(offset)) : c.global(c.global(myStrVal));
+    }
+
+    public Closures.Stmt closureStore(Closures c, Closures.Exp exp){
+        return isLocal ? c.assignLocal(c.slot(offset), exp) : c.assignGlobal(c.global(myStrVal), exp);
     }
 
     private int myLineNum;
@@ -1598,6 +3583,8 @@ class CallExpNode extends ExpNode {
         myId.lookup(symTabList, scope);
         myExpList.methodeNameAnlysis(symTabList, scope);
         usedArgsList = myExpList.getExpList();
+        symTabList.getFirst().noteCall(myExpList.length());
+        CompileContext.current().callGraph.addCall(myId.getStrVal());
         if(myId.getType() == Types.MethodTypeInt){
             ArrayList<Integer> myFormalList = myId.getArgs().list().getFormalList();
             if(myExpList.length() != myId.getArgs().list().length()){
@@ -1626,28 +3613,239 @@ class CallExpNode extends ExpNode {
     }
 
     public void cgen(){
-        System.out.println("I got reached");
-        myExpList.cgen();
-        Codegen.generateWithComment("jal", "call method", myId.getStrVal());
+        if (!myExpList.cgenInline(myId)) {
+            myExpList.cgenCall(myId.getStrVal());
+        }
+        Codegen.generateWithComment("move", "result into accumulator", "$a0", Codegen.RV);
+    }
+
+    public boolean containsCall(){
+        return true;
+    }
+
+    public ExpNode hoist(Loop loop){
+        myExpList.hoist(loop);
+        return this;
+    }
+
+    public ExpNode numberValues(ValueTable table){
+        myExpList.numberValues(table);
+        table.killGlobals();
+        return this;
+    }
+
+    public void collectReads(HashSet<String> reads){
+        myExpList.collectReads(reads);
+    }
+
+    // a pure method called with known arguments is run at compile time (see Evaluator)
+    public Integer constantValue(ConstantTable known){
+        if (!Codegen.current().foldPureCalls) return null;
+        ArrayList<Integer> args = myExpList.constantValues(known);
+        if (args == null) return null;
+        return Evaluator.call(CompileContext.current().methods.get(myId.getStrVal()), args);
+    }
+
+    public ExpNode foldConstants(ConstantTable known){
+        myExpList.foldConstants(known);
+        Integer value = constantValue(known);
+        if (value == null) return this;
+        Codegen.current().foldedCalls++;
+        return literal(value);
+    }
+
+    // the same call with the result thrown away
+    public CallStmtNode asStatement(){
+        return new CallStmtNode(myId, myExpList);
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Call(myId.getStrVal(), myExpList.interpreterNodes(in));
+    }
+
+    public int bcgen(Bytecode.Builder b){
+        return myExpList.bcgenCall(b, myId);
+    }
+
+    public Closures.Exp closure(Closures c){
+        return myExpList.closureCall(c, myId);
+    }
+
+    // 2 kids
+    private IdNode myId;
+    private ExpListNode myExpList;
+    private ArrayList<Integer> usedArgsList = new ArrayList<Integer>();
+}
+
+// made by the loop optimizations: reads a value that was computed before the loop
+// (or a derived induction variable)
+class TempExpNode extends ExpNode {
+    public TempExpNode(Loop.Temp temp) {
+        myTemp = temp;
+    }
+
+    public void decompile(PrintWriter p, int indent) {
+        p.print("(hoisted ");
+        myTemp.exp.decompile(p, indent);
+        p.print(")");
+    }
+
+    public int getType() {
+        return myTemp.exp.getType();
+    }
+
+    public void cgen(){
+        Codegen.genLoadLocal("$a0", myTemp.offset, myTemp.owner == null ? "reuse computed value" : "load hoisted value");
+    }
+
+    // an enclosing loop might not have taken over the temp, then it still changes with every iteration
+    public boolean isInvariant(Loop loop){
+        return loop.computedOutside(myTemp);
+    }
+
+    public boolean isLeaf(){
+        return true;
+    }
+
+    public Loop.Temp getTemp(){
+        return myTemp;
+    }
+
+    public String valueKey(){
+        return "temp " + myTemp.offset;
+    }
+
+    public void collectReads(HashSet<String> reads){
+        reads.add("temp " + myTemp.offset);
+    }
+
+    // the temp always holds the value of the expression it stands for (derived induction
+    // variables are stepped along with i), so the expression can be evaluated instead
+    public Integer constantValue(ConstantTable known){
+        return myTemp.exp.constantValue(known);
+    }
+
+    private Loop.Temp myTemp;
+}
+
+// made by value numbering: the first computation of a value that might be needed again.
+// Once it is, the value is saved into a hidden slot, later uses load it from there
+class SavedExpNode extends ExpNode {
+    public SavedExpNode(ExpNode exp) {
+        myExp = exp;
+    }
+
+    public void decompile(PrintWriter p, int indent) {
+        myExp.decompile(p, indent);
+    }
+
+    public int getType() {
+        return myExp.getType();
+    }
+
+    public void cgen(){
+        myExp.cgen();
+        if (myTemp != null) {
+            Codegen.genStoreLocal("$a0", myTemp.offset, "save for reuse");
+        }
+    }
+
+    // only a saved value has to be materialized, otherwise the condition can branch directly
+    public void cgenBranch(String label, boolean onTrue){
+        if (myTemp == null) {
+            myExp.cgenBranch(label, onTrue);
+        } else {
+            super.cgenBranch(label, onTrue);
+        }
+    }
+
+    public boolean containsCall(){
+        return myExp.containsCall();
+    }
+
+    public String valueKey(){
+        return myExp.valueKey();
+    }
+
+    public void collectReads(HashSet<String> reads){
+        myExp.collectReads(reads);
+    }
+
+    public Integer constantValue(ConstantTable known){
+        return myExp.constantValue(known);
+    }
+
+    public void saveTo(Loop.Temp temp){
+        myTemp = temp;
+    }
+
+    public Loop.Temp getTemp(){
+        return myTemp;
+    }
+
+    // 1 kid
+    private ExpNode myExp;
+    private Loop.Temp myTemp;
+}
+
+abstract class UnaryExpNode extends ExpNode {
+    public UnaryExpNode(ExpNode exp) {
+	myExp = exp;
+    }
+    public void lookup(LinkedList<SymbolTable> symTabList, int scope) {
+        myExp.lookup(symTabList, scope);
+    }
+
+    public abstract int getType(int lineNum, int charNum);
+
+    public abstract void cgen();
+
+    public boolean containsCall(){
+        return myExp.containsCall();
+    }
+
+    public boolean isInvariant(Loop loop){
+        return myExp.isInvariant(loop);
+    }
+
+    public ExpNode hoist(Loop loop){
+        if(loop.canHoist() && isInvariant(loop)){
+            return new TempExpNode(loop.newTemp(this));
+        }
+        myExp = myExp.hoist(loop);
+        return this;
     }
 
-    // 2 kids
-    private IdNode myId;
-    private ExpListNode myExpList;
-    private ArrayList<Integer> usedArgsList = new ArrayList<Integer>();
-}
+    public void collectReads(HashSet<String> reads){
+        myExp.collectReads(reads);
+    }
 
-abstract class UnaryExpNode extends ExpNode {
-    public UnaryExpNode(ExpNode exp) {
-	myExp = exp;
+    public Integer constantValue(ConstantTable known){
+        Integer value = myExp.constantValue(known);
+        return value == null ? null : evaluate(value);
     }
-    public void lookup(LinkedList<SymbolTable> symTabList, int scope) {
-        myExp.lookup(symTabList, scope);
+
+    // the operator applied to a known operand, null if that cannot be done at compile time
+    protected Integer evaluate(int value){
+        return null;
     }
 
-    public abstract int getType(int lineNum, int charNum);
+    // the operand first, a call in it that is folded is counted then (see CallExpNode)
+    public ExpNode foldConstants(ConstantTable known){
+        myExp = myExp.foldConstants(known);
+        Integer value = constantValue(known);
+        return value == null ? this : literal(value);
+    }
 
-    public abstract void cgen();
+    public ExpNode numberValues(ValueTable table){
+        String key = valueKey();
+        ExpNode known = table.reuse(key);
+        if (known != null) return known;
+        HashSet<String> reads = new HashSet<String>();
+        collectReads(reads);
+        myExp = myExp.numberValues(table);
+        return table.remember(key, reads, this);
+    }
 
     // one child
     protected ExpNode myExp;
@@ -1666,7 +3864,146 @@ abstract class BinaryExpNode extends ExpNode
     public abstract int getType(int lineNum, int charNum);
 
     public void cgen(){
-        System.out.println("Oh no, you forgot to implement cgen for " + this.getClass());
+        CompileContext.current().out.println("Oh no, you forgot to implement cgen for " + this.getClass());
+    }
+
+    // leaves the value of myExp1 in $t1 and the value of myExp2 in $a0. A leaf on the
+    // right does not touch $t1, so then nothing has to go through the stack
+    protected void cgenOperands(){
+        myExp1.cgen();
+        if (myExp2.isLeaf()) {
+            Codegen.generate("move", "$t1", "$a0");
+            myExp2.cgen();
+        } else {
+            Codegen.genPush("$a0");
+            myExp2.cgen();
+            Codegen.genPop("$t1");
+        }
+    }
+
+    public boolean containsCall(){
+        return myExp1.containsCall() || myExp2.containsCall();
+    }
+
+    public boolean isInvariant(Loop loop){
+        return myExp1.isInvariant(loop) && myExp2.isInvariant(loop);
+    }
+
+    public ExpNode hoist(Loop loop){
+        if(loop.canHoist() && isInvariant(loop)){
+            return new TempExpNode(loop.newTemp(this));
+        }
+        myExp1 = myExp1.hoist(loop);
+        myExp2 = myExp2.hoist(loop);
+        return this;
+    }
+
+    // the arithmetic operators name themselves, the others are not numbered
+    protected String operator(){
+        return null;
+    }
+
+    protected boolean isCommutative(){
+        return false;
+    }
+
+    // a + b and b + a get the same key
+    public String valueKey(){
+        String key1 = myExp1.valueKey();
+        String key2 = myExp2.valueKey();
+        if (operator() == null || key1 == null || key2 == null) return null;
+        if (isCommutative() && key1.compareTo(key2) > 0) {
+            String tmp = key1;
+            key1 = key2;
+            key2 = tmp;
+        }
+        return "(" + key1 + " " + operator() + " " + key2 + ")";
+    }
+
+    public void collectReads(HashSet<String> reads){
+        myExp1.collectReads(reads);
+        myExp2.collectReads(reads);
+    }
+
+    public Integer constantValue(ConstantTable known){
+        Integer value1 = myExp1.constantValue(known);
+        Integer value2 = myExp2.constantValue(known);
+        if (value1 == null || value2 == null) return null;
+        return evaluate(value1, value2);
+    }
+
+    // the operator applied to known operands, null if that cannot be done at compile time
+    // (it would trap at run time, or there is no code generation for it)
+    protected Integer evaluate(int value1, int value2){
+        return null;
+    }
+
+    // the operands first, a call in them that is folded is counted then (see CallExpNode)
+    public ExpNode foldConstants(ConstantTable known){
+        myExp1 = myExp1.foldConstants(known);
+        myExp2 = myExp2.foldConstants(known);
+        Integer value = constantValue(known);
+        return value == null ? this : literal(value);
+    }
+
+    // the operands are visited in the order cgen evaluates them
+    public ExpNode numberValues(ValueTable table){
+        String key = valueKey();
+        ExpNode known = table.reuse(key);
+        if (known != null) return known;
+        HashSet<String> reads = new HashSet<String>();
+        collectReads(reads);
+        myExp1 = myExp1.numberValues(table);
+        myExp2 = myExp2.numberValues(table);
+        return table.remember(key, reads, this);
+    }
+
+    // the operator for Interpreter.Binary
+    protected int interpreterOperator(){
+        throw new IllegalStateException("cannot interpret " + getClass().getName());
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Binary(interpreterOperator(), myExp1.interpreterNode(in), myExp2.interpreterNode(in));
+    }
+
+    // the opcodes from ADD to GE are in the order of the interpreter's operators. Adding or
+    // subtracting a literal is one ADDK
+    public int bcgen(Bytecode.Builder b){
+        int op = Bytecode.ADD + interpreterOperator();
+        int left = myExp1.bcgen(b);
+        int temp;
+        if ((op == Bytecode.ADD || op == Bytecode.SUB) && myExp2 instanceof IntLitNode) {
+            int value = ((IntLitNode)myExp2).getValue();
+            temp = b.temp();
+            b.emit(Bytecode.ADDK, temp, left, op == Bytecode.ADD ? value : -value);
+            return temp;
+        }
+        int right = myExp2.bcgen(b);
+        temp = b.temp();
+        b.emit(op, temp, left, right);
+        return temp;
+    }
+
+    // a comparison is one compare and branch
+    public void bcgenBranch(Bytecode.Builder b, Bytecode.Builder.Label label, boolean onTrue){
+        int op = Bytecode.ADD + interpreterOperator();
+        if (op < Bytecode.EQ) {
+            super.bcgenBranch(b, label, onTrue);
+            return;
+        }
+        int left = myExp1.bcgen(b);
+        b.jump(Bytecode.branch(op, onTrue), label, left, myExp2.bcgen(b));
+    }
+
+    public Closures.Exp closure(Closures c){
+        return c.binary(interpreterOperator(), myExp1.closure(c), myExp2.closure(c));
+    }
+
+    public Closures.Cond closureCondition(Closures c){
+        int op = interpreterOperator();
+        if (!Interpreter.isComparison(op)) return super.closureCondition(c);
+        return c.compare(op, myExp1.closure(c), myExp2.closure(c));
     }
 
     // two kids
@@ -1701,7 +4038,32 @@ class UnaryMinusNode extends UnaryExpNode
 
     public void cgen(){
         myExp.cgen();
-        Codegen.generate("neg", "$a0", "$a0");
+        Codegen.generate("negu", "$a0", "$a0");
+    }
+
+    public String valueKey(){
+        String key = myExp.valueKey();
+        return key == null ? null : "(- " + key + ")";
+    }
+
+    // negu wraps around like the other engines, -MIN_VALUE is MIN_VALUE
+    protected Integer evaluate(int value){
+        return -value;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Negate(myExp.interpreterNode(in));
+    }
+
+    public int bcgen(Bytecode.Builder b){
+        int operand = myExp.bcgen(b);
+        int temp = b.temp();
+        b.emit(Bytecode.NEG, temp, operand);
+        return temp;
+    }
+
+    public Closures.Exp closure(Closures c){
+        return c.negate(myExp.closure(c));
     }
 }
 
@@ -1740,6 +4102,41 @@ class NotNode extends UnaryExpNode
         Codegen.genLabel(endLabel);
 
     }
+
+    public void cgenBranch(String label, boolean onTrue){
+        myExp.cgenBranch(label, !onTrue);
+    }
+
+    protected Integer evaluate(int value){
+        return bool(value != ConstantTable.TRUE);
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Not(myExp.interpreterNode(in));
+    }
+
+    public int bcgen(Bytecode.Builder b){
+        int operand = myExp.bcgen(b);
+        int temp = b.temp();
+        b.emit(Bytecode.NOT, temp, operand);
+        return temp;
+    }
+
+    public void bcgenBranch(Bytecode.Builder b, Bytecode.Builder.Label label, boolean onTrue){
+        myExp.bcgenBranch(b, label, !onTrue);
+    }
+
+    public Closures.Exp closure(Closures c){
+        return c.value(closureCondition(c));
+    }
+
+    public Closures.Cond closureCondition(Closures c){
+        return c.not(myExp.closureCondition(c));
+    }
 }
 
 // **********************************************************************
@@ -1796,15 +4193,39 @@ class PlusNode extends BinaryExpNode
     }
 
     public void cgen(){
-        myExp1.cgen();
-        Codegen.genPush("$a0");
-        myExp2.cgen();
-        Codegen.generate("lw", "$t1", "4($sp)");
-        Codegen.generate("add", "$a0", "$t1", "$a0");
-        Codegen.generateWithComment("addiu", "POP", Codegen.SP, Codegen.SP, "4");
+        if (myExp2 instanceof IntLitNode && Codegen.fitsImmediate(((IntLitNode)myExp2).getValue())) {
+            myExp1.cgen();
+            Codegen.generate("addiu", "$a0", "$a0", ((IntLitNode)myExp2).getValue());
+            return;
+        }
+        // constant propagation leaves c + x behind as well, addition does not care about the order
+        if (myExp1 instanceof IntLitNode && Codegen.fitsImmediate(((IntLitNode)myExp1).getValue())) {
+            myExp2.cgen();
+            Codegen.generate("addiu", "$a0", "$a0", ((IntLitNode)myExp1).getValue());
+            return;
+        }
+        cgenOperands();
+        Codegen.generate("addu", "$a0", "$t1", "$a0");
+
+    }
+
+    protected String operator(){
+        return "+";
+    }
 
+    protected boolean isCommutative(){
+        return true;
     }
 
+
+    // addu does not trap, + wraps around in every engine
+    protected Integer evaluate(int value1, int value2){
+        return value1 + value2;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.PLUS;
+    }
 }
 
 class MinusNode extends BinaryExpNode
@@ -1856,15 +4277,28 @@ class MinusNode extends BinaryExpNode
     }
 
     public void cgen(){
-        myExp1.cgen();
-        Codegen.genPush("$a0");
-        myExp2.cgen();
-        Codegen.generate("lw", "$t1", "4($sp)");
-        Codegen.generateWithComment("sub", "subtract", "$a0", "$t1", "$a0");
-        Codegen.generateWithComment("addiu", "POP", Codegen.SP, Codegen.SP, "4");        
+        if (myExp2 instanceof IntLitNode && Codegen.fitsImmediate(-((IntLitNode)myExp2).getValue())) {
+            myExp1.cgen();
+            Codegen.generateWithComment("addiu", "subtract", "$a0", "$a0", -((IntLitNode)myExp2).getValue() + "");
+            return;
+        }
+        cgenOperands();
+        Codegen.generateWithComment("subu", "subtract", "$a0", "$t1", "$a0");
 
     }
 
+    protected String operator(){
+        return "-";
+    }
+
+
+    protected Integer evaluate(int value1, int value2){
+        return value1 - value2;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.MINUS;
+    }
 }
 
 class TimesNode extends BinaryExpNode
@@ -1914,16 +4348,45 @@ class TimesNode extends BinaryExpNode
     }
 
     public void cgen(){
-        myExp1.cgen();
-        Codegen.genPush("$a0");
-        myExp2.cgen();
-        Codegen.generate("lw", "$t1", "4($sp)");
+        cgenOperands();
         Codegen.generateWithComment("mult", "multiply", "$a0", "$t1");
         Codegen.generate("mflo", "$a0");
-        Codegen.generateWithComment("addiu", "POP", Codegen.SP, Codegen.SP, "4");
     }
 
+    protected String operator(){
+        return "*";
+    }
+
+    protected boolean isCommutative(){
+        return true;
+    }
+
+    // strength reduction: i * k for the induction variable i and an invariant k becomes a
+    // derived induction variable, which is kept up to date with an addition instead
+    public ExpNode hoist(Loop loop){
+        ExpNode hoisted = super.hoist(loop);
+        if (hoisted != this) {
+            return hoisted;
+        }
+        if (loop.isInduction(myExp1) && myExp2.isInvariant(loop)) {
+            return new TempExpNode(loop.derived(this, myExp2));
+        }
+        if (loop.isInduction(myExp2) && myExp1.isInvariant(loop)) {
+            return new TempExpNode(loop.derived(this, myExp1));
+        }
+        return this;
+    }
 
+
+
+    // mult/mflo just keeps the low word
+    protected Integer evaluate(int value1, int value2){
+        return value1 * value2;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.TIMES;
+    }
 }
 
 class DivideNode extends BinaryExpNode
@@ -1973,13 +4436,22 @@ class DivideNode extends BinaryExpNode
     }
 
     public void cgen(){
-        myExp1.cgen();
-        Codegen.genPush("$a0");
-        myExp2.cgen();
-        Codegen.generate("lw", "$t1", "4($sp)");
+        cgenOperands();
         Codegen.generateWithComment("div", "divide", "$t1", "$a0");
         Codegen.generate("mflo", "$a0");
-        Codegen.generateWithComment("addiu", "POP", Codegen.SP, Codegen.SP, "4");
+    }
+
+    protected String operator(){
+        return "/";
+    }
+
+    protected Integer evaluate(int value1, int value2){
+        if (value2 == 0 || (value1 == Integer.MIN_VALUE && value2 == -1)) return null;
+        return value1 / value2;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.DIVIDE;
     }
 }
 
@@ -2044,6 +4516,54 @@ class AndNode extends BinaryExpNode
         Codegen.generateWithComment("li", "Load false", "$a0", Codegen.FALSE);
         Codegen.genLabel(endLabel, "End of and");
     }
+
+    // short circuit: with a false left side the right side does not matter (it is not even evaluated)
+    public Integer constantValue(ConstantTable known){
+        Integer value1 = myExp1.constantValue(known);
+        if (ConstantTable.isFalse(value1)) return ConstantTable.FALSE;
+        Integer value2 = myExp2.constantValue(known);
+        if (value1 == null || value2 == null) return null;
+        return bool(value2 == ConstantTable.TRUE);
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.And(myExp1.interpreterNode(in), myExp2.interpreterNode(in));
+    }
+
+    // the second operand only if the first one does not decide it, like the generated code
+    public int bcgen(Bytecode.Builder b){
+        int temp = b.temp();
+        Bytecode.Builder.Label end = b.newLabel();
+        b.moveTo(temp, myExp1.bcgen(b));
+        b.jump(Bytecode.JUMPF, end, temp);
+        b.moveTo(temp, myExp2.bcgen(b));
+        b.mark(end);
+        return temp;
+    }
+
+    public void bcgenBranch(Bytecode.Builder b, Bytecode.Builder.Label label, boolean onTrue){
+        if (onTrue == false) {
+            myExp1.bcgenBranch(b, label, onTrue);
+            myExp2.bcgenBranch(b, label, onTrue);
+            return;
+        }
+        Bytecode.Builder.Label skip = b.newLabel();
+        myExp1.bcgenBranch(b, skip, false);
+        myExp2.bcgenBranch(b, label, onTrue);
+        b.mark(skip);
+    }
+
+    public Closures.Exp closure(Closures c){
+        return c.value(closureCondition(c));
+    }
+
+    public Closures.Cond closureCondition(Closures c){
+        return c.and(myExp1.closureCondition(c), myExp2.closureCondition(c));
+    }
 }
 
 class OrNode extends BinaryExpNode
@@ -2105,6 +4625,53 @@ class OrNode extends BinaryExpNode
         Codegen.generateWithComment("li", "load false value for logical or", "$a0", Codegen.FALSE);
         Codegen.genLabel(endLabel, "End of logical or");
     }
+
+    public Integer constantValue(ConstantTable known){
+        Integer value1 = myExp1.constantValue(known);
+        if (ConstantTable.isTrue(value1)) return ConstantTable.TRUE;
+        Integer value2 = myExp2.constantValue(known);
+        if (value1 == null || value2 == null) return null;
+        return bool(value2 == ConstantTable.TRUE);
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    public Interpreter.Node interpreterNode(Interpreter in){
+        return new Interpreter.Or(myExp1.interpreterNode(in), myExp2.interpreterNode(in));
+    }
+
+    // the second operand only if the first one does not decide it, like the generated code
+    public int bcgen(Bytecode.Builder b){
+        int temp = b.temp();
+        Bytecode.Builder.Label end = b.newLabel();
+        b.moveTo(temp, myExp1.bcgen(b));
+        b.jump(Bytecode.JUMPT, end, temp);
+        b.moveTo(temp, myExp2.bcgen(b));
+        b.mark(end);
+        return temp;
+    }
+
+    public void bcgenBranch(Bytecode.Builder b, Bytecode.Builder.Label label, boolean onTrue){
+        if (onTrue == true) {
+            myExp1.bcgenBranch(b, label, onTrue);
+            myExp2.bcgenBranch(b, label, onTrue);
+            return;
+        }
+        Bytecode.Builder.Label skip = b.newLabel();
+        myExp1.bcgenBranch(b, skip, true);
+        myExp2.bcgenBranch(b, label, onTrue);
+        b.mark(skip);
+    }
+
+    public Closures.Exp closure(Closures c){
+        return c.value(closureCondition(c));
+    }
+
+    public Closures.Cond closureCondition(Closures c){
+        return c.or(myExp1.closureCondition(c), myExp2.closureCondition(c));
+    }
 }
 
 class EqualsNode extends BinaryExpNode
@@ -2152,10 +4719,7 @@ class EqualsNode extends BinaryExpNode
     public void cgen(){
         String falseLabel = Codegen.nextLabel();
         String endLabel = Codegen.nextLabel();
-        myExp1.cgen();
-        Codegen.genPush("$a0");
-        myExp2.cgen();
-        Codegen.generate("lw", "$t1", "4($sp)");
+        cgenOperands();
         Codegen.generateWithComment("bne", "Check if equal", "$a0", "$t1", falseLabel);
         Codegen.generateWithComment("li", "Load true", "$a0", Codegen.TRUE);
         Codegen.generateWithComment("j", "Jump to end, equal", endLabel);
@@ -2163,6 +4727,31 @@ class EqualsNode extends BinaryExpNode
         Codegen.generateWithComment("li", "Load false", "$a0", Codegen.FALSE);
         Codegen.genLabel(endLabel, "End of equal");
     }
+
+    public void cgenBranch(String label, boolean onTrue){
+        cgenOperands();
+        Codegen.generateWithComment(onTrue ? "beq" : "bne", "branch on equal", "$t1", "$a0", label);
+    }
+
+    protected Integer evaluate(int value1, int value2){
+        return bool(value1 == value2);
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.EQUALS;
+    }
+
+    // Strings are compared by address, the interpreter compares the objects
+    public Interpreter.Node interpreterNode(Interpreter in){
+        if (myExp1.getType() == Types.StringType) {
+            return new Interpreter.StringEquals(true, myExp1.interpreterNode(in), myExp2.interpreterNode(in));
+        }
+        return super.interpreterNode(in);
+    }
 }
 
 class NotEqualsNode extends BinaryExpNode
@@ -2209,10 +4798,7 @@ class NotEqualsNode extends BinaryExpNode
     public void cgen(){
         String trueLabel = Codegen.nextLabel();
         String endLabel = Codegen.nextLabel();
-        myExp1.cgen();
-        Codegen.genPush("$a0");
-        myExp2.cgen();
-        Codegen.generate("lw", "$t1", "4($sp)");
+        cgenOperands();
         Codegen.generateWithComment("bne", "Check if not equal", "$a0", "$t1", trueLabel);
         Codegen.generateWithComment("li", "Load false", "$a0", Codegen.FALSE);
         Codegen.generateWithComment("j", "Jump to end, not equal", endLabel);
@@ -2220,6 +4806,31 @@ class NotEqualsNode extends BinaryExpNode
         Codegen.generateWithComment("li", "Load true", "$a0", Codegen.TRUE);
         Codegen.genLabel(endLabel, "End of not equal");
     }
+
+    public void cgenBranch(String label, boolean onTrue){
+        cgenOperands();
+        Codegen.generateWithComment(onTrue ? "bne" : "beq", "branch on not equal", "$t1", "$a0", label);
+    }
+
+    protected Integer evaluate(int value1, int value2){
+        return bool(value1 != value2);
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.NOT_EQUALS;
+    }
+
+    // Strings are compared by address, the interpreter compares the objects
+    public Interpreter.Node interpreterNode(Interpreter in){
+        if (myExp1.getType() == Types.StringType) {
+            return new Interpreter.StringEquals(false, myExp1.interpreterNode(in), myExp2.interpreterNode(in));
+        }
+        return super.interpreterNode(in);
+    }
 }
 
 class LessNode extends BinaryExpNode
@@ -2271,10 +4882,7 @@ class LessNode extends BinaryExpNode
     public void cgen(){
         String trueLabel = Codegen.nextLabel();
         String endLabel = Codegen.nextLabel();
-        myExp1.cgen();
-        Codegen.genPush("$a0");
-        myExp2.cgen();
-        Codegen.generate("lw", "$t1", "4($sp)");
+        cgenOperands();
         Codegen.generateWithComment("blt", "comapre the two values", "$t1", "$a0", trueLabel);
         Codegen.generateWithComment("li", "Load false", "$a0", Codegen.FALSE);
         Codegen.generateWithComment("j", "Jump to end, it's not less", endLabel);
@@ -2282,6 +4890,23 @@ class LessNode extends BinaryExpNode
         Codegen.generateWithComment("li", "Load true", "$a0", Codegen.TRUE);
         Codegen.genLabel(endLabel, "End of less");
     }
+
+    public void cgenBranch(String label, boolean onTrue){
+        cgenOperands();
+        Codegen.generateWithComment(onTrue ? "blt" : "bge", "branch on less", "$t1", "$a0", label);
+    }
+
+    protected Integer evaluate(int value1, int value2){
+        return bool(value1 < value2);
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.LESS;
+    }
 }
 
 class GreaterNode extends BinaryExpNode
@@ -2333,10 +4958,7 @@ class GreaterNode extends BinaryExpNode
     public void cgen(){
         String trueLabel = Codegen.nextLabel();
         String endLabel = Codegen.nextLabel();
-        myExp1.cgen();
-        Codegen.genPush("$a0");
-        myExp2.cgen();
-        Codegen.generate("lw", "$t1", "4($sp)");
+        cgenOperands();
         Codegen.generateWithComment("bgt", "Check if greater", "$t1", "$a0", trueLabel);
         Codegen.generateWithComment("li", "Load false", "$a0", Codegen.FALSE);
         Codegen.generateWithComment("j", "Jump to end, it's not greater", endLabel);
@@ -2344,6 +4966,23 @@ class GreaterNode extends BinaryExpNode
         Codegen.generateWithComment("li", "Load true", "$a0", Codegen.TRUE);
         Codegen.genLabel(endLabel, "End of greater");
     }
+
+    public void cgenBranch(String label, boolean onTrue){
+        cgenOperands();
+        Codegen.generateWithComment(onTrue ? "bgt" : "ble", "branch on greater", "$t1", "$a0", label);
+    }
+
+    protected Integer evaluate(int value1, int value2){
+        return bool(value1 > value2);
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.GREATER;
+    }
 }
 
 class LessEqNode extends BinaryExpNode
@@ -2396,10 +5035,7 @@ class LessEqNode extends BinaryExpNode
     public void cgen(){
         String trueLabel = Codegen.nextLabel();
         String endLabel = Codegen.nextLabel();
-        myExp1.cgen();
-        Codegen.genPush("$a0");
-        myExp2.cgen();
-        Codegen.generate("lw", "$t1", "4($sp)");
+        cgenOperands();
         Codegen.generateWithComment("ble", "comapre the two values", "$t1", "$a0", trueLabel);
         Codegen.generateWithComment("li", "Load false", "$a0", Codegen.FALSE);
         Codegen.generateWithComment("j", "Jump to end, it's not less", endLabel);
@@ -2407,6 +5043,23 @@ class LessEqNode extends BinaryExpNode
         Codegen.generateWithComment("li", "Load true", "$a0", Codegen.TRUE);
         Codegen.genLabel(endLabel, "End of less");
     }
+
+    public void cgenBranch(String label, boolean onTrue){
+        cgenOperands();
+        Codegen.generateWithComment(onTrue ? "ble" : "bgt", "branch on less or equal", "$t1", "$a0", label);
+    }
+
+    protected Integer evaluate(int value1, int value2){
+        return bool(value1 <= value2);
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.LESS_EQ;
+    }
 }
 
 class GreaterEqNode extends BinaryExpNode
@@ -2459,10 +5112,7 @@ class GreaterEqNode extends BinaryExpNode
     public void cgen(){
         String trueLabel = Codegen.nextLabel();
         String endLabel = Codegen.nextLabel();
-        myExp1.cgen();
-        Codegen.genPush("$a0");
-        myExp2.cgen();
-        Codegen.generate("lw", "$t1", "4($sp)");
+        cgenOperands();
         Codegen.generateWithComment("bge", "comapre the two values", "$t1", "$a0", trueLabel);
         Codegen.generateWithComment("li", "Load false", "$a0", Codegen.FALSE);
         Codegen.generateWithComment("j", "Jump to end, it's not less", endLabel);
@@ -2470,6 +5120,23 @@ class GreaterEqNode extends BinaryExpNode
         Codegen.generateWithComment("li", "Load true", "$a0", Codegen.TRUE);
         Codegen.genLabel(endLabel, "End of less");
     }
+
+    public void cgenBranch(String label, boolean onTrue){
+        cgenOperands();
+        Codegen.generateWithComment(onTrue ? "bge" : "blt", "branch on greater or equal", "$t1", "$a0", label);
+    }
+
+    protected Integer evaluate(int value1, int value2){
+        return bool(value1 >= value2);
+    }
+
+    public boolean isBoolean(){
+        return true;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.GREATER_EQ;
+    }
 }
 
 //added to handle exp to the power of exp
@@ -2518,4 +5185,80 @@ class PowerNode extends BinaryExpNode
         return returnType;
 
     }
+
+    // **********************************************************************
+    // cgen
+    //    a small constant exponent is multiplied out inline: square and
+    //    multiply along the bits of the exponent, from the top one down.
+    //    Everything else calls the runtime routine, which does the same
+    //    from the bottom bit up
+    // **********************************************************************
+    public void cgen(){
+        int n = inlineExponent();
+        if (n < 0) {
+            cgenOperands();
+            Codegen.current().usesPower = true;
+            Codegen.generateWithComment("jal", "$t1 ** $a0", Codegen.POWER);
+            return;
+        }
+        myExp1.cgen();
+        if (n == 0) {
+            Codegen.generateWithComment("li", "x ** 0", "$a0", "1");
+            return;
+        }
+        int top = 31 - Integer.numberOfLeadingZeros(n);
+        if (Integer.bitCount(n) > 1) {
+            Codegen.generate("move", "$t1", "$a0");
+        }
+        for (int bit = top - 1; bit >= 0; bit--) {
+            Codegen.generateWithComment("mult", "square", "$a0", "$a0");
+            Codegen.generate("mflo", "$a0");
+            if ((n & (1 << bit)) != 0) {
+                Codegen.generateWithComment("mult", "multiply by the base", "$a0", "$t1");
+                Codegen.generate("mflo", "$a0");
+            }
+        }
+    }
+
+    // the exponent if it is a constant small enough to expand inline, -1 otherwise
+    private int inlineExponent(){
+        if (myExp2 instanceof IntLitNode) {
+            int n = ((IntLitNode)myExp2).getValue();
+            if (n >= 0 && n <= INLINE_LIMIT) return n;
+        }
+        return -1;
+    }
+
+    // the runtime routine is reached with jal, which overwrites $ra
+    public boolean containsCall(){
+        return inlineExponent() < 0 || super.containsCall();
+    }
+
+    protected String operator(){
+        return "**";
+    }
+
+    // same as the runtime routine: the result wraps around like *, and a negative
+    // exponent gives 1 / x ** n rounded towards zero
+    protected Integer evaluate(int base, int exponent){
+        if (exponent < 0) {
+            if (base == 1) return 1;
+            if (base == -1) return (exponent & 1) == 0 ? 1 : -1;
+            return 0;
+        }
+        int result = 1;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0) result *= base;
+            base *= base;
+            exponent >>>= 1;
+        }
+        return result;
+    }
+
+    protected int interpreterOperator(){
+        return Interpreter.POWER;
+    }
+
+    // up to 5 squarings and 5 multiplications
+    private static final int INLINE_LIMIT = 32;
 }
\ No newline at end of file
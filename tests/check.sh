@@ -0,0 +1,79 @@
+#!/bin/sh
+# **********************************************************************
+# Regression programs (make check)
+#
+# Every tests/<name>.sim is compiled and run in the simulator
+#     java P5 <name>.sim <name>.out <name>.spim -run
+# and what the program prints (the lines P5 itself prints left out) must
+# be tests/<name>.expected.  It has to print the same when it is compiled
+# with -O0 and with -pipeline, run with -jit, -interpret, -closures, -vm
+# and -jvm-run, and compiled again with the profile of a -profile-generate
+# run.
+#
+# Optional, one line per text:
+#     <name>.marks   the generated code has a comment with each, so the
+#                    optimization the program is about did happen
+#     <name>.pgo     the same for the code compiled with the profile
+#
+# Run it from where P5.class is, with the classpath in $CLASSPATH; the
+# files go to a scratch directory.
+# Exit status 1 if anything failed.
+# **********************************************************************
+tests=`dirname $0`
+work=${TMPDIR:-/tmp}/p5check.$$
+mkdir -p $work
+trap 'rm -rf $work' 0
+p5="java -cp $CLASSPATH P5"
+# what P5 prints about the compile, not the program
+report='^(Simple program parsed correctly\.|Dead code elimination |Pure calls: |Call graph: |Profile: )'
+failed=0
+
+fail() {
+    echo "FAIL $name: $1"
+    bad=1
+    failed=1
+}
+
+# compiles $1 to $2 with the options that follow, what the program prints
+run() {
+    sim=$1
+    spim=$2
+    shift 2
+    $p5 $sim $work/out $spim "$@" 2> $work/err | grep -vE "$report"
+}
+
+for sim in $tests/*.sim; do
+    name=`basename $sim .sim`
+    t=$tests/$name
+    bad=0
+    w=$work/$name
+    run $sim $w.spim -run > $w.got
+    if ! diff $t.expected $w.got > $w.diff; then
+        fail "output differs from $name.expected"
+        cat $w.diff $work/err
+        continue
+    fi
+    if [ -f $t.marks ]; then
+        while read mark; do
+            grep -qF "$mark" $w.spim || fail "no '$mark' in the code"
+        done < $t.marks
+    fi
+
+    for mode in "-O0 -run" "-pipeline -run" -jit -interpret -closures -vm -jvm-run; do
+        run $sim $w.mode.spim $mode | cmp -s $t.expected - || fail "prints something else with $mode"
+    done
+
+    # the profile comes after the program's output
+    run $sim $w.gen.spim -profile-generate -run > $w.prof
+    sed '/^#profile$/,$d' $w.prof | cmp -s $t.expected - ||
+        fail "prints something else with -profile-generate"
+    run $sim $w.use.spim -profile-use $w.prof -run | cmp -s $t.expected - ||
+        fail "prints something else with -profile-use"
+    if [ -f $t.pgo ]; then
+        while read mark; do
+            grep -qF "$mark" $w.use.spim || fail "no '$mark' in the code compiled with the profile"
+        done < $t.pgo
+    fi
+    [ $bad = 0 ] && echo "ok   $name"
+done
+exit $failed